@@ -0,0 +1,87 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.benchmark;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.danrama.simpledbconnectionpool.impl.ExpandingSizeConnectionPool;
+import com.danrama.simpledbconnectionpool.simulation.SimulatedDriver;
+
+/**
+ * Measures a borrow and release cycle on a pool in its steady state, where no connection is ever opened or closed.  Run it
+ * with the GC profiler to see how much each cycle allocates:
+ * <pre>
+ *   mvn -P benchmark test
+ * </pre>
+ * The simulated driver allocates a little on every validation, and the pool validates every connection coming back to it.
+ * That share is measured by <code>validateRawConnection</code>; whatever <code>borrowAndRelease</code> allocates on top of it,
+ * as reported by <code>gc.alloc.rate.norm</code>, comes from the pool.
+ *
+ * @author Daniel Bloomfield Ramagem
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BorrowReleaseBenchmark {
+	private ExpandingSizeConnectionPool pool;
+	private Connection rawConnection;
+
+	@Setup
+	public void setUp() throws SQLException {
+		// the pool logs every borrow and release at debug level, which allocates on its own
+		Logger.getLogger("com.danrama").setLevel(Level.WARN);
+
+		// the minimum is the maximum so that released connections are always put back in the pool rather than closed
+		pool = new ExpandingSizeConnectionPool(4, 4, new SimulatedDriver(1), "jdbc:simulated", null);
+		rawConnection = new SimulatedDriver(1).connect("jdbc:simulated", null);
+	}
+
+	@TearDown
+	public void tearDown() throws SQLException {
+		pool.shutdown();
+		rawConnection.close();
+	}
+
+	@Benchmark
+	public void borrowAndRelease() throws SQLException {
+		Connection conn = pool.getConnection();
+		pool.releaseConnection(conn);
+	}
+
+	@Benchmark
+	public boolean validateRawConnection() throws SQLException {
+		return rawConnection.isValid(0);
+	}
+}
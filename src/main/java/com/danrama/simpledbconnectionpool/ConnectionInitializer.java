@@ -0,0 +1,38 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Callback interface for clients that need to set up the session of every new physical connection, e.g. its time zone,
+ * schema or transaction isolation.  It runs once per physical connection, before the connection is first handed out, so
+ * clients no longer have to redo the setup on every borrow.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ * @see com.danrama.simpledbconnectionpool.impl.InitializingConnectionSource
+ */
+public interface ConnectionInitializer {
+	
+	/**
+	 * A new physical connection has been made.
+	 * 
+	 * @param connection the raw database connection
+	 * @throws SQLException if the setup failed, in which case the connection is closed and the connect fails
+	 */
+	void initialize(Connection connection) throws SQLException;
+}
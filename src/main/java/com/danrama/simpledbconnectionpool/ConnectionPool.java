@@ -16,6 +16,8 @@ limitations under the License.
 package com.danrama.simpledbconnectionpool;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * Interface for a basic Connection Pool.
@@ -36,4 +38,23 @@ public interface ConnectionPool {
      * @throws java.sql.SQLException
      */
     void releaseConnection(Connection connection) throws SQLException;
+
+    /**
+     * Gets several connections from the connection pool at once.  Either all of the connections are obtained or none are,
+     * so that clients needing more than one connection at a time never hold on to part of them while waiting for the rest.
+     * 
+     * @param count the number of connections needed
+     * @param timeoutMillis maximum time to wait for the connections to become available, 0 to not wait at all
+     * @return the valid connections from the pool
+     */
+    List<Connection> getConnections(int count, long timeoutMillis) throws SQLException;
+
+    /**
+     * Releases several connections back into the connection pool at once.  All of the connections are released even if
+     * releasing some of them fails, in which case the first error is thrown.
+     * 
+     * @param connections the connections to return to the pool
+     * @throws java.sql.SQLException
+     */
+    void releaseConnections(Collection<? extends Connection> connections) throws SQLException;
 }
@@ -15,16 +15,25 @@ limitations under the License.
 */
 package com.danrama.simpledbconnectionpool;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.Driver;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.jcip.annotations.ThreadSafe;
 
+import org.apache.log4j.Logger;
+
 import com.danrama.simpledbconnectionpool.exception.ConnectionPoolException;
 import com.danrama.simpledbconnectionpool.exception.ConnectionPoolInitializationException;
+import com.danrama.simpledbconnectionpool.impl.ConnectionPoolDemandStatistics;
+import com.danrama.simpledbconnectionpool.impl.ConnectionRateLimiter;
+import com.danrama.simpledbconnectionpool.impl.DriverConnectionSource;
 import com.danrama.simpledbconnectionpool.impl.ExpandingSizeConnectionPool;
+import com.danrama.simpledbconnectionpool.impl.InitializingConnectionSource;
 
 /**
  * Creates pre-configured instances of database connection pools.  It uses the <i>factory pattern</i> to hide from the client
@@ -37,11 +46,32 @@ import com.danrama.simpledbconnectionpool.impl.ExpandingSizeConnectionPool;
  */
 @ThreadSafe
 public class ConnectionPoolFactory {
-	// database driver & parameters for connection
+	private static final Logger logger = Logger.getLogger(ConnectionPoolFactory.class);
+	
+	// database driver & parameters for connection, resolved once for all of the pools
 	private final String dbConnUrl;
 	private final Properties dbConnProps;
 	private final Driver dbDriver;
 	
+	// a client supplied source of database connections, used instead of the driver when set
+	private final ConnectionSource connectionSource;
+	
+	// optional throttle on new database connections, shared by all the pools created by this factory
+	private volatile ConnectionRateLimiter connectionRateLimiter;
+	
+	// optional credentials and pre-connect hook for the connections made through the driver
+	private volatile CredentialsProvider credentialsProvider;
+	private volatile PreConnectHook preConnectHook;
+	
+	// optional session setup of every new connection
+	private volatile String[] initSql = new String[0];
+	private volatile ConnectionInitializer connectionInitializer;
+	
+	// optional directory of the reports of the demand for connections, one per pool by the order in which the pools are
+	// created, the pools are sized from their report and update it when closed
+	private volatile File demandReportDirectory;
+	private final AtomicInteger createdPools = new AtomicInteger();
+	
 	/**
 	 * Initialize the factory to create connection pools for a specific database.
 	 * 
@@ -62,6 +92,92 @@ public class ConnectionPoolFactory {
 		this.dbConnUrl = dbConnUrl;
 		this.dbConnProps = dbConnProps;
 		this.dbDriver = DriverManager.getDriver(dbConnUrl);
+		this.connectionSource = null;
+	}
+	
+	/**
+	 * Initialize the factory to create connection pools getting their database connections from a client supplied source.
+	 * 
+	 * @param connectionSource the source of the database connections, shared by all of the pools
+	 */
+	public ConnectionPoolFactory(ConnectionSource connectionSource) {
+		if (connectionSource == null)
+			throw new IllegalArgumentException("connection source must be supplied");
+		
+		this.dbConnUrl = null;
+		this.dbConnProps = null;
+		this.dbDriver = null;
+		this.connectionSource = connectionSource;
+	}
+	
+	/**
+	 * Throttle the creation of database connections for the pools subsequently created by this factory.  The limiter is
+	 * shared by all of those pools, which caps the combined connect rate against the database.
+	 * 
+	 * @param connectionRateLimiter the rate limiter, or <code>null</code> to stop throttling connects for new pools
+	 */
+	public void setConnectionRateLimiter(ConnectionRateLimiter connectionRateLimiter) {
+		this.connectionRateLimiter = connectionRateLimiter;
+	}
+	
+	/**
+	 * Add credentials to the connection properties of the pools subsequently created by this factory.  The provider is
+	 * asked for the credentials on every connect, so that rotated credentials are picked up without rebuilding the pools;
+	 * wrap slow providers in a <code>CachedCredentialsProvider</code> so that connects never wait for them.  Not used when
+	 * the factory was given a <code>ConnectionSource</code>.
+	 * 
+	 * @param credentialsProvider the credentials provider, or <code>null</code> to only use the connection properties
+	 */
+	public void setCredentialsProvider(CredentialsProvider credentialsProvider) {
+		this.credentialsProvider = credentialsProvider;
+	}
+	
+	/**
+	 * Run a hook right before every connect of the pools subsequently created by this factory.  Not used when the factory
+	 * was given a <code>ConnectionSource</code>.
+	 * 
+	 * @param preConnectHook the hook, or <code>null</code> for none
+	 */
+	public void setPreConnectHook(PreConnectHook preConnectHook) {
+		this.preConnectHook = preConnectHook;
+	}
+	
+	/**
+	 * Run SQL statements on every new physical connection of the pools subsequently created by this factory, e.g. to set
+	 * the session time zone.  The statements are sent as a single batch when the driver supports it.  A connection that
+	 * fails its initialization is closed and the connect fails.
+	 * 
+	 * @param initSql the SQL statements, none or <code>null</code> to stop initializing connections with SQL
+	 */
+	public void setInitSql(String... initSql) {
+		this.initSql = initSql == null ? new String[0] : initSql.clone();
+	}
+	
+	/**
+	 * Run a callback on every new physical connection of the pools subsequently created by this factory, after the init
+	 * SQL.  A connection that fails its initialization is closed and the connect fails.
+	 * 
+	 * @param connectionInitializer the callback, or <code>null</code> for none
+	 */
+	public void setConnectionInitializer(ConnectionInitializer connectionInitializer) {
+		this.connectionInitializer = connectionInitializer;
+	}
+	
+	/**
+	 * Warm up the pools subsequently created by this factory to the demand for connections recorded by the same pools
+	 * before, e.g. before the application was restarted.  Every pool has a report of its own in the directory, named after
+	 * the order in which the factory creates the pools: <code>pool-1.properties</code> for the first one, and so on.  When
+	 * its report is there, a pool warms up to the mean demand it recorded, within the minimum and maximum connections given
+	 * to <code>createConnectionPool()</code>.  The maximum connections given are kept, as the peak of a single period is
+	 * too little to go by for capping the pool; the maximum the report recommends is only logged.  Each pool writes an
+	 * updated report when it is closed, so a missing report only means the pool gets the given size.
+	 * 
+	 * @param demandReportDirectory the existing report directory, or <code>null</code> to use the given pool size
+	 * @see ConnectionPoolDemandStatistics.Report#getRecommendedMinConnections(int, int)
+	 * @see ConnectionPoolDemandStatistics.Report#getRecommendedMaxConnections(int, int)
+	 */
+	public void setDemandReportDirectory(File demandReportDirectory) {
+		this.demandReportDirectory = demandReportDirectory;
 	}
 	
 	/**
@@ -78,7 +194,32 @@ public class ConnectionPoolFactory {
 	public ConnectionPool createConnectionPool(Object... poolParams) throws ConnectionPoolException {
 		int poolMinConnections = (Integer) poolParams[0];
 		int poolMaxConnections = (Integer) poolParams[1];
-		return new ExpandingSizeConnectionPool(poolMinConnections, poolMaxConnections, 
-				dbDriver, dbConnUrl, dbConnProps);
+		File reportDirectory = demandReportDirectory;
+		File reportFile = null;
+		int poolNumber = createdPools.incrementAndGet();
+		if (reportDirectory != null)
+			reportFile = new File(reportDirectory, "pool-" + poolNumber + ".properties");
+		if (reportFile != null && reportFile.exists()) {
+			try {
+				ConnectionPoolDemandStatistics.Report report = ConnectionPoolDemandStatistics.Report.readFrom(reportFile);
+				int recommendedMaxConnections = report.getRecommendedMaxConnections(poolMinConnections, poolMaxConnections);
+				poolMinConnections = report.getRecommendedMinConnections(poolMinConnections, poolMaxConnections);
+				logger.info("sized pool(min:" + poolMinConnections + ", max:" + poolMaxConnections + ") from " + report +
+						", which recommends a maximum of " + recommendedMaxConnections);
+			} catch (IOException e) {
+				logger.warn("could not read the demand report, using the given pool size: " + e);
+			}
+		}
+		ConnectionSource source = connectionSource;
+		if (source == null)
+			source = new DriverConnectionSource(dbDriver, dbConnUrl, dbConnProps, credentialsProvider, preConnectHook);
+		String[] currentInitSql = initSql;
+		ConnectionInitializer currentInitializer = connectionInitializer;
+		if (currentInitSql.length > 0 || currentInitializer != null)
+			source = new InitializingConnectionSource(source, currentInitSql, currentInitializer);
+		ExpandingSizeConnectionPool pool = new ExpandingSizeConnectionPool(poolMinConnections, poolMaxConnections, source,
+				connectionRateLimiter);
+		pool.setDemandReportFile(reportFile);
+		return pool;
 	}
 }
@@ -0,0 +1,91 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool;
+
+import java.sql.Connection;
+
+/**
+ * Callback interface for clients that want to be notified of connection pool lifecycle events, e.g. to collect metrics or to
+ * trace connection usage.
+ * <p>
+ * Every callback receives the physical database connection the event is about, so that the events for the same connection
+ * can be correlated.  Listeners must not use or close that connection.  Times are given in nanoseconds.
+ * <p>
+ * Callbacks are made on the thread that triggered the event, possibly while it holds the pool lock, so they add directly to
+ * the latency of the pool.  Listeners that do any significant work should be wrapped in an
+ * <code>AsyncConnectionPoolListener</code>.  Exceptions thrown by a listener are logged and otherwise ignored.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ * @see ConnectionPoolListenerAdapter
+ * @see com.danrama.simpledbconnectionpool.impl.AsyncConnectionPoolListener
+ */
+public interface ConnectionPoolListener {
+	
+	/**
+	 * A new physical connection was opened.
+	 * 
+	 * @param connection the new database connection
+	 * @param connectNanos how long it took to open the connection
+	 */
+	void connectionCreated(Connection connection, long connectNanos);
+	
+	/**
+	 * A connection was handed out to a client.
+	 * 
+	 * @param connection the database connection that was handed out
+	 * @param waitNanos how long the client waited for the connection
+	 */
+	void connectionBorrowed(Connection connection, long waitNanos);
+	
+	/**
+	 * A client returned a connection to the pool.
+	 * 
+	 * @param connection the database connection that was returned
+	 * @param heldNanos how long the client held on to the connection
+	 */
+	void connectionReturned(Connection connection, long heldNanos);
+	
+	/**
+	 * A connection was checked for validity.
+	 * 
+	 * @param connection the database connection that was checked
+	 * @param valid whether the connection was found to be valid
+	 * @param validationNanos how long the check took
+	 */
+	void connectionValidated(Connection connection, boolean valid, long validationNanos);
+	
+	/**
+	 * A connection was removed from the pool because it could not be used anymore.
+	 * 
+	 * @param connection the database connection that was evicted
+	 * @param reason a short description of why the connection was evicted
+	 */
+	void connectionEvicted(Connection connection, String reason);
+	
+	/**
+	 * A physical connection was closed by the pool.
+	 * 
+	 * @param connection the database connection that was closed
+	 */
+	void connectionDestroyed(Connection connection);
+	
+	/**
+	 * A client gave up waiting for a connection.
+	 * 
+	 * @param waitNanos how long the client waited before giving up
+	 */
+	void waitTimedOut(long waitNanos);
+}
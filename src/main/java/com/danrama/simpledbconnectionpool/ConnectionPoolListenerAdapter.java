@@ -0,0 +1,47 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool;
+
+import java.sql.Connection;
+
+/**
+ * An empty implementation of <code>ConnectionPoolListener</code>, so that listeners only need to override the callbacks they
+ * are interested in.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ */
+public abstract class ConnectionPoolListenerAdapter implements ConnectionPoolListener {
+	public void connectionCreated(Connection connection, long connectNanos) {
+	}
+
+	public void connectionBorrowed(Connection connection, long waitNanos) {
+	}
+
+	public void connectionReturned(Connection connection, long heldNanos) {
+	}
+
+	public void connectionValidated(Connection connection, boolean valid, long validationNanos) {
+	}
+
+	public void connectionEvicted(Connection connection, String reason) {
+	}
+
+	public void connectionDestroyed(Connection connection) {
+	}
+
+	public void waitTimedOut(long waitNanos) {
+	}
+}
@@ -0,0 +1,41 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Service provider interface for the source of the physical database connections of a pool.  Every new connection a pool
+ * needs is obtained from its source, which lets clients control how connections are made, e.g. with credentials that change
+ * over time, without having to rebuild the pool.
+ * <p>
+ * Sources are called by any thread that makes the pool open a connection, so implementations must be thread safe.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ * @see com.danrama.simpledbconnectionpool.impl.DriverConnectionSource
+ * @see ConnectionPoolFactory#ConnectionPoolFactory(ConnectionSource)
+ */
+public interface ConnectionSource {
+	
+	/**
+	 * Open a new physical database connection.
+	 * 
+	 * @return the connection
+	 * @throws SQLException if the connection could not be made
+	 */
+	Connection getConnection() throws SQLException;
+}
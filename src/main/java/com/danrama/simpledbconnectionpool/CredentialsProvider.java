@@ -0,0 +1,42 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool;
+
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * Service provider interface for the credentials used to connect to the database, e.g. a user name and a short lived
+ * password or token.  The credentials are returned as connection properties, typically <code>user</code> and
+ * <code>password</code>, which are added to the connection properties of every new connection.
+ * <p>
+ * Fetching credentials may be slow, so providers are normally wrapped in a
+ * <code>CachedCredentialsProvider</code>, which refreshes them in the background so that connects never wait for them.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ * @see com.danrama.simpledbconnectionpool.impl.CachedCredentialsProvider
+ * @see com.danrama.simpledbconnectionpool.impl.FileCredentialsProvider
+ */
+public interface CredentialsProvider {
+	
+	/**
+	 * Gets the current credentials.
+	 * 
+	 * @return the credentials as connection properties, never modified by the caller
+	 * @throws SQLException if the credentials could not be obtained
+	 */
+	Properties getCredentials() throws SQLException;
+}
@@ -0,0 +1,40 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool;
+
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * Callback interface for clients that need to act right before each new physical connection is made, e.g. to add a
+ * per-connection property or to check that the database should be connected to at all.
+ * <p>
+ * The hook runs on the thread opening the connection, so it should be quick.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ * @see com.danrama.simpledbconnectionpool.impl.DriverConnectionSource
+ */
+public interface PreConnectHook {
+	
+	/**
+	 * A connection is about to be made.
+	 * 
+	 * @param dbConnUrl the database connection URL
+	 * @param dbConnProps a copy of the connection properties, including the credentials, that may be modified
+	 * @throws SQLException to fail the connect
+	 */
+	void beforeConnect(String dbConnUrl, Properties dbConnProps) throws SQLException;
+}
@@ -0,0 +1,38 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool;
+
+/**
+ * Callback interface for clients that want to be notified of SQL statements that took longer than a threshold to execute
+ * through a pooled connection.
+ * <p>
+ * The callback is made on the thread that executed the statement, right after the execution finished, so it should be quick.
+ * Exceptions thrown by the listener are logged and otherwise ignored.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ * @see com.danrama.simpledbconnectionpool.impl.StatementStatistics
+ */
+public interface SlowQueryListener {
+	
+	/**
+	 * A statement took longer than the slow query threshold.
+	 * 
+	 * @param sql the SQL text as executed, not normalized
+	 * @param elapsedNanos how long the execution took
+	 * @param failed whether the execution ended with an error
+	 */
+	void slowQuery(String sql, long elapsedNanos, boolean failed);
+}
@@ -0,0 +1,38 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool;
+
+import java.sql.SQLException;
+
+/**
+ * Service provider interface for the connection sources of the tenants of a multi-tenant application, e.g. a
+ * <code>DriverConnectionSource</code> built with the database connection URL of the tenant.  Called once per tenant, the
+ * first time a pool is needed for it, and again if its pool was closed for being idle.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ * @see com.danrama.simpledbconnectionpool.impl.TenantConnectionPoolRegistry
+ */
+public interface TenantConnectionSourceProvider {
+	
+	/**
+	 * Gets the source of the database connections of a tenant.
+	 * 
+	 * @param tenantId the tenant
+	 * @return the connection source
+	 * @throws SQLException if the tenant is unknown or its source could not be set up
+	 */
+	ConnectionSource getConnectionSource(String tenantId) throws SQLException;
+}
@@ -0,0 +1,41 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.exception;
+
+/**
+ * An exception that signals that the pool has been closed and no longer hands out connections.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ */
+public class ConnectionPoolClosedException extends ConnectionPoolException {
+	private static final long serialVersionUID = 1L;
+
+	public ConnectionPoolClosedException() {
+		super();
+	}
+		
+	public ConnectionPoolClosedException(String message) {		
+		super(message);
+	}
+
+	public ConnectionPoolClosedException(Exception e) {
+		super(e);
+	}
+	
+	public ConnectionPoolClosedException(String message, Exception e) {
+		super(message, e);
+	}
+}
@@ -0,0 +1,42 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.exception;
+
+/**
+ * An exception that signals that a new database connection could not be opened because the connection rate limiter did not
+ * grant a permit within its maximum wait time.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ */
+public class ConnectionPoolConnectThrottledException extends ConnectionPoolNewConnectionException {
+	private static final long serialVersionUID = 1L;
+
+	public ConnectionPoolConnectThrottledException() {
+		super();
+	}
+		
+	public ConnectionPoolConnectThrottledException(String message) {		
+		super(message);
+	}
+
+	public ConnectionPoolConnectThrottledException(Exception e) {
+		super(e);
+	}
+	
+	public ConnectionPoolConnectThrottledException(String message, Exception e) {
+		super(message, e);
+	}
+}
@@ -0,0 +1,42 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.exception;
+
+/**
+ * An exception that signals that a borrow was turned down right away because, at the rate connections are being released,
+ * none would become available before the deadline of the borrower.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ */
+public class ConnectionPoolLoadShedException extends ConnectionPoolOutOfConnectionsException {
+	private static final long serialVersionUID = 1L;
+
+	public ConnectionPoolLoadShedException() {
+		super();
+	}
+		
+	public ConnectionPoolLoadShedException(String message) {		
+		super(message);
+	}
+
+	public ConnectionPoolLoadShedException(Exception e) {
+		super(e);
+	}
+	
+	public ConnectionPoolLoadShedException(String message, Exception e) {
+		super(message, e);
+	}
+}
@@ -3,25 +3,84 @@ package com.danrama.simpledbconnectionpool.impl;
 import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
 
+import org.apache.log4j.Logger;
+
 import com.danrama.simpledbconnectionpool.ConnectionPool;
+import com.danrama.simpledbconnectionpool.ConnectionPoolListener;
+import com.danrama.simpledbconnectionpool.ConnectionSource;
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolConnectThrottledException;
 
 /**
- * A common starting point for connection pool implementations to inherit.  This abstract class holds on to the underlying
- * database driver and associated parameters.  It serves as a factory for creating database connections that will be used by
- * the subclasses.
+ * A common starting point for connection pool implementations to inherit.  This abstract class holds on to the source of the
+ * underlying database connections, normally a database driver and associated parameters.  It serves as a factory for
+ * creating database connections that will be used by the subclasses.
  * 
  * @author Daniel Bloomfield Ramagem
  */
 @ThreadSafe
 public abstract class AbstractConnectionPool implements ConnectionPool {
-	// database driver & parameters for connection
-	private final Driver dbDriver;
-	private final String dbConnUrl;
-	private final Properties dbConnProps;
+	private static final Logger logger = Logger.getLogger(AbstractConnectionPool.class);
+	
+	// how many physical connections the pool may be opening at once in the background
+	private static final int CONNECTION_CREATOR_THREADS = 4;
+	
+	// where the physical database connections come from
+	private final ConnectionSource connectionSource;
+	
+	// optional throttle on the rate of new physical connections, null when connects are not limited
+	private final ConnectionRateLimiter connectionRateLimiter;
+	
+	// optional statistics of the statements executed through the pooled connections, null when not collected
+	private volatile StatementStatistics statementStatistics;
+	
+	// optional classification of the errors raised through the pooled connections, null when they are not looked at
+	private volatile FatalErrorClassifier fatalErrorClassifier;
+	
+	// whether closing a pooled connection releases it back to the pool, as the clients of a DataSource expect
+	private volatile boolean releaseOnClose;
+	
+	// whether the statements left open by the clients are closed when their connection is released, and how many were
+	private volatile boolean closeOpenStatementsOnRelease;
+	private final AtomicLong autoClosedStatements = new AtomicLong();
+	private final AtomicLong autoClosedResultSets = new AtomicLong();
+	
+	// the demand for the connections of the pool, for sizing it from the data
+	private final ConnectionPoolDemandStatistics demandStatistics = new ConnectionPoolDemandStatistics();
+	
+	// outcome of the most recent connects and validations, for assessing the health of the pool
+	private volatile boolean connectFailing;
+	private volatile SQLException lastConnectError;
+	private volatile long lastConnectErrorAtMillis;
+	private volatile boolean validationFailing;
+	private volatile long lastSuccessfulValidationAtMillis;
+	
+	// background thread running the pool's periodic maintenance tasks, only created when first needed
+	@GuardedBy("this") private ScheduledExecutorService housekeeper;
+	
+	// background threads opening new physical connections, only created when first needed
+	@GuardedBy("this") private ThreadPoolExecutor connectionCreator;
+	
+	// The registered listeners.  The array is replaced, never modified, whenever a listener is added or removed so that the
+	// events can be fired without locking or allocating an iterator.
+	@GuardedBy("listenersLock") private volatile ConnectionPoolListener[] listeners = new ConnectionPoolListener[0];
+	private final Object listenersLock = new Object();
 	
 	/**
 	 * Initialize the pool for a specific database.
@@ -31,19 +90,115 @@ public abstract class AbstractConnectionPool implements ConnectionPool {
 	 * @param dbConnProps optional database connection properties
 	 */
 	public AbstractConnectionPool(Driver dbDriver, String dbConnUrl, Properties dbConnProps) {
-		this.dbDriver = dbDriver;
-		this.dbConnUrl = dbConnUrl;
-		this.dbConnProps = dbConnProps;
+		this(dbDriver, dbConnUrl, dbConnProps, null);
 	}
 
 	/**
-	 * Get a new raw database connection.
+	 * Initialize the pool for a specific database, throttling the creation of new connections.
+	 * 
+	 * @param dbDriver the database driver
+	 * @param dbConnUrl optional database connection URL
+	 * @param dbConnProps optional database connection properties
+	 * @param connectionRateLimiter optional limiter applied to every new database connection
+	 */
+	public AbstractConnectionPool(Driver dbDriver, String dbConnUrl, Properties dbConnProps, 
+			ConnectionRateLimiter connectionRateLimiter) {
+		this(new DriverConnectionSource(dbDriver, dbConnUrl, dbConnProps), connectionRateLimiter);
+	}
+
+	/**
+	 * Initialize the pool to get its database connections from a connection source, throttling the creation of new
+	 * connections.
+	 * 
+	 * @param connectionSource the source of the database connections
+	 * @param connectionRateLimiter optional limiter applied to every new database connection
+	 */
+	public AbstractConnectionPool(ConnectionSource connectionSource, ConnectionRateLimiter connectionRateLimiter) {
+		if (connectionSource == null)
+			throw new IllegalArgumentException("connection source must be supplied");
+		this.connectionSource = connectionSource;
+		this.connectionRateLimiter = connectionRateLimiter;
+	}
+
+	/**
+	 * Gets the limiter throttling new database connections for this pool.
+	 * 
+	 * @return the rate limiter, or <code>null</code> if connects are not throttled
+	 */
+	public ConnectionRateLimiter getConnectionRateLimiter() {
+		return connectionRateLimiter;
+	}
+
+	/**
+	 * Gets the demand recorded for the connections of this pool.
+	 * 
+	 * @return the demand statistics
+	 */
+	public ConnectionPoolDemandStatistics getDemandStatistics() {
+		return demandStatistics;
+	}
+
+	/**
+	 * Get a new raw database connection.  If the pool has a rate limiter then the caller may be held back until a connect
+	 * permit is available.
 	 * 
 	 * @return a database connection
+	 * @throws ConnectionPoolConnectThrottledException if the rate limiter did not grant a permit in time
 	 * @throws SQLException
 	 */
 	protected Connection getNewRawDbConnection() throws SQLException {
-		return dbDriver.connect(dbConnUrl, dbConnProps);
+		if (connectionRateLimiter == null)
+			return connect();
+		
+		connectionRateLimiter.acquire();
+		try {
+			return connect();
+		} finally {
+			connectionRateLimiter.release();
+		}
+	}
+	
+	private Connection connect() throws SQLException {
+		long start = System.nanoTime();
+		Connection connection;
+		try {
+			connection = connectionSource.getConnection();
+		} catch (SQLException e) {
+			lastConnectError = e;
+			lastConnectErrorAtMillis = System.currentTimeMillis();
+			connectFailing = true;
+			throw e;
+		}
+		connectFailing = false;
+		long connectNanos = System.nanoTime() - start;
+		demandStatistics.connected(connectNanos);
+		fireConnectionCreated(connection, connectNanos);
+		return connection;
+	}
+	
+	/**
+	 * Assess the health of the pool from the outcome of the most recent connects and validations and the given pool state.
+	 * 
+	 * @param totalConnections the connections currently open by the pool
+	 * @param idleConnections the connections available in the pool
+	 * @param borrowedConnections the connections handed out to clients
+	 * @param maxConnections the maximum connections of the pool
+	 * @return the health of the pool
+	 */
+	protected ConnectionPoolHealth assessHealth(int totalConnections, int idleConnections, int borrowedConnections, 
+			int maxConnections) {
+		return new ConnectionPoolHealth(totalConnections, idleConnections, borrowedConnections, maxConnections, 
+				connectFailing, validationFailing, lastConnectError, lastConnectErrorAtMillis, 
+				lastSuccessfulValidationAtMillis);
+	}
+	
+	/**
+	 * Gets when a connection of this pool was last found to be valid.
+	 * 
+	 * @return the time in milliseconds, or 0 if no connection was ever validated successfully
+	 */
+	protected long getLastSuccessfulValidationAtMillis() {
+		return lastSuccessfulValidationAtMillis;
 	}
 
 	/**
@@ -56,7 +211,319 @@ public abstract class AbstractConnectionPool implements ConnectionPool {
 		return PooledConnectionFactory.createPooledConnection(this, getNewRawDbConnection());
 	}
 
+	/**
+	 * Gets the executor running the pool's periodic maintenance tasks.  The executor has a single daemon thread, which is
+	 * created the first time this method is called.
+	 * 
+	 * @return the housekeeping executor
+	 */
+	protected synchronized ScheduledExecutorService getHousekeeper() {
+		if (housekeeper == null) {
+			housekeeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "connection-pool-housekeeper");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return housekeeper;
+	}
+	
+	/**
+	 * Gets the executor opening new physical connections in the background, so that the clients are not held up by the
+	 * connects and several connections can be opened at once.  Its daemon threads are created as needed and go away when
+	 * idle.
+	 * 
+	 * @return the connection creation executor
+	 */
+	protected synchronized ExecutorService getConnectionCreator() {
+		if (connectionCreator == null) {
+			connectionCreator = new ThreadPoolExecutor(CONNECTION_CREATOR_THREADS, CONNECTION_CREATOR_THREADS, 30, 
+					TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "connection-pool-creator");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			connectionCreator.allowCoreThreadTimeOut(true);
+		}
+		return connectionCreator;
+	}
+	
+	/**
+	 * Stop the pool's background maintenance tasks.  Connections already handed out are not affected, and the connections
+	 * already being opened in the background are still opened.
+	 */
+	public synchronized void shutdown() {
+		if (housekeeper != null) {
+			housekeeper.shutdownNow();
+			housekeeper = null;
+		}
+		if (connectionCreator != null) {
+			connectionCreator.shutdown();
+			connectionCreator = null;
+		}
+	}
+	
+	/**
+	 * Gets the statistics of the statements executed through the connections of this pool.
+	 * 
+	 * @return the statement statistics, or <code>null</code> if they are not being collected
+	 */
+	public StatementStatistics getStatementStatistics() {
+		return statementStatistics;
+	}
+	
+	/**
+	 * Start or stop collecting statistics of the statements executed through the connections of this pool.  Only the
+	 * statements created after the call are affected.  When statistics are not collected, statements are not wrapped at all.
+	 * 
+	 * @param statementStatistics where to record the statement executions, or <code>null</code> to stop collecting them
+	 */
+	public void setStatementStatistics(StatementStatistics statementStatistics) {
+		this.statementStatistics = statementStatistics;
+	}
+	
+	/**
+	 * Gets the classifier of the errors raised through the connections of this pool.
+	 * 
+	 * @return the classifier, or <code>null</code> if the errors are not looked at
+	 */
+	public FatalErrorClassifier getFatalErrorClassifier() {
+		return fatalErrorClassifier;
+	}
+	
+	/**
+	 * Start or stop looking at the errors raised by the pooled connections and their statements.  A connection whose error
+	 * says it is broken is evicted, and an error saying that the database went away makes the pool check all of its idle
+	 * connections at once, in the background.  Only the statements created after the call are affected.
+	 * 
+	 * @param fatalErrorClassifier the classifier of the errors, or <code>null</code> to stop looking at them
+	 */
+	public void setFatalErrorClassifier(FatalErrorClassifier fatalErrorClassifier) {
+		this.fatalErrorClassifier = fatalErrorClassifier;
+	}
+	
+	/**
+	 * Called with every error raised by a pooled connection or one of its statements while errors are classified.
+	 * 
+	 * @param rawConnection the physical connection the error was raised on
+	 * @param e the error
+	 */
+	void connectionErrorOccurred(Connection rawConnection, SQLException e) {
+		FatalErrorClassifier classifier = fatalErrorClassifier;
+		if (classifier == null || rawConnection == null)
+			return;
+		FatalErrorClassifier.Severity severity = classifier.classify(e);
+		if (severity == FatalErrorClassifier.Severity.RECOVERABLE)
+			return;
+		
+		String reason = "fatal connection error (SQL state " + e.getSQLState() + ", code " + e.getErrorCode() + "): " + 
+				e.getMessage();
+		logger.warn(reason);
+		evictConnection(rawConnection, reason);
+		if (severity == FatalErrorClassifier.Severity.DISCONNECTED)
+			revalidateIdleConnections();
+	}
+	
+	/**
+	 * Evict a physical connection known to be broken.
+	 * 
+	 * @param rawConnection the physical connection
+	 * @param reason why the connection is evicted, reported to the listeners
+	 */
+	public abstract void evictConnection(Connection rawConnection, String reason);
+	
+	/**
+	 * Check all of the idle connections after the database may have gone away, evicting the broken ones.  Should not hold up
+	 * the caller.
+	 */
+	protected abstract void revalidateIdleConnections();
+	
+	/**
+	 * Checks whether closing a pooled connection releases it back to the pool.
+	 * 
+	 * @see #setReleaseOnClose(boolean)
+	 */
+	public boolean isReleaseOnClose() {
+		return releaseOnClose;
+	}
+	
+	/**
+	 * Make closing a pooled connection release it back to the pool rather than close the database connection, as the
+	 * clients of a <code>javax.sql.DataSource</code> expect.  Closing a connection that is already released then does
+	 * nothing, and a released connection reports itself as closed.
+	 * 
+	 * @param releaseOnClose whether closing a connection releases it
+	 * @see PoolingDataSource
+	 */
+	public void setReleaseOnClose(boolean releaseOnClose) {
+		this.releaseOnClose = releaseOnClose;
+	}
+	
+	/**
+	 * Checks whether the statements left open by the clients are closed when their connection is released.
+	 * 
+	 * @see #setCloseOpenStatementsOnRelease(boolean)
+	 */
+	public boolean isCloseOpenStatementsOnRelease() {
+		return closeOpenStatementsOnRelease;
+	}
+	
+	/**
+	 * Keep track of the statements created through the pooled connections, and close the ones still open, along with their
+	 * result sets, when the connection is released.  Otherwise they keep server cursors and driver memory tied up for the
+	 * next borrowers of the connection.  Every release that closes something is logged as a warning with the counts, so that
+	 * the offending code can be fixed.  Only the statements created after the call are affected.
+	 * 
+	 * @param closeOpenStatementsOnRelease whether to close the statements left open
+	 * @see #getNumAutoClosedStatements()
+	 * @see #getNumAutoClosedResultSets()
+	 */
+	public void setCloseOpenStatementsOnRelease(boolean closeOpenStatementsOnRelease) {
+		this.closeOpenStatementsOnRelease = closeOpenStatementsOnRelease;
+	}
+	
+	/**
+	 * Gets the number of statements the pool closed because they were left open when their connection was released.
+	 */
+	public long getNumAutoClosedStatements() {
+		return autoClosedStatements.get();
+	}
+	
+	/**
+	 * Gets the number of result sets the pool closed because they were left open when their connection was released.
+	 */
+	public long getNumAutoClosedResultSets() {
+		return autoClosedResultSets.get();
+	}
+	
+	/**
+	 * Called when statements left open by a client were closed on the release of their connection.
+	 * 
+	 * @param statements the number of statements closed
+	 * @param resultSets the number of result sets closed along with them
+	 */
+	void openStatementsClosed(int statements, int resultSets) {
+		autoClosedStatements.addAndGet(statements);
+		autoClosedResultSets.addAndGet(resultSets);
+		logger.warn("connection released by thread " + Thread.currentThread().getName() + " with " + statements + 
+				" statements and " + resultSets + " result sets still open, they were closed");
+	}
+	
+	/**
+	 * Register a listener to be notified of the pool lifecycle events.
+	 * 
+	 * @param listener the listener to add
+	 */
+	public void addConnectionPoolListener(ConnectionPoolListener listener) {
+		if (listener == null)
+			throw new IllegalArgumentException("listener cannot be null");
+		synchronized (listenersLock) {
+			ConnectionPoolListener[] newListeners = new ConnectionPoolListener[listeners.length + 1];
+			System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+			newListeners[listeners.length] = listener;
+			listeners = newListeners;
+		}
+	}
+	
+	/**
+	 * Stop notifying a listener of the pool lifecycle events.
+	 * 
+	 * @param listener the listener to remove
+	 */
+	public void removeConnectionPoolListener(ConnectionPoolListener listener) {
+		synchronized (listenersLock) {
+			List<ConnectionPoolListener> newListeners = new ArrayList<ConnectionPoolListener>(Arrays.asList(listeners));
+			if (newListeners.remove(listener))
+				listeners = newListeners.toArray(new ConnectionPoolListener[newListeners.size()]);
+		}
+	}
+	
+	// ----- event notification for the registered listeners, a failing listener never breaks the pool -----
+	protected void fireConnectionCreated(Connection connection, long connectNanos) {
+		ConnectionPoolListener[] current = listeners;
+		for (int i=0; i < current.length; i++) {
+			try {
+				current[i].connectionCreated(connection, connectNanos);
+			} catch (RuntimeException e) {
+				logger.warn("connection pool listener failed", e);
+			}
+		}
+	}
+	protected void fireConnectionBorrowed(Connection connection, long waitNanos) {
+		ConnectionPoolListener[] current = listeners;
+		for (int i=0; i < current.length; i++) {
+			try {
+				current[i].connectionBorrowed(connection, waitNanos);
+			} catch (RuntimeException e) {
+				logger.warn("connection pool listener failed", e);
+			}
+		}
+	}
+	protected void fireConnectionReturned(Connection connection, long heldNanos) {
+		ConnectionPoolListener[] current = listeners;
+		for (int i=0; i < current.length; i++) {
+			try {
+				current[i].connectionReturned(connection, heldNanos);
+			} catch (RuntimeException e) {
+				logger.warn("connection pool listener failed", e);
+			}
+		}
+	}
+	protected void fireConnectionValidated(Connection connection, boolean valid, long validationNanos) {
+		// every validation is reported through here, so this is where its outcome is kept for the health checks
+		validationFailing = !valid;
+		if (valid)
+			lastSuccessfulValidationAtMillis = System.currentTimeMillis();
+		
+		ConnectionPoolListener[] current = listeners;
+		for (int i=0; i < current.length; i++) {
+			try {
+				current[i].connectionValidated(connection, valid, validationNanos);
+			} catch (RuntimeException e) {
+				logger.warn("connection pool listener failed", e);
+			}
+		}
+	}
+	protected void fireConnectionEvicted(Connection connection, String reason) {
+		ConnectionPoolListener[] current = listeners;
+		for (int i=0; i < current.length; i++) {
+			try {
+				current[i].connectionEvicted(connection, reason);
+			} catch (RuntimeException e) {
+				logger.warn("connection pool listener failed", e);
+			}
+		}
+	}
+	protected void fireConnectionDestroyed(Connection connection) {
+		ConnectionPoolListener[] current = listeners;
+		for (int i=0; i < current.length; i++) {
+			try {
+				current[i].connectionDestroyed(connection);
+			} catch (RuntimeException e) {
+				logger.warn("connection pool listener failed", e);
+			}
+		}
+	}
+	protected void fireWaitTimedOut(long waitNanos) {
+		ConnectionPoolListener[] current = listeners;
+		for (int i=0; i < current.length; i++) {
+			try {
+				current[i].waitTimedOut(waitNanos);
+			} catch (RuntimeException e) {
+				logger.warn("connection pool listener failed", e);
+			}
+		}
+	}
+
 	public abstract Connection getConnection() throws SQLException;
 
 	public abstract void releaseConnection(Connection connection) throws SQLException;
+
+	public abstract List<Connection> getConnections(int count, long timeoutMillis) throws SQLException;
+
+	public abstract void releaseConnections(Collection<? extends Connection> connections) throws SQLException;
 }
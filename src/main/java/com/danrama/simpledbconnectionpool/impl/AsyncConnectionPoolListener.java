@@ -0,0 +1,226 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.sql.Connection;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.danrama.simpledbconnectionpool.ConnectionPoolListener;
+
+/**
+ * A <code>ConnectionPoolListener</code> that hands the events over to another listener on a separate thread, so that a slow
+ * listener never adds latency to the threads borrowing and returning connections.
+ * <p>
+ * Events are copied into a fixed-size ring buffer of pre-allocated slots, so publishing an event does not allocate any
+ * objects.  When the buffer is full, because the listener cannot keep up, new events are dropped and counted rather than
+ * blocking the publishing thread.
+ *
+ * @author Daniel Bloomfield Ramagem
+ */
+@ThreadSafe
+public class AsyncConnectionPoolListener implements ConnectionPoolListener {
+	private static final Logger logger = Logger.getLogger(AsyncConnectionPoolListener.class);
+
+	// event types stored in the ring buffer
+	private static final int CREATED = 0;
+	private static final int BORROWED = 1;
+	private static final int RETURNED = 2;
+	private static final int VALIDATED = 3;
+	private static final int EVICTED = 4;
+	private static final int DESTROYED = 5;
+	private static final int WAIT_TIMED_OUT = 6;
+
+	// the listener the events are dispatched to
+	private final ConnectionPoolListener delegate;
+
+	// the ring buffer, one array per event field
+	@GuardedBy("this") private final int[] types;
+	@GuardedBy("this") private final Connection[] connections;
+	@GuardedBy("this") private final long[] nanos;
+	@GuardedBy("this") private final boolean[] valids;
+	@GuardedBy("this") private final String[] reasons;
+
+	// index of the oldest event and number of events in the buffer
+	@GuardedBy("this") private int head;
+	@GuardedBy("this") private int count;
+
+	@GuardedBy("this") private long droppedCount;
+	@GuardedBy("this") private boolean closed;
+
+	// the thread dispatching the events to the delegate listener
+	private final Thread dispatcher;
+
+	/**
+	 * Create a new asynchronous listener and start its dispatching thread.
+	 *
+	 * @param delegate the listener that will receive the events
+	 * @param bufferSize the maximum number of events waiting to be dispatched
+	 */
+	public AsyncConnectionPoolListener(ConnectionPoolListener delegate, int bufferSize) {
+		if (delegate == null)
+			throw new IllegalArgumentException("delegate listener must be supplied");
+		if (bufferSize < 1)
+			throw new IllegalArgumentException("buffer size must be > 0");
+
+		this.delegate = delegate;
+		types = new int[bufferSize];
+		connections = new Connection[bufferSize];
+		nanos = new long[bufferSize];
+		valids = new boolean[bufferSize];
+		reasons = new String[bufferSize];
+
+		dispatcher = new Thread("connection-pool-listener") {
+			@Override
+			public void run() {
+				dispatchEvents();
+			}
+		};
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * Gets the number of events that were dropped because the buffer was full.
+	 */
+	public synchronized long getDroppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * Gets the number of events waiting to be dispatched.
+	 */
+	public synchronized int getPendingCount() {
+		return count;
+	}
+
+	/**
+	 * Stop dispatching events.  Events still in the buffer are discarded.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		dispatcher.interrupt();
+	}
+
+	/*
+	 * Copy an event into the next free slot of the ring buffer, or drop it if there is none.
+	 */
+	private synchronized void publish(int type, Connection connection, long time, boolean valid, String reason) {
+		if (closed)
+			return;
+		if (count == types.length) {
+			droppedCount++;
+			return;
+		}
+
+		int slot = (head + count) % types.length;
+		types[slot] = type;
+		connections[slot] = connection;
+		nanos[slot] = time;
+		valids[slot] = valid;
+		reasons[slot] = reason;
+		count++;
+		if (count == 1)
+			notifyAll();
+	}
+
+	/*
+	 * The dispatching thread main loop: take the events out of the buffer one at a time, and hand them to the delegate
+	 * outside of the buffer lock.
+	 */
+	private void dispatchEvents() {
+		while (true) {
+			int type;
+			Connection connection;
+			long time;
+			boolean valid;
+			String reason;
+			synchronized (this) {
+				try {
+					while (count == 0 && !closed)
+						wait();
+				} catch (InterruptedException e) {
+					; // only happens when closing, checked right below
+				}
+				if (closed)
+					return;
+
+				type = types[head];
+				connection = connections[head];
+				time = nanos[head];
+				valid = valids[head];
+				reason = reasons[head];
+
+				// clear the references so that the slot does not keep the connection reachable
+				connections[head] = null;
+				reasons[head] = null;
+				head = (head + 1) % types.length;
+				count--;
+			}
+
+			try {
+				dispatch(type, connection, time, valid, reason);
+			} catch (RuntimeException e) {
+				logger.warn("connection pool listener failed handling an event", e);
+			}
+		}
+	}
+
+	private void dispatch(int type, Connection connection, long time, boolean valid, String reason) {
+		switch (type) {
+		case CREATED:
+			delegate.connectionCreated(connection, time);
+			break;
+		case BORROWED:
+			delegate.connectionBorrowed(connection, time);
+			break;
+		case RETURNED:
+			delegate.connectionReturned(connection, time);
+			break;
+		case VALIDATED:
+			delegate.connectionValidated(connection, valid, time);
+			break;
+		case EVICTED:
+			delegate.connectionEvicted(connection, reason);
+			break;
+		case DESTROYED:
+			delegate.connectionDestroyed(connection);
+			break;
+		case WAIT_TIMED_OUT:
+			delegate.waitTimedOut(time);
+			break;
+		}
+	}
+
+	public void connectionCreated(Connection connection, long connectNanos) {
+		publish(CREATED, connection, connectNanos, false, null);
+	}
+
+	public void connectionBorrowed(Connection connection, long waitNanos) {
+		publish(BORROWED, connection, waitNanos, false, null);
+	}
+
+	public void connectionReturned(Connection connection, long heldNanos) {
+		publish(RETURNED, connection, heldNanos, false, null);
+	}
+
+	public void connectionValidated(Connection connection, boolean valid, long validationNanos) {
+		publish(VALIDATED, connection, validationNanos, valid, null);
+	}
+
+	public void connectionEvicted(Connection connection, String reason) {
+		publish(EVICTED, connection, 0, false, reason);
+	}
+
+	public void connectionDestroyed(Connection connection) {
+		publish(DESTROYED, connection, 0, false, null);
+	}
+
+	public void waitTimedOut(long waitNanos) {
+		publish(WAIT_TIMED_OUT, null, waitNanos, false, null);
+	}
+}
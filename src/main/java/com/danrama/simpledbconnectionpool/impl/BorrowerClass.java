@@ -0,0 +1,76 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * Describes a class of clients borrowing from a <code>PrioritizedConnectionPool</code>, e.g. "interactive" requests or
+ * "batch" jobs.  Each class has a priority used to order its waiting borrowers against those of other classes, a share of the
+ * pool capacity that is reserved for it, and a share of the capacity it may never exceed.
+ *
+ * @author Daniel Bloomfield Ramagem
+ * @see PrioritizedConnectionPool
+ */
+@Immutable
+public final class BorrowerClass {
+	private final String name;
+	private final int priority;
+	private final double reservedFraction;
+	private final double maxFraction;
+
+	/**
+	 * Define a new borrower class.
+	 *
+	 * @param name unique name of the class
+	 * @param priority priority of the class' waiting borrowers, higher values are served first
+	 * @param reservedFraction fraction (0.0 to 1.0) of the pool capacity kept available for this class only
+	 * @param maxFraction fraction (0.0 to 1.0) of the pool capacity this class may use at most
+	 */
+	public BorrowerClass(String name, int priority, double reservedFraction, double maxFraction) {
+		if (name == null)
+			throw new IllegalArgumentException("borrower class name must be supplied");
+		if (reservedFraction < 0 || reservedFraction > 1)
+			throw new IllegalArgumentException("reserved fraction must be between 0 and 1");
+		if (maxFraction <= 0 || maxFraction > 1)
+			throw new IllegalArgumentException("maximum fraction must be > 0 and <= 1");
+		if (maxFraction < reservedFraction)
+			throw new IllegalArgumentException("maximum fraction must be >= to the reserved fraction");
+
+		this.name = name;
+		this.priority = priority;
+		this.reservedFraction = reservedFraction;
+		this.maxFraction = maxFraction;
+	}
+
+	public String getName() {
+		return name;
+	}
+	public int getPriority() {
+		return priority;
+	}
+	public double getReservedFraction() {
+		return reservedFraction;
+	}
+	public double getMaxFraction() {
+		return maxFraction;
+	}
+
+	/**
+	 * Gets the number of connections reserved for this class in a pool of the given capacity, rounded up.
+	 */
+	int getReservedConnections(int capacity) {
+		return (int) Math.ceil(reservedFraction * capacity);
+	}
+
+	/**
+	 * Gets the maximum number of connections this class may use in a pool of the given capacity, rounded down (but always
+	 * at least one).
+	 */
+	int getMaxConnections(int capacity) {
+		return Math.max(1, (int) Math.floor(maxFraction * capacity));
+	}
+
+	@Override
+	public String toString() {
+		return name + "(priority:" + priority + ", reserved:" + reservedFraction + ", max:" + maxFraction + ")";
+	}
+}
@@ -0,0 +1,102 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.danrama.simpledbconnectionpool.CredentialsProvider;
+
+/**
+ * Caches the credentials of another provider and refreshes them periodically on a background thread, so that connects
+ * always get the credentials right away, without waiting for a slow fetch.
+ * <p>
+ * The credentials are fetched once up front.  When a refresh fails, the last good credentials keep being used and the
+ * refresh is tried again at the next period.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ */
+@ThreadSafe
+public class CachedCredentialsProvider implements CredentialsProvider {
+	private static final Logger logger = Logger.getLogger(CachedCredentialsProvider.class);
+	
+	// the provider actually fetching the credentials
+	private final CredentialsProvider delegate;
+	
+	// the latest credentials fetched, replaced as a whole on every refresh
+	private volatile Properties credentials;
+	
+	// the thread refreshing the credentials
+	private final ScheduledExecutorService refresher;
+	
+	/**
+	 * Fetch the credentials and start refreshing them.
+	 * 
+	 * @param delegate the provider fetching the credentials
+	 * @param refreshIntervalMillis how often to refresh the credentials, should be well within their lifetime
+	 * @throws SQLException if the initial credentials could not be fetched
+	 */
+	public CachedCredentialsProvider(CredentialsProvider delegate, long refreshIntervalMillis) throws SQLException {
+		if (delegate == null)
+			throw new IllegalArgumentException("delegate credentials provider must be supplied");
+		if (refreshIntervalMillis <= 0)
+			throw new IllegalArgumentException("refresh interval must be > 0");
+		
+		this.delegate = delegate;
+		credentials = fetch();
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "connection-pool-credentials");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				refresh();
+			}
+		}, refreshIntervalMillis, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Gets the cached credentials.  Never blocks.
+	 */
+	public Properties getCredentials() {
+		return credentials;
+	}
+	
+	/**
+	 * Stop refreshing the credentials.  The last ones fetched are still returned.
+	 */
+	public void close() {
+		refresher.shutdownNow();
+	}
+	
+	private void refresh() {
+		try {
+			credentials = fetch();
+		} catch (SQLException e) {
+			logger.warn("could not refresh the database credentials, the previous ones are still used: " + e);
+		} catch (RuntimeException e) {
+			logger.warn("could not refresh the database credentials, the previous ones are still used", e);
+		}
+	}
+	
+	/*
+	 * Copy the credentials so that the delegate cannot change them under the connects.
+	 */
+	private Properties fetch() throws SQLException {
+		Properties fetched = delegate.getCredentials();
+		if (fetched == null)
+			throw new SQLException("credentials provider returned no credentials");
+		Properties copy = new Properties();
+		copy.putAll(fetched);
+		return copy;
+	}
+}
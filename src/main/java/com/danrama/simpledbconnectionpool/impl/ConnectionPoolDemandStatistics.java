@@ -0,0 +1,310 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Records the demand for the connections of a pool: how many connections the clients needed at once, how long they waited
+ * for them and how long the database took to open new ones.  The statistics are summed up in a compact <code>Report</code>
+ * that can be written to a file, e.g. when the pool is closed, and read back when the application starts again to size
+ * the pool from the demand it saw instead of from guesswork.
+ * <p>
+ * The demand is the number of connections borrowed plus the number the clients are waiting for, so it is not capped by the
+ * maximum size of the pool.  Its mean is weighted by time, so that a brief burst does not count as much as a steady load.
+ *
+ * @author Daniel Bloomfield Ramagem
+ * @see ExpandingSizeConnectionPool#getDemandReport()
+ * @see com.danrama.simpledbconnectionpool.ConnectionPoolFactory#setDemandReportDirectory(File)
+ */
+@ThreadSafe
+public class ConnectionPoolDemandStatistics {
+	// the waits are counted in buckets of doubling width: under 1ms, under 2ms, under 4ms, and so on up to the last bucket
+	private static final int WAIT_BUCKETS = 18;
+
+	// when the recording started
+	private final long startNanos = System.nanoTime();
+
+	// the current demand and since when, the demand integrated over the time until then, and the highest demand seen
+	@GuardedBy("this") private int demand;
+	@GuardedBy("this") private long demandSinceNanos = startNanos;
+	@GuardedBy("this") private double demandNanos;
+	@GuardedBy("this") private int peakDemand;
+
+	// the connections handed out and how long their borrowers waited for them
+	@GuardedBy("this") private long borrows;
+	@GuardedBy("this") private final long[] waitCounts = new long[WAIT_BUCKETS];
+	@GuardedBy("this") private long maxWaitNanos;
+
+	// the new physical connections and how long they took to open
+	@GuardedBy("this") private long connects;
+	@GuardedBy("this") private long totalConnectNanos;
+	@GuardedBy("this") private long maxConnectNanos;
+
+	/**
+	 * A summary of the demand for the connections of a pool over a period.  Reports are written to and read from files in
+	 * the properties format, so that they can be looked at and edited by hand.
+	 */
+	@Immutable
+	public static final class Report {
+		// the properties the report is written as
+		private static final String[] KEYS = { "recordedAtMillis", "periodMillis", "poolMinConnections",
+			"poolMaxConnections", "borrows", "peakDemand", "meanDemand", "waitMillisP50", "waitMillisP99", "maxWaitMillis",
+			"connects", "meanConnectMillis", "maxConnectMillis" };
+
+		// the headroom over the peak demand left by the recommended maximum connections
+		private static final double MAX_CONNECTIONS_HEADROOM = 1.25;
+
+		private final long recordedAtMillis;
+		private final long periodMillis;
+		private final int poolMinConnections;
+		private final int poolMaxConnections;
+		private final long borrows;
+		private final int peakDemand;
+		private final double meanDemand;
+		private final long waitMillisP50;
+		private final long waitMillisP99;
+		private final long maxWaitMillis;
+		private final long connects;
+		private final long meanConnectMillis;
+		private final long maxConnectMillis;
+
+		Report(long recordedAtMillis, long periodMillis, int poolMinConnections, int poolMaxConnections, long borrows,
+				int peakDemand, double meanDemand, long waitMillisP50, long waitMillisP99, long maxWaitMillis,
+				long connects, long meanConnectMillis, long maxConnectMillis) {
+			this.recordedAtMillis = recordedAtMillis;
+			this.periodMillis = periodMillis;
+			this.poolMinConnections = poolMinConnections;
+			this.poolMaxConnections = poolMaxConnections;
+			this.borrows = borrows;
+			this.peakDemand = peakDemand;
+			this.meanDemand = meanDemand;
+			this.waitMillisP50 = waitMillisP50;
+			this.waitMillisP99 = waitMillisP99;
+			this.maxWaitMillis = maxWaitMillis;
+			this.connects = connects;
+			this.meanConnectMillis = meanConnectMillis;
+			this.maxConnectMillis = maxConnectMillis;
+		}
+
+		public long getRecordedAtMillis() {
+			return recordedAtMillis;
+		}
+		public long getPeriodMillis() {
+			return periodMillis;
+		}
+		// the size of the pool the demand was recorded on
+		public int getPoolMinConnections() {
+			return poolMinConnections;
+		}
+		public int getPoolMaxConnections() {
+			return poolMaxConnections;
+		}
+		public long getBorrows() {
+			return borrows;
+		}
+		public int getPeakDemand() {
+			return peakDemand;
+		}
+		public double getMeanDemand() {
+			return meanDemand;
+		}
+		// the percentiles are the upper bounds of the buckets the waits were counted in
+		public long getWaitMillisP50() {
+			return waitMillisP50;
+		}
+		public long getWaitMillisP99() {
+			return waitMillisP99;
+		}
+		public long getMaxWaitMillis() {
+			return maxWaitMillis;
+		}
+		public long getConnects() {
+			return connects;
+		}
+		public long getMeanConnectMillis() {
+			return meanConnectMillis;
+		}
+		public long getMaxConnectMillis() {
+			return maxConnectMillis;
+		}
+
+		/**
+		 * Works out the minimum connections of a pool from the mean demand, so that the pool starts warmed up to the
+		 * connections it typically has in use.
+		 *
+		 * @param lowest the lowest minimum to recommend, normally the configured minimum connections
+		 * @param highest the highest minimum to recommend, normally the configured maximum connections
+		 * @return the recommended minimum connections
+		 */
+		public int getRecommendedMinConnections(int lowest, int highest) {
+			return clamp((int) Math.ceil(meanDemand), lowest, highest);
+		}
+
+		/**
+		 * Works out the maximum connections of a pool from the peak demand, leaving a quarter of headroom over it.  Without
+		 * any borrows to go by, the highest maximum is recommended.  The peak of a single period may well be beaten by the
+		 * next one, so this is meant for reviewing the configured maximum rather than for capping the pool with.
+		 *
+		 * @param lowest the lowest maximum to recommend, normally the configured minimum connections
+		 * @param highest the highest maximum to recommend, normally the configured maximum connections, e.g. because of
+		 *                the connection limit of the database
+		 * @return the recommended maximum connections, never below the recommended minimum connections
+		 */
+		public int getRecommendedMaxConnections(int lowest, int highest) {
+			if (borrows == 0)
+				return highest;
+			return clamp((int) Math.ceil(peakDemand * MAX_CONNECTIONS_HEADROOM),
+					getRecommendedMinConnections(lowest, highest), highest);
+		}
+
+		private static int clamp(int value, int lowest, int highest) {
+			return Math.max(lowest, Math.min(highest, value));
+		}
+
+		/**
+		 * Write the report to a file, replacing its contents.
+		 *
+		 * @param file the report file
+		 * @throws IOException if the file could not be written
+		 */
+		public void writeTo(File file) throws IOException {
+			Object[] values = { recordedAtMillis, periodMillis, poolMinConnections, poolMaxConnections, borrows,
+				peakDemand, meanDemand, waitMillisP50, waitMillisP99, maxWaitMillis, connects, meanConnectMillis,
+				maxConnectMillis };
+			Properties properties = new Properties();
+			for (int i=0; i < KEYS.length; i++)
+				properties.setProperty(KEYS[i], String.valueOf(values[i]));
+			OutputStream out = new FileOutputStream(file);
+			try {
+				properties.store(out, "connection pool demand report");
+			} finally {
+				out.close();
+			}
+		}
+
+		/**
+		 * Read a report from a file.
+		 *
+		 * @param file the report file, as written by <code>writeTo()</code>
+		 * @return the report
+		 * @throws IOException if the file could not be read or does not hold a complete report
+		 */
+		public static Report readFrom(File file) throws IOException {
+			Properties properties = new Properties();
+			InputStream in = new FileInputStream(file);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+
+			String[] values = new String[KEYS.length];
+			for (int i=0; i < KEYS.length; i++) {
+				values[i] = properties.getProperty(KEYS[i]);
+				if (values[i] == null)
+					throw new IOException("the demand report " + file + " has no " + KEYS[i]);
+			}
+			try {
+				return new Report(Long.parseLong(values[0]), Long.parseLong(values[1]), Integer.parseInt(values[2]),
+						Integer.parseInt(values[3]), Long.parseLong(values[4]), Integer.parseInt(values[5]),
+						Double.parseDouble(values[6]), Long.parseLong(values[7]), Long.parseLong(values[8]),
+						Long.parseLong(values[9]), Long.parseLong(values[10]), Long.parseLong(values[11]),
+						Long.parseLong(values[12]));
+			} catch (NumberFormatException e) {
+				throw new IOException("the demand report " + file + " is malformed: " + e.getMessage());
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "demand report (periodMs=" + periodMillis + ", pool=" + poolMinConnections + ".." + poolMaxConnections +
+					", borrows=" + borrows + ", peakDemand=" + peakDemand + ", meanDemand=" +
+					String.format("%.2f", meanDemand) + ", waitMs p50=" + waitMillisP50 + " p99=" + waitMillisP99 +
+					" max=" + maxWaitMillis + ", connects=" + connects + ", connectMs mean=" + meanConnectMillis + " max=" +
+					maxConnectMillis + ")";
+		}
+	}
+
+	/**
+	 * Record a change in the demand for connections.
+	 *
+	 * @param newDemand the connections borrowed plus the ones the clients are waiting for
+	 */
+	synchronized void demandChanged(int newDemand) {
+		long now = System.nanoTime();
+		demandNanos += (double) demand * (now - demandSinceNanos);
+		demand = newDemand;
+		demandSinceNanos = now;
+		if (newDemand > peakDemand)
+			peakDemand = newDemand;
+	}
+
+	/**
+	 * Record connections handed out to a client.
+	 *
+	 * @param count the number of connections
+	 * @param waitNanos how long the client waited for them
+	 */
+	synchronized void borrowed(int count, long waitNanos) {
+		borrows += count;
+		long waitMillis = TimeUnit.NANOSECONDS.toMillis(waitNanos);
+		int bucket = waitMillis == 0 ? 0 : Math.min(WAIT_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(waitMillis));
+		waitCounts[bucket] += count;
+		maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+	}
+
+	/**
+	 * Record a new physical connection.
+	 *
+	 * @param connectNanos how long it took to open
+	 */
+	synchronized void connected(long connectNanos) {
+		connects++;
+		totalConnectNanos += connectNanos;
+		maxConnectNanos = Math.max(maxConnectNanos, connectNanos);
+	}
+
+	/**
+	 * Sum up the demand recorded so far.
+	 *
+	 * @param poolMinConnections the minimum connections of the pool the demand is recorded on
+	 * @param poolMaxConnections the maximum connections of the pool the demand is recorded on
+	 * @return the report
+	 */
+	public synchronized Report getReport(int poolMinConnections, int poolMaxConnections) {
+		// bring the integrated demand up to now
+		demandChanged(demand);
+		long periodNanos = demandSinceNanos - startNanos;
+		double meanDemand = periodNanos == 0 ? demand : demandNanos / periodNanos;
+		return new Report(System.currentTimeMillis(), TimeUnit.NANOSECONDS.toMillis(periodNanos), poolMinConnections,
+				poolMaxConnections, borrows, peakDemand, meanDemand, waitPercentileMillis(0.5), waitPercentileMillis(0.99),
+				TimeUnit.NANOSECONDS.toMillis(maxWaitNanos), connects,
+				connects == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalConnectNanos / connects),
+				TimeUnit.NANOSECONDS.toMillis(maxConnectNanos));
+	}
+
+	/*
+	 * Gets the upper bound of the bucket holding the wait at the given percentile, no higher than the longest wait.
+	 */
+	@GuardedBy("this")
+	private long waitPercentileMillis(double percentile) {
+		long rank = (long) Math.ceil(borrows * percentile);
+		long counted = 0;
+		for (int bucket=0; bucket < WAIT_BUCKETS; bucket++) {
+			counted += waitCounts[bucket];
+			if (counted >= rank && counted > 0)
+				return bucket == 0 ? 0 : Math.min(1L << bucket, TimeUnit.NANOSECONDS.toMillis(maxWaitNanos));
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,70 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Exposes the state of an <code>ExpandingSizeConnectionPool</code> over JMX, so that the connections of a saturated pool can
+ * be inspected in production.
+ *
+ * @author Daniel Bloomfield Ramagem
+ * @see ExpandingSizeConnectionPool#getSnapshot()
+ */
+@ThreadSafe
+public class ConnectionPoolDiagnostics implements ConnectionPoolDiagnosticsMBean {
+	private final ExpandingSizeConnectionPool pool;
+
+	/**
+	 * Create the management bean for a pool.
+	 *
+	 * @param pool the pool to expose
+	 */
+	public ConnectionPoolDiagnostics(ExpandingSizeConnectionPool pool) {
+		if (pool == null)
+			throw new IllegalArgumentException("pool must be supplied");
+		this.pool = pool;
+	}
+
+	/**
+	 * Register a management bean for a pool with the platform MBean server.
+	 *
+	 * @param pool the pool to expose
+	 * @param poolName the name identifying the pool in the JMX object name
+	 * @return the name the bean was registered under
+	 * @throws JMException if the bean could not be registered, e.g. because the name is taken
+	 */
+	public static ObjectName register(ExpandingSizeConnectionPool pool, String poolName) throws JMException {
+		ObjectName name = new ObjectName("com.danrama.simpledbconnectionpool:type=ConnectionPool,name=" + 
+				ObjectName.quote(poolName));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new ConnectionPoolDiagnostics(pool), name);
+		return name;
+	}
+
+	public int getTotalConnections() {
+		return pool.getTotalConnections();
+	}
+
+	public int getIdleConnections() {
+		return pool.getNumConnectionsInPool();
+	}
+
+	public int getBorrowedConnections() {
+		return pool.getNumBorrowedConnections();
+	}
+
+	public int getMaxConnections() {
+		return pool.getPoolMaxConnections();
+	}
+
+	public String getHealthStatus() {
+		return pool.getHealth().getStatus().name();
+	}
+
+	public String dumpConnections() {
+		return pool.getSnapshot().dump();
+	}
+}
@@ -0,0 +1,30 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+/**
+ * The JMX management interface exposing the state of a connection pool to monitoring tools such as JConsole.
+ *
+ * @author Daniel Bloomfield Ramagem
+ * @see ConnectionPoolDiagnostics
+ */
+public interface ConnectionPoolDiagnosticsMBean {
+	int getTotalConnections();
+
+	int getIdleConnections();
+
+	int getBorrowedConnections();
+
+	int getMaxConnections();
+
+	/**
+	 * Gets the latest health status of the pool: HEALTHY, DEGRADED or DOWN.
+	 */
+	String getHealthStatus();
+
+	/**
+	 * Dump the state of every physical connection of the pool, including which thread holds each borrowed connection and
+	 * for how long.
+	 *
+	 * @return a human readable report
+	 */
+	String dumpConnections();
+}
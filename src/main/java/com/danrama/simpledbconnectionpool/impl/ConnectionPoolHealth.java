@@ -0,0 +1,125 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.sql.SQLException;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * A point-in-time assessment of the health of a connection pool, suitable for answering liveness and readiness probes.
+ * The pool keeps the latest assessment cached, so asking for it costs nothing and never touches the database.
+ * <p>
+ * The status is worked out from the outcome of the most recent connects and validations and from the saturation of the pool:
+ * <ul>
+ * <li><code>DOWN</code>: the latest attempt to connect to the database failed and the pool has no idle connection known to
+ * be good to fall back on</li>
+ * <li><code>DEGRADED</code>: the latest connect or validation failed, or nearly all of the pool connections are borrowed</li>
+ * <li><code>HEALTHY</code>: otherwise</li>
+ * </ul>
+ *
+ * @author Daniel Bloomfield Ramagem
+ * @see ExpandingSizeConnectionPool#getHealth()
+ */
+@Immutable
+public final class ConnectionPoolHealth {
+	/**
+	 * The overall state of a pool.
+	 */
+	public enum Status {
+		HEALTHY, DEGRADED, DOWN
+	}
+
+	// fraction of the maximum connections borrowed at which the pool is considered degraded
+	public static final double SATURATION_DEGRADED_THRESHOLD = 0.9;
+
+	private final Status status;
+	private final long assessedAtMillis;
+	private final int totalConnections;
+	private final int idleConnections;
+	private final int borrowedConnections;
+	private final int maxConnections;
+	private final SQLException lastConnectError;
+	private final long lastConnectErrorAtMillis;
+	private final long lastSuccessfulValidationAtMillis;
+
+	/**
+	 * Assess the health of a pool.
+	 *
+	 * @param totalConnections the connections currently open by the pool
+	 * @param idleConnections the connections available in the pool
+	 * @param borrowedConnections the connections handed out to clients
+	 * @param maxConnections the maximum connections of the pool
+	 * @param connectFailing whether the latest attempt to connect to the database failed
+	 * @param validationFailing whether the latest connection validation failed
+	 * @param lastConnectError the last error connecting to the database, <code>null</code> if there never was one
+	 * @param lastConnectErrorAtMillis when that error happened, 0 if there never was one
+	 * @param lastSuccessfulValidationAtMillis when a connection was last found to be valid, 0 if never
+	 */
+	ConnectionPoolHealth(int totalConnections, int idleConnections, int borrowedConnections, int maxConnections,
+			boolean connectFailing, boolean validationFailing, SQLException lastConnectError, long lastConnectErrorAtMillis,
+			long lastSuccessfulValidationAtMillis) {
+		this.assessedAtMillis = System.currentTimeMillis();
+		this.totalConnections = totalConnections;
+		this.idleConnections = idleConnections;
+		this.borrowedConnections = borrowedConnections;
+		this.maxConnections = maxConnections;
+		this.lastConnectError = lastConnectError;
+		this.lastConnectErrorAtMillis = lastConnectErrorAtMillis;
+		this.lastSuccessfulValidationAtMillis = lastSuccessfulValidationAtMillis;
+
+		if (connectFailing && (idleConnections == 0 || validationFailing))
+			status = Status.DOWN;
+		else if (connectFailing || validationFailing || getSaturation() >= SATURATION_DEGRADED_THRESHOLD)
+			status = Status.DEGRADED;
+		else
+			status = Status.HEALTHY;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+	// a pool that is not down can still hand out connections, so the instance can take traffic
+	public boolean isReady() {
+		return status != Status.DOWN;
+	}
+	public long getAssessedAtMillis() {
+		return assessedAtMillis;
+	}
+	public int getTotalConnections() {
+		return totalConnections;
+	}
+	public int getIdleConnections() {
+		return idleConnections;
+	}
+	public int getBorrowedConnections() {
+		return borrowedConnections;
+	}
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+	// fraction of the maximum connections that are borrowed, from 0.0 to 1.0
+	public double getSaturation() {
+		return maxConnections == 0 ? 1.0 : (double) borrowedConnections / maxConnections;
+	}
+	public SQLException getLastConnectError() {
+		return lastConnectError;
+	}
+	public long getLastConnectErrorAtMillis() {
+		return lastConnectErrorAtMillis;
+	}
+
+	/**
+	 * Gets how long before the assessment a connection was last found to be valid.
+	 *
+	 * @return the age in milliseconds, or -1 if no connection was ever validated successfully
+	 */
+	public long getLastSuccessfulValidationAgeMillis() {
+		return lastSuccessfulValidationAtMillis == 0 ? -1 : assessedAtMillis - lastSuccessfulValidationAtMillis;
+	}
+
+	@Override
+	public String toString() {
+		return status + " (total=" + totalConnections + ", idle=" + idleConnections + ", borrowed=" + borrowedConnections +
+				", max=" + maxConnections + ", lastValidationAgeMs=" + getLastSuccessfulValidationAgeMillis() +
+				(lastConnectError == null ? "" : ", lastConnectError=" + lastConnectError.getMessage()) + ")";
+	}
+}
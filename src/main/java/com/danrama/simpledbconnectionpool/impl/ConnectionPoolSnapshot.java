@@ -0,0 +1,189 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * A consistent point-in-time copy of the state of a connection pool and of each of its physical connections, for diagnosing
+ * a saturated pool: which connections are out, since when, and who holds them.
+ * <p>
+ * The copy is made while holding the pool lock, but it only copies a few fields per connection and never touches the
+ * database, so taking it does not stall the pool.
+ *
+ * @author Daniel Bloomfield Ramagem
+ * @see ExpandingSizeConnectionPool#getSnapshot()
+ */
+@Immutable
+public final class ConnectionPoolSnapshot {
+	/**
+	 * What a physical connection is being used for.
+	 */
+	public enum ConnectionState {
+		// available in the pool
+		IDLE,
+		// handed out to a client
+		BORROWED,
+		// taken out of the pool by the housekeeping thread to be validated
+		VALIDATING
+	}
+
+	/**
+	 * The outcome of one validation of a physical connection.
+	 */
+	@Immutable
+	public static final class Validation {
+		private final long validatedAtMillis;
+		private final boolean valid;
+		private final long nanos;
+
+		Validation(long validatedAtMillis, boolean valid, long nanos) {
+			this.validatedAtMillis = validatedAtMillis;
+			this.valid = valid;
+			this.nanos = nanos;
+		}
+
+		public long getValidatedAtMillis() {
+			return validatedAtMillis;
+		}
+		public boolean isValid() {
+			return valid;
+		}
+		public long getNanos() {
+			return nanos;
+		}
+	}
+
+	/**
+	 * The state of one physical connection.
+	 */
+	@Immutable
+	public static final class PhysicalConnection {
+		private final long id;
+		private final ConnectionState state;
+		private final long createdAtMillis;
+		private final long lastBorrowedAtMillis;
+		private final long borrowCount;
+		private final String holderThreadName;
+		private final long holderThreadId;
+		private final List<Validation> validations;
+
+		PhysicalConnection(long id, ConnectionState state, long createdAtMillis, long lastBorrowedAtMillis, long borrowCount,
+				Thread holder, List<Validation> validations) {
+			this.id = id;
+			this.state = state;
+			this.createdAtMillis = createdAtMillis;
+			this.lastBorrowedAtMillis = lastBorrowedAtMillis;
+			this.borrowCount = borrowCount;
+			holderThreadName = holder == null ? null : holder.getName();
+			holderThreadId = holder == null ? -1 : holder.getId();
+			this.validations = Collections.unmodifiableList(validations);
+		}
+
+		// sequence number of the connection within its pool, in the order they were created
+		public long getId() {
+			return id;
+		}
+		public ConnectionState getState() {
+			return state;
+		}
+		public long getCreatedAtMillis() {
+			return createdAtMillis;
+		}
+		// 0 if the connection was never borrowed
+		public long getLastBorrowedAtMillis() {
+			return lastBorrowedAtMillis;
+		}
+		public long getBorrowCount() {
+			return borrowCount;
+		}
+		// null unless the connection is borrowed
+		public String getHolderThreadName() {
+			return holderThreadName;
+		}
+		public long getHolderThreadId() {
+			return holderThreadId;
+		}
+		// the latest validations, oldest first
+		public List<Validation> getValidations() {
+			return validations;
+		}
+	}
+
+	private final long takenAtMillis;
+	private final int totalConnections;
+	private final int idleConnections;
+	private final int borrowedConnections;
+	private final int maxConnections;
+	private final List<PhysicalConnection> connections;
+
+	ConnectionPoolSnapshot(int totalConnections, int idleConnections, int borrowedConnections, int maxConnections,
+			List<PhysicalConnection> connections) {
+		this.takenAtMillis = System.currentTimeMillis();
+		this.totalConnections = totalConnections;
+		this.idleConnections = idleConnections;
+		this.borrowedConnections = borrowedConnections;
+		this.maxConnections = maxConnections;
+		this.connections = Collections.unmodifiableList(connections);
+	}
+
+	public long getTakenAtMillis() {
+		return takenAtMillis;
+	}
+	public int getTotalConnections() {
+		return totalConnections;
+	}
+	public int getIdleConnections() {
+		return idleConnections;
+	}
+	public int getBorrowedConnections() {
+		return borrowedConnections;
+	}
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+	// the physical connections, in the order they were created
+	public List<PhysicalConnection> getConnections() {
+		return connections;
+	}
+
+	/**
+	 * Format the snapshot as a human readable report, one line per physical connection.
+	 */
+	public String dump() {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		StringBuilder dump = new StringBuilder();
+		dump.append("connection pool at ").append(format.format(new Date(takenAtMillis))).append(": total=")
+				.append(totalConnections).append(", idle=").append(idleConnections).append(", borrowed=")
+				.append(borrowedConnections).append(", max=").append(maxConnections).append('\n');
+		for (PhysicalConnection conn : connections) {
+			dump.append("  #").append(conn.id).append(' ').append(conn.state).append(", created ")
+					.append(format.format(new Date(conn.createdAtMillis))).append(", borrowed ").append(conn.borrowCount)
+					.append(" times");
+			if (conn.lastBorrowedAtMillis != 0)
+				dump.append(", last at ").append(format.format(new Date(conn.lastBorrowedAtMillis)));
+			if (conn.holderThreadName != null)
+				dump.append(", held by \"").append(conn.holderThreadName).append("\" for ")
+						.append(takenAtMillis - conn.lastBorrowedAtMillis).append("ms");
+			if (!conn.validations.isEmpty()) {
+				dump.append(", validations [");
+				for (int i=0; i < conn.validations.size(); i++) {
+					Validation validation = conn.validations.get(i);
+					dump.append(i == 0 ? "" : " ").append(validation.valid ? "ok" : "FAILED").append('@')
+							.append(format.format(new Date(validation.validatedAtMillis)));
+				}
+				dump.append(']');
+			}
+			dump.append('\n');
+		}
+		return dump.toString();
+	}
+
+	@Override
+	public String toString() {
+		return dump();
+	}
+}
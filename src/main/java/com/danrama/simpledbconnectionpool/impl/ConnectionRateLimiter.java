@@ -0,0 +1,178 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolConnectThrottledException;
+
+/**
+ * Throttles the rate at which new physical database connections are opened.  This protects the database's authentication
+ * path from connection "storms", e.g. when many application instances restart at the same time and all of their pools try
+ * to fill themselves up to the minimum level at once.
+ * <p>
+ * The limiter is a token bucket: it holds up to <code>burstSize</code> tokens, is replenished at
+ * <code>permitsPerSecond</code>, and each connect attempt consumes one token.  In addition, no more than
+ * <code>maxPendingConnects</code> connect attempts may be in flight at the same time.  A caller that cannot get a permit
+ * waits up to <code>maxWaitMillis</code> before a <code>ConnectionPoolConnectThrottledException</code> is thrown.
+ * <p>
+ * A single limiter may be shared by several pools that point to the same database.
+ *
+ * @author Daniel Bloomfield Ramagem
+ * @see AbstractConnectionPool#getNewRawDbConnection()
+ */
+@ThreadSafe
+public class ConnectionRateLimiter {
+	private static final Logger logger = Logger.getLogger(ConnectionRateLimiter.class);
+
+	// bucket capacity, i.e. how many connects may happen back-to-back after a quiet period
+	private final int burstSize;
+
+	// sustained rate at which tokens are added to the bucket
+	private final double permitsPerSecond;
+
+	// maximum number of connect attempts that may be outstanding at the same time
+	private final int maxPendingConnects;
+
+	// how long a caller will wait for a permit before giving up
+	private final long maxWaitMillis;
+
+	@GuardedBy("this") private double availableTokens;
+	@GuardedBy("this") private long lastRefillNanos;
+	@GuardedBy("this") private int pendingConnects;
+
+	// statistics about the callers that had to wait for a permit
+	@GuardedBy("this") private long throttledCount;
+	@GuardedBy("this") private long rejectedCount;
+	@GuardedBy("this") private long totalThrottleWaitNanos;
+
+	/**
+	 * Create a new rate limiter.  The bucket starts full.
+	 *
+	 * @param burstSize maximum number of connects allowed back-to-back
+	 * @param permitsPerSecond sustained number of connects allowed per second
+	 * @param maxPendingConnects maximum number of concurrent connect attempts
+	 * @param maxWaitMillis maximum time a caller waits for a permit, 0 to fail immediately
+	 */
+	public ConnectionRateLimiter(int burstSize, double permitsPerSecond, int maxPendingConnects, long maxWaitMillis) {
+		if (burstSize < 1)
+			throw new IllegalArgumentException("burst size must be >= 1");
+		if (permitsPerSecond <= 0)
+			throw new IllegalArgumentException("permits per second must be > 0");
+		if (maxPendingConnects < 1)
+			throw new IllegalArgumentException("maximum pending connects must be >= 1");
+		if (maxWaitMillis < 0)
+			throw new IllegalArgumentException("maximum wait must be >= 0");
+
+		this.burstSize = burstSize;
+		this.permitsPerSecond = permitsPerSecond;
+		this.maxPendingConnects = maxPendingConnects;
+		this.maxWaitMillis = maxWaitMillis;
+		availableTokens = burstSize;
+		lastRefillNanos = System.nanoTime();
+	}
+
+	// ----- getters for the limiter configuration and statistics -----
+	public int getBurstSize() {
+		return burstSize;
+	}
+	public double getPermitsPerSecond() {
+		return permitsPerSecond;
+	}
+	public int getMaxPendingConnects() {
+		return maxPendingConnects;
+	}
+	public long getMaxWaitMillis() {
+		return maxWaitMillis;
+	}
+	public synchronized int getPendingConnects() {
+		return pendingConnects;
+	}
+	// number of connects that had to wait for a permit but eventually got one
+	public synchronized long getThrottledCount() {
+		return throttledCount;
+	}
+	// number of connects that gave up waiting for a permit
+	public synchronized long getRejectedCount() {
+		return rejectedCount;
+	}
+	// total time callers have spent waiting on the limiter, whether or not they eventually got a permit
+	public synchronized long getTotalThrottleWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(totalThrottleWaitNanos);
+	}
+
+	/*
+	 * Add the tokens accrued since the last refill, never going above the bucket capacity.
+	 */
+	private void refill(long now) {
+		double accrued = (now - lastRefillNanos) * permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+		availableTokens = Math.min(burstSize, availableTokens + accrued);
+		lastRefillNanos = now;
+	}
+
+	/**
+	 * Obtain a permit to open a new database connection, waiting if necessary.  Every successful call must be paired with
+	 * a call to <code>release()</code> once the connect attempt has finished.
+	 *
+	 * @throws ConnectionPoolConnectThrottledException if no permit was granted within the maximum wait time, or if the
+	 *         waiting thread was interrupted
+	 * @see #release()
+	 */
+	public synchronized void acquire() throws ConnectionPoolConnectThrottledException {
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+		long now = start;
+
+		while (true) {
+			refill(now);
+			if (availableTokens >= 1.0 && pendingConnects < maxPendingConnects) {
+				availableTokens -= 1.0;
+				pendingConnects++;
+				if (now > start) {
+					throttledCount++;
+					totalThrottleWaitNanos += now - start;
+					logger.debug("connect was throttled for " + TimeUnit.NANOSECONDS.toMillis(now - start) + "ms");
+				}
+				return;
+			}
+
+			long remaining = deadline - now;
+			if (remaining <= 0) {
+				rejectedCount++;
+				totalThrottleWaitNanos += now - start;
+				throw new ConnectionPoolConnectThrottledException("connect throttled: no permit after waiting " +
+						TimeUnit.NANOSECONDS.toMillis(now - start) + "ms (pending connects=" + pendingConnects + ")");
+			}
+
+			// If we are short of tokens then sleep until the next one accrues, otherwise we are waiting on a pending
+			// connect to finish and release() will wake us up.
+			long waitNanos = remaining;
+			if (availableTokens < 1.0) {
+				long nanosToNextToken = (long) Math.ceil((1.0 - availableTokens) * TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+				waitNanos = Math.max(1, Math.min(waitNanos, nanosToNextToken));
+			}
+			try {
+				TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				rejectedCount++;
+				throw new ConnectionPoolConnectThrottledException("interrupted while waiting for a connect permit", e);
+			}
+			now = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Signal that a connect attempt started with <code>acquire()</code> has finished, successfully or not.
+	 *
+	 * @see #acquire()
+	 */
+	public synchronized void release() {
+		if (pendingConnects > 0)
+			pendingConnects--;
+		notifyAll();
+	}
+}
@@ -0,0 +1,248 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * The bookkeeping a pool keeps about its physical database connections, for diagnosing what the pool is doing.  The state
+ * of each connection lives in a slot of a set of parallel, mostly primitive, arrays rather than in an object of its own.
+ * This way a pool of thousands of connections keeps its bookkeeping in a handful of arrays instead of thousands of small
+ * objects, a scan over the connections walks contiguous memory, and borrowing or returning a connection only writes to its
+ * slot.  The slots of closed connections are reused, so the arrays only grow with the largest number of connections the
+ * pool ever had open at once.
+ * <p>
+ * The table is only ever touched while holding the lock of the pool that owns it, and its slots are copied into immutable
+ * <code>ConnectionPoolSnapshot</code>s for the outside world.
+ *
+ * @author Daniel Bloomfield Ramagem
+ * @see ConnectionPoolSnapshot
+ */
+@NotThreadSafe
+class ConnectionTable {
+	// number of validations remembered per connection
+	static final int VALIDATION_HISTORY_SIZE = 5;
+
+	private static final int INITIAL_CAPACITY = 16;
+	private static final ConnectionPoolSnapshot.ConnectionState[] STATES = ConnectionPoolSnapshot.ConnectionState.values();
+
+	// the slot of each connection, by identity; only changes when connections are opened or closed
+	private final Map<Connection, Integer> slots = new IdentityHashMap<Connection, Integer>();
+
+	// the connection in each slot, null for a free slot
+	private Connection[] connections;
+
+	// the state of the connection in each slot
+	private long[] ids;
+	private long[] createdAtMillis;
+	private byte[] states;
+
+	// the last time the connection was known to be in use: opened, returned to the pool or validated
+	private long[] lastActiveAtMillis;
+
+	// the borrowing history
+	private long[] lastBorrowedAtMillis;
+	private long[] borrowCounts;
+	private Thread[] holders;
+
+	// why the connection was found to be broken while it was not idle, null if it is not known to be broken
+	private String[] brokenReasons;
+
+	// the latest validations, VALIDATION_HISTORY_SIZE per slot in a ring indexed by the total number of validations
+	private long[] validatedAtMillis;
+	private boolean[] validationResults;
+	private long[] validationNanos;
+	private long[] validationCounts;
+
+	// the slots freed by closed connections, as a stack, and one past the highest slot ever used
+	private int[] freeSlots;
+	private int freeSlotCount;
+	private int slotLimit;
+
+	ConnectionTable() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		connections = new Connection[capacity];
+		ids = new long[capacity];
+		createdAtMillis = new long[capacity];
+		states = new byte[capacity];
+		lastActiveAtMillis = new long[capacity];
+		lastBorrowedAtMillis = new long[capacity];
+		borrowCounts = new long[capacity];
+		holders = new Thread[capacity];
+		brokenReasons = new String[capacity];
+		validatedAtMillis = new long[capacity * VALIDATION_HISTORY_SIZE];
+		validationResults = new boolean[capacity * VALIDATION_HISTORY_SIZE];
+		validationNanos = new long[capacity * VALIDATION_HISTORY_SIZE];
+		validationCounts = new long[capacity];
+		freeSlots = new int[capacity];
+	}
+
+	private void grow() {
+		int capacity = connections.length * 2;
+		connections = Arrays.copyOf(connections, capacity);
+		ids = Arrays.copyOf(ids, capacity);
+		createdAtMillis = Arrays.copyOf(createdAtMillis, capacity);
+		states = Arrays.copyOf(states, capacity);
+		lastActiveAtMillis = Arrays.copyOf(lastActiveAtMillis, capacity);
+		lastBorrowedAtMillis = Arrays.copyOf(lastBorrowedAtMillis, capacity);
+		borrowCounts = Arrays.copyOf(borrowCounts, capacity);
+		holders = Arrays.copyOf(holders, capacity);
+		brokenReasons = Arrays.copyOf(brokenReasons, capacity);
+		validatedAtMillis = Arrays.copyOf(validatedAtMillis, capacity * VALIDATION_HISTORY_SIZE);
+		validationResults = Arrays.copyOf(validationResults, capacity * VALIDATION_HISTORY_SIZE);
+		validationNanos = Arrays.copyOf(validationNanos, capacity * VALIDATION_HISTORY_SIZE);
+		validationCounts = Arrays.copyOf(validationCounts, capacity);
+		freeSlots = Arrays.copyOf(freeSlots, capacity);
+	}
+
+	/**
+	 * Start keeping track of a new connection, as idle.
+	 *
+	 * @param connection the physical connection
+	 * @param id the sequence number of the connection within its pool
+	 * @return the slot of the connection
+	 */
+	int add(Connection connection, long id) {
+		int slot;
+		if (freeSlotCount > 0) {
+			slot = freeSlots[--freeSlotCount];
+		} else {
+			if (slotLimit == connections.length)
+				grow();
+			slot = slotLimit++;
+		}
+		connections[slot] = connection;
+		ids[slot] = id;
+		createdAtMillis[slot] = System.currentTimeMillis();
+		lastActiveAtMillis[slot] = createdAtMillis[slot];
+		states[slot] = (byte) ConnectionPoolSnapshot.ConnectionState.IDLE.ordinal();
+		lastBorrowedAtMillis[slot] = 0;
+		borrowCounts[slot] = 0;
+		validationCounts[slot] = 0;
+		slots.put(connection, slot);
+		return slot;
+	}
+
+	/**
+	 * Stop keeping track of a connection, freeing its slot.  Does nothing for a connection that is not tracked.
+	 */
+	void remove(Connection connection) {
+		Integer slot = slots.remove(connection);
+		if (slot == null)
+			return;
+		// let go of the references, the primitives are overwritten when the slot is reused
+		connections[slot] = null;
+		holders[slot] = null;
+		brokenReasons[slot] = null;
+		freeSlots[freeSlotCount++] = slot;
+	}
+
+	/**
+	 * Gets the slot of a connection.
+	 *
+	 * @param connection the physical connection, may be <code>null</code>
+	 * @return the slot, or -1 if the connection is not tracked
+	 */
+	int slotOf(Connection connection) {
+		Integer slot = slots.get(connection);
+		return slot == null ? -1 : slot;
+	}
+
+	int size() {
+		return slots.size();
+	}
+
+	// ----- the state of a slot -----
+	void setState(int slot, ConnectionPoolSnapshot.ConnectionState state) {
+		states[slot] = (byte) state.ordinal();
+	}
+	String getBrokenReason(int slot) {
+		return brokenReasons[slot];
+	}
+	void setBrokenReason(int slot, String reason) {
+		brokenReasons[slot] = reason;
+	}
+
+	void borrowed(int slot, Thread borrower) {
+		states[slot] = (byte) ConnectionPoolSnapshot.ConnectionState.BORROWED.ordinal();
+		holders[slot] = borrower;
+		lastBorrowedAtMillis[slot] = System.currentTimeMillis();
+		borrowCounts[slot]++;
+	}
+
+	void returned(int slot) {
+		states[slot] = (byte) ConnectionPoolSnapshot.ConnectionState.IDLE.ordinal();
+		holders[slot] = null;
+		lastActiveAtMillis[slot] = System.currentTimeMillis();
+	}
+
+	void validated(int slot, boolean valid, long nanos) {
+		int entry = slot * VALIDATION_HISTORY_SIZE + (int) (validationCounts[slot] % VALIDATION_HISTORY_SIZE);
+		validatedAtMillis[entry] = System.currentTimeMillis();
+		lastActiveAtMillis[slot] = validatedAtMillis[entry];
+		validationResults[entry] = valid;
+		validationNanos[entry] = nanos;
+		validationCounts[slot]++;
+	}
+
+	/**
+	 * Gets the idle connections that have not been active for an interval and whose turn it is.  The interval is divided
+	 * in the given number of steps and each slot only takes its turn in its own step of every interval, so that
+	 * connections that were last active at the same time, e.g. opened together, do not all come due at once.  A connection
+	 * is never due before it has been inactive for the interval, but may have to wait up to another interval for its turn.
+	 *
+	 * @param sinceMillis when the connections due were last looked for; the turns of the steps that began since then are
+	 *                    taken, so that none is missed when the calls do not line up exactly with the steps
+	 * @param nowMillis the current time
+	 * @param intervalMillis the interval
+	 * @param steps the number of steps the interval is divided in
+	 * @return the connections due, in no particular order
+	 */
+	List<Connection> idleConnectionsInactiveFor(long sinceMillis, long nowMillis, long intervalMillis, int steps) {
+		List<Connection> due = new ArrayList<Connection>();
+		byte idle = (byte) ConnectionPoolSnapshot.ConnectionState.IDLE.ordinal();
+		long stepMillis = Math.max(1, intervalMillis / steps);
+		long turns = Math.min(steps, nowMillis / stepMillis - sinceMillis / stepMillis);
+		for (long turn=nowMillis / stepMillis - turns + 1; turn <= nowMillis / stepMillis; turn++) {
+			for (int slot=(int) (turn % steps); slot < slotLimit; slot += steps) {
+				if (connections[slot] != null && states[slot] == idle &&
+						nowMillis - lastActiveAtMillis[slot] >= intervalMillis)
+					due.add(connections[slot]);
+			}
+		}
+		return due;
+	}
+
+	/**
+	 * Copy the state of every tracked connection, in no particular order.
+	 */
+	List<ConnectionPoolSnapshot.PhysicalConnection> snapshot() {
+		List<ConnectionPoolSnapshot.PhysicalConnection> snapshot =
+				new ArrayList<ConnectionPoolSnapshot.PhysicalConnection>(size());
+		for (int slot=0; slot < slotLimit; slot++) {
+			if (connections[slot] == null)
+				continue;
+
+			// copy the validation ring, oldest first
+			long validationCount = validationCounts[slot];
+			int remembered = (int) Math.min(validationCount, VALIDATION_HISTORY_SIZE);
+			List<ConnectionPoolSnapshot.Validation> history = new ArrayList<ConnectionPoolSnapshot.Validation>(remembered);
+			for (long i=validationCount - remembered; i < validationCount; i++) {
+				int entry = slot * VALIDATION_HISTORY_SIZE + (int) (i % VALIDATION_HISTORY_SIZE);
+				history.add(new ConnectionPoolSnapshot.Validation(validatedAtMillis[entry], validationResults[entry],
+						validationNanos[entry]));
+			}
+			snapshot.add(new ConnectionPoolSnapshot.PhysicalConnection(ids[slot], STATES[states[slot]],
+					createdAtMillis[slot], lastBorrowedAtMillis[slot], borrowCounts[slot], holders[slot], history));
+		}
+		return snapshot;
+	}
+}
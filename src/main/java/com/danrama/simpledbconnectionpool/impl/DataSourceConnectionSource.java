@@ -0,0 +1,143 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.ConnectionPoolDataSource;
+import javax.sql.XADataSource;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.danrama.simpledbconnectionpool.ConnectionSource;
+
+/**
+ * A connection source for drivers that hand out their physical connections through a
+ * <code>javax.sql.ConnectionPoolDataSource</code> or a <code>javax.sql.XADataSource</code>, i.e. as
+ * <code>javax.sql.PooledConnection</code>s.
+ * <p>
+ * The pool is given the logical connection of each physical connection, and closing it closes the physical connection.  The
+ * source listens to the connection events of the physical connections: once attached to a pool, a physical connection on
+ * which the driver reports a fatal error is evicted from the pool right away, rather than being found out by a validation
+ * later on.  Errors reported before the source is attached are left to the validations.
+ * <p>
+ * The XA connections are pooled like any other, enlisting them in distributed transactions is left to the caller.
+ *
+ * @author Daniel Bloomfield Ramagem
+ * @see PoolingDataSource
+ */
+@ThreadSafe
+public class DataSourceConnectionSource implements ConnectionSource {
+	private static final Logger logger = Logger.getLogger(DataSourceConnectionSource.class);
+
+	// where the physical connections come from, only one of them is set
+	private final ConnectionPoolDataSource connectionPoolDataSource;
+	private final XADataSource xaDataSource;
+
+	// the pool told about the broken connections, null until attached
+	private volatile ExpandingSizeConnectionPool pool;
+
+	/*
+	 * The invocation handler of the connections handed to the pool: they are the logical connections of the physical ones,
+	 * except that closing them closes the physical connection.  They also listen to the events of the physical connection.
+	 */
+	private class PhysicalConnectionHandler implements InvocationHandler, ConnectionEventListener {
+		private final javax.sql.PooledConnection physicalConnection;
+		private final Connection logicalConnection;
+
+		// the connection as handed to the pool, for reporting it broken
+		private volatile Connection proxy;
+
+		PhysicalConnectionHandler(javax.sql.PooledConnection physicalConnection) throws SQLException {
+			this.physicalConnection = physicalConnection;
+			logicalConnection = physicalConnection.getConnection();
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			// a logical connection cannot be aborted on its own, closing the physical connection is the closest there is
+			if (method.getName().equals("close") || method.getName().equals("abort")) {
+				physicalConnection.removeConnectionEventListener(this);
+				physicalConnection.close();
+				return null;
+			}
+			try {
+				return method.invoke(logicalConnection, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+
+		public void connectionClosed(ConnectionEvent event) {
+			; // the logical connection is only ever closed along with the physical one
+		}
+
+		public void connectionErrorOccurred(ConnectionEvent event) {
+			ExpandingSizeConnectionPool attachedPool = pool;
+			String reason = "driver reported a fatal connection error" +
+					(event.getSQLException() == null ? "" : ": " + event.getSQLException().getMessage());
+			if (attachedPool == null) {
+				logger.warn(reason + ", but the source is not attached to a pool");
+				return;
+			}
+			attachedPool.evictConnection(proxy, reason);
+		}
+	}
+
+	/**
+	 * Create a source of physical connections from a connection pool data source.
+	 *
+	 * @param connectionPoolDataSource the data source
+	 */
+	public DataSourceConnectionSource(ConnectionPoolDataSource connectionPoolDataSource) {
+		if (connectionPoolDataSource == null)
+			throw new IllegalArgumentException("connection pool data source must be supplied");
+		this.connectionPoolDataSource = connectionPoolDataSource;
+		this.xaDataSource = null;
+	}
+
+	/**
+	 * Create a source of physical connections from an XA data source.
+	 *
+	 * @param xaDataSource the data source
+	 */
+	public DataSourceConnectionSource(XADataSource xaDataSource) {
+		if (xaDataSource == null)
+			throw new IllegalArgumentException("XA data source must be supplied");
+		this.connectionPoolDataSource = null;
+		this.xaDataSource = xaDataSource;
+	}
+
+	/**
+	 * Start evicting the connections the driver reports broken from a pool.  The pool must be getting its connections from
+	 * this source.
+	 *
+	 * @param pool the pool
+	 */
+	public void attach(ExpandingSizeConnectionPool pool) {
+		this.pool = pool;
+	}
+
+	public Connection getConnection() throws SQLException {
+		javax.sql.PooledConnection physicalConnection = connectionPoolDataSource != null ?
+				connectionPoolDataSource.getPooledConnection() : xaDataSource.getXAConnection();
+		PhysicalConnectionHandler handler;
+		try {
+			handler = new PhysicalConnectionHandler(physicalConnection);
+		} catch (SQLException e) {
+			physicalConnection.close();
+			throw e;
+		}
+		Connection connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class[] { Connection.class }, handler);
+		handler.proxy = connection;
+		physicalConnection.addConnectionEventListener(handler);
+		return connection;
+	}
+}
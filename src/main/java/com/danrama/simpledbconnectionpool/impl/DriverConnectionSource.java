@@ -0,0 +1,81 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import net.jcip.annotations.ThreadSafe;
+
+import com.danrama.simpledbconnectionpool.ConnectionSource;
+import com.danrama.simpledbconnectionpool.CredentialsProvider;
+import com.danrama.simpledbconnectionpool.PreConnectHook;
+
+/**
+ * The standard connection source: connects through an already resolved JDBC driver, optionally adding the credentials of a
+ * <code>CredentialsProvider</code> to the connection properties and running a <code>PreConnectHook</code> first.
+ * <p>
+ * Without a credentials provider or a hook, the connection properties are passed to the driver as they are.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ */
+@ThreadSafe
+public class DriverConnectionSource implements ConnectionSource {
+	// database driver & parameters for connection
+	private final Driver dbDriver;
+	private final String dbConnUrl;
+	private final Properties dbConnProps;
+	
+	// optional credentials added to the connection properties, and hook run before each connect
+	private final CredentialsProvider credentialsProvider;
+	private final PreConnectHook preConnectHook;
+	
+	/**
+	 * Create a source connecting with fixed connection properties.
+	 * 
+	 * @param dbDriver the database driver
+	 * @param dbConnUrl optional database connection URL
+	 * @param dbConnProps optional database connection properties
+	 */
+	public DriverConnectionSource(Driver dbDriver, String dbConnUrl, Properties dbConnProps) {
+		this(dbDriver, dbConnUrl, dbConnProps, null, null);
+	}
+	
+	/**
+	 * Create a source connecting with the current credentials.
+	 * 
+	 * @param dbDriver the database driver
+	 * @param dbConnUrl optional database connection URL
+	 * @param dbConnProps optional database connection properties, the credentials are added to a copy of them
+	 * @param credentialsProvider optional provider of the credentials, normally a <code>CachedCredentialsProvider</code>
+	 * @param preConnectHook optional hook run before each connect
+	 */
+	public DriverConnectionSource(Driver dbDriver, String dbConnUrl, Properties dbConnProps, 
+			CredentialsProvider credentialsProvider, PreConnectHook preConnectHook) {
+		if (dbDriver == null)
+			throw new IllegalArgumentException("database Driver must be supplied");
+		
+		this.dbDriver = dbDriver;
+		this.dbConnUrl = dbConnUrl;
+		this.dbConnProps = dbConnProps;
+		this.credentialsProvider = credentialsProvider;
+		this.preConnectHook = preConnectHook;
+	}
+	
+	public Connection getConnection() throws SQLException {
+		if (credentialsProvider == null && preConnectHook == null)
+			return dbDriver.connect(dbConnUrl, dbConnProps);
+		
+		// never let the credentials or the hook change the properties shared by every connect, and keep their defaults
+		Properties connProps = new Properties();
+		if (dbConnProps != null) {
+			for (String name : dbConnProps.stringPropertyNames())
+				connProps.setProperty(name, dbConnProps.getProperty(name));
+		}
+		if (credentialsProvider != null)
+			connProps.putAll(credentialsProvider.getCredentials());
+		if (preConnectHook != null)
+			preConnectHook.beforeConnect(dbConnUrl, connProps);
+		return dbDriver.connect(dbConnUrl, connProps);
+	}
+}
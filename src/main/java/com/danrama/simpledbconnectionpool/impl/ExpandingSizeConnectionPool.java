@@ -1,19 +1,35 @@
 package com.danrama.simpledbconnectionpool.impl;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
 
 import org.apache.log4j.Logger;
 
+import com.danrama.simpledbconnectionpool.ConnectionSource;
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolClosedException;
 import com.danrama.simpledbconnectionpool.exception.ConnectionPoolException;
 import com.danrama.simpledbconnectionpool.exception.ConnectionPoolInitializationException;
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolLoadShedException;
 import com.danrama.simpledbconnectionpool.exception.ConnectionPoolNewConnectionException;
 import com.danrama.simpledbconnectionpool.exception.ConnectionPoolOutOfConnectionsException;
 import com.danrama.simpledbconnectionpool.exception.ConnectionPoolReleaseConnectionException;
@@ -28,8 +44,15 @@ import com.danrama.simpledbconnectionpool.exception.ConnectionPoolReleaseConnect
 public class ExpandingSizeConnectionPool extends AbstractConnectionPool {
 	private static final Logger logger = Logger.getLogger(ExpandingSizeConnectionPool.class);
 	
-	// a cache of database connections that are available for clients
-	@GuardedBy("this") private final List<PooledConnection> pool;
+	// the number of steps the keepalive interval is divided in, to spread the pings of the idle connections over it
+	private static final int KEEPALIVE_STEPS = 10;
+	
+	// how long the health checks wait for an idle connection to be validated
+	private static final int HEALTH_CHECK_VALIDATION_TIMEOUT_SECONDS = 5;
+	
+	// A cache of database connections that are available for clients.  These are the raw connections, they only get wrapped
+	// inside a pooled connection when handed out.  The strategy decides which of them is handed out next.
+	@GuardedBy("this") private IdleConnectionStrategy pool;
 	
 	// Low-water mark for the pool.  If we haven't exceeded the maximum number of connections in the pool, then we should
 	// refill the pool to this minimum level of connections.
@@ -38,8 +61,72 @@ public class ExpandingSizeConnectionPool extends AbstractConnectionPool {
 	// High-water mark for the pool.  This is the maximum number of connections that can ever be outstanding.
 	private final int poolMaxConnections;
 	
-	// keep track of the number of all connections obtained from the database so far
+	// keep track of the number of all connections obtained from the database so far, including the ones being opened
 	@GuardedBy("this") private int totalConnections;
+	
+	// the connections on their way into the pool outside of the pool lock, counted in the total connections: the ones being
+	// opened to refill it and the released ones being validated
+	@GuardedBy("this") private int incomingConnections;
+	
+	// why the last refill of the pool failed, null once a refill succeeds
+	@GuardedBy("this") private SQLException lastRefillFailure;
+	
+	// the connections currently handed out to clients, along with the thread that borrowed them
+	@GuardedBy("this") private final Map<PooledConnection, Thread> borrowedConnections;
+	
+	// the bookkeeping about every physical connection open by the pool, for the diagnostic snapshots
+	@GuardedBy("this") private final ConnectionTable connectionTable;
+	@GuardedBy("this") private long lastConnectionId;
+	
+	// Maximum time a client may hold on to a connection before the pool takes it back, 0 for no limit.  Only enforced while
+	// the hold time checker is scheduled.
+	@GuardedBy("this") private long maxConnectionHoldMillis;
+	@GuardedBy("this") private ScheduledFuture<?> holdTimeChecker;
+	
+	// The latest health assessment, refreshed by the health checker so that probes never touch the pool or the database.
+	// Null while health checks are not scheduled.
+	@GuardedBy("this") private long healthCheckIntervalMillis;
+	@GuardedBy("this") private ScheduledFuture<?> healthChecker;
+	private volatile ConnectionPoolHealth health;
+	
+	// keepalive pings of the idle connections, with the query to ping them with, null to validate them instead, and when
+	// the connections due were last looked for
+	@GuardedBy("this") private long keepaliveIntervalMillis;
+	@GuardedBy("this") private String keepaliveQuery;
+	@GuardedBy("this") private ScheduledFuture<?> keepaliveSender;
+	@GuardedBy("this") private long keepalivesSentAtMillis;
+	
+	// set once the pool is closed, after which it no longer hands out connections
+	@GuardedBy("this") private boolean closed;
+	
+	// whether a check of all the idle connections has been requested and not started yet
+	@GuardedBy("this") private boolean revalidationPending;
+	
+	// moving average of how long the borrowers hold on to their connections, 0 until a connection is released
+	@GuardedBy("this") private long meanHoldNanos;
+	
+	// the connections the clients blocked in a borrow are waiting for, and the borrows turned down for their deadline
+	@GuardedBy("this") private int waitingConnections;
+	@GuardedBy("this") private long shedBorrows;
+	
+	// the clients blocked in a borrow in the order they arrived in, only the one at the head may take connections
+	@GuardedBy("this") private final ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>();
+	
+	// where the report of the demand for connections is written when the pool is closed, null to not write it
+	@GuardedBy("this") private File demandReportFile;
+
+	/*
+	 * A client blocked in a borrow, waiting for its turn.
+	 */
+	private static final class Waiter {
+		final int count;
+		final long deadlineNanos;
+
+		Waiter(int count, long deadlineNanos) {
+			this.count = count;
+			this.deadlineNanos = deadlineNanos;
+		}
+	}
 
 	// ----- getters for the pool state variables, useful for tests -----
 	public int getPoolMinConnections() {
@@ -48,7 +135,7 @@ public class ExpandingSizeConnectionPool extends AbstractConnectionPool {
 	public int getPoolMaxConnections() {
 		return poolMaxConnections;
 	}
-	public int getTotalConnections() {
+	public synchronized int getTotalConnections() {
 		return totalConnections;
 	}
 	// Note that we are careful here not to "leak" the pool reference to an external client.  All that is accessible should
@@ -56,6 +143,36 @@ public class ExpandingSizeConnectionPool extends AbstractConnectionPool {
 	public synchronized int getNumConnectionsInPool() {
 		return pool.size();
 	}
+	public synchronized int getNumBorrowedConnections() {
+		return borrowedConnections.size();
+	}
+	public synchronized long getMaxConnectionHoldMillis() {
+		return maxConnectionHoldMillis;
+	}
+	public synchronized long getHealthCheckIntervalMillis() {
+		return healthCheckIntervalMillis;
+	}
+	public synchronized long getKeepaliveIntervalMillis() {
+		return keepaliveIntervalMillis;
+	}
+	public synchronized String getKeepaliveQuery() {
+		return keepaliveQuery;
+	}
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+	public synchronized long getMeanHoldNanos() {
+		return meanHoldNanos;
+	}
+	public synchronized long getNumShedBorrows() {
+		return shedBorrows;
+	}
+	public synchronized int getNumWaitingConnections() {
+		return waitingConnections;
+	}
+	public synchronized File getDemandReportFile() {
+		return demandReportFile;
+	}
 
 	/**
 	 * Create a database connection pool that will expand in size up to a fixed maximum, and will contract as connections are
@@ -69,7 +186,41 @@ public class ExpandingSizeConnectionPool extends AbstractConnectionPool {
 	 */
 	public ExpandingSizeConnectionPool(int poolMinConnections, int poolMaxConnections, Driver dbDriver, 
 			String dbConnUrl, Properties dbConnProps) throws ConnectionPoolInitializationException {
-		super(dbDriver, dbConnUrl, dbConnProps);
+		this(poolMinConnections, poolMaxConnections, dbDriver, dbConnUrl, dbConnProps, null);
+	}
+
+	/**
+	 * Create a database connection pool that will expand in size up to a fixed maximum, and will contract as connections are
+     * returned down to a fixed minimum.  New database connections, including the ones made to initially fill the pool, are
+     * throttled by the given rate limiter.
+	 * 
+	 * @param poolMinConnections the minimum pool size
+	 * @param poolMaxConnections the maximum pool size
+	 * @param dbConnUrl database connection URL
+	 * @param dbConnProps database connection properties
+	 * @param connectionRateLimiter optional limiter for new database connections, may be <code>null</code>
+	 * @throws ConnectionPoolInitializationException
+	 */
+	public ExpandingSizeConnectionPool(int poolMinConnections, int poolMaxConnections, Driver dbDriver, 
+			String dbConnUrl, Properties dbConnProps, ConnectionRateLimiter connectionRateLimiter) 
+	throws ConnectionPoolInitializationException {
+		this(poolMinConnections, poolMaxConnections, new DriverConnectionSource(dbDriver, dbConnUrl, dbConnProps), 
+				connectionRateLimiter);
+	}
+
+	/**
+	 * Create a database connection pool that will expand in size up to a fixed maximum, and will contract as connections are
+     * returned down to a fixed minimum.  The database connections are obtained from the given source.
+	 * 
+	 * @param poolMinConnections the minimum pool size
+	 * @param poolMaxConnections the maximum pool size
+	 * @param connectionSource the source of the database connections
+	 * @param connectionRateLimiter optional limiter for new database connections, may be <code>null</code>
+	 * @throws ConnectionPoolInitializationException
+	 */
+	public ExpandingSizeConnectionPool(int poolMinConnections, int poolMaxConnections, ConnectionSource connectionSource, 
+			ConnectionRateLimiter connectionRateLimiter) throws ConnectionPoolInitializationException {
+		super(connectionSource, connectionRateLimiter);
 		
 		// check that valid params were passed
 		if (poolMinConnections < 0)
@@ -78,11 +229,11 @@ public class ExpandingSizeConnectionPool extends AbstractConnectionPool {
 			throw new IllegalArgumentException("pool maximum connections must be > 0");
 		if (poolMaxConnections < poolMinConnections)
 			throw new IllegalArgumentException("pool maximum must be >= to the minimum connections");
-		if (dbDriver == null)
-			throw new IllegalArgumentException("pool database Driver must be supplied");
 		
 		// initialize the pool 
-		pool = new ArrayList<PooledConnection>();
+		pool = new FifoIdleConnectionStrategy();
+		borrowedConnections = new IdentityHashMap<PooledConnection, Thread>();
+		connectionTable = new ConnectionTable();
 		this.poolMinConnections = poolMinConnections;
 		this.poolMaxConnections = poolMaxConnections;
 		totalConnections = 0;
@@ -91,6 +242,11 @@ public class ExpandingSizeConnectionPool extends AbstractConnectionPool {
 		try {
 			refillPoolToMinimumLevel();
 		} catch (SQLException e) {
+			// nobody gets to close a pool that failed to be created, so close the connections it opened so far right away
+			closed = true;
+			while (pool.size() > 0)
+				closeRawConnection(pool.take());
+			totalConnections = 0;
 			throw new ConnectionPoolInitializationException("pool initialization failed", e);
 		}
 		
@@ -101,23 +257,30 @@ public class ExpandingSizeConnectionPool extends AbstractConnectionPool {
 	 * Log with debug level a brief summary of the state of the pool.  
 	 */
 	private void logDebugPoolStatusMessage() {
-		logger.debug("pool state: max=" + poolMaxConnections + ", total=" + totalConnections + 
+		// checked first as this runs on every borrow and release, and building the message is not free
+		if (logger.isDebugEnabled())
+			logger.debug("pool state: max=" + poolMaxConnections + ", total=" + totalConnections + 
 				", cached=" + pool.size());
 	}
 	
 	/*
 	 * Refills the pool to the minimum level, but only if the maximum number of connections hasn't been already dispensed.
+	 * Only used to fill the pool when it is created, the later refills open their connections outside of the pool lock.
 	 * 
 	 * @throws SQLException is a database error occurs
+	 * @see #reserveRefill()
 	 */
 	private void refillPoolToMinimumLevel() throws SQLException {
+		if (closed)
+			return;
+		
 		boolean refillNeeded = totalConnections < poolMaxConnections && pool.size() < poolMinConnections;
 		if (refillNeeded)
 			logger.debug("refilling pool");
 		
 		// fill the pool with more connections if possible and needed
 		while (totalConnections < poolMaxConnections && pool.size() < poolMinConnections) {
-			PooledConnection conn = getNewPooledConnection();
+			Connection conn = createRawConnection();
 			pool.add(conn);
 			totalConnections++;
 		}
@@ -126,71 +289,287 @@ public class ExpandingSizeConnectionPool extends AbstractConnectionPool {
 			logDebugPoolStatusMessage();
 	}
 	
+	/*
+	 * Reserve the slots of the connections needed to refill the pool to the minimum level.  The connections are opened by
+	 * refillReserved() once the pool lock is released, so that a slow or throttled connect never holds up the other
+	 * clients of the pool.
+	 * 
+	 * @return the number of slots reserved
+	 */
+	@GuardedBy("this")
+	private int reserveRefill() {
+		if (closed)
+			return 0;
+		int missing = Math.min(poolMaxConnections - totalConnections, poolMinConnections - pool.size() - incomingConnections);
+		if (missing <= 0)
+			return 0;
+		totalConnections += missing;
+		incomingConnections += missing;
+		return missing;
+	}
+	
+	/*
+	 * Open the connections whose slots were reserved by reserveRefill() and put them in the pool.  Must be called without
+	 * holding the pool lock.  A failed connect gives up the remaining slots, the pool tries again on the next refill.
+	 */
+	private void refillReserved(int reserved) {
+		for (int i=0; i < reserved; i++) {
+			Connection rawConnection = null;
+			try {
+				synchronized (this) {
+					if (closed)
+						throw new ConnectionPoolClosedException("pool is closed");
+				}
+				rawConnection = getNewRawDbConnection();
+			} catch (SQLException e) {
+				synchronized (this) {
+					incomingConnections -= reserved - i;
+					totalConnections -= reserved - i;
+					if (!(e instanceof ConnectionPoolClosedException))
+						lastRefillFailure = e;
+					notifyAll();
+				}
+				if (!(e instanceof ConnectionPoolClosedException))
+					logger.warn("pool refill failed: " + e.getMessage());
+				return;
+			}
+			
+			boolean pooled;
+			synchronized (this) {
+				incomingConnections--;
+				lastRefillFailure = null;
+				pooled = !closed;
+				if (pooled) {
+					connectionTable.add(rawConnection, ++lastConnectionId);
+					pool.add(rawConnection);
+				} else {
+					totalConnections--;
+				}
+				notifyAll();
+			}
+			if (!pooled)
+				closeRawConnection(rawConnection); // the pool was closed in the meantime
+		}
+	}
+	
+	/*
+	 * Open a new physical connection and start keeping track of it.
+	 */
+	@GuardedBy("this")
+	private Connection createRawConnection() throws SQLException {
+		Connection rawConnection = getNewRawDbConnection();
+		connectionTable.add(rawConnection, ++lastConnectionId);
+		return rawConnection;
+	}
+	
+	/*
+	 * Wrap a physical connection to be handed out to the calling thread.
+	 */
+	@GuardedBy("this")
+	private PooledConnection handOut(Connection rawConnection) {
+		PooledConnection pooledConnection = PooledConnectionFactory.createPooledConnection(this, rawConnection);
+		borrowedConnections.put(pooledConnection, Thread.currentThread());
+		int slot = connectionTable.slotOf(rawConnection);
+		if (slot >= 0)
+			connectionTable.borrowed(slot, Thread.currentThread());
+		return pooledConnection;
+	}
+	
+	/*
+	 * Gets the handler of a connection handed out by this pool, so that its state can be read without boxing or reflection.
+	 */
+	private static PooledConnectionProxy getHandler(Connection connection) {
+		PooledConnectionProxy handler = PooledConnectionProxy.handlerOf(connection);
+		if (handler == null)
+			throw new IllegalArgumentException("connection must be of PooledConnection type");
+		return handler;
+	}
+	
 	/**
 	 * Obtains a connection from the pool if one is available.  When done with its use the client should return it to the
-     * pool via <code>releaseConnection</code>.
+     * pool via <code>releaseConnection</code>.  The connections are not available to this call while other clients are
+     * waiting for them in <code>getConnections()</code> or <code>getConnection(long)</code>, as those are served first.
+	 * 
+	 * <p>
+	 * A pool found empty because its last refill failed, e.g. a throttled connect, tries the refill again on the calling
+	 * thread before turning the client down.
 	 * 
 	 * @return Connection returns a pooled connection
-	 * @throws ConnectionPoolOutOfConnectionsException when the pool has run out of available connections to hand out.  The
-     *         client will have to retry later.
+	 * @throws ConnectionPoolOutOfConnectionsException when the pool has run out of available connections to hand out, or
+     *         other clients are waiting for them.  The client will have to retry later.  When the refill of the pool
+     *         failed, the refill error is the cause.
 	 * @see #releaseConnection(Connection)
 	 */
 	@Override
-	public synchronized Connection getConnection() throws ConnectionPoolException {
-		// first check if we are supposed to cache connections in the pool at all
-		if (poolMinConnections == 0) {
-			// Nope, we are not supposed to be caching connections.  That means we will get a new connection directly from the
-			// database driver f we haven't already reached the pool maximum connections allowed
-			if (totalConnections < poolMaxConnections) {
-				try {
-					PooledConnection conn = getNewPooledConnection();
-					totalConnections++;
-					return conn;
-				} catch (SQLException e) {
-					throw new ConnectionPoolNewConnectionException("a database error occurred trying to get a new connection", e);
-				}
-			} else {
-				throw new ConnectionPoolOutOfConnectionsException("maximum number of connections reached");
+	public Connection getConnection() throws ConnectionPoolException {
+		long start = System.nanoTime();
+		PooledConnection conn;
+		try {
+			conn = borrowConnection(start);
+		} catch (ConnectionPoolOutOfConnectionsException e) {
+			synchronized (this) {
+				recordTurnedDownBorrow();
 			}
+			fireWaitTimedOut(System.nanoTime() - start);
+			throw e;
 		}
+		fireConnectionBorrowed(getHandler(conn).getWrappedConnection(), System.nanoTime() - start);
+		return conn;
+	}
+	
+	/*
+	 * Takes a connection out of the pool, or creates a new one if the pool is not caching connections.  Connections are
+	 * only ever opened outside of the pool lock, in slots reserved while holding it.
+	 * 
+	 * @param start when the client asked for the connection
+	 */
+	private PooledConnection borrowConnection(long start) throws ConnectionPoolException {
+		PooledConnection conn;
+		int reserved;
 		
-		// ok, if we got here it means that the pool is supposed to cache connections
-		// check if there are any available connections in the pool
-		if (pool.isEmpty()) {
-			logger.warn("get connection from pool was unsuccessful: pool is out of connections");
-			throw new ConnectionPoolOutOfConnectionsException();
+		// a pool left below its minimum by a failed refill tries again before turning the client down
+		synchronized (this) {
+			reserved = pool.size() == 0 && lastRefillFailure != null ? reserveRefill() : 0;
 		}
-
-		// pool is not empty, so get a cached connection from the pool
-		Connection conn = pool.remove(0);
+		refillReserved(reserved);
+		
+		synchronized (this) {
+			if (closed)
+				throw new ConnectionPoolClosedException("pool is closed");
+			
+			checkNoWaiters();
+			
+			// first check if we are supposed to cache connections in the pool at all
+			if (poolMinConnections == 0) {
+				// Nope, we are not supposed to be caching connections.  That means we will get a new connection directly from
+				// the database driver if we haven't already reached the pool maximum connections allowed
+				if (totalConnections >= poolMaxConnections)
+					throw new ConnectionPoolOutOfConnectionsException("maximum number of connections reached");
+				totalConnections++;
+				conn = null;
+				reserved = 0;
+			} else {
+				// ok, if we got here it means that the pool is supposed to cache connections
+				// a connection being opened to refill the pool or validated on its way back is as good as a cached one, wait
+				// for it
+				while (pool.size() == 0 && incomingConnections > 0 && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new ConnectionPoolOutOfConnectionsException("interrupted while waiting for a connection", e);
+					}
+				}
+				if (closed)
+					throw new ConnectionPoolClosedException("pool is closed");
+				checkNoWaiters();
+				
+				// check if there are any available connections in the pool
+				if (pool.size() == 0) {
+					logger.warn("get connection from pool was unsuccessful: pool is out of connections");
+					if (lastRefillFailure != null)
+						throw new ConnectionPoolOutOfConnectionsException("pool is out of connections, its last refill failed",
+								lastRefillFailure);
+					throw new ConnectionPoolOutOfConnectionsException();
+				}
+				
+				// pool is not empty, so get a cached connection from the pool
+				conn = handOut(pool.take());
+				recordBorrow(1, System.nanoTime() - start);
+				reserved = reserveRefill();
+			}
+		}
+		if (conn == null)
+			return handOutNewConnection(start);
+		
+		// Refill the pool to the minimum size if necessary.  The client already has its connection, so a failed or
+		// throttled refill is not worth failing the call for; the pool will try to top itself up again on the next call.
+		refillReserved(reserved);
 		
-		// refill the pool to the minimum size if necessary
+		logger.debug("obtained connection from pool");
+		synchronized (this) {
+			logDebugPoolStatusMessage();
+		}
+		return conn;
+	}
+	
+	/*
+	 * Turn down a borrow that does not wait while other clients are waiting for connections, as those are served first.
+	 */
+	@GuardedBy("this")
+	private void checkNoWaiters() throws ConnectionPoolOutOfConnectionsException {
+		if (!waiters.isEmpty()) {
+			logger.warn("get connection from pool was unsuccessful: other clients are waiting for connections");
+			throw new ConnectionPoolOutOfConnectionsException("other clients are waiting for connections");
+		}
+	}
+	
+	/*
+	 * Record connections handed out in the demand statistics, and the demand they add.
+	 */
+	@GuardedBy("this")
+	private void recordBorrow(int count, long waitNanos) {
+		getDemandStatistics().demandChanged(borrowedConnections.size() + waitingConnections);
+		getDemandStatistics().borrowed(count, waitNanos);
+	}
+	
+	/*
+	 * Record a borrow turned down without waiting in the demand statistics.  The connection it asked for counts in the demand
+	 * for an instant, so that the peak demand shows the borrows the pool could not serve.
+	 */
+	@GuardedBy("this")
+	private void recordTurnedDownBorrow() {
+		getDemandStatistics().demandChanged(borrowedConnections.size() + waitingConnections + 1);
+		getDemandStatistics().demandChanged(borrowedConnections.size() + waitingConnections);
+	}
+	
+	/*
+	 * Open a new connection in a slot already reserved in the total connections, and hand it out.
+	 * 
+	 * @param start when the client asked for the connection
+	 */
+	private PooledConnection handOutNewConnection(long start) throws ConnectionPoolException {
+		Connection rawConnection;
 		try {
-			refillPoolToMinimumLevel();
+			rawConnection = getNewRawDbConnection();
 		} catch (SQLException e) {
-			throw new ConnectionPoolNewConnectionException("a database error occured while trying to refill the pool", e);
+			synchronized (this) {
+				totalConnections--;
+				notifyAll();
+			}
+			throw new ConnectionPoolNewConnectionException("a database error occurred trying to get a new connection", e);
 		}
-
-		logger.info("obtained connection from pool");
-		logDebugPoolStatusMessage();
-		
-		return PooledConnectionFactory.createPooledConnection(this, conn);
+		synchronized (this) {
+			if (!closed) {
+				connectionTable.add(rawConnection, ++lastConnectionId);
+				PooledConnection conn = handOut(rawConnection);
+				recordBorrow(1, System.nanoTime() - start);
+				return conn;
+			}
+			totalConnections--;
+		}
+		closeRawConnection(rawConnection);
+		throw new ConnectionPoolClosedException("pool is closed");
 	}
 
 	/**
 	 * Return a connection to the pool.  A connection can only be released back in the pool once, otherwise an exception is
      * thrown.  Also, references to released connections become unusable.
+	 * <p>
+	 * A connection going back to the pool is validated first, without holding the pool lock, so that the other clients of
+	 * the pool do not wait for the database round trip.  A connection found invalid or broken is closed, and replaced if the
+	 * pool needs it, in the background, so the release does not wait for a connect.  Until it is closed, it still counts
+	 * against the pool maximum connections.
 	 * 
 	 * @param connection the pooled connection being returned to the pool, must have been previously obtained via
 	 *                   <code>getConnection</code>
 	 * @throws ConnectionPoolReleaseConnectionException when a database access error occurs while the connection is being
-     *         validated or a new connection being created to replace a closed connection; also if a connection previously
-     *         released is attempted to be released again
+     *         validated; also if a connection previously released is attempted to be released again
 	 * @see #getConnection()
 	 * @see ConnectionPoolAlreadyReleased
 	 */
 	@Override
-	public synchronized void releaseConnection(Connection connection) throws ConnectionPoolReleaseConnectionException {
+	public void releaseConnection(Connection connection) throws ConnectionPoolReleaseConnectionException {
 		// fail-fast check, no need to process further if null was passed in
 		if (connection == null)
 			throw new IllegalArgumentException("connection cannot be null");
@@ -201,55 +580,976 @@ public class ExpandingSizeConnectionPool extends AbstractConnectionPool {
 		
 		// cast the passed in connection to its real type
 		PooledConnection pooledConnection = (PooledConnection) connection;
-
+		PooledConnectionProxy handler = getHandler(pooledConnection);
+		
+		// closing the statements left open takes round trips to the database, so it is done before taking the pool lock
+		if (!handler.isReleasedBackToPool())
+			handler.closeOpenStatements();
+		Connection toValidate = returnConnection(pooledConnection, handler);
+		if (toValidate != null)
+			validateReleased(toValidate);
+	}
+	
+	/*
+	 * Take a connection back from its client, and have it closed or leave it to be validated on its way back to the pool.
+	 * 
+	 * @return the raw connection to validate before it goes back into the pool, null if it does not go back
+	 */
+	private synchronized Connection returnConnection(PooledConnection pooledConnection, PooledConnectionProxy handler) 
+	throws ConnectionPoolReleaseConnectionException {
 		// check if the connection has already been released previously
-		if (pooledConnection.isReleasedBackToPool())
+		if (handler.isAbortedForHoldTime()) {
+			logger.warn("connection released after it was taken back for being held longer than " + maxConnectionHoldMillis +
+					"ms, nothing left to release");
+			return null;
+		}
+		if (handler.isReleasedBackToPool())
 			throw new ConnectionPoolReleaseConnectionException("connection already released back to pool");
 		
+		// from here on the pool only deals with the raw connection, the client's pooled connection is about to be retired
+		borrowedConnections.remove(pooledConnection);
+		getDemandStatistics().demandChanged(borrowedConnections.size() + waitingConnections);
+		Connection rawConnection = handler.getWrappedConnection();
+		long holdNanos = System.nanoTime() - handler.getBorrowedAtNanos();
+		meanHoldNanos = meanHoldNanos == 0 ? holdNanos : meanHoldNanos + (holdNanos - meanHoldNanos) / 8;
+		fireConnectionReturned(rawConnection, holdNanos);
+		
+		Connection toValidate = null;
+		int slot = connectionTable.slotOf(rawConnection);
+		if (slot >= 0 && connectionTable.getBrokenReason(slot) != null) {
+			// the connection was reported broken while it was borrowed, no need to validate it
+			logger.warn("connection was found broken while borrowed, it is being replaced");
+			fireConnectionEvicted(rawConnection, connectionTable.getBrokenReason(slot));
+			discardInBackground(rawConnection);
+		} else if (closed || pool.size() >= poolMinConnections) {
+			// we currently have enough available connections in the pool, or the pool is closed, so we simply close
+			// the connection being returned instead of putting it back in the pool
+			logger.debug("releaseConnection: pool has enough connections, so the returned connection will simply be closed");
+			closeRawConnection(rawConnection);
+			totalConnections--;
+		} else { // the pool is low on connections, so let's add this connection back in once it is found still valid
+			incomingConnections++;
+			toValidate = rawConnection;
+		}
+		
+		// mark the connection as released
+		handler.setReleasedBackToPool();
+		
+		// wake up the clients waiting for connections to become available
+		notifyAll();
+
+		logDebugPoolStatusMessage();
+		return toValidate;
+	}
+	
+	/*
+	 * Check that a connection released by its client is still valid, without holding the pool lock, and put it back in the
+	 * pool if so.  It's possible the client may have closed it before sending it back to the pool.  The clients that find
+	 * the pool empty meanwhile wait for it, as it is counted as incoming.
+	 */
+	private void validateReleased(Connection rawConnection) throws ConnectionPoolReleaseConnectionException {
+		logger.debug("checking the connection being released is still valid...");
+		long start = System.nanoTime();
+		boolean valid;
+		try {
+			valid = rawConnection.isValid(0);
+		} catch (SQLException e) {
+			// something bad happened while trying to determine if the connection was valid, the connection is lost
+			fireConnectionEvicted(rawConnection, "connection validation failed on release: " + e.getMessage());
+			logger.error("a database error occurred during a connection release", e);
+			closeRawConnection(rawConnection);
+			synchronized (this) {
+				incomingConnections--;
+				totalConnections--;
+				notifyAll();
+			}
+			throw new ConnectionPoolReleaseConnectionException(e);
+		}
+		long validationNanos = System.nanoTime() - start;
+		fireConnectionValidated(rawConnection, valid, validationNanos);
+		
+		boolean closedMeanwhile = false;
+		synchronized (this) {
+			incomingConnections--;
+			int slot = connectionTable.slotOf(rawConnection);
+			if (slot >= 0) {
+				// the connection may have been reported broken while it was being validated
+				valid = valid && connectionTable.getBrokenReason(slot) == null;
+				connectionTable.validated(slot, valid, validationNanos);
+				if (valid)
+					connectionTable.returned(slot);
+			}
+			if (valid && !closed) {
+				// the connection is good, so let's add it back to the pool and make it available again
+				logger.debug("connection is good, so it is being placed back in the pool");
+				pool.add(rawConnection);
+			} else {
+				if (!valid) {
+					// the connection being returned is no longer valid, so let's have a new one opened for the pool
+					logger.warn("connection is no longer valid, a new connection is being opened for the pool");
+					fireConnectionEvicted(rawConnection, "connection no longer valid on release");
+				}
+				closedMeanwhile = closed;
+				if (!closed)
+					discardInBackground(rawConnection);
+			}
+			notifyAll();
+		}
+		if (closedMeanwhile)
+			discard(rawConnection);
+	}
+	
+	/*
+	 * Close a connection found invalid or broken on the connection creation threads, so that the caller does not wait for it.
+	 */
+	@GuardedBy("this")
+	private void discardInBackground(final Connection rawConnection) {
+		getConnectionCreator().execute(new Runnable() {
+			public void run() {
+				discard(rawConnection);
+			}
+		});
+	}
+	
+	/*
+	 * Close a connection that is no longer wanted, and open a replacement if the pool needs one.  The connection counts
+	 * against the pool maximum until it is closed, so the pool never has more physical connections open than its maximum.
+	 */
+	private void discard(Connection rawConnection) {
+		closeRawConnection(rawConnection);
+		int reserved;
+		synchronized (this) {
+			totalConnections--;
+			reserved = reserveRefill();
+			notifyAll();
+		}
+		refillReserved(reserved);
+	}
+	
+	/**
+	 * Obtains several connections from the pool at once, waiting for them to become available if necessary.  The connections
+	 * are reserved in a single operation: either all of them are handed out, or none are.  This way clients that need several
+	 * connections at the same time cannot deadlock each other by each holding on to part of what they need.
+	 * 
+	 * @param count the number of connections needed, at most the pool maximum connections
+	 * @param timeoutMillis maximum time to wait for the connections, 0 to fail right away if they are not available
+	 * @return the pooled connections
+	 * @throws ConnectionPoolOutOfConnectionsException if the connections did not become available within the timeout
+	 * @throws ConnectionPoolNewConnectionException if a database error occurs creating new connections, in which case no
+	 *         connections are handed out
+	 * @see #releaseConnections(Collection)
+	 */
+	@Override
+	public List<Connection> getConnections(int count, long timeoutMillis) throws ConnectionPoolException {
+		if (count < 1 || count > poolMaxConnections)
+			throw new IllegalArgumentException("connection count must be between 1 and the pool maximum connections");
+		if (timeoutMillis < 0)
+			throw new IllegalArgumentException("timeout must be >= 0");
+		
+		long start = System.nanoTime();
+		List<Connection> connections;
+		try {
+			connections = borrowConnections(count, start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis), false);
+		} catch (ConnectionPoolOutOfConnectionsException e) {
+			fireWaitTimedOut(System.nanoTime() - start);
+			throw e;
+		}
+		long waitNanos = System.nanoTime() - start;
+		for (Connection conn : connections)
+			fireConnectionBorrowed(getHandler(conn).getWrappedConnection(), waitNanos);
+		return connections;
+	}
+	
+	/**
+	 * Obtains a connection from the pool on behalf of a client that has a deadline to meet, e.g. a request that times out
+	 * upstream.  If no connection is available the client waits for one, up to its remaining budget.  Under overload the
+	 * borrow is turned down right away instead, when the connections are being released at a rate too low to serve the
+	 * client before its deadline.  The release rate is worked out from how long the borrowers have been holding on to their
+	 * connections.  The clients already waiting are served first, in the order they arrived in, except for the ones that are
+	 * expected to give up before their turn comes.
+	 * <p>
+	 * A waiting client whose deadline passes is dropped even if a connection became available in the meantime, so that no
+	 * connection goes to work nobody is waiting on any more.
+	 * 
+	 * @param remainingBudgetMillis how long the client can still wait for a connection, 0 to fail right away if none is
+	 *                              available
+	 * @return a pooled connection
+	 * @throws ConnectionPoolLoadShedException if no connection is expected to become available before the deadline
+	 * @throws ConnectionPoolOutOfConnectionsException if no connection became available before the deadline
+	 * @see #getMeanHoldNanos()
+	 */
+	public Connection getConnection(long remainingBudgetMillis) throws ConnectionPoolException {
+		if (remainingBudgetMillis < 0)
+			throw new IllegalArgumentException("remaining budget must be >= 0");
+		
+		long start = System.nanoTime();
+		List<Connection> connections;
+		try {
+			connections = borrowConnections(1, start + TimeUnit.MILLISECONDS.toNanos(remainingBudgetMillis), true);
+		} catch (ConnectionPoolOutOfConnectionsException e) {
+			fireWaitTimedOut(System.nanoTime() - start);
+			throw e;
+		}
+		Connection conn = connections.get(0);
+		fireConnectionBorrowed(getHandler(conn).getWrappedConnection(), System.nanoTime() - start);
+		return conn;
+	}
+	
+	/*
+	 * Wait until enough connections are cached or can be created, then take all of them at once.  The connections missing
+	 * from the cache are opened outside of the pool lock, in slots reserved while holding it.
+	 */
+	private List<Connection> borrowConnections(int count, long deadlineNanos, boolean shedLoad)
+	throws ConnectionPoolException {
+		long start = System.nanoTime();
+		List<Connection> rawConnections = new ArrayList<Connection>(count);
+		int missing = reserveConnections(count, deadlineNanos, shedLoad, rawConnections);
+		
+		List<Connection> newConnections = new ArrayList<Connection>(missing);
+		SQLException connectError = null;
+		for (int i=0; i < missing && connectError == null; i++) {
+			try {
+				newConnections.add(getNewRawDbConnection());
+			} catch (SQLException e) {
+				connectError = e;
+			}
+		}
+		
+		List<Connection> connections = new ArrayList<Connection>(count);
+		boolean closedMeanwhile;
+		int reserved = 0;
+		synchronized (this) {
+			totalConnections -= missing - newConnections.size();
+			for (Connection newConnection : newConnections)
+				connectionTable.add(newConnection, ++lastConnectionId);
+			rawConnections.addAll(newConnections);
+			closedMeanwhile = closed;
+			if (!closed && connectError != null) {
+				// a database error leaves the client empty-handed, the connections are still good for the next clients
+				for (Connection rawConnection : rawConnections)
+					pool.add(rawConnection);
+				notifyAll();
+			} else if (!closed) {
+				for (Connection rawConnection : rawConnections)
+					connections.add(handOut(rawConnection));
+				recordBorrow(count, System.nanoTime() - start);
+				reserved = reserveRefill();
+			}
+		}
+		if (closedMeanwhile) {
+			for (Connection rawConnection : rawConnections)
+				closeRawConnection(rawConnection);
+			synchronized (this) {
+				totalConnections -= rawConnections.size();
+			}
+			throw new ConnectionPoolClosedException("pool is closed");
+		}
+		if (connectError != null)
+			throw new ConnectionPoolNewConnectionException("a database error occurred trying to get new connections",
+					connectError);
+		
+		// refill the pool to the minimum size if necessary, the client already has its connections
+		refillReserved(reserved);
+		
+		logger.info("obtained " + count + " connections from pool");
+		synchronized (this) {
+			logDebugPoolStatusMessage();
+		}
+		return connections;
+	}
+	
+	/*
+	 * Wait for the turn of the client and until enough connections are cached or can be created, then take the cached ones
+	 * and reserve the slots of the ones to create.  When shedding load, a borrow that could not be served before its
+	 * deadline at the current release rate is turned down without waiting.
+	 * 
+	 * @param taken receives the connections taken from the cache
+	 * @return the number of connections to create
+	 */
+	private synchronized int reserveConnections(int count, long deadlineNanos, boolean shedLoad, List<Connection> taken)
+	throws ConnectionPoolException {
+		// the connections we can hand out: the cached ones plus the ones we are still allowed to create
+		int available = pool.size() + poolMaxConnections - totalConnections;
+		if ((available < count || !waiters.isEmpty()) && shedLoad && meanHoldNanos > 0) {
+			// at the current release rate, the time it takes for our connections and those of the clients ahead of us to
+			// come back
+			long expectedWaitNanos = expectedWaitNanos(available, count);
+			if (expectedWaitNanos > deadlineNanos - System.nanoTime()) {
+				shedBorrows++;
+				logger.warn("get " + count + " connections from pool was turned down: expected to wait " +
+						TimeUnit.NANOSECONDS.toMillis(expectedWaitNanos) + "ms, past the deadline");
+				throw new ConnectionPoolLoadShedException("could not obtain " + count + " connections before the deadline");
+			}
+		}
+		
+		boolean waited = false;
+		Waiter waiter = new Waiter(count, deadlineNanos);
+		waiters.add(waiter);
+		waitingConnections += count;
+		getDemandStatistics().demandChanged(borrowedConnections.size() + waitingConnections);
 		try {
-			// check if we currently have enough available connections in the pool
-			// if we do, then we simply close the connection being returned instead of putting it back in the pool
-			if (pool.size() >= poolMinConnections) {
-				logger.debug("releaseConnection: pool has enough connections, so the returned connection will simply be closed");
+			while (waiters.peek() != waiter || pool.size() + poolMaxConnections - totalConnections < count) {
+				if (closed)
+					throw new ConnectionPoolClosedException("pool is closed");
+				long remaining = deadlineNanos - System.nanoTime();
+				if (remaining <= 0) {
+					logger.warn("get " + count + " connections from pool was unsuccessful: pool is out of connections");
+					throw new ConnectionPoolOutOfConnectionsException("could not obtain " + count + " connections in time");
+				}
 				try {
-					pooledConnection.close();
-				} catch (SQLException e) {
-					// We will ignore any database errors for closing the connection, hopefully this was just a temporary
-					// fluke.  Otherwise we are sure to get additional errors on other operations on the connection.
-					; // do nothing
-					logger.warn("there was an error closing the connection: " + e);
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+					waited = true;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new ConnectionPoolOutOfConnectionsException("interrupted while waiting for connections", e);
 				}
-			} else { // the pool is low on connections, so let's add this connection back in
-				// Check if the connection passed is still valid.  It's possible the client may have closed it before sending
-				// it back to the pool.
-				logger.info("checking the connection being released is still valid...");
-				if (pooledConnection.isValid(0)) {
-					// the connection is good, so let's add it back to the pool and make it available again
-					logger.info("connection is good, so it is being placed back in the pool");
-					pool.add(pooledConnection);
-					totalConnections++;
-				} else { 
-					// the connection being returned is no longer valid, so let's create a new one for the pool
-					logger.warn("connection is no longer valid, a new connection is being placed in the pool");
-					pool.add(getNewPooledConnection());
-					totalConnections++;
+			}
+		} finally {
+			waiters.remove(waiter);
+			waitingConnections -= count;
+			getDemandStatistics().demandChanged(borrowedConnections.size() + waitingConnections);
+			
+			// whether served or not, the client is out of the line, so the next one may be able to go now
+			notifyAll();
+		}
+		
+		if (closed)
+			throw new ConnectionPoolClosedException("pool is closed");
+		
+		// a client whose deadline passed while it was waiting has given up on the connections, leave them to the others
+		if (waited && deadlineNanos - System.nanoTime() <= 0) {
+			logger.warn("get " + count + " connections from pool was unsuccessful: deadline passed while waiting");
+			throw new ConnectionPoolOutOfConnectionsException("could not obtain " + count + " connections in time");
+		}
+		
+		while (taken.size() < count && pool.size() > 0)
+			taken.add(pool.take());
+		int missing = count - taken.size();
+		totalConnections += missing;
+		return missing;
+	}
+	
+	/*
+	 * Works out how long a client arriving now would wait for its connections at the current release rate, counting the
+	 * connections of the clients ahead of it in the line.  A client ahead that is expected to reach its deadline before its
+	 * turn comes gives up, so its connections are not counted.
+	 */
+	@GuardedBy("this")
+	private long expectedWaitNanos(int available, int count) {
+		long now = System.nanoTime();
+		int ahead = 0;
+		for (Waiter waiter : waiters) {
+			long waiterWaitNanos = Math.max(0, ahead + waiter.count - available) * meanHoldNanos / poolMaxConnections;
+			if (waiterWaitNanos <= waiter.deadlineNanos - now)
+				ahead += waiter.count;
+		}
+		return Math.max(0, ahead + count - available) * meanHoldNanos / poolMaxConnections;
+	}
+	
+	/**
+	 * Return several connections to the pool at once.  Every connection is released even if releasing some of them fails.
+	 * 
+	 * @param connections the pooled connections being returned, as obtained from the pool
+	 * @throws ConnectionPoolReleaseConnectionException the first error that occurred releasing the connections
+	 * @see #getConnections(int, long)
+	 * @see #releaseConnection(Connection)
+	 */
+	@Override
+	public void releaseConnections(Collection<? extends Connection> connections) 
+	throws ConnectionPoolReleaseConnectionException {
+		if (connections == null)
+			throw new IllegalArgumentException("connections cannot be null");
+		
+		ConnectionPoolReleaseConnectionException firstError = null;
+		for (Connection connection : connections) {
+			try {
+				releaseConnection(connection);
+			} catch (ConnectionPoolReleaseConnectionException e) {
+				if (firstError == null)
+					firstError = e;
+			}
+		}
+		if (firstError != null)
+			throw firstError;
+	}
+	
+	/**
+	 * Limit how long a client may hold on to a borrowed connection.  A connection held longer than that, e.g. by a client
+	 * stuck on a hung query, is taken back by the pool: the client's connection is marked as released, the underlying
+	 * database connection is aborted, and its slot is freed so that a new connection can be handed out.  When the client
+	 * gets around to releasing the connection, e.g. in a <code>finally</code> block, the release does nothing but log a
+	 * warning, so that it does not hide whatever the client was handling.
+	 * 
+	 * @param maxConnectionHoldMillis the maximum hold time, 0 to let clients hold connections indefinitely
+	 */
+	public synchronized void setMaxConnectionHoldMillis(long maxConnectionHoldMillis) {
+		if (maxConnectionHoldMillis < 0)
+			throw new IllegalArgumentException("maximum connection hold time must be >= 0");
+		
+		this.maxConnectionHoldMillis = maxConnectionHoldMillis;
+		if (holdTimeChecker != null) {
+			holdTimeChecker.cancel(false);
+			holdTimeChecker = null;
+		}
+		if (maxConnectionHoldMillis > 0) {
+			// check often enough that a connection is never held much longer than allowed
+			long checkPeriodMillis = Math.max(10, Math.min(1000, maxConnectionHoldMillis / 4));
+			holdTimeChecker = getHousekeeper().scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					abortExpiredConnections();
 				}
+			}, checkPeriodMillis, checkPeriodMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/*
+	 * Take back the connections that have been held longer than the maximum hold time.  Runs on the housekeeping thread.
+	 */
+	private void abortExpiredConnections() {
+		List<Connection> expired = new ArrayList<Connection>();
+		synchronized (this) {
+			if (maxConnectionHoldMillis == 0)
+				return;
+			long now = System.nanoTime();
+			long maxHoldNanos = TimeUnit.MILLISECONDS.toNanos(maxConnectionHoldMillis);
+			for (Iterator<Map.Entry<PooledConnection, Thread>> it = borrowedConnections.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<PooledConnection, Thread> borrowed = it.next();
+				PooledConnectionProxy handler = getHandler(borrowed.getKey());
+				if (now - handler.getBorrowedAtNanos() < maxHoldNanos)
+					continue;
+				
+				logger.warn("connection held by thread " + borrowed.getValue().getName() + " for more than " + 
+						maxConnectionHoldMillis + "ms, aborting it");
+				it.remove();
+				expired.add(handler.getWrappedConnection());
+				
+				// the client can no longer use the connection, and its own release later on is nothing to complain about
+				handler.setAbortedForHoldTime();
 			}
+		}
+		if (expired.isEmpty())
+			return;
+		
+		// abort the database connections outside of the pool lock, as it may take a while
+		for (Connection rawConnection : expired) {
+			fireConnectionEvicted(rawConnection, "connection held longer than " + maxConnectionHoldMillis + "ms");
+			abortRawConnection(rawConnection);
+		}
+		
+		int reserved;
+		synchronized (this) {
+			// only now that the database connections are gone are their slots open for new ones, so that the pool never
+			// has more than its maximum number of physical connections
+			totalConnections -= expired.size();
+			reserved = reserveRefill();
+			logDebugPoolStatusMessage();
+			notifyAll();
+		}
+		refillReserved(reserved);
+	}
+	
+	/**
+	 * Close the pool.  Its idle connections are closed right away and its borrowed connections as they are released, it no
+	 * longer hands out connections and its background maintenance tasks are stopped.  Closing a closed pool does nothing.
+	 */
+	public void close() {
+		List<Connection> idleConnections = new ArrayList<Connection>();
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			Connection conn;
+			while ((conn = pool.take()) != null)
+				idleConnections.add(conn);
+			
+			// the clients waiting for connections get to know that none will come
+			notifyAll();
+		}
+		shutdown();
+		
+		for (Connection idleConnection : idleConnections)
+			closeRawConnection(idleConnection);
+		synchronized (this) {
+			totalConnections -= idleConnections.size();
+		}
+		logger.info("closed pool, " + idleConnections.size() + " idle connections closed");
+		
+		File reportFile;
+		synchronized (this) {
+			reportFile = demandReportFile;
+		}
+		if (reportFile != null) {
+			try {
+				getDemandReport().writeTo(reportFile);
+				logger.info("wrote the demand report to " + reportFile);
+			} catch (IOException e) {
+				logger.warn("could not write the demand report to " + reportFile + ": " + e);
+			}
+		}
+	}
+	
+	/**
+	 * Sum up the demand for the connections of the pool since it was created: the peak and mean number of connections
+	 * needed at once, how long the clients waited for them and how long new connections took to open.
+	 * 
+	 * @return the demand report
+	 * @see ConnectionPoolDemandStatistics.Report#writeTo(File)
+	 */
+	public ConnectionPoolDemandStatistics.Report getDemandReport() {
+		return getDemandStatistics().getReport(poolMinConnections, poolMaxConnections);
+	}
+	
+	/**
+	 * Write the report of the demand for connections to a file when the pool is closed, e.g. to size the pool from it when
+	 * the application starts again.
+	 * 
+	 * @param demandReportFile the report file, or <code>null</code> to not write the report
+	 * @see #getDemandReport()
+	 * @see com.danrama.simpledbconnectionpool.ConnectionPoolFactory#setDemandReportDirectory(File)
+	 */
+	public synchronized void setDemandReportFile(File demandReportFile) {
+		this.demandReportFile = demandReportFile;
+	}
+	
+	/**
+	 * Evict a physical connection known to be broken, e.g. because its driver reported a fatal error on it.  An idle
+	 * connection is closed right away and replaced.  A borrowed connection stays with its client, but it is closed and
+	 * replaced when released instead of being validated.
+	 * 
+	 * @param rawConnection the physical connection, as obtained from the connection source
+	 * @param reason why the connection is evicted, reported to the listeners
+	 */
+	@Override
+	public void evictConnection(Connection rawConnection, String reason) {
+		synchronized (this) {
+			int slot = connectionTable.slotOf(rawConnection);
+			if (slot < 0)
+				return; // not one of ours, or already closed
+			if (!pool.remove(rawConnection)) {
+				connectionTable.setBrokenReason(slot, reason);
+				return;
+			}
+		}
+		
+		logger.warn("idle connection was found broken, replacing it");
+		fireConnectionEvicted(rawConnection, reason);
+		closeRawConnection(rawConnection);
+		
+		int reserved;
+		synchronized (this) {
+			// the slot only opens up once the connection is closed, so that the pool never exceeds its maximum
+			totalConnections--;
+			reserved = reserveRefill();
+			notifyAll();
+		}
+		refillReserved(reserved);
+	}
+	
+	/**
+	 * Check all of the idle connections, e.g. because an error said the database went away.  The idle connections are all
+	 * taken out of the pool at once on the housekeeping thread, so that none of them is handed out before being checked, and
+	 * are then checked side by side on the connection creation threads.  Each goes back as soon as it is found valid, and the
+	 * clients finding the pool empty meanwhile wait for it.  The broken ones are closed and replaced.  Requests made while a
+	 * check is waiting to start are folded into it.
+	 */
+	@Override
+	protected void revalidateIdleConnections() {
+		synchronized (this) {
+			if (revalidationPending)
+				return;
+			revalidationPending = true;
+		}
+		getHousekeeper().execute(new Runnable() {
+			public void run() {
+				revalidateIdleConnectionsNow();
+			}
+		});
+	}
+	
+	private void revalidateIdleConnectionsNow() {
+		List<Connection> idleConnections = new ArrayList<Connection>();
+		synchronized (this) {
+			revalidationPending = false;
+			Connection conn;
+			while ((conn = pool.take()) != null) {
+				idleConnections.add(conn);
+				int slot = connectionTable.slotOf(conn);
+				if (slot >= 0)
+					connectionTable.setState(slot, ConnectionPoolSnapshot.ConnectionState.VALIDATING);
+			}
+			incomingConnections += idleConnections.size();
+			
+			// a validation may take up to its timeout when the database is gone, so they are not made one after the other
+			for (final Connection idleConnection : idleConnections) {
+				getConnectionCreator().execute(new Runnable() {
+					public void run() {
+						revalidateIdleConnection(idleConnection);
+					}
+				});
+			}
+		}
+		logger.warn("the database may have gone away, checking the " + idleConnections.size() + " idle connections");
+	}
+	
+	/*
+	 * Check one of the idle connections taken out of the pool by revalidateIdleConnectionsNow(), and put it back in the pool
+	 * or have it replaced.
+	 */
+	private void revalidateIdleConnection(Connection idleConnection) {
+		long start = System.nanoTime();
+		boolean valid;
+		try {
+			valid = idleConnection.isValid(HEALTH_CHECK_VALIDATION_TIMEOUT_SECONDS);
 		} catch (SQLException e) {
-			// something bad happened while either trying to determine if the connection was valid or creating a new
-			// connection
-			logger.error("a database error occurred during a connection release", e);
-			throw new ConnectionPoolReleaseConnectionException(e);
-		} finally {
-			// Regardless of what happens here we reduce the total connections we are tracking for the pool.  If there was a
-			// problem closing or validating the incoming connection we want to open up a slot for a new connection to take
-			// place.
+			valid = false;
+		}
+		long validationNanos = System.nanoTime() - start;
+		boolean putBack;
+		synchronized (this) {
+			incomingConnections--;
+			int slot = connectionTable.slotOf(idleConnection);
+			if (slot >= 0) {
+				valid = valid && connectionTable.getBrokenReason(slot) == null;
+				connectionTable.validated(slot, valid, validationNanos);
+				connectionTable.returned(slot);
+			}
+			putBack = valid && !closed;
+			if (putBack) {
+				pool.add(idleConnection);
+				if (healthCheckIntervalMillis > 0)
+					health = assessHealth();
+			}
+			notifyAll();
+		}
+		fireConnectionValidated(idleConnection, valid, validationNanos);
+		if (putBack)
+			return;
+		if (!valid)
+			fireConnectionEvicted(idleConnection, "connection no longer valid after the database went away");
+		
+		// the slot only opens up once the connection is closed, so that the pool never exceeds its maximum
+		closeRawConnection(idleConnection);
+		int reserved;
+		synchronized (this) {
 			totalConnections--;
+			reserved = reserveRefill();
+			if (healthCheckIntervalMillis > 0)
+				health = assessHealth();
+			notifyAll();
+		}
+		refillReserved(reserved);
+	}
+	
+	/**
+	 * Choose which idle connection is handed out next, e.g. <code>LifoIdleConnectionStrategy</code> to reuse a hot set of
+	 * connections and let the others go idle.  The idle connections already in the pool are moved over to the new strategy.
+	 * Pools start out with a <code>FifoIdleConnectionStrategy</code>.
+	 * 
+	 * @param idleConnectionStrategy the strategy, which must not be shared with another pool
+	 */
+	public synchronized void setIdleConnectionStrategy(IdleConnectionStrategy idleConnectionStrategy) {
+		if (idleConnectionStrategy == null)
+			throw new IllegalArgumentException("idle connection strategy must be supplied");
+		
+		Connection conn;
+		while ((conn = pool.take()) != null)
+			idleConnectionStrategy.add(conn);
+		pool = idleConnectionStrategy;
+	}
+	
+	/**
+	 * Gets the health of the pool, e.g. to answer the liveness and readiness probes of an orchestrator.  While health checks
+	 * are scheduled this is the latest assessment made by the housekeeping thread, and costs nothing.  Otherwise it is worked
+	 * out from the current pool state, which only takes the pool lock briefly.  Neither way touches the database.
+	 * 
+	 * @return the health of the pool
+	 * @see #setHealthCheckIntervalMillis(long)
+	 */
+	public ConnectionPoolHealth getHealth() {
+		ConnectionPoolHealth cached = health;
+		return cached != null ? cached : assessHealth();
+	}
+	
+	/**
+	 * Periodically assess the health of the pool on the housekeeping thread.  Whenever no connection has been validated in
+	 * the last interval, e.g. because the pool is idle, an idle connection is validated so that the assessment still reflects
+	 * the state of the database.
+	 * 
+	 * @param healthCheckIntervalMillis the interval between health checks, 0 to stop them
+	 * @see #getHealth()
+	 */
+	public synchronized void setHealthCheckIntervalMillis(long healthCheckIntervalMillis) {
+		if (healthCheckIntervalMillis < 0)
+			throw new IllegalArgumentException("health check interval must be >= 0");
+		
+		this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+		if (healthChecker != null) {
+			healthChecker.cancel(false);
+			healthChecker = null;
+		}
+		if (healthCheckIntervalMillis > 0) {
+			health = assessHealth();
+			healthChecker = getHousekeeper().scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					checkHealth();
+				}
+			}, healthCheckIntervalMillis, healthCheckIntervalMillis, TimeUnit.MILLISECONDS);
+		} else {
+			health = null;
+		}
+	}
+	
+	/**
+	 * Keep the idle connections alive by pinging them on the housekeeping thread, e.g. so that a load balancer or firewall
+	 * in front of the database does not drop them for being idle.  Each idle connection is pinged once it has not been used
+	 * for the interval and its turn comes, so the connections in use are left alone.  The connections take turns over the
+	 * interval, so that the pings of connections that were used at the same time, e.g. opened together, are spread out
+	 * rather than sent all at once; a connection may therefore stay idle for up to twice the interval before it is pinged.
+	 * A connection being pinged is taken out of the pool until the ping is done, and a connection that fails its ping is
+	 * replaced in the background.
+	 * 
+	 * @param keepaliveIntervalMillis how long a connection can stay idle before it is pinged, 0 to stop the pings; should be
+	 *                                below half of the idle cutoff being worked around
+	 * @see #setKeepaliveQuery(String)
+	 */
+	public synchronized void setKeepaliveIntervalMillis(long keepaliveIntervalMillis) {
+		if (keepaliveIntervalMillis < 0)
+			throw new IllegalArgumentException("keepalive interval must be >= 0");
+		
+		this.keepaliveIntervalMillis = keepaliveIntervalMillis;
+		if (keepaliveSender != null) {
+			keepaliveSender.cancel(false);
+			keepaliveSender = null;
+		}
+		if (keepaliveIntervalMillis > 0) {
+			keepalivesSentAtMillis = System.currentTimeMillis();
+			long stepMillis = Math.max(1, keepaliveIntervalMillis / KEEPALIVE_STEPS);
+			keepaliveSender = getHousekeeper().scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					sendKeepalives();
+				}
+			}, stepMillis, stepMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Ping the idle connections with a query, e.g. <code>SELECT 1</code>, rather than by validating them with
+	 * <code>Connection.isValid()</code>, for drivers whose validation does not reach the database.
+	 * 
+	 * @param keepaliveQuery the query, or <code>null</code> to validate the connections
+	 * @see #setKeepaliveIntervalMillis(long)
+	 */
+	public synchronized void setKeepaliveQuery(String keepaliveQuery) {
+		this.keepaliveQuery = keepaliveQuery;
+	}
+	
+	/*
+	 * Ping the idle connections that have been idle for the keepalive interval.  Runs on the housekeeping thread.
+	 */
+	private void sendKeepalives() {
+		List<Connection> due;
+		String query;
+		synchronized (this) {
+			if (keepaliveIntervalMillis == 0 || closed)
+				return;
+			query = keepaliveQuery;
+			long now = System.currentTimeMillis();
+			due = connectionTable.idleConnectionsInactiveFor(keepalivesSentAtMillis, now, keepaliveIntervalMillis,
+					KEEPALIVE_STEPS);
+			keepalivesSentAtMillis = now;
+			// take them out of the pool so that none is handed out while being pinged, the clients finding the pool empty
+			// meanwhile wait for them
+			for (Iterator<Connection> it = due.iterator(); it.hasNext(); ) {
+				Connection conn = it.next();
+				if (pool.remove(conn))
+					connectionTable.setState(connectionTable.slotOf(conn), ConnectionPoolSnapshot.ConnectionState.VALIDATING);
+				else
+					it.remove();
+			}
+			incomingConnections += due.size();
+		}
+		
+		for (Connection idleConnection : due) {
+			long start = System.nanoTime();
+			boolean valid = ping(idleConnection, query);
+			long validationNanos = System.nanoTime() - start;
+			synchronized (this) {
+				int slot = connectionTable.slotOf(idleConnection);
+				if (slot >= 0) {
+					// the connection may have been reported broken while it was being pinged
+					valid = valid && connectionTable.getBrokenReason(slot) == null;
+					connectionTable.validated(slot, valid, validationNanos);
+					connectionTable.returned(slot);
+				}
+			}
+			fireConnectionValidated(idleConnection, valid, validationNanos);
+			if (!valid) {
+				logger.warn("idle connection failed its keepalive ping, replacing it");
+				fireConnectionEvicted(idleConnection, "connection failed its keepalive ping");
+			}
 			
-			// mark the connection as released
-			pooledConnection.setReleasedBackToPool();
+			boolean closedMeanwhile;
+			synchronized (this) {
+				incomingConnections--;
+				closedMeanwhile = closed;
+				if (valid && !closed)
+					pool.add(idleConnection);
+				else if (!closed)
+					discardInBackground(idleConnection);
+				notifyAll();
+			}
+			if (closedMeanwhile)
+				discard(idleConnection); // the pool was closed in the meantime
 		}
-
-		logDebugPoolStatusMessage();
+	}
+	
+	private static boolean ping(Connection connection, String query) {
+		try {
+			if (query == null)
+				return connection.isValid(HEALTH_CHECK_VALIDATION_TIMEOUT_SECONDS);
+			Statement statement = connection.createStatement();
+			try {
+				statement.setQueryTimeout(HEALTH_CHECK_VALIDATION_TIMEOUT_SECONDS);
+				statement.execute(query);
+			} finally {
+				statement.close();
+			}
+			return true;
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+	
+	private synchronized ConnectionPoolHealth assessHealth() {
+		return assessHealth(totalConnections, pool.size(), borrowedConnections.size(), poolMaxConnections);
+	}
+	
+	/*
+	 * Validate an idle connection if none was validated lately, and refresh the cached health.  Runs on the housekeeping
+	 * thread.
+	 */
+	private void checkHealth() {
+		// take the connection out of the pool while validating it, so that the pool is not locked in the meantime
+		Connection idleConnection = null;
+		synchronized (this) {
+			if (healthCheckIntervalMillis == 0)
+				return;
+			if (System.currentTimeMillis() - getLastSuccessfulValidationAtMillis() >= healthCheckIntervalMillis && 
+					pool.size() > 0)
+				idleConnection = pool.take();
+			int slot = connectionTable.slotOf(idleConnection);
+			if (slot >= 0)
+				connectionTable.setState(slot, ConnectionPoolSnapshot.ConnectionState.VALIDATING);
+		}
+		
+		if (idleConnection != null) {
+			long start = System.nanoTime();
+			boolean valid;
+			try {
+				valid = idleConnection.isValid(HEALTH_CHECK_VALIDATION_TIMEOUT_SECONDS);
+			} catch (SQLException e) {
+				valid = false;
+			}
+			long validationNanos = System.nanoTime() - start;
+			synchronized (this) {
+				int slot = connectionTable.slotOf(idleConnection);
+				if (slot >= 0) {
+					// the connection may have been reported broken while it was being validated
+					valid = valid && connectionTable.getBrokenReason(slot) == null;
+					connectionTable.validated(slot, valid, validationNanos);
+					connectionTable.returned(slot);
+				}
+			}
+			fireConnectionValidated(idleConnection, valid, validationNanos);
+			if (!valid) {
+				logger.warn("idle connection failed its health check, replacing it");
+				fireConnectionEvicted(idleConnection, "connection no longer valid on health check");
+				closeRawConnection(idleConnection);
+			}
+			
+			int reserved = 0;
+			synchronized (this) {
+				if (valid && !closed) {
+					pool.add(idleConnection);
+				} else if (valid) {
+					closeRawConnection(idleConnection);
+					totalConnections--;
+				} else {
+					totalConnections--;
+					reserved = reserveRefill();
+				}
+				notifyAll();
+			}
+			refillReserved(reserved);
+		}
+		
+		synchronized (this) {
+			if (healthCheckIntervalMillis > 0)
+				health = assessHealth();
+		}
+	}
+	
+	/**
+	 * Take a consistent copy of the state of the pool and of each of its physical connections: whether it is idle or
+	 * borrowed, when it was created and last borrowed, how many times it was borrowed, which thread holds it, and its latest
+	 * validations.  The pool lock is only held while copying a few fields per connection.
+	 * 
+	 * @return the snapshot
+	 */
+	public ConnectionPoolSnapshot getSnapshot() {
+		List<ConnectionPoolSnapshot.PhysicalConnection> connections;
+		int total, idle, borrowed;
+		synchronized (this) {
+			connections = connectionTable.snapshot();
+			total = totalConnections;
+			idle = pool.size();
+			borrowed = borrowedConnections.size();
+		}
+		Collections.sort(connections, new Comparator<ConnectionPoolSnapshot.PhysicalConnection>() {
+			public int compare(ConnectionPoolSnapshot.PhysicalConnection c1, ConnectionPoolSnapshot.PhysicalConnection c2) {
+				return c1.getId() < c2.getId() ? -1 : (c1.getId() == c2.getId() ? 0 : 1);
+			}
+		});
+		return new ConnectionPoolSnapshot(total, idle, borrowed, poolMaxConnections, connections);
+	}
+	
+	/*
+	 * Abort a raw connection, even if it is busy.  Drivers that do not support aborting connections get closed instead.
+	 */
+	private void abortRawConnection(Connection rawConnection) {
+		synchronized (this) {
+			connectionTable.remove(rawConnection);
+			pool.discarded(rawConnection);
+		}
+		try {
+			rawConnection.abort(getHousekeeper());
+			fireConnectionDestroyed(rawConnection);
+			return;
+		} catch (AbstractMethodError e) {
+			; // a pre-JDBC 4.1 driver, fall back to closing the connection
+		} catch (SQLFeatureNotSupportedException e) {
+			; // fall back to closing the connection
+		} catch (SQLException e) {
+			logger.warn("there was an error aborting the connection: " + e);
+		}
+		closeRawConnection(rawConnection);
+	}
+	
+	/*
+	 * Close a raw connection the pool no longer needs.
+	 */
+	private void closeRawConnection(Connection rawConnection) {
+		synchronized (this) {
+			connectionTable.remove(rawConnection);
+			pool.discarded(rawConnection);
+		}
+		try {
+			rawConnection.close();
+		} catch (SQLException e) {
+			// We will ignore any database errors for closing the connection, hopefully this was just a temporary
+			// fluke.  Otherwise we are sure to get additional errors on other operations on the connection.
+			logger.warn("there was an error closing the connection: " + e);
+		}
+		fireConnectionDestroyed(rawConnection);
 	}
 }
@@ -0,0 +1,107 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Works out from the errors raised by a pooled connection or its statements whether the connection is still usable.  The
+ * classification goes by the standard SQL states first:
+ * <ul>
+ * <li>class <code>08</code> (connection exception) other than <code>08003</code>, and the server shutdown states
+ * <code>57P01</code>, <code>57P02</code>, <code>57P03</code> and <code>01002</code>: the database went away, so every
+ * connection of the pool is suspect</li>
+ * <li><code>08003</code> (the connection does not exist, e.g. it was closed), <code>JZ0C0</code> and <code>JZ0C1</code>:
+ * this connection is broken</li>
+ * </ul>
+ * then by the JDBC 4 exception types, and finally by the vendor error codes registered for the driver in use, e.g. Oracle's
+ * 28 (session killed) or 17002 (I/O error).  The next exceptions and the causes of an error are classified too, and the
+ * most severe classification wins.
+ *
+ * @author Daniel Bloomfield Ramagem
+ * @see AbstractConnectionPool#setFatalErrorClassifier(FatalErrorClassifier)
+ */
+@ThreadSafe
+public class FatalErrorClassifier {
+	/**
+	 * What an error says about the connection it was raised on, from the least to the most severe.
+	 */
+	public enum Severity {
+		// the connection is still usable, e.g. a constraint violation or a syntax error
+		RECOVERABLE,
+		// the connection is broken, but the others are not affected
+		CONNECTION_BROKEN,
+		// the connection to the database was lost, the other connections are likely broken too
+		DISCONNECTED
+	}
+
+	private static final Set<String> DISCONNECTED_SQL_STATES = new HashSet<String>(Arrays.asList(
+			"57P01", "57P02", "57P03", "01002"));
+	private static final Set<String> CONNECTION_BROKEN_SQL_STATES = new HashSet<String>(Arrays.asList(
+			"08003", "JZ0C0", "JZ0C1"));
+
+	// how to classify the vendor error codes of the driver in use
+	private final Map<Integer, Severity> vendorCodes = new ConcurrentHashMap<Integer, Severity>();
+
+	/**
+	 * Classify the errors carrying a vendor error code as given.  Vendor codes are driver specific, so none are registered
+	 * out of the box.
+	 *
+	 * @param vendorCode the vendor error code, as given by <code>SQLException.getErrorCode()</code>
+	 * @param severity the classification of the errors with that code
+	 */
+	public void addVendorCode(int vendorCode, Severity severity) {
+		if (severity == null)
+			throw new IllegalArgumentException("severity must be supplied");
+		vendorCodes.put(vendorCode, severity);
+	}
+
+	/**
+	 * Classify an error, along with its chain of next exceptions and causes.
+	 *
+	 * @param e the error
+	 * @return the most severe classification found in the chain
+	 */
+	public Severity classify(SQLException e) {
+		Severity worst = Severity.RECOVERABLE;
+		// guard against chains looping back on themselves
+		for (int depth=0; e != null && depth < 16 && worst != Severity.DISCONNECTED; depth++) {
+			Severity severity = classifySingle(e);
+			if (severity.compareTo(worst) > 0)
+				worst = severity;
+			e = e.getNextException() != null ? e.getNextException() :
+					(e.getCause() instanceof SQLException ? (SQLException) e.getCause() : null);
+		}
+		return worst;
+	}
+
+	/**
+	 * Classify a single error, regardless of its chain.  Subclasses can override this to recognize more errors.
+	 *
+	 * @param e the error
+	 * @return its classification
+	 */
+	protected Severity classifySingle(SQLException e) {
+		String sqlState = e.getSQLState();
+		if (sqlState != null) {
+			if (CONNECTION_BROKEN_SQL_STATES.contains(sqlState))
+				return Severity.CONNECTION_BROKEN;
+			if (sqlState.startsWith("08") || DISCONNECTED_SQL_STATES.contains(sqlState))
+				return Severity.DISCONNECTED;
+		}
+		if (e instanceof SQLNonTransientConnectionException || e instanceof SQLTransientConnectionException)
+			return Severity.DISCONNECTED;
+		if (e instanceof SQLRecoverableException)
+			return Severity.CONNECTION_BROKEN;
+		Severity severity = vendorCodes.get(e.getErrorCode());
+		return severity != null ? severity : Severity.RECOVERABLE;
+	}
+}
@@ -0,0 +1,45 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.sql.Connection;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * Hands out the connection that has been idle the longest.  This spreads the load over every idle connection, which keeps
+ * all of them warm but never leaves any of them idle long enough to be closed.  This is the default strategy of the pools.
+ *
+ * @author Daniel Bloomfield Ramagem
+ */
+@NotThreadSafe
+public class FifoIdleConnectionStrategy implements IdleConnectionStrategy {
+	private final ArrayDeque<Connection> idleConnections = new ArrayDeque<Connection>();
+
+	public void add(Connection connection) {
+		idleConnections.addLast(connection);
+	}
+
+	public Connection take() {
+		return idleConnections.pollFirst();
+	}
+
+	public boolean remove(Connection connection) {
+		// by identity, as connections do not necessarily implement equals()
+		for (Iterator<Connection> it = idleConnections.iterator(); it.hasNext();) {
+			if (it.next() == connection) {
+				it.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void discarded(Connection connection) {
+		; // connections that are not idle are not tracked
+	}
+
+	public int size() {
+		return idleConnections.size();
+	}
+}
@@ -0,0 +1,49 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import net.jcip.annotations.ThreadSafe;
+
+import com.danrama.simpledbconnectionpool.CredentialsProvider;
+
+/**
+ * Reads the credentials from a properties file, e.g. one kept up to date by a secrets agent.  The file is read on every
+ * call, so this provider is normally wrapped in a <code>CachedCredentialsProvider</code>.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ */
+@ThreadSafe
+public class FileCredentialsProvider implements CredentialsProvider {
+	private final File file;
+	
+	/**
+	 * Create a provider reading the given file.
+	 * 
+	 * @param file a properties file, typically holding the <code>user</code> and <code>password</code> properties
+	 */
+	public FileCredentialsProvider(File file) {
+		if (file == null)
+			throw new IllegalArgumentException("credentials file must be supplied");
+		this.file = file;
+	}
+	
+	public Properties getCredentials() throws SQLException {
+		Properties credentials = new Properties();
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				credentials.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new SQLException("could not read the credentials file " + file, e);
+		}
+		return credentials;
+	}
+}
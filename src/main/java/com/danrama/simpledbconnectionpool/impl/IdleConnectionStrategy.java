@@ -0,0 +1,55 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.sql.Connection;
+
+/**
+ * Holds the idle connections of a pool and decides which one is handed out next.  The choice matters: handing out the most
+ * recently returned connection keeps a small hot set of connections busy and lets the rest sit idle long enough to be
+ * closed, while rotating through all of them keeps every connection warm.
+ * <p>
+ * Implementations are not thread safe, the pool only calls them while holding its lock, and an instance holds the idle
+ * connections of a single pool so it must not be shared.  Every operation should be O(1) as it runs on every borrow and
+ * release.
+ *
+ * @author Daniel Bloomfield Ramagem
+ * @see ExpandingSizeConnectionPool#setIdleConnectionStrategy(IdleConnectionStrategy)
+ * @see FifoIdleConnectionStrategy
+ * @see LifoIdleConnectionStrategy
+ * @see RoundRobinIdleConnectionStrategy
+ */
+public interface IdleConnectionStrategy {
+	/**
+	 * A connection became idle, either because it was just created or because it was returned to the pool.
+	 *
+	 * @param connection the raw database connection
+	 */
+	void add(Connection connection);
+
+	/**
+	 * Take the idle connection to hand out next.
+	 *
+	 * @return the connection, or <code>null</code> if there is no idle connection
+	 */
+	Connection take();
+
+	/**
+	 * Take a given connection out of the idle connections, e.g. because it was found to be broken while idle.  Unlike the
+	 * other operations this may take linear time, it is only used when something went wrong.
+	 *
+	 * @param connection the raw database connection
+	 * @return <code>true</code> if the connection was idle and was taken out, <code>false</code> if it was not idle
+	 */
+	boolean remove(Connection connection);
+
+	/**
+	 * A connection that is not idle, i.e. one that was taken out, is being closed by the pool and will never be added again.
+	 *
+	 * @param connection the raw database connection
+	 */
+	void discarded(Connection connection);
+
+	/**
+	 * Gets the number of idle connections.
+	 */
+	int size();
+}
@@ -0,0 +1,94 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.danrama.simpledbconnectionpool.ConnectionInitializer;
+import com.danrama.simpledbconnectionpool.ConnectionSource;
+
+/**
+ * A connection source that sets up the session of every new physical connection before handing it to the pool: it runs a
+ * list of init SQL statements, e.g. <code>SET TIME ZONE 'UTC'</code>, and then an optional <code>ConnectionInitializer</code>.
+ * <p>
+ * Several init statements are sent as a single batch, i.e. in one round trip, when the driver supports batch updates.  When
+ * the initialization fails the connection is closed and the error is thrown, so for the pool it is a failed connect.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ */
+@ThreadSafe
+public class InitializingConnectionSource implements ConnectionSource {
+	private static final Logger logger = Logger.getLogger(InitializingConnectionSource.class);
+	
+	// the source actually making the connections
+	private final ConnectionSource delegate;
+	
+	// the session setup
+	private final String[] initSql;
+	private final ConnectionInitializer initializer;
+	
+	/**
+	 * Create a source initializing the connections of another source.
+	 * 
+	 * @param delegate the source making the connections
+	 * @param initSql the SQL statements run on every new connection, may be empty
+	 * @param initializer optional callback run on every new connection, after the init SQL
+	 */
+	public InitializingConnectionSource(ConnectionSource delegate, String[] initSql, ConnectionInitializer initializer) {
+		if (delegate == null)
+			throw new IllegalArgumentException("connection source must be supplied");
+		
+		this.delegate = delegate;
+		this.initSql = initSql == null ? new String[0] : initSql.clone();
+		this.initializer = initializer;
+	}
+	
+	public Connection getConnection() throws SQLException {
+		Connection connection = delegate.getConnection();
+		if (connection == null)
+			return null;
+		
+		try {
+			initialize(connection);
+		} catch (SQLException e) {
+			closeFailedConnection(connection);
+			throw e;
+		} catch (RuntimeException e) {
+			closeFailedConnection(connection);
+			throw e;
+		}
+		return connection;
+	}
+	
+	private void initialize(Connection connection) throws SQLException {
+		if (initSql.length > 0) {
+			Statement statement = connection.createStatement();
+			try {
+				if (initSql.length > 1 && connection.getMetaData().supportsBatchUpdates()) {
+					for (String sql : initSql)
+						statement.addBatch(sql);
+					statement.executeBatch();
+				} else {
+					for (String sql : initSql)
+						statement.execute(sql);
+				}
+			} finally {
+				statement.close();
+			}
+		}
+		if (initializer != null)
+			initializer.initialize(connection);
+	}
+	
+	private void closeFailedConnection(Connection connection) {
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			logger.warn("there was an error closing a connection that failed its initialization: " + e);
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.sql.Connection;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * Hands out the most recently returned connection.  Under a steady load only as many connections as needed are kept busy
+ * and they stay hot in the client and database server caches, while the connections beyond that sit idle and can be
+ * closed.
+ *
+ * @author Daniel Bloomfield Ramagem
+ */
+@NotThreadSafe
+public class LifoIdleConnectionStrategy implements IdleConnectionStrategy {
+	private final ArrayDeque<Connection> idleConnections = new ArrayDeque<Connection>();
+
+	public void add(Connection connection) {
+		idleConnections.addFirst(connection);
+	}
+
+	public Connection take() {
+		return idleConnections.pollFirst();
+	}
+
+	public boolean remove(Connection connection) {
+		// by identity, as connections do not necessarily implement equals()
+		for (Iterator<Connection> it = idleConnections.iterator(); it.hasNext();) {
+			if (it.next() == connection) {
+				it.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void discarded(Connection connection) {
+		; // connections that are not idle are not tracked
+	}
+
+	public int size() {
+		return idleConnections.size();
+	}
+}
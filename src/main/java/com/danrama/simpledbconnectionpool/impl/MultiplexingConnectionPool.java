@@ -0,0 +1,573 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.danrama.simpledbconnectionpool.ConnectionPool;
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolAlreadyReleasedConnectionException;
+
+/**
+ * A connection pool layered on top of another pool that lets many clients doing short, read-only, autocommit work share a
+ * few physical connections.
+ * <p>
+ * The connections it hands out are logical: borrowing one takes nothing from the underlying pool.  Each execution of a
+ * statement leases a physical connection from the underlying pool, creates the statement on it and gives the connection
+ * back as soon as the statement is done: right away for a statement that yields an update count, and for a query once its
+ * result set is closed or, if it is forward-only, read to the end.  A client that holds on to its connection while doing other work only ties up a
+ * physical connection while it is actually reading from the database, so far more clients can share a small pool.
+ * <p>
+ * As consecutive statements may run on different physical connections, the logical connections are always read-only and
+ * in autocommit mode.  Transactions, updates, batches and changes to the session state are refused with a
+ * <code>SQLFeatureNotSupportedException</code>.  Each physical connection is also switched to read-only and autocommit
+ * for the length of its lease, and switched back before it is given back, so that a query string that writes is left to
+ * the driver or the database to refuse.  The settings and parameters of a statement are remembered and replayed on the
+ * statement created for each of its executions.
+ * <p>
+ * A lease waits for a physical connection for up to the lease wait given to the pool when the underlying pool has none
+ * to spare, rather than failing right away.
+ * <p>
+ * <code>getConnections()</code> goes straight to the underlying pool, for work that needs physical connections of its own.
+ *
+ * @author Daniel Bloomfield Ramagem
+ */
+@ThreadSafe
+public class MultiplexingConnectionPool implements ConnectionPool {
+	private static final Logger logger = Logger.getLogger(MultiplexingConnectionPool.class);
+
+	// how long a lease waits for a physical connection unless told otherwise
+	public static final long DEFAULT_LEASE_WAIT_MILLIS = 5000;
+
+	// the pool that actually hands out the connections, and how long a lease waits for one of them
+	private final ConnectionPool delegate;
+	private final long leaseWaitMillis;
+
+	// number of physical connections leased for statement executions, in total and currently held
+	private final AtomicLong leases = new AtomicLong();
+	private final AtomicInteger activeLeases = new AtomicInteger();
+
+	/*
+	 * A physical connection leased for a statement execution, with the session state to restore before it is given back.
+	 */
+	private static class Lease {
+		final Connection connection;
+		final boolean restoreAutoCommit;
+		final boolean restoreReadOnly;
+
+		Lease(Connection connection, boolean restoreAutoCommit, boolean restoreReadOnly) {
+			this.connection = connection;
+			this.restoreAutoCommit = restoreAutoCommit;
+			this.restoreReadOnly = restoreReadOnly;
+		}
+	}
+
+	/*
+	 * The invocation handler of the logical connections.  Only the statements and a few harmless getters reach the database,
+	 * each through a lease of its own.
+	 */
+	private class MultiplexedConnectionHandle implements InvocationHandler {
+		@GuardedBy("this") private boolean closed;
+
+		// the statements created through the connection and not closed yet
+		@GuardedBy("this") private final List<MultiplexedStatementHandle> statements =
+				new ArrayList<MultiplexedStatementHandle>();
+
+		void close() throws SQLException {
+			List<MultiplexedStatementHandle> openStatements;
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+				openStatements = new ArrayList<MultiplexedStatementHandle>(statements);
+				statements.clear();
+			}
+			// the leases are given back outside of the lock, as giving them back can block
+			for (MultiplexedStatementHandle statement : openStatements)
+				statement.close();
+		}
+
+		synchronized void statementClosed(MultiplexedStatementHandle statement) {
+			statements.remove(statement);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				close();
+				return null;
+			}
+			if (name.equals("toString"))
+				return "MultiplexedConnection@" + Integer.toHexString(System.identityHashCode(proxy));
+			if (name.equals("hashCode"))
+				return System.identityHashCode(proxy);
+			if (name.equals("equals"))
+				return proxy == args[0];
+			synchronized (this) {
+				if (name.equals("isClosed"))
+					return closed;
+				if (closed)
+					throw new ConnectionPoolAlreadyReleasedConnectionException();
+			}
+
+			if (name.equals("isValid"))
+				return true; // the physical connections are validated by the underlying pool
+			if (name.equals("getAutoCommit") || name.equals("isReadOnly"))
+				return true;
+			if (name.equals("setAutoCommit") || name.equals("setReadOnly")) {
+				if (!((Boolean) args[0]))
+					throw unsupported(name + "(false)");
+				return null;
+			}
+			if (name.equals("getWarnings") || name.equals("clearWarnings"))
+				return null; // no warnings are kept between the statements
+			if (name.equals("unwrap")) {
+				if (!((Class<?>) args[0]).isInstance(proxy))
+					throw new SQLException("not a wrapper for " + args[0]);
+				return proxy;
+			}
+			if (name.equals("isWrapperFor"))
+				return ((Class<?>) args[0]).isInstance(proxy);
+			if (name.equals("createStatement") || name.equals("prepareStatement")) {
+				MultiplexedStatementHandle statement = new MultiplexedStatementHandle(this, proxy, method, args);
+				synchronized (this) {
+					statements.add(statement);
+				}
+				return Proxy.newProxyInstance(method.getReturnType().getClassLoader(),
+						new Class[] { method.getReturnType() }, statement);
+			}
+
+			// getters of plain values do not outlive the call, e.g. getCatalog(), so they can run on a lease of their own
+			if (name.startsWith("get") && !method.getReturnType().isInterface()) {
+				Lease lease = lease();
+				try {
+					return method.invoke(lease.connection, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				} finally {
+					endLease(lease);
+				}
+			}
+			throw unsupported(name);
+		}
+	}
+
+	/*
+	 * A call to a statement, kept to be replayed on the statements created for later executions.
+	 */
+	private static class Invocation {
+		final Method method;
+		final Object[] args;
+
+		Invocation(Method method, Object[] args) {
+			this.method = method;
+			this.args = args;
+		}
+
+		Object invoke(Object target) throws Throwable {
+			try {
+				return method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	/*
+	 * The invocation handler of the statements of the logical connections.  The statement only exists on a physical
+	 * connection from the start of an execution until its lease ends.
+	 */
+	private class MultiplexedStatementHandle implements InvocationHandler {
+		private final MultiplexedConnectionHandle connectionHandle;
+		private final Object connectionProxy;
+
+		// the call that created the statement, e.g. prepareStatement(sql)
+		private final Invocation creation;
+
+		// the settings and parameters of the statement, the latest call per setting or parameter
+		@GuardedBy("this") private final Map<Object, Invocation> settings = new LinkedHashMap<Object, Invocation>();
+
+		@GuardedBy("this") private boolean closed;
+
+		// the current lease, if any, with the statement created on it and the result set being read
+		@GuardedBy("this") private Lease lease;
+		@GuardedBy("this") private Statement physicalStatement;
+		@GuardedBy("this") private Object resultSet;
+		@GuardedBy("this") private int updateCount = -1;
+
+		MultiplexedStatementHandle(MultiplexedConnectionHandle connectionHandle, Object connectionProxy, Method creator,
+				Object[] creatorArgs) {
+			this.connectionHandle = connectionHandle;
+			this.connectionProxy = connectionProxy;
+			this.creation = new Invocation(creator, creatorArgs);
+		}
+
+		void close() {
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+				endLease();
+			}
+			connectionHandle.statementClosed(this);
+		}
+
+		/*
+		 * Close the statement on the leased connection and give the connection back.
+		 */
+		@GuardedBy("this")
+		private void endLease() {
+			resultSet = null;
+			if (lease == null)
+				return;
+			try {
+				if (physicalStatement != null)
+					physicalStatement.close();
+			} catch (SQLException e) {
+				logger.warn("there was an error closing a multiplexed statement: " + e);
+			}
+			try {
+				MultiplexingConnectionPool.this.endLease(lease);
+			} catch (SQLException e) {
+				logger.warn("there was an error giving back a leased connection: " + e);
+			}
+			lease = null;
+			physicalStatement = null;
+		}
+
+		synchronized void resultSetDone(Object resultSetProxy) {
+			if (resultSet == resultSetProxy)
+				endLease();
+		}
+
+		public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("close")) {
+				close();
+				return null;
+			}
+			if (name.equals("isClosed"))
+				return closed;
+			if (name.equals("toString"))
+				return "MultiplexedStatement@" + Integer.toHexString(System.identityHashCode(proxy));
+			if (name.equals("hashCode"))
+				return System.identityHashCode(proxy);
+			if (name.equals("equals"))
+				return proxy == args[0];
+			if (closed)
+				throw new SQLException("statement is closed");
+
+			if (name.equals("getConnection"))
+				return connectionProxy;
+			if (name.equals("addBatch") || name.equals("clearBatch") || name.startsWith("executeBatch") ||
+					name.startsWith("executeUpdate") || name.startsWith("executeLarge"))
+				throw unsupported(name);
+			if (name.startsWith("execute"))
+				return execute(proxy, method, args);
+			if (name.equals("clearParameters")) {
+				for (Iterator<Object> it = settings.keySet().iterator(); it.hasNext(); ) {
+					if (it.next() instanceof Parameter)
+						it.remove();
+				}
+				return null;
+			}
+			if (name.startsWith("set")) {
+				// the parameters of prepared statements are set by index, the settings of every statement by name
+				Object key = method.getDeclaringClass() != Statement.class && args != null && args.length > 1 ?
+						new Parameter(args[0]) : name;
+				settings.remove(key); // keeps the order of the calls
+				settings.put(key, new Invocation(method, args));
+				return null;
+			}
+			if (name.equals("getResultSet"))
+				return resultSet;
+			if (name.equals("getUpdateCount"))
+				return resultSet != null ? -1 : updateCount;
+			if (name.equals("getMoreResults")) {
+				endLease();
+				updateCount = -1;
+				return false;
+			}
+			if (name.equals("getWarnings") || name.equals("clearWarnings"))
+				return null;
+			if (physicalStatement != null) {
+				try {
+					return method.invoke(physicalStatement, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+			throw unsupported(name + " outside of an execution");
+		}
+
+		@GuardedBy("this")
+		private Object execute(Object proxy, Method method, Object[] args) throws Throwable {
+			// executing again closes the current result set, as on any statement
+			endLease();
+			updateCount = -1;
+			lease = lease();
+			try {
+				physicalStatement = (Statement) creation.invoke(lease.connection);
+				for (Invocation setting : settings.values())
+					setting.invoke(physicalStatement);
+				Object result = new Invocation(method, args).invoke(physicalStatement);
+
+				if (result instanceof ResultSet) {
+					resultSet = wrap((ResultSet) result, proxy);
+				} else if (Boolean.TRUE.equals(result)) {
+					resultSet = wrap(physicalStatement.getResultSet(), proxy);
+				} else {
+					updateCount = physicalStatement.getUpdateCount();
+					endLease();
+				}
+				return result instanceof ResultSet ? resultSet : result;
+			} catch (Throwable e) {
+				endLease();
+				throw e;
+			}
+		}
+
+		private Object wrap(ResultSet physicalResultSet, Object statementProxy) throws SQLException {
+			return Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class[] { ResultSet.class },
+					new LeasedResultSetHandle(this, statementProxy, physicalResultSet));
+		}
+	}
+
+	/*
+	 * The key of a parameter of a prepared statement in the settings of the statement, by index or name.
+	 */
+	private static class Parameter {
+		private final Object indexOrName;
+
+		Parameter(Object indexOrName) {
+			this.indexOrName = indexOrName;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Parameter && indexOrName.equals(((Parameter) obj).indexOrName);
+		}
+
+		@Override
+		public int hashCode() {
+			return indexOrName.hashCode();
+		}
+	}
+
+	/*
+	 * The invocation handler of the result sets of the statements.  Closing the result set, or reading past its last row,
+	 * ends the lease of its statement.
+	 */
+	private static class LeasedResultSetHandle implements InvocationHandler {
+		private final MultiplexedStatementHandle statementHandle;
+		private final Object statementProxy;
+		private final ResultSet physicalResultSet;
+
+		// whether reading past the last row ends the lease, which only holds when the rows cannot be read again
+		private final boolean forwardOnly;
+
+		@GuardedBy("this") private boolean done;
+
+		LeasedResultSetHandle(MultiplexedStatementHandle statementHandle, Object statementProxy,
+				ResultSet physicalResultSet) throws SQLException {
+			this.statementHandle = statementHandle;
+			this.statementProxy = statementProxy;
+			this.physicalResultSet = physicalResultSet;
+			forwardOnly = physicalResultSet.getType() == ResultSet.TYPE_FORWARD_ONLY;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("hashCode"))
+				return System.identityHashCode(proxy);
+			if (name.equals("equals"))
+				return proxy == args[0];
+			if (name.equals("getStatement"))
+				return statementProxy;
+			synchronized (this) {
+				if (name.equals("isClosed"))
+					return done || physicalResultSet.isClosed();
+				if (name.equals("close") && done)
+					return null;
+				if (done)
+					throw new SQLException("result set is closed");
+			}
+
+			Object result;
+			try {
+				result = method.invoke(physicalResultSet, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+			if (name.equals("close") || (forwardOnly && name.equals("next") && Boolean.FALSE.equals(result))) {
+				synchronized (this) {
+					done = true;
+				}
+				statementHandle.resultSetDone(proxy);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Create a multiplexing pool on top of another pool, whose leases wait for a physical connection for up to
+	 * <code>DEFAULT_LEASE_WAIT_MILLIS</code>.
+	 *
+	 * @param delegate the underlying pool, which lends its connections for the statement executions
+	 */
+	public MultiplexingConnectionPool(ConnectionPool delegate) {
+		this(delegate, DEFAULT_LEASE_WAIT_MILLIS);
+	}
+
+	/**
+	 * Create a multiplexing pool on top of another pool.
+	 *
+	 * @param delegate the underlying pool, which lends its connections for the statement executions
+	 * @param leaseWaitMillis how long a statement execution waits for a physical connection when the underlying pool has
+	 *                        none to spare, 0 to fail immediately
+	 */
+	public MultiplexingConnectionPool(ConnectionPool delegate, long leaseWaitMillis) {
+		if (delegate == null)
+			throw new IllegalArgumentException("underlying pool must be supplied");
+		if (leaseWaitMillis < 0)
+			throw new IllegalArgumentException("lease wait must be >= 0");
+		this.delegate = delegate;
+		this.leaseWaitMillis = leaseWaitMillis;
+	}
+
+	// ----- getters for the lease state, useful for tests -----
+	public long getLeaseWaitMillis() {
+		return leaseWaitMillis;
+	}
+	public long getNumLeases() {
+		return leases.get();
+	}
+	public int getNumActiveLeases() {
+		return activeLeases.get();
+	}
+
+	/**
+	 * Obtains a read-only, autocommit logical connection.  Nothing is taken from the underlying pool until a statement of
+	 * the connection is executed.
+	 *
+	 * @return a logical connection
+	 */
+	public Connection getConnection() throws SQLException {
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[] { Connection.class },
+				new MultiplexedConnectionHandle());
+	}
+
+	/**
+	 * Releases a connection.  Releasing a logical connection closes its statements, giving back the physical connections
+	 * they still hold.  Any other connection is released to the underlying pool.
+	 *
+	 * @param connection the connection being released
+	 */
+	public void releaseConnection(Connection connection) throws SQLException {
+		MultiplexedConnectionHandle handle = getHandle(connection);
+		if (handle != null) {
+			handle.close();
+			return;
+		}
+		delegate.releaseConnection(connection);
+	}
+
+	/**
+	 * Obtains several physical connections at once from the underlying pool.
+	 *
+	 * @see ConnectionPool#getConnections(int, long)
+	 */
+	public List<Connection> getConnections(int count, long timeoutMillis) throws SQLException {
+		return delegate.getConnections(count, timeoutMillis);
+	}
+
+	/**
+	 * Releases several connections at once, closing the logical connections and releasing the rest to the underlying pool.
+	 *
+	 * @see ConnectionPool#releaseConnections(Collection)
+	 */
+	public void releaseConnections(Collection<? extends Connection> connections) throws SQLException {
+		List<Connection> pooledConnections = new ArrayList<Connection>(connections.size());
+		for (Connection connection : connections) {
+			MultiplexedConnectionHandle handle = getHandle(connection);
+			if (handle != null)
+				handle.close();
+			else
+				pooledConnections.add(connection);
+		}
+		if (!pooledConnections.isEmpty())
+			delegate.releaseConnections(pooledConnections);
+	}
+
+	/*
+	 * Lease a physical connection, waiting for one if need be, and switch it to read-only and autocommit.
+	 */
+	private Lease lease() throws SQLException {
+		Connection physicalConnection = delegate.getConnections(1, leaseWaitMillis).get(0);
+		Lease lease;
+		try {
+			boolean restoreAutoCommit = !physicalConnection.getAutoCommit();
+			if (restoreAutoCommit)
+				physicalConnection.setAutoCommit(true);
+			boolean restoreReadOnly = !physicalConnection.isReadOnly();
+			if (restoreReadOnly)
+				physicalConnection.setReadOnly(true);
+			lease = new Lease(physicalConnection, restoreAutoCommit, restoreReadOnly);
+		} catch (SQLException e) {
+			delegate.releaseConnection(physicalConnection);
+			throw e;
+		}
+		leases.incrementAndGet();
+		activeLeases.incrementAndGet();
+		return lease;
+	}
+
+	/*
+	 * Switch a leased connection back to the session state it had and give it back to the underlying pool.
+	 */
+	private void endLease(Lease lease) throws SQLException {
+		activeLeases.decrementAndGet();
+		try {
+			if (lease.restoreReadOnly)
+				lease.connection.setReadOnly(false);
+			if (lease.restoreAutoCommit)
+				lease.connection.setAutoCommit(false);
+		} finally {
+			delegate.releaseConnection(lease.connection);
+		}
+	}
+
+	private static SQLFeatureNotSupportedException unsupported(String operation) {
+		return new SQLFeatureNotSupportedException(operation + " is not supported on a multiplexed read-only connection");
+	}
+
+	/*
+	 * Gets the invocation handler of a logical connection, or null if the connection is not one.
+	 */
+	private static MultiplexedConnectionHandle getHandle(Connection connection) {
+		if (connection != null && Proxy.isProxyClass(connection.getClass())) {
+			InvocationHandler handler = Proxy.getInvocationHandler(connection);
+			if (handler instanceof MultiplexedConnectionHandle)
+				return (MultiplexedConnectionHandle) handler;
+		}
+		return null;
+	}
+}
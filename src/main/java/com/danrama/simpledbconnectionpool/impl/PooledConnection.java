@@ -20,6 +20,21 @@ public interface PooledConnection extends Connection {
 	 */
 	AbstractConnectionPool getPool();
 	
+	/**
+	 * Gets the raw database connection wrapped by this pooled connection.  This is meant for the pool itself, clients
+	 * should never use the raw connection directly.
+	 * 
+	 * @return the raw database connection, or <code>null</code> if this connection has been released
+	 */
+	Connection getWrappedConnection();
+	
+	/**
+	 * Gets the time at which this connection was handed out to the client.
+	 * 
+	 * @return the borrow time, as given by <code>System.nanoTime()</code>
+	 */
+	long getBorrowedAtNanos();
+	
 	/**
 	 * Verifies if this connection has already been released back into its
 	 * originating pool.
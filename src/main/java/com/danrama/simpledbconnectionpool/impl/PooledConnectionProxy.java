@@ -3,7 +3,11 @@ package com.danrama.simpledbconnectionpool.impl;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
 
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
@@ -18,6 +22,9 @@ import com.danrama.simpledbconnectionpool.exception.ConnectionPoolAlreadyRelease
  * Once a pooled connection is released it can no longer be used by the client for any database operations.  Any attempt to
  * use it throws a <code>ConnectionPoolAlreadyReleasedConnectionException</code>
  * exception.
+ * <p>
+ * When the pool closes the statements left open on release, the handler keeps track of the statements created through the
+ * connection that are not closed yet.
  *  
  * @author Daniel Bloomfield Ramagem
  * @see PooledConnection
@@ -30,11 +37,21 @@ public class PooledConnectionProxy implements InvocationHandler {
 	private AbstractConnectionPool connectionPool;
 	
 	// the underlying raw database connection
-	private Connection wrappedConnection;
+	@GuardedBy("this") private Connection wrappedConnection;
+	
+	// when the connection was handed out to the client
+	private final long borrowedAtNanos;
 	
 	// flags that the connection has already been released back to pool and 
 	// cannot be reused by the client
 	@GuardedBy("this") private boolean hasBeenReleasedBackToPool;
+	
+	// flags that the pool took the connection back because it was held for too long
+	@GuardedBy("this") private boolean abortedForHoldTime;
+	
+	// the statements created through the connection and not closed yet, in creation order, only when tracked
+	@GuardedBy("this") private PooledStatementProxy[] openStatements;
+	@GuardedBy("this") private int openStatementCount;
 
 	/**
 	 * Construct a new instance.
@@ -45,6 +62,90 @@ public class PooledConnectionProxy implements InvocationHandler {
 	public PooledConnectionProxy(AbstractConnectionPool pool, Connection connection) {
 		this.connectionPool = pool;
 		wrappedConnection = connection;
+		borrowedAtNanos = System.nanoTime();
+	}
+	
+	/**
+	 * Gets the handler behind a pooled connection created by the <code>PooledConnectionFactory</code>, so that the pool can
+	 * reach its state without going through the proxy.
+	 * 
+	 * @param connection the pooled connection
+	 * @return the handler, or <code>null</code> if the connection was not created by the factory
+	 */
+	static PooledConnectionProxy handlerOf(Connection connection) {
+		if (Proxy.isProxyClass(connection.getClass())) {
+			InvocationHandler handler = Proxy.getInvocationHandler(connection);
+			if (handler instanceof PooledConnectionProxy)
+				return (PooledConnectionProxy) handler;
+		}
+		return null;
+	}
+	
+	// ----- direct accessors for the pool, these neither box their results nor go through reflection -----
+	long getBorrowedAtNanos() {
+		return borrowedAtNanos;
+	}
+	synchronized boolean isReleasedBackToPool() {
+		return hasBeenReleasedBackToPool;
+	}
+	synchronized boolean isAbortedForHoldTime() {
+		return abortedForHoldTime;
+	}
+	synchronized Connection getWrappedConnection() {
+		return wrappedConnection;
+	}
+	synchronized void setReleasedBackToPool() {
+		hasBeenReleasedBackToPool = true;
+		
+		// free the reference to wrapped raw database connection so that it may get garbage-collected
+		wrappedConnection = null;
+	}
+	synchronized void setAbortedForHoldTime() {
+		abortedForHoldTime = true;
+		setReleasedBackToPool();
+	}
+	
+	// ----- tracking of the open statements -----
+	synchronized void statementOpened(PooledStatementProxy statement) {
+		if (openStatements == null)
+			openStatements = new PooledStatementProxy[8];
+		else if (openStatementCount == openStatements.length)
+			openStatements = Arrays.copyOf(openStatements, openStatementCount * 2);
+		openStatements[openStatementCount++] = statement;
+	}
+	synchronized void statementClosed(PooledStatementProxy statement) {
+		// statements are mostly closed in the reverse order of their creation, so the search starts from the end
+		for (int i=openStatementCount - 1; i >= 0; i--) {
+			if (openStatements[i] == statement) {
+				System.arraycopy(openStatements, i + 1, openStatements, i, openStatementCount - i - 1);
+				openStatements[--openStatementCount] = null;
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Close the statements the client left open, along with their result sets, and tell the pool how many there were.  Called
+	 * by the pool when the connection is released.
+	 */
+	void closeOpenStatements() {
+		PooledStatementProxy[] leftOpen;
+		synchronized (this) {
+			if (openStatementCount == 0)
+				return;
+			leftOpen = Arrays.copyOf(openStatements, openStatementCount);
+			Arrays.fill(openStatements, 0, openStatementCount, null);
+			openStatementCount = 0;
+		}
+		int resultSets = 0;
+		for (PooledStatementProxy statement : leftOpen) {
+			try {
+				resultSets += statement.closeLeftOpen();
+			} catch (SQLException e) {
+				; // the statement goes away with its connection anyway, the validation finds out if the connection is broken
+			}
+		}
+		connectionPool.openStatementsClosed(leftOpen.length, resultSets);
 	}
 	
 	/*
@@ -56,15 +157,24 @@ public class PooledConnectionProxy implements InvocationHandler {
 			return connectionPool;			
 		}
 		
+		// handle Connection.close() for pools that release connections on close, outside of the lock as the pool locks too
+		if (method.getName().equals("close") && connectionPool.isReleaseOnClose()) {
+			if (!isReleasedBackToPool())
+				connectionPool.releaseConnection((Connection) proxy);
+			return null;
+		}
+		
 		// synchronize access to the hasBeenReleasedBackToPool flag in order to make it thread safe
+		Connection target;
 		synchronized (this) {
+			// handle PooledConnection.getBorrowedAtNanos()
+			if (method.getName().equals("getBorrowedAtNanos")) {
+				return borrowedAtNanos;
+			}
+			
 			// handle PooledConnection.setReleasedBackToPool()
 			if (method.getName().equals("setReleasedBackToPool")) {
-				// flag that this connection is now released
-				hasBeenReleasedBackToPool = true;
-
-				// free the reference to wrapped raw database connection so that it may get garbage-collected
-				wrappedConnection = null;
+				setReleasedBackToPool();
 
 				// nothing to return
 				return null;
@@ -74,19 +184,45 @@ public class PooledConnectionProxy implements InvocationHandler {
 			if (method.getName().equals("isReleasedBackToPool")) {
 				return hasBeenReleasedBackToPool;
 			}
+			
+			// handle PooledConnection.getWrappedConnection()
+			if (method.getName().equals("getWrappedConnection")) {
+				return wrappedConnection;
+			}
 
+			// a connection closed by releasing it is closed as far as its client is concerned
+			if (method.getName().equals("isClosed") && hasBeenReleasedBackToPool && connectionPool.isReleaseOnClose()) {
+				return true;
+			}
+			
 			// if this connection has already been released back to the pool then the client can no longer use it
 			if (hasBeenReleasedBackToPool) {
 				throw new ConnectionPoolAlreadyReleasedConnectionException();
 			}
+			target = wrappedConnection;
 		}
 		
 		// connection is not released, so it is still usable by client
 		try {
 			// delegate the client call to the underlying wrapped connection
-			return method.invoke(wrappedConnection, args);
+			Object result = method.invoke(target, args);
+			
+			// wrap the statements created by the connection if the pool is collecting statement statistics, looking at the
+			// errors or closing the statements left open
+			StatementStatistics statistics = connectionPool.getStatementStatistics();
+			boolean trackStatements = connectionPool.isCloseOpenStatementsOnRelease();
+			if ((statistics != null || connectionPool.getFatalErrorClassifier() != null || trackStatements) && 
+					result instanceof Statement && method.getReturnType().isInterface()) {
+				String preparedSql = (args != null && args.length > 0 && args[0] instanceof String) ? (String) args[0] : null;
+				return PooledStatementProxy.wrap(method.getReturnType(), statistics, connectionPool, target, 
+						(Connection) proxy, (Statement) result, preparedSql, trackStatements ? this : null);
+			}
+			return result;
 		} catch (InvocationTargetException e) {
-			// if an error occurs, re-throw the actual cause of the exception
+			// if an error occurs, let the pool find out whether the connection is broken and re-throw the actual cause of
+			// the exception
+			if (e.getCause() instanceof SQLException)
+				connectionPool.connectionErrorOccurred(target, (SQLException) e.getCause());
 			throw e.getCause();
 		}
 	}
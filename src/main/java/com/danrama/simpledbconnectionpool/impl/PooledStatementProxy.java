@@ -0,0 +1,208 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * The invocation handler for the dynamic proxies wrapping the statements created through a pooled connection.  It times
+ * every statement execution and records it in the pool's <code>StatementStatistics</code>, and reports the errors to the
+ * pool for it to find out about broken connections.  When the pool closes the statements left open on release, the proxy
+ * keeps track of the result sets of the statement, and tells the pooled connection when the statement is closed.
+ * <p>
+ * Statements are only wrapped when the pool has statement statistics, fatal error classification or the closing of open
+ * statements enabled, so there is no cost otherwise.
+ *
+ * @author Daniel Bloomfield Ramagem
+ * @see StatementStatistics
+ * @see PooledConnectionProxy
+ */
+@ThreadSafe
+public class PooledStatementProxy implements InvocationHandler {
+	// the statistics the executions are recorded in, null when not collected
+	private final StatementStatistics statistics;
+	
+	// the pool the errors are reported to, and the physical connection that created the statement
+	private final AbstractConnectionPool connectionPool;
+	private final Connection rawConnection;
+
+	// the pooled connection that created the statement, handed out instead of the raw connection
+	private final Connection pooledConnection;
+
+	// the underlying raw statement
+	private final Statement wrappedStatement;
+
+	// the SQL text of a prepared or callable statement, null for plain statements
+	private final String preparedSql;
+	
+	// the handler of the pooled connection keeping track of the open statements, null when they are not tracked
+	private final PooledConnectionProxy connectionHandler;
+	
+	// the result sets obtained from the statement that were still open when last looked at, only when tracked
+	@GuardedBy("this") private List<ResultSet> resultSets;
+
+	/**
+	 * Construct a new instance.
+	 *
+	 * @param statistics the statistics the executions are recorded in, or <code>null</code> if not collected
+	 * @param connectionPool the pool the errors are reported to
+	 * @param rawConnection the physical connection that created the statement
+	 * @param pooledConnection the pooled connection that created the statement
+	 * @param statement the raw statement to be wrapped
+	 * @param preparedSql the SQL the statement was prepared with, or <code>null</code> for plain statements
+	 * @param connectionHandler the handler of the pooled connection keeping track of the open statements, or 
+	 *                          <code>null</code> if they are not tracked
+	 */
+	public PooledStatementProxy(StatementStatistics statistics, AbstractConnectionPool connectionPool, 
+			Connection rawConnection, Connection pooledConnection, Statement statement, String preparedSql, 
+			PooledConnectionProxy connectionHandler) {
+		this.statistics = statistics;
+		this.connectionPool = connectionPool;
+		this.rawConnection = rawConnection;
+		this.pooledConnection = pooledConnection;
+		this.wrappedStatement = statement;
+		this.preparedSql = preparedSql;
+		this.connectionHandler = connectionHandler;
+	}
+
+	/**
+	 * Wrap a statement in a dynamic proxy implementing the given statement interface.
+	 *
+	 * @param statementType the statement interface, e.g. <code>PreparedStatement</code>
+	 * @return the proxy wrapper
+	 */
+	static Object wrap(Class<?> statementType, StatementStatistics statistics, AbstractConnectionPool connectionPool, 
+			Connection rawConnection, Connection pooledConnection, Statement statement, String preparedSql, 
+			PooledConnectionProxy connectionHandler) {
+		PooledStatementProxy handler = new PooledStatementProxy(statistics, connectionPool, rawConnection, pooledConnection,
+				statement, preparedSql, connectionHandler);
+		if (connectionHandler != null)
+			connectionHandler.statementOpened(handler);
+		return Proxy.newProxyInstance(statementType.getClassLoader(), new Class[] { statementType }, handler);
+	}
+	
+	/**
+	 * Close the statement on behalf of a client that left it open, along with its result sets.
+	 * 
+	 * @return the number of result sets that were still open
+	 * @throws SQLException if the statement could not be closed
+	 */
+	int closeLeftOpen() throws SQLException {
+		int openResultSets = 0;
+		synchronized (this) {
+			if (resultSets != null) {
+				pruneClosedResultSets();
+				openResultSets = resultSets.size();
+				resultSets = null;
+			}
+		}
+		// closing the statement closes its result sets
+		wrappedStatement.close();
+		return openResultSets;
+	}
+	
+	/*
+	 * Keep track of a result set obtained from the statement.
+	 */
+	private synchronized void resultSetOpened(ResultSet resultSet) throws SQLException {
+		if (resultSets == null)
+			resultSets = new ArrayList<ResultSet>(2);
+		else // forget about the ones already closed, so a statement executed over and over does not pile them up
+			pruneClosedResultSets();
+		resultSets.add(resultSet);
+	}
+	
+	@GuardedBy("this")
+	private void pruneClosedResultSets() throws SQLException {
+		for (Iterator<ResultSet> it = resultSets.iterator(); it.hasNext(); ) {
+			if (it.next().isClosed())
+				it.remove();
+		}
+	}
+
+	/*
+	 * The main Java dynamic proxy method that handles all invocations for the proxy object.
+	 */
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+
+		// don't let the client get around the pooled connection through its statements
+		if (name.equals("getConnection") && (args == null || args.length == 0))
+			return pooledConnection;
+
+		// anything other than an execution goes straight through
+		if (!name.startsWith("execute") || statistics == null) {
+			try {
+				return tracked(name, method.invoke(wrappedStatement, args));
+			} catch (InvocationTargetException e) {
+				throw errorOccurred(e.getCause());
+			}
+		}
+
+		// plain statements get their SQL passed in to the execute call, prepared statements were given it up front
+		String sql = (args != null && args.length > 0 && args[0] instanceof String) ? (String) args[0] : preparedSql;
+		if (sql == null)
+			sql = "<batch>";
+		long start = System.nanoTime();
+		try {
+			Object result = method.invoke(wrappedStatement, args);
+			statistics.record(sql, System.nanoTime() - start, countRows(result), false);
+			return tracked(name, result);
+		} catch (InvocationTargetException e) {
+			statistics.record(sql, System.nanoTime() - start, 0, true);
+			throw errorOccurred(e.getCause());
+		}
+	}
+	
+	/*
+	 * Keep track of the result sets handed out and of the closing of the statement, when the open statements are tracked.
+	 */
+	private Object tracked(String name, Object result) throws SQLException {
+		if (connectionHandler != null) {
+			if (result instanceof ResultSet)
+				resultSetOpened((ResultSet) result);
+			else if (name.equals("close"))
+				connectionHandler.statementClosed(this);
+		}
+		return result;
+	}
+	
+	/*
+	 * Report an error raised by the statement to the pool, and hand it back for rethrowing.
+	 */
+	private Throwable errorOccurred(Throwable error) {
+		if (error instanceof SQLException)
+			connectionPool.connectionErrorOccurred(rawConnection, (SQLException) error);
+		return error;
+	}
+
+	/*
+	 * Work out the number of affected rows from the result of an execute call, when it carries that information.
+	 */
+	private static long countRows(Object result) {
+		if (result instanceof Integer)
+			return (Integer) result;
+		if (result instanceof Long)
+			return (Long) result;
+		if (result instanceof int[]) {
+			long rows = 0;
+			for (int count : (int[]) result) {
+				if (count > 0)
+					rows += count;
+			}
+			return rows;
+		}
+		return 0;
+	}
+}
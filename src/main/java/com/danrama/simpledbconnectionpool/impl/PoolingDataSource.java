@@ -0,0 +1,117 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import net.jcip.annotations.ThreadSafe;
+
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolInitializationException;
+
+/**
+ * A <code>javax.sql.DataSource</code> handing out the connections of an <code>ExpandingSizeConnectionPool</code>, for
+ * frameworks that expect a data source.  Closing a connection releases it back to the pool, and the login timeout is how
+ * long a client waits for a connection when the pool has none available.
+ * <p>
+ * The pool itself and its statement statistics can be reached through <code>unwrap()</code>.
+ *
+ * @author Daniel Bloomfield Ramagem
+ * @see DataSourceConnectionSource
+ */
+@ThreadSafe
+public class PoolingDataSource implements DataSource {
+	// the pool handing out the connections
+	private final ExpandingSizeConnectionPool pool;
+
+	// how long to wait for a connection in seconds, 0 to fail right away when the pool is out of connections
+	private volatile int loginTimeout;
+	private volatile PrintWriter logWriter;
+
+	/**
+	 * Create a data source over a pool.  The pool is made to release its connections when they are closed.
+	 *
+	 * @param pool the pool
+	 */
+	public PoolingDataSource(ExpandingSizeConnectionPool pool) {
+		if (pool == null)
+			throw new IllegalArgumentException("pool must be supplied");
+		this.pool = pool;
+		pool.setReleaseOnClose(true);
+	}
+
+	/**
+	 * Create a data source over a new pool of the physical connections of a <code>ConnectionPoolDataSource</code> or an
+	 * <code>XADataSource</code>.  The connections the driver reports broken are evicted from the pool right away.
+	 *
+	 * @param poolMinConnections the minimum pool size
+	 * @param poolMaxConnections the maximum pool size
+	 * @param connectionSource the source of the physical connections
+	 * @throws ConnectionPoolInitializationException
+	 */
+	public PoolingDataSource(int poolMinConnections, int poolMaxConnections, DataSourceConnectionSource connectionSource)
+	throws ConnectionPoolInitializationException {
+		this(new ExpandingSizeConnectionPool(poolMinConnections, poolMaxConnections, connectionSource, null));
+		connectionSource.attach(pool);
+	}
+
+	/**
+	 * Gets the pool handing out the connections.
+	 */
+	public ExpandingSizeConnectionPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Obtains a connection from the pool, waiting up to the login timeout for one to become available.
+	 *
+	 * @return a pooled connection, which is released by closing it
+	 */
+	public Connection getConnection() throws SQLException {
+		int timeoutSeconds = loginTimeout;
+		if (timeoutSeconds == 0)
+			return pool.getConnection();
+		return pool.getConnections(1, timeoutSeconds * 1000L).get(0);
+	}
+
+	/**
+	 * Not supported, the pool connects with its own credentials.  Rotating credentials can be given to the pool through a
+	 * <code>CredentialsProvider</code>.
+	 */
+	public Connection getConnection(String username, String password) throws SQLException {
+		throw new SQLFeatureNotSupportedException("the pool connects with its own credentials");
+	}
+
+	public int getLoginTimeout() {
+		return loginTimeout;
+	}
+	public void setLoginTimeout(int seconds) {
+		if (seconds < 0)
+			throw new IllegalArgumentException("login timeout must be >= 0");
+		loginTimeout = seconds;
+	}
+	public PrintWriter getLogWriter() {
+		return logWriter;
+	}
+	public void setLogWriter(PrintWriter out) {
+		logWriter = out;
+	}
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException("the pool logs through log4j");
+	}
+
+	public boolean isWrapperFor(Class<?> iface) {
+		return iface.isInstance(pool) || iface.isInstance(pool.getStatementStatistics());
+	}
+
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if (iface.isInstance(pool))
+			return iface.cast(pool);
+		if (iface.isInstance(pool.getStatementStatistics()))
+			return iface.cast(pool.getStatementStatistics());
+		throw new SQLException("not a wrapper for " + iface.getName());
+	}
+}
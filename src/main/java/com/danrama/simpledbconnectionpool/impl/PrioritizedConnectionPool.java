@@ -0,0 +1,429 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.danrama.simpledbconnectionpool.ConnectionPool;
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolException;
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolOutOfConnectionsException;
+
+/**
+ * A connection pool layered on top of another pool that shares the underlying capacity between classes of borrowers.  Each
+ * <code>BorrowerClass</code> has a priority and may have part of the capacity reserved for it and/or be capped to a maximum
+ * share of it.  For example, "interactive" traffic may keep 20% of the connections reserved while "batch" work is capped at
+ * 50%, so that a burst of batch jobs can never starve user-facing requests.
+ * <p>
+ * Borrowers that cannot be served right away may wait for a connection to be released.  Waiters are served by priority,
+ * highest first, and by arrival order within the same priority.  A waiter that needs more connections than are free keeps
+ * the ones released for itself until it has enough, rather than watching lower priority borrowers take them.  To make sure low priority borrowers are not starved, the
+ * priority of a waiter grows by one for every aging interval it has spent in the queue.
+ * <p>
+ * The underlying pool is expected to be used exclusively through this pool, and its maximum number of connections should be
+ * the capacity given here.
+ *
+ * @author Daniel Bloomfield Ramagem
+ * @see BorrowerClass
+ */
+@ThreadSafe
+public class PrioritizedConnectionPool implements ConnectionPool {
+	private static final Logger logger = Logger.getLogger(PrioritizedConnectionPool.class);
+
+	// the pool that actually hands out the connections
+	private final ConnectionPool delegate;
+
+	// total number of connections that can be outstanding at any time
+	private final int capacity;
+
+	// how long a waiter has to wait to gain one priority level
+	private final long agingIntervalMillis;
+
+	// the class used by the plain getConnection() call
+	private final ClassState defaultClass;
+
+	// borrower classes by name
+	private final Map<String, ClassState> classes;
+
+	// the borrowers currently waiting for a connection, in arrival order
+	@GuardedBy("this") private final List<Waiter> waiters;
+
+	// the class each outstanding connection was borrowed by
+	@GuardedBy("this") private final Map<Connection, ClassState> borrowedBy;
+
+	// number of connections outstanding across all classes
+	@GuardedBy("this") private int totalInUse;
+
+	// sequence number used to order waiters of the same priority by arrival
+	@GuardedBy("this") private long nextWaiterSeq;
+
+	/*
+	 * The usage state of a single borrower class.
+	 */
+	private static class ClassState {
+		final BorrowerClass borrowerClass;
+		final int reserved;
+		final int max;
+		@GuardedBy("PrioritizedConnectionPool.this") int inUse;
+
+		ClassState(BorrowerClass borrowerClass, int capacity) {
+			this.borrowerClass = borrowerClass;
+			this.reserved = borrowerClass.getReservedConnections(capacity);
+			this.max = borrowerClass.getMaxConnections(capacity);
+		}
+	}
+
+	/*
+	 * A borrower waiting for one or more connections.
+	 */
+	private static class Waiter {
+		final ClassState classState;
+		final int count;
+		final long seq;
+		final long enqueuedAtMillis;
+		boolean granted;
+
+		Waiter(ClassState classState, int count, long seq, long enqueuedAtMillis) {
+			this.classState = classState;
+			this.count = count;
+			this.seq = seq;
+			this.enqueuedAtMillis = enqueuedAtMillis;
+		}
+
+		long effectivePriority(long now, long agingIntervalMillis) {
+			long aging = agingIntervalMillis > 0 ? (now - enqueuedAtMillis) / agingIntervalMillis : 0;
+			return classState.borrowerClass.getPriority() + aging;
+		}
+	}
+
+	/**
+	 * Create a prioritized pool on top of another pool.
+	 *
+	 * @param delegate the underlying pool
+	 * @param capacity the maximum number of connections of the underlying pool
+	 * @param agingIntervalMillis time after which a waiting borrower is bumped up one priority level, 0 to disable aging
+	 * @param borrowerClasses the borrower classes; the first one is used by the plain <code>getConnection()</code> call
+	 */
+	public PrioritizedConnectionPool(ConnectionPool delegate, int capacity, long agingIntervalMillis,
+			BorrowerClass... borrowerClasses) {
+		// check that valid params were passed
+		if (delegate == null)
+			throw new IllegalArgumentException("underlying pool must be supplied");
+		if (capacity < 1)
+			throw new IllegalArgumentException("pool capacity must be > 0");
+		if (agingIntervalMillis < 0)
+			throw new IllegalArgumentException("aging interval must be >= 0");
+		if (borrowerClasses == null || borrowerClasses.length == 0)
+			throw new IllegalArgumentException("at least one borrower class must be supplied");
+
+		this.delegate = delegate;
+		this.capacity = capacity;
+		this.agingIntervalMillis = agingIntervalMillis;
+		classes = new HashMap<String, ClassState>();
+		int totalReserved = 0;
+		for (BorrowerClass borrowerClass : borrowerClasses) {
+			ClassState classState = new ClassState(borrowerClass, capacity);
+			if (classes.put(borrowerClass.getName(), classState) != null)
+				throw new IllegalArgumentException("duplicate borrower class: " + borrowerClass.getName());
+			totalReserved += classState.reserved;
+		}
+		if (totalReserved > capacity)
+			throw new IllegalArgumentException("reserved connections exceed the pool capacity");
+		defaultClass = classes.get(borrowerClasses[0].getName());
+		waiters = new ArrayList<Waiter>();
+		borrowedBy = new IdentityHashMap<Connection, ClassState>();
+
+		logger.info("created prioritized pool(capacity:" + capacity + ", classes:" + classes.size() + ")");
+	}
+
+	// ----- getters for the pool state, useful for tests and monitoring -----
+	public int getCapacity() {
+		return capacity;
+	}
+	public synchronized int getTotalInUse() {
+		return totalInUse;
+	}
+	public synchronized int getInUse(String className) {
+		return getClassState(className).inUse;
+	}
+	public synchronized int getNumWaiters() {
+		return waiters.size();
+	}
+
+	private ClassState getClassState(String className) {
+		ClassState classState = classes.get(className);
+		if (classState == null)
+			throw new IllegalArgumentException("unknown borrower class: " + className);
+		return classState;
+	}
+
+	/*
+	 * Checks whether connections can be given to a borrower of the given class without breaking its maximum share.
+	 */
+	@GuardedBy("this")
+	private boolean isWithinMax(ClassState classState, int count) {
+		return classState.inUse + count <= classState.max;
+	}
+
+	/*
+	 * Checks whether the pool has the connections free for a borrower of the given class without eating into the capacity
+	 * reserved for the other classes.
+	 */
+	@GuardedBy("this")
+	private boolean hasCapacity(ClassState classState, int count) {
+		int reservedForOthers = 0;
+		for (ClassState other : classes.values()) {
+			if (other != classState)
+				reservedForOthers += Math.max(0, other.reserved - other.inUse);
+		}
+		return totalInUse + count + reservedForOthers <= capacity;
+	}
+
+	/*
+	 * Hands out as many permits as possible to the waiters, best effective priority first.  A waiter held back by the
+	 * maximum share of its class does not hold back the waiters behind it.  A waiter held back because too few connections
+	 * are free, e.g. one that needs several at once, keeps the free connections for itself: from then on only waiters that
+	 * fit in the unused reservation of their own class are served, as that capacity could not go to it anyway.
+	 */
+	@GuardedBy("this")
+	private void dispatch() {
+		boolean grantedAny = false;
+		long now = System.currentTimeMillis();
+		Waiter blocked = null;
+		while (true) {
+			Waiter best = null;
+			long bestPriority = 0;
+			for (Waiter waiter : waiters) {
+				if (!isWithinMax(waiter.classState, waiter.count))
+					continue;
+				if (blocked != null && (waiter == blocked ||
+						waiter.classState.inUse + waiter.count > waiter.classState.reserved))
+					continue;
+				long priority = waiter.effectivePriority(now, agingIntervalMillis);
+				if (best == null || priority > bestPriority || (priority == bestPriority && waiter.seq < best.seq)) {
+					best = waiter;
+					bestPriority = priority;
+				}
+			}
+			if (best == null)
+				break;
+			if (!hasCapacity(best.classState, best.count)) {
+				if (blocked != null)
+					break;
+				blocked = best;
+				continue;
+			}
+
+			waiters.remove(best);
+			best.granted = true;
+			best.classState.inUse += best.count;
+			totalInUse += best.count;
+			grantedAny = true;
+		}
+		if (grantedAny)
+			notifyAll();
+	}
+
+	/*
+	 * Obtain permits for the given class, all at once, waiting up to the timeout for them to become available.
+	 */
+	private synchronized void acquirePermits(ClassState classState, int count, long timeoutMillis) 
+	throws ConnectionPoolException {
+		Waiter waiter = new Waiter(classState, count, nextWaiterSeq++, System.currentTimeMillis());
+		waiters.add(waiter);
+		dispatch();
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		try {
+			while (!waiter.granted) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					waiters.remove(waiter);
+					if (delegate instanceof AbstractConnectionPool)
+						((AbstractConnectionPool) delegate).fireWaitTimedOut(TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+					logger.warn("get connection for class " + classState.borrowerClass.getName() + " was unsuccessful: " +
+							"no connection became available within " + timeoutMillis + "ms");
+					throw new ConnectionPoolOutOfConnectionsException("no connection available for borrower class " +
+							classState.borrowerClass.getName());
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			if (waiter.granted) {
+				releasePermits(classState, count);
+			} else {
+				waiters.remove(waiter);
+			}
+			throw new ConnectionPoolOutOfConnectionsException("interrupted while waiting for a connection", e);
+		}
+	}
+
+	private synchronized void releasePermits(ClassState classState, int count) {
+		classState.inUse -= count;
+		totalInUse -= count;
+		dispatch();
+	}
+
+	/**
+	 * Obtains a connection for the first borrower class given at construction, without waiting.
+	 *
+	 * @return a connection from the underlying pool
+	 * @throws ConnectionPoolOutOfConnectionsException if the class may not be given a connection right now
+	 */
+	public Connection getConnection() throws SQLException {
+		return getConnection(defaultClass.borrowerClass.getName(), 0);
+	}
+
+	/**
+	 * Obtains a connection on behalf of a borrower class, waiting if necessary.
+	 *
+	 * @param className the name of the borrower class
+	 * @param timeoutMillis maximum time to wait for a connection, 0 to fail right away
+	 * @return a connection from the underlying pool
+	 * @throws ConnectionPoolOutOfConnectionsException if no connection could be given to the class within the timeout
+	 * @throws SQLException if the underlying pool fails to hand out a connection
+	 */
+	public Connection getConnection(String className, long timeoutMillis) throws SQLException {
+		ClassState classState = getClassState(className);
+		acquirePermits(classState, 1, timeoutMillis);
+
+		// we hold a permit, so the underlying pool should have a connection for us
+		Connection conn;
+		try {
+			conn = delegate.getConnection();
+		} catch (SQLException e) {
+			releasePermits(classState, 1);
+			throw e;
+		} catch (RuntimeException e) {
+			releasePermits(classState, 1);
+			throw e;
+		}
+
+		synchronized (this) {
+			borrowedBy.put(conn, classState);
+		}
+		return conn;
+	}
+
+	/**
+	 * Return a connection to the underlying pool and hand its slot to the best waiting borrower, if any.
+	 *
+	 * @param connection a connection obtained from this pool
+	 */
+	public void releaseConnection(Connection connection) throws SQLException {
+		ClassState classState;
+		synchronized (this) {
+			classState = borrowedBy.remove(connection);
+		}
+
+		// a connection we don't know about may have been released already, let the underlying pool complain about it
+		if (classState == null) {
+			delegate.releaseConnection(connection);
+			return;
+		}
+
+		try {
+			delegate.releaseConnection(connection);
+		} finally {
+			releasePermits(classState, 1);
+		}
+	}
+
+	/**
+	 * Obtains several connections at once for the first borrower class given at construction.
+	 *
+	 * @see #getConnections(String, int, long)
+	 */
+	public List<Connection> getConnections(int count, long timeoutMillis) throws SQLException {
+		return getConnections(defaultClass.borrowerClass.getName(), count, timeoutMillis);
+	}
+
+	/**
+	 * Obtains several connections at once on behalf of a borrower class.  Permits for all of the connections are granted
+	 * in a single step, so the borrower either gets every connection or none of them.
+	 *
+	 * @param className the name of the borrower class
+	 * @param count the number of connections needed
+	 * @param timeoutMillis maximum time to wait for the connections, 0 to fail right away
+	 * @return connections from the underlying pool
+	 * @throws ConnectionPoolOutOfConnectionsException if the connections could not be given to the class within the timeout
+	 * @throws SQLException if the underlying pool fails to hand out the connections
+	 */
+	public List<Connection> getConnections(String className, int count, long timeoutMillis) throws SQLException {
+		ClassState classState = getClassState(className);
+		if (count < 1 || count > classState.max)
+			throw new IllegalArgumentException("connection count must be between 1 and the borrower class maximum");
+		acquirePermits(classState, count, timeoutMillis);
+
+		// we hold the permits, so the underlying pool should have the connections for us
+		List<Connection> connections;
+		try {
+			connections = delegate.getConnections(count, 0);
+		} catch (SQLException e) {
+			releasePermits(classState, count);
+			throw e;
+		} catch (RuntimeException e) {
+			releasePermits(classState, count);
+			throw e;
+		}
+
+		synchronized (this) {
+			for (Connection conn : connections)
+				borrowedBy.put(conn, classState);
+		}
+		return connections;
+	}
+
+	/**
+	 * Return several connections to the underlying pool at once, handing their slots to the waiting borrowers.
+	 *
+	 * @param connections connections obtained from this pool
+	 */
+	public void releaseConnections(Collection<? extends Connection> connections) throws SQLException {
+		Map<ClassState, Integer> released = new HashMap<ClassState, Integer>();
+		synchronized (this) {
+			for (Connection connection : connections) {
+				ClassState classState = borrowedBy.remove(connection);
+				if (classState != null) {
+					Integer count = released.get(classState);
+					released.put(classState, count == null ? 1 : count + 1);
+				}
+			}
+		}
+
+		try {
+			delegate.releaseConnections(connections);
+		} finally {
+			synchronized (this) {
+				for (Map.Entry<ClassState, Integer> entry : released.entrySet()) {
+					entry.getKey().inUse -= entry.getValue();
+					totalInUse -= entry.getValue();
+				}
+				dispatch();
+			}
+		}
+	}
+
+	/*
+	 * A brief summary of the state of the pool, useful in log messages.
+	 */
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder("prioritized pool(capacity=" + capacity + ", inUse=" + totalInUse);
+		for (ClassState classState : classes.values()) {
+			sb.append(", ").append(classState.borrowerClass.getName()).append('=').append(classState.inUse);
+		}
+		return sb.append(", waiters=").append(waiters.size()).append(')').toString();
+	}
+}
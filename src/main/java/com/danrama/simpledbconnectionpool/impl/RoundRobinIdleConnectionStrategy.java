@@ -0,0 +1,119 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.sql.Connection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * Hands out the connections in a fixed rotation, regardless of the order they are returned in.  Each connection gets a slot
+ * in a ring the first time it becomes idle and keeps it until it is closed.  A cursor goes around the ring, handing out the
+ * next idle connection after the one handed out last, so every connection gets an even share of the load even when some
+ * borrowers return their connections much faster than others.
+ * <p>
+ * The idle slots are tracked in a bitmap, so finding the next one takes a word scan per 64 slots: constant time for pools
+ * of usual sizes.
+ *
+ * @author Daniel Bloomfield Ramagem
+ */
+@NotThreadSafe
+public class RoundRobinIdleConnectionStrategy implements IdleConnectionStrategy {
+	// the ring of slots, and the slot of each connection
+	private Connection[] slots = new Connection[64];
+	private final Map<Connection, Integer> slotIndexes = new IdentityHashMap<Connection, Integer>();
+
+	// bit i is set when the connection in slot i is idle
+	private long[] idleBits = new long[1];
+
+	// slots given back by closed connections, reused before the ring grows
+	private int[] freeSlots = new int[8];
+	private int freeSlotCount;
+	private int usedSlotCount;
+
+	// the slot the search for the next idle connection starts from
+	private int cursor;
+	private int size;
+
+	public void add(Connection connection) {
+		Integer slot = slotIndexes.get(connection);
+		if (slot == null) {
+			slot = allocateSlot();
+			slots[slot] = connection;
+			slotIndexes.put(connection, slot);
+		}
+		idleBits[slot >> 6] |= 1L << slot;
+		size++;
+	}
+
+	public Connection take() {
+		if (size == 0)
+			return null;
+		int slot = nextIdleSlot(cursor);
+		if (slot < 0)
+			slot = nextIdleSlot(0); // wrap around the ring
+		idleBits[slot >> 6] &= ~(1L << slot);
+		size--;
+		cursor = slot + 1 == slots.length ? 0 : slot + 1;
+		return slots[slot];
+	}
+
+	public boolean remove(Connection connection) {
+		Integer slot = slotIndexes.get(connection);
+		if (slot == null || (idleBits[slot >> 6] & (1L << slot)) == 0)
+			return false;
+		idleBits[slot >> 6] &= ~(1L << slot);
+		size--;
+		return true;
+	}
+
+	public void discarded(Connection connection) {
+		Integer slot = slotIndexes.remove(connection);
+		if (slot == null)
+			return;
+		if ((idleBits[slot >> 6] & (1L << slot)) != 0) {
+			idleBits[slot >> 6] &= ~(1L << slot);
+			size--;
+		}
+		slots[slot] = null;
+		if (freeSlotCount == freeSlots.length) {
+			int[] grown = new int[freeSlots.length * 2];
+			System.arraycopy(freeSlots, 0, grown, 0, freeSlotCount);
+			freeSlots = grown;
+		}
+		freeSlots[freeSlotCount++] = slot;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private int allocateSlot() {
+		if (freeSlotCount > 0)
+			return freeSlots[--freeSlotCount];
+		if (usedSlotCount == slots.length) {
+			Connection[] grownSlots = new Connection[slots.length * 2];
+			System.arraycopy(slots, 0, grownSlots, 0, slots.length);
+			slots = grownSlots;
+			long[] grownBits = new long[grownSlots.length >> 6];
+			System.arraycopy(idleBits, 0, grownBits, 0, idleBits.length);
+			idleBits = grownBits;
+		}
+		return usedSlotCount++;
+	}
+
+	/*
+	 * Find the first idle slot at or after the given one, or -1 if there is none before the end of the ring.
+	 */
+	private int nextIdleSlot(int from) {
+		int word = from >> 6;
+		long bits = idleBits[word] & (-1L << from);
+		while (true) {
+			if (bits != 0)
+				return (word << 6) + Long.numberOfTrailingZeros(bits);
+			if (++word == idleBits.length)
+				return -1;
+			bits = idleBits[word];
+		}
+	}
+}
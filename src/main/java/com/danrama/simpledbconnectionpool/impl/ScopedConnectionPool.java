@@ -0,0 +1,308 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.danrama.simpledbconnectionpool.ConnectionPool;
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolAlreadyReleasedConnectionException;
+
+/**
+ * A connection pool layered on top of another pool that binds a single connection to a thread for the duration of a scope,
+ * e.g. the handling of one request or one transaction.
+ * <p>
+ * Inside an active scope, the first <code>getConnection()</code> call made by the thread borrows a connection from the
+ * underlying pool and binds it to the scope.  That call and any nested <code>getConnection()</code> calls return lightweight
+ * handles to the bound connection, so layered code that borrows a connection several times only ever takes one slot of the
+ * underlying pool.  Releasing or closing a handle only retires that handle; the bound connection goes back to the
+ * underlying pool when the outermost scope ends.
+ * <p>
+ * As the handles share the same connection they also share its transaction, which belongs to the scope: it begins when the
+ * connection is bound and ends with the outermost scope.  The handles cannot end it on their own, as committing or rolling
+ * back the work of the code further up the stack would leave that code with half a transaction.  Committing through a
+ * handle does nothing, the work is committed when the scope ends.  Rolling back through a handle marks the transaction
+ * rollback-only, so that the scope rolls it back when it ends, as does calling <code>setRollbackOnly()</code>.  Changing
+ * the auto-commit mode through a handle is refused.
+ * <p>
+ * Outside of a scope, calls go straight to the underlying pool.
+ *
+ * @author Daniel Bloomfield Ramagem
+ */
+@ThreadSafe
+public class ScopedConnectionPool implements ConnectionPool {
+	private static final Logger logger = Logger.getLogger(ScopedConnectionPool.class);
+
+	// the pool that actually hands out the connections
+	private final ConnectionPool delegate;
+
+	// the scope active on each thread, if any
+	private final ThreadLocal<Scope> currentScope = new ThreadLocal<Scope>();
+
+	/*
+	 * The state of a scope.  Only ever accessed by the thread that owns it.
+	 */
+	private static class Scope {
+		// number of nested beginScope() calls still to be ended
+		int depth;
+
+		// the connection bound to the scope, null until the first borrow
+		Connection boundConnection;
+
+		// whether the bound connection was in auto-commit mode before the scope took over its transaction
+		boolean restoreAutoCommit;
+
+		// whether the transaction of the scope is to be rolled back when the scope ends, handles may be used on other threads
+		volatile boolean rollbackOnly;
+
+		// the handles given out for the bound connection
+		final List<ScopedConnectionHandle> handles = new ArrayList<ScopedConnectionHandle>();
+	}
+
+	/*
+	 * The invocation handler of the handles to a bound connection.  Closing the handle retires it without touching the
+	 * bound connection, and the transaction control calls are left to the scope.
+	 */
+	private static class ScopedConnectionHandle implements InvocationHandler {
+		private final Scope scope;
+		@GuardedBy("this") private Connection boundConnection;
+
+		ScopedConnectionHandle(Scope scope) {
+			this.scope = scope;
+			this.boundConnection = scope.boundConnection;
+		}
+
+		synchronized void retire() {
+			boundConnection = null;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			Connection target;
+			synchronized (this) {
+				// closing a handle only retires it, the bound connection stays open until the scope ends
+				if (method.getName().equals("close")) {
+					boundConnection = null;
+					return null;
+				}
+				if (method.getName().equals("isClosed") && boundConnection == null)
+					return true;
+				if (boundConnection == null)
+					throw new ConnectionPoolAlreadyReleasedConnectionException();
+				target = boundConnection;
+			}
+
+			// the transaction belongs to the scope, the scope commits or rolls it back when it ends
+			String name = method.getName();
+			boolean noArgs = args == null || args.length == 0;
+			if (name.equals("commit") && noArgs)
+				return null;
+			if (name.equals("rollback") && noArgs) {
+				scope.rollbackOnly = true;
+				return null;
+			}
+			if (name.equals("setAutoCommit"))
+				throw new SQLException("the transaction of a scoped connection is controlled by its scope");
+
+			try {
+				return method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	/**
+	 * Create a scoped pool on top of another pool.
+	 *
+	 * @param delegate the underlying pool
+	 */
+	public ScopedConnectionPool(ConnectionPool delegate) {
+		if (delegate == null)
+			throw new IllegalArgumentException("underlying pool must be supplied");
+		this.delegate = delegate;
+	}
+
+	/**
+	 * Start a scope on the calling thread.  Scopes may be nested, in which case the inner scopes join the outermost one.
+	 * Every call must be paired with a call to <code>endScope()</code>, normally in a <code>finally</code> block.
+	 *
+	 * @see #endScope()
+	 */
+	public void beginScope() {
+		Scope scope = currentScope.get();
+		if (scope == null) {
+			scope = new Scope();
+			currentScope.set(scope);
+		}
+		scope.depth++;
+	}
+
+	/**
+	 * End the innermost scope on the calling thread.  When the outermost scope ends, the handles to the bound connection
+	 * become unusable, the transaction of the scope is committed, or rolled back if it was marked rollback-only, and the
+	 * bound connection is released to the underlying pool.
+	 *
+	 * @throws IllegalStateException if there is no active scope on the calling thread
+	 * @throws SQLException if the transaction could not be ended or the underlying pool fails to release the bound
+	 *                      connection; the connection is released either way
+	 * @see #beginScope()
+	 * @see #setRollbackOnly()
+	 */
+	public void endScope() throws SQLException {
+		Scope scope = currentScope.get();
+		if (scope == null)
+			throw new IllegalStateException("no connection scope is active on this thread");
+		if (--scope.depth > 0)
+			return;
+
+		currentScope.remove();
+		for (ScopedConnectionHandle handle : scope.handles)
+			handle.retire();
+		if (scope.boundConnection != null) {
+			logger.debug("scope ended, releasing its bound connection (handles: " + scope.handles.size() + ", rollback: " +
+					scope.rollbackOnly + ")");
+			try {
+				endTransaction(scope);
+			} finally {
+				delegate.releaseConnection(scope.boundConnection);
+			}
+		}
+	}
+
+	/*
+	 * Commit or roll back the transaction of a scope, and hand the auto-commit mode back to the connection.  A transaction
+	 * that fails to commit is rolled back, so that turning auto-commit back on does not commit what is left of it.
+	 */
+	private static void endTransaction(Scope scope) throws SQLException {
+		Connection connection = scope.boundConnection;
+		boolean committed = false;
+		try {
+			if (!scope.rollbackOnly) {
+				connection.commit();
+				committed = true;
+			}
+		} finally {
+			if (!committed)
+				connection.rollback();
+			if (scope.restoreAutoCommit)
+				connection.setAutoCommit(true);
+		}
+	}
+
+	/**
+	 * Mark the transaction of the scope active on the calling thread to be rolled back when the outermost scope ends, e.g.
+	 * because the work done in the scope failed.  Rolling back through any of the handles of the scope does the same.
+	 *
+	 * @throws IllegalStateException if there is no active scope on the calling thread
+	 */
+	public void setRollbackOnly() {
+		Scope scope = currentScope.get();
+		if (scope == null)
+			throw new IllegalStateException("no connection scope is active on this thread");
+		scope.rollbackOnly = true;
+	}
+
+	/**
+	 * Checks whether the calling thread is inside a scope.
+	 */
+	public boolean isScopeActive() {
+		return currentScope.get() != null;
+	}
+
+	/**
+	 * Obtains a connection.  Inside a scope this is a handle to the connection bound to the scope, which is borrowed from
+	 * the underlying pool on the first call, taken out of auto-commit mode and left in the transaction of the scope.
+	 * Outside of a scope the connection comes straight from the underlying pool.
+	 *
+	 * @return a connection, or a handle to the bound connection
+	 */
+	public Connection getConnection() throws SQLException {
+		Scope scope = currentScope.get();
+		if (scope == null)
+			return delegate.getConnection();
+
+		if (scope.boundConnection == null) {
+			Connection connection = delegate.getConnection();
+			try {
+				if (connection.getAutoCommit()) {
+					connection.setAutoCommit(false);
+					scope.restoreAutoCommit = true;
+				}
+			} catch (SQLException e) {
+				delegate.releaseConnection(connection);
+				throw e;
+			}
+			scope.boundConnection = connection;
+		}
+		ScopedConnectionHandle handle = new ScopedConnectionHandle(scope);
+		scope.handles.add(handle);
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[] { Connection.class },
+				handle);
+	}
+
+	/**
+	 * Releases a connection.  A handle to a bound connection is only retired, the bound connection itself stays with the
+	 * scope.  Any other connection is released to the underlying pool.
+	 *
+	 * @param connection the connection or handle being released
+	 */
+	public void releaseConnection(Connection connection) throws SQLException {
+		ScopedConnectionHandle handle = getHandle(connection);
+		if (handle != null) {
+			handle.retire();
+			return;
+		}
+		delegate.releaseConnection(connection);
+	}
+
+	/**
+	 * Obtains several connections at once from the underlying pool.  These are never bound to a scope, as the caller
+	 * explicitly needs distinct connections.
+	 *
+	 * @see ConnectionPool#getConnections(int, long)
+	 */
+	public List<Connection> getConnections(int count, long timeoutMillis) throws SQLException {
+		return delegate.getConnections(count, timeoutMillis);
+	}
+
+	/**
+	 * Releases several connections at once, retiring the handles to bound connections and releasing the rest to the
+	 * underlying pool.
+	 *
+	 * @see ConnectionPool#releaseConnections(Collection)
+	 */
+	public void releaseConnections(Collection<? extends Connection> connections) throws SQLException {
+		List<Connection> pooledConnections = new ArrayList<Connection>(connections.size());
+		for (Connection connection : connections) {
+			ScopedConnectionHandle handle = getHandle(connection);
+			if (handle != null)
+				handle.retire();
+			else
+				pooledConnections.add(connection);
+		}
+		if (!pooledConnections.isEmpty())
+			delegate.releaseConnections(pooledConnections);
+	}
+
+	/*
+	 * Gets the invocation handler of a handle to a bound connection, or null if the connection is not such a handle.
+	 */
+	private static ScopedConnectionHandle getHandle(Connection connection) {
+		if (connection != null && Proxy.isProxyClass(connection.getClass())) {
+			InvocationHandler handler = Proxy.getInvocationHandler(connection);
+			if (handler instanceof ScopedConnectionHandle)
+				return (ScopedConnectionHandle) handler;
+		}
+		return null;
+	}
+}
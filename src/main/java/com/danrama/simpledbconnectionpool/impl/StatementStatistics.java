@@ -0,0 +1,300 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.danrama.simpledbconnectionpool.SlowQueryListener;
+
+/**
+ * Collects execution statistics for the SQL statements run through the connections of a pool.  Statements are aggregated
+ * by their normalized SQL text, i.e. with literals replaced by <code>?</code> and whitespace collapsed, so that the same
+ * query run with different values is counted once.
+ * <p>
+ * The number of distinct statements tracked is bounded.  When a new statement shows up and the table is full, the tracked
+ * statement with the least total execution time is dropped to make room for it, so the table converges to the top
+ * statements by total time.
+ * <p>
+ * The normalized form of the most recently executed SQL texts is cached, so that the statements run over and over again,
+ * e.g. prepared statements, are only normalized once.
+ * <p>
+ * Optionally, a <code>SlowQueryListener</code> is notified of every execution that takes longer than a threshold.
+ *
+ * @author Daniel Bloomfield Ramagem
+ * @see AbstractConnectionPool#setStatementStatistics(StatementStatistics)
+ */
+@ThreadSafe
+public class StatementStatistics {
+	private static final Logger logger = Logger.getLogger(StatementStatistics.class);
+
+	// patterns used to normalize the SQL text
+	private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+	private static final Pattern NUMERIC_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+	private static final Pattern IN_LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+	// number of SQL texts whose normalized form is cached
+	private static final int NORMALIZED_SQL_CACHE_SIZE = 1024;
+
+	// maximum number of distinct statements tracked
+	private final int maxStatements;
+
+	// executions at least this long are reported to the slow query listener
+	private final long slowQueryThresholdNanos;
+	private final SlowQueryListener slowQueryListener;
+
+	// the aggregated statistics by normalized SQL text
+	@GuardedBy("this") private final Map<String, Aggregate> aggregates;
+
+	// the same statistics ordered by total execution time, cheapest first, to find the statement to drop
+	@GuardedBy("this") private final SortedSet<Aggregate> aggregatesByCost;
+
+	// the normalized SQL text by SQL text as executed, least recently used first
+	@GuardedBy("this") private final Map<String, String> normalizedSql;
+
+	// number of statements dropped from the table to make room for new ones
+	@GuardedBy("this") private long evictedCount;
+
+	/*
+	 * The mutable statistics of a single normalized statement.
+	 */
+	private static class Aggregate {
+		final String sql;
+		long executions;
+		long errors;
+		long rows;
+		long totalNanos;
+		long maxNanos;
+
+		Aggregate(String sql) {
+			this.sql = sql;
+		}
+	}
+
+	/**
+	 * A point-in-time copy of the statistics of a single normalized statement.
+	 */
+	@Immutable
+	public static final class Snapshot {
+		private final String sql;
+		private final long executions;
+		private final long errors;
+		private final long rows;
+		private final long totalNanos;
+		private final long maxNanos;
+
+		Snapshot(Aggregate aggregate) {
+			sql = aggregate.sql;
+			executions = aggregate.executions;
+			errors = aggregate.errors;
+			rows = aggregate.rows;
+			totalNanos = aggregate.totalNanos;
+			maxNanos = aggregate.maxNanos;
+		}
+
+		public String getSql() {
+			return sql;
+		}
+		public long getExecutions() {
+			return executions;
+		}
+		public long getErrors() {
+			return errors;
+		}
+		// rows reported by updates and batches, queries do not count their result set rows
+		public long getRows() {
+			return rows;
+		}
+		public long getTotalNanos() {
+			return totalNanos;
+		}
+		public long getMaxNanos() {
+			return maxNanos;
+		}
+		public long getAverageNanos() {
+			return executions == 0 ? 0 : totalNanos / executions;
+		}
+
+		@Override
+		public String toString() {
+			return sql + " (executions=" + executions + ", errors=" + errors + ", rows=" + rows + ", totalMs=" +
+					TimeUnit.NANOSECONDS.toMillis(totalNanos) + ", maxMs=" + TimeUnit.NANOSECONDS.toMillis(maxNanos) + ")";
+		}
+	}
+
+	/**
+	 * Create a statistics table without slow query reporting.
+	 *
+	 * @param maxStatements maximum number of distinct statements to track
+	 */
+	public StatementStatistics(int maxStatements) {
+		this(maxStatements, 0, null);
+	}
+
+	/**
+	 * Create a statistics table that also reports slow queries.
+	 *
+	 * @param maxStatements maximum number of distinct statements to track
+	 * @param slowQueryThresholdMillis executions taking at least this long are reported
+	 * @param slowQueryListener the listener slow queries are reported to, may be <code>null</code>
+	 */
+	public StatementStatistics(int maxStatements, long slowQueryThresholdMillis, SlowQueryListener slowQueryListener) {
+		if (maxStatements < 1)
+			throw new IllegalArgumentException("maximum statements must be > 0");
+		if (slowQueryThresholdMillis < 0)
+			throw new IllegalArgumentException("slow query threshold must be >= 0");
+
+		this.maxStatements = maxStatements;
+		this.slowQueryThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowQueryThresholdMillis);
+		this.slowQueryListener = slowQueryListener;
+		aggregates = new HashMap<String, Aggregate>();
+		aggregatesByCost = new TreeSet<Aggregate>(new Comparator<Aggregate>() {
+			public int compare(Aggregate a1, Aggregate a2) {
+				if (a1.totalNanos != a2.totalNanos)
+					return a1.totalNanos < a2.totalNanos ? -1 : 1;
+				return a1.sql.compareTo(a2.sql);
+			}
+		});
+		normalizedSql = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > NORMALIZED_SQL_CACHE_SIZE;
+			}
+		};
+	}
+
+	/**
+	 * Normalize a SQL statement so that executions that only differ by their literal values are aggregated together.
+	 *
+	 * @param sql the SQL text
+	 * @return the SQL text with literals replaced by <code>?</code>, IN lists collapsed and whitespace collapsed
+	 */
+	public static String normalizeSql(String sql) {
+		if (sql == null)
+			return "";
+		String normalized = STRING_LITERAL.matcher(sql).replaceAll("?");
+		normalized = NUMERIC_LITERAL.matcher(normalized).replaceAll("?");
+		normalized = IN_LIST.matcher(normalized).replaceAll("(?)");
+		return WHITESPACE.matcher(normalized).replaceAll(" ").trim();
+	}
+
+	/**
+	 * Record the execution of a statement.
+	 *
+	 * @param sql the SQL text as executed
+	 * @param elapsedNanos how long the execution took
+	 * @param rows number of rows affected, if known
+	 * @param failed whether the execution ended with an error
+	 */
+	public void record(String sql, long elapsedNanos, long rows, boolean failed) {
+		String normalized = cachedNormalizeSql(sql);
+		synchronized (this) {
+			Aggregate aggregate = aggregates.get(normalized);
+			if (aggregate == null) {
+				if (aggregates.size() >= maxStatements)
+					evictLeastExpensive();
+				aggregate = new Aggregate(normalized);
+				aggregates.put(normalized, aggregate);
+			} else {
+				// the set is ordered by the total time, so take the statement out while it changes
+				aggregatesByCost.remove(aggregate);
+			}
+			aggregate.executions++;
+			if (failed)
+				aggregate.errors++;
+			if (rows > 0)
+				aggregate.rows += rows;
+			aggregate.totalNanos += elapsedNanos;
+			aggregate.maxNanos = Math.max(aggregate.maxNanos, elapsedNanos);
+			aggregatesByCost.add(aggregate);
+		}
+
+		if (slowQueryListener != null && elapsedNanos >= slowQueryThresholdNanos) {
+			try {
+				slowQueryListener.slowQuery(sql, elapsedNanos, failed);
+			} catch (RuntimeException e) {
+				logger.warn("slow query listener failed", e);
+			}
+		}
+	}
+
+	/*
+	 * Normalize the SQL text, or get its normalized form from the cache.  The regular expressions are run outside of the
+	 * lock, so two threads may both normalize a new SQL text, which is harmless.
+	 */
+	private String cachedNormalizeSql(String sql) {
+		if (sql == null)
+			return normalizeSql(sql);
+		String normalized;
+		synchronized (this) {
+			normalized = normalizedSql.get(sql);
+		}
+		if (normalized == null) {
+			normalized = normalizeSql(sql);
+			synchronized (this) {
+				normalizedSql.put(sql, normalized);
+			}
+		}
+		return normalized;
+	}
+
+	@GuardedBy("this")
+	private void evictLeastExpensive() {
+		Aggregate cheapest = aggregatesByCost.first();
+		aggregatesByCost.remove(cheapest);
+		aggregates.remove(cheapest.sql);
+		evictedCount++;
+	}
+
+	/**
+	 * Gets the statements with the highest total execution time.
+	 *
+	 * @param n maximum number of statements to return
+	 * @return copies of the statement statistics, most expensive first
+	 */
+	public List<Snapshot> getTopStatements(int n) {
+		List<Snapshot> snapshots = new ArrayList<Snapshot>();
+		synchronized (this) {
+			for (Aggregate aggregate : aggregates.values())
+				snapshots.add(new Snapshot(aggregate));
+		}
+		Collections.sort(snapshots, new Comparator<Snapshot>() {
+			public int compare(Snapshot s1, Snapshot s2) {
+				return s1.totalNanos < s2.totalNanos ? 1 : (s1.totalNanos == s2.totalNanos ? 0 : -1);
+			}
+		});
+		return snapshots.size() > n ? new ArrayList<Snapshot>(snapshots.subList(0, n)) : snapshots;
+	}
+
+	/**
+	 * Gets the number of statements dropped from the table to make room for new ones.
+	 */
+	public synchronized long getEvictedCount() {
+		return evictedCount;
+	}
+
+	/**
+	 * Forget all of the statistics collected so far.
+	 */
+	public synchronized void clear() {
+		aggregates.clear();
+		aggregatesByCost.clear();
+		evictedCount = 0;
+	}
+}
@@ -0,0 +1,302 @@
+package com.danrama.simpledbconnectionpool.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.log4j.Logger;
+
+import com.danrama.simpledbconnectionpool.ConnectionSource;
+import com.danrama.simpledbconnectionpool.TenantConnectionSourceProvider;
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolClosedException;
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolConnectThrottledException;
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolException;
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolInitializationException;
+
+/**
+ * The connection pools of the tenants of a multi-tenant application, one <code>ExpandingSizeConnectionPool</code> per
+ * tenant, created the first time the tenant needs a connection.
+ * <p>
+ * The physical connections of all the tenant pools together are capped.  When a tenant needs a new connection and the cap
+ * is reached, the pool of another tenant that has no borrowed connections is closed to make room, starting with the tenant
+ * whose pool was used least recently.  Its connections are closed and the tenant gets a new pool the next time it needs
+ * one.  When every connection is borrowed the connect fails like a throttled one.
+ * <p>
+ * Looking up the pool of a tenant takes no lock, only the creation of a pool and the closing of idle pools under pressure
+ * do.
+ *
+ * @author Daniel Bloomfield Ramagem
+ * @see TenantConnectionSourceProvider
+ */
+@ThreadSafe
+public class TenantConnectionPoolRegistry {
+	private static final Logger logger = Logger.getLogger(TenantConnectionPoolRegistry.class);
+
+	// how many times a borrow is retried on a pool that was closed for being idle while it was being looked up
+	private static final int MAX_CLOSED_POOL_RETRIES = 3;
+
+	// the size of every tenant pool
+	private final int poolMinConnections;
+	private final int poolMaxConnections;
+
+	// where the tenant pools get their connections from
+	private final TenantConnectionSourceProvider connectionSourceProvider;
+
+	// one permit per physical connection the tenant pools may have open together
+	private final int maxTotalConnections;
+	private final Semaphore connectionBudget;
+
+	// the tenant pools, by tenant
+	private final ConcurrentMap<String, TenantPool> tenantPools = new ConcurrentHashMap<String, TenantPool>();
+
+	/*
+	 * The entry of a tenant.  It goes into the registry before its pool is created, so that concurrent first lookups of the
+	 * tenant only create the pool once.
+	 */
+	private class TenantPool {
+		final String tenantId;
+
+		// when the pool was last looked up, for closing the least recently used idle pools first
+		volatile long lastUsedNanos = System.nanoTime();
+
+		// set once under the lock of the entry, null until the pool is created
+		volatile ExpandingSizeConnectionPool pool;
+
+		TenantPool(String tenantId) {
+			this.tenantId = tenantId;
+		}
+
+		ExpandingSizeConnectionPool getPool() throws SQLException {
+			ExpandingSizeConnectionPool created = pool;
+			if (created != null)
+				return created;
+			synchronized (this) {
+				if (pool == null) {
+					pool = new ExpandingSizeConnectionPool(poolMinConnections, poolMaxConnections,
+							new BudgetedConnectionSource(connectionSourceProvider.getConnectionSource(tenantId)), null);
+					logger.info("created the connection pool of tenant " + tenantId);
+				}
+				return pool;
+			}
+		}
+	}
+
+	/*
+	 * Takes a permit from the budget for every connection, which is given back when the connection is closed.
+	 */
+	private class BudgetedConnectionSource implements ConnectionSource {
+		private final ConnectionSource delegate;
+
+		BudgetedConnectionSource(ConnectionSource delegate) {
+			this.delegate = delegate;
+		}
+
+		public Connection getConnection() throws SQLException {
+			if (!connectionBudget.tryAcquire())
+				throw new ConnectionPoolConnectThrottledException("the tenant pools are at their maximum of " +
+						maxTotalConnections + " connections");
+			Connection connection;
+			try {
+				connection = delegate.getConnection();
+			} catch (SQLException e) {
+				connectionBudget.release();
+				throw e;
+			} catch (RuntimeException e) {
+				connectionBudget.release();
+				throw e;
+			}
+			return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[] { Connection.class },
+					new BudgetedConnectionHandler(connection));
+		}
+	}
+
+	/*
+	 * Gives the permit of a connection back to the budget, once, when the connection is closed or aborted.
+	 */
+	private class BudgetedConnectionHandler implements InvocationHandler {
+		private final Connection connection;
+		private final AtomicBoolean permitReleased = new AtomicBoolean();
+
+		BudgetedConnectionHandler(Connection connection) {
+			this.connection = connection;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			boolean closing = method.getName().equals("close") || method.getName().equals("abort");
+			try {
+				return method.invoke(connection, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			} finally {
+				if (closing && permitReleased.compareAndSet(false, true))
+					connectionBudget.release();
+			}
+		}
+	}
+
+	/**
+	 * Create an empty registry.
+	 *
+	 * @param poolMinConnections the minimum size of every tenant pool
+	 * @param poolMaxConnections the maximum size of every tenant pool
+	 * @param maxTotalConnections the maximum connections of all the tenant pools together
+	 * @param connectionSourceProvider where the tenant pools get their connections from
+	 */
+	public TenantConnectionPoolRegistry(int poolMinConnections, int poolMaxConnections, int maxTotalConnections,
+			TenantConnectionSourceProvider connectionSourceProvider) {
+		if (poolMinConnections < 0)
+			throw new IllegalArgumentException("pool minimum connections must be > 0");
+		if (poolMaxConnections < poolMinConnections)
+			throw new IllegalArgumentException("pool maximum must be >= to the minimum connections");
+		if (maxTotalConnections < poolMaxConnections)
+			throw new IllegalArgumentException("maximum total connections must be >= to the pool maximum connections");
+		if (connectionSourceProvider == null)
+			throw new IllegalArgumentException("tenant connection source provider must be supplied");
+
+		this.poolMinConnections = poolMinConnections;
+		this.poolMaxConnections = poolMaxConnections;
+		this.maxTotalConnections = maxTotalConnections;
+		this.connectionSourceProvider = connectionSourceProvider;
+		connectionBudget = new Semaphore(maxTotalConnections);
+	}
+
+	// ----- getters for the registry state, useful for tests -----
+	public int getMaxTotalConnections() {
+		return maxTotalConnections;
+	}
+	public int getTotalConnections() {
+		return maxTotalConnections - connectionBudget.availablePermits();
+	}
+	public int getPoolCount() {
+		return tenantPools.size();
+	}
+
+	/**
+	 * Gets the pool of a tenant, creating it if needed.  A pool that is not in use can be closed at any time to make room
+	 * for the other tenants, so borrowing through <code>getConnection()</code> is preferable to holding on to the pool.
+	 *
+	 * @param tenantId the tenant
+	 * @return the pool of the tenant
+	 * @throws ConnectionPoolInitializationException if the pool could not be created
+	 */
+	public ExpandingSizeConnectionPool getPool(String tenantId) throws ConnectionPoolException {
+		if (tenantId == null)
+			throw new IllegalArgumentException("tenant cannot be null");
+
+		TenantPool tenantPool = tenantPools.get(tenantId);
+		if (tenantPool == null) {
+			TenantPool newTenantPool = new TenantPool(tenantId);
+			tenantPool = tenantPools.putIfAbsent(tenantId, newTenantPool);
+			if (tenantPool == null)
+				tenantPool = newTenantPool;
+		}
+		tenantPool.lastUsedNanos = System.nanoTime();
+
+		try {
+			return tenantPool.getPool();
+		} catch (ConnectionPoolException e) {
+			tenantPools.remove(tenantId, tenantPool); // the next lookup tries again
+			throw e;
+		} catch (SQLException e) {
+			tenantPools.remove(tenantId, tenantPool);
+			throw new ConnectionPoolInitializationException("could not get the connection source of tenant " + tenantId, e);
+		}
+	}
+
+	/**
+	 * Obtains a connection from the pool of a tenant.  If the connections of all the tenant pools are at their maximum, the
+	 * least recently used pool with no borrowed connections is closed to make room and the borrow is tried once more.  A
+	 * pool whose refill was throttled by the maximum reports it as the cause of running out of connections, so the pool of
+	 * an active tenant can grow this way too.
+	 *
+	 * @param tenantId the tenant
+	 * @return a pooled connection
+	 * @see ExpandingSizeConnectionPool#getConnection()
+	 */
+	public Connection getConnection(String tenantId) throws ConnectionPoolException {
+		boolean madeRoom = false;
+		for (int closedPoolRetries=0; ; ) {
+			try {
+				return getPool(tenantId).getConnection();
+			} catch (ConnectionPoolClosedException e) {
+				// the pool was closed for being idle right after being looked up, the next lookup creates a new one
+				if (++closedPoolRetries > MAX_CLOSED_POOL_RETRIES)
+					throw e;
+			} catch (ConnectionPoolException e) {
+				if (madeRoom || !isOutOfBudget(e) || !closeLeastRecentlyUsedIdlePool(tenantId))
+					throw e;
+				madeRoom = true;
+			}
+		}
+	}
+
+	/**
+	 * Return a connection to the pool of its tenant.
+	 *
+	 * @param connection the pooled connection, as obtained from <code>getConnection()</code>
+	 * @see ExpandingSizeConnectionPool#releaseConnection(Connection)
+	 */
+	public void releaseConnection(Connection connection) throws ConnectionPoolException {
+		if (!(connection instanceof PooledConnection))
+			throw new IllegalArgumentException("connection must be of PooledConnection type");
+		((ExpandingSizeConnectionPool) ((PooledConnection) connection).getPool()).releaseConnection(connection);
+	}
+
+	/*
+	 * Whether the pools failed to connect because their connections are at their maximum, as opposed to the pool of the
+	 * tenant being out of connections or the database failing.
+	 */
+	private static boolean isOutOfBudget(Throwable e) {
+		for (int depth=0; e != null && depth < 16; depth++, e = e.getCause()) {
+			if (e instanceof ConnectionPoolConnectThrottledException)
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Close the least recently used pool, other than the one of the given tenant, that holds connections but has none
+	 * borrowed.
+	 */
+	private boolean closeLeastRecentlyUsedIdlePool(String exceptTenantId) {
+		TenantPool victim = null;
+		for (TenantPool candidate : tenantPools.values()) {
+			ExpandingSizeConnectionPool candidatePool = candidate.pool;
+			if (candidatePool == null || candidate.tenantId.equals(exceptTenantId) ||
+					candidatePool.getNumBorrowedConnections() > 0 || candidatePool.getTotalConnections() == 0)
+				continue;
+			if (victim == null || candidate.lastUsedNanos - victim.lastUsedNanos < 0)
+				victim = candidate;
+		}
+		if (victim == null)
+			return false;
+
+		if (tenantPools.remove(victim.tenantId, victim)) {
+			logger.info("closing the idle connection pool of tenant " + victim.tenantId + " to make room for tenant " +
+					exceptTenantId);
+			victim.pool.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Close the pools of all the tenants.
+	 *
+	 * @see ExpandingSizeConnectionPool#close()
+	 */
+	public void close() {
+		for (TenantPool tenantPool : tenantPools.values()) {
+			if (tenantPools.remove(tenantPool.tenantId, tenantPool) && tenantPool.pool != null)
+				tenantPool.pool.close();
+		}
+	}
+}
@@ -16,13 +16,22 @@ limitations under the License.
 package com.danrama.simpledbconnectionpool;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
 
 import org.junit.Test;
 
+import com.danrama.simpledbconnectionpool.impl.CachedCredentialsProvider;
 import com.danrama.simpledbconnectionpool.impl.ExpandingSizeConnectionPool;
+import com.danrama.simpledbconnectionpool.impl.FileCredentialsProvider;
 
 /**
  * Tests the use of a real database driver (HSQLDB) for the connection pool.
@@ -40,8 +49,9 @@ public class ConnectionPoolFactoryTest {
 		props.setProperty("user", "SA");
 		props.setProperty("password", "");
 
-		// configure the ConnectionPoolFactory
+		// configure the ConnectionPoolFactory, without init SQL
 		ConnectionPoolFactory poolFactory = new ConnectionPoolFactory(driverClassname, url, props);
+		poolFactory.setInitSql((String[]) null);
 
 		// create a new expanding pool with minimum size 5, maximum 10
 		int min = 5;
@@ -58,4 +68,88 @@ public class ConnectionPoolFactoryTest {
 		assertEquals(min, connPool.getNumConnectionsInPool());
 		assertEquals(min, connPool.getTotalConnections());
 	}
+	
+	@Test
+	public void testCreateConnectionPoolWithRefreshedCredentials() throws Exception {
+		// the credentials are kept out of the connection properties, in a file that could be rotated
+		File credentialsFile = File.createTempFile("credentials", ".properties");
+		credentialsFile.deleteOnExit();
+		Properties credentials = new Properties();
+		credentials.setProperty("user", "SA");
+		credentials.setProperty("password", "");
+		OutputStream out = new FileOutputStream(credentialsFile);
+		credentials.store(out, null);
+		out.close();
+		
+		// the connection properties only have defaults
+		Properties defaults = new Properties();
+		defaults.setProperty("appName", "pool-test");
+		String url = "jdbc:hsqldb:mem:credentialsdatabase;shutdown=true";
+		ConnectionPoolFactory poolFactory = new ConnectionPoolFactory("org.hsqldb.jdbcDriver", url, new Properties(defaults));
+		CachedCredentialsProvider credentialsProvider = new CachedCredentialsProvider(
+				new FileCredentialsProvider(credentialsFile), 60000);
+		poolFactory.setCredentialsProvider(credentialsProvider);
+		
+		// the hook sees the credentials of every connect, along with the default connection properties
+		final List<String> connectingUsers = new ArrayList<String>();
+		poolFactory.setPreConnectHook(new PreConnectHook() {
+			public void beforeConnect(String dbConnUrl, Properties dbConnProps) {
+				synchronized (connectingUsers) {
+					connectingUsers.add(dbConnProps.getProperty("user") + "@" + dbConnProps.getProperty("appName"));
+				}
+			}
+		});
+		
+		ExpandingSizeConnectionPool connPool = (ExpandingSizeConnectionPool) poolFactory.createConnectionPool(1, 2);
+		Connection conn = connPool.getConnection();
+		assertTrue(!conn.isClosed());
+		connPool.releaseConnection(conn);
+		credentialsProvider.close();
+		
+		// one connect to fill the pool, one to refill it after the borrow
+		assertEquals(Arrays.asList("SA@pool-test", "SA@pool-test"), connectingUsers);
+	}
+	
+	@Test
+	public void testCreateConnectionPoolSizedFromTheDemandReport() throws Exception {
+		File reportDirectory = File.createTempFile("demand", "");
+		reportDirectory.delete();
+		reportDirectory.mkdir();
+		
+		String url = "jdbc:hsqldb:mem:demanddatabase;shutdown=true";
+		Properties props = new Properties();
+		props.setProperty("user", "SA");
+		props.setProperty("password", "");
+		ConnectionPoolFactory poolFactory = new ConnectionPoolFactory("org.hsqldb.jdbcDriver", url, props);
+		poolFactory.setDemandReportDirectory(reportDirectory);
+		
+		// without reports the pools get the given size, and each writes the demand it saw to a report of its own when closed
+		ExpandingSizeConnectionPool busyPool = (ExpandingSizeConnectionPool) poolFactory.createConnectionPool(1, 10);
+		ExpandingSizeConnectionPool quietPool = (ExpandingSizeConnectionPool) poolFactory.createConnectionPool(1, 10);
+		assertEquals(10, busyPool.getPoolMaxConnections());
+		List<Connection> conns = busyPool.getConnections(4, 0);
+		Thread.sleep(200);
+		busyPool.releaseConnections(conns);
+		busyPool.close();
+		quietPool.close();
+		File[] reports = reportDirectory.listFiles();
+		assertEquals(2, reports.length);
+		
+		// after a restart, each pool is warmed up to its own mean demand and keeps the given maximum
+		poolFactory = new ConnectionPoolFactory("org.hsqldb.jdbcDriver", url, props);
+		poolFactory.setDemandReportDirectory(reportDirectory);
+		busyPool = (ExpandingSizeConnectionPool) poolFactory.createConnectionPool(1, 10);
+		quietPool = (ExpandingSizeConnectionPool) poolFactory.createConnectionPool(1, 10);
+		assertEquals(10, busyPool.getPoolMaxConnections());
+		assertTrue(busyPool.getPoolMinConnections() >= 2 && busyPool.getPoolMinConnections() <= 4);
+		assertEquals(busyPool.getPoolMinConnections(), busyPool.getTotalConnections());
+		assertEquals(10, quietPool.getPoolMaxConnections());
+		assertEquals(1, quietPool.getPoolMinConnections());
+		busyPool.close();
+		quietPool.close();
+		
+		for (File report : reportDirectory.listFiles())
+			report.delete();
+		reportDirectory.delete();
+	}
 }
@@ -0,0 +1,90 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import com.danrama.simpledbconnectionpool.CredentialsProvider;
+
+/**
+ * Tests for verifying the background refresh of the CachedCredentialsProvider class.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ */
+public class CachedCredentialsProviderTest {
+	/*
+	 * Hands out a new password on every fetch, and can be made to fail.
+	 */
+	private static class RotatingCredentialsProvider implements CredentialsProvider {
+		private int fetches;
+		private boolean failing;
+		private Thread lastFetchThread;
+		
+		public synchronized Properties getCredentials() throws SQLException {
+			lastFetchThread = Thread.currentThread();
+			if (failing)
+				throw new SQLException("secrets service unavailable");
+			Properties credentials = new Properties();
+			credentials.setProperty("user", "app");
+			credentials.setProperty("password", "token-" + (++fetches));
+			return credentials;
+		}
+		synchronized int getFetches() {
+			return fetches;
+		}
+		synchronized void setFailing(boolean failing) {
+			this.failing = failing;
+		}
+		synchronized Thread getLastFetchThread() {
+			return lastFetchThread;
+		}
+	}
+	
+	@Test
+	public void testCredentialsAreRefreshedInTheBackground() throws Exception {
+		RotatingCredentialsProvider rotating = new RotatingCredentialsProvider();
+		CachedCredentialsProvider cached = new CachedCredentialsProvider(rotating, 20);
+		
+		// the first credentials are fetched up front, and reading them does not fetch again
+		assertEquals("token-1", cached.getCredentials().getProperty("password"));
+		
+		for (int i=0; i < 200 && rotating.getFetches() < 3; i++)
+			Thread.sleep(10);
+		cached.close();
+		assertTrue(rotating.getFetches() >= 3);
+		assertTrue(rotating.getLastFetchThread() != Thread.currentThread());
+		assertTrue(!cached.getCredentials().getProperty("password").equals("token-1"));
+	}
+	
+	@Test
+	public void testFailedRefreshKeepsThePreviousCredentials() throws Exception {
+		RotatingCredentialsProvider rotating = new RotatingCredentialsProvider();
+		CachedCredentialsProvider cached = new CachedCredentialsProvider(rotating, 10);
+		
+		// the secrets service goes away right after the first fetch
+		rotating.setFailing(true);
+		Thread.sleep(100);
+		cached.close();
+		assertEquals(1, rotating.getFetches());
+		assertEquals("token-1", cached.getCredentials().getProperty("password"));
+	}
+}
@@ -0,0 +1,137 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolOutOfConnectionsException;
+import com.danrama.simpledbconnectionpool.simulation.SimulatedDriver;
+
+/**
+ * Tests for verifying the demand recorded by the ConnectionPoolDemandStatistics class and the reports summing it up.  The
+ * pool-level test uses the simulated database driver.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ */
+public class ConnectionPoolDemandStatisticsTest {
+
+	@Test
+	public void testDemandIsSummedUp() throws Exception {
+		ConnectionPoolDemandStatistics statistics = new ConnectionPoolDemandStatistics();
+		
+		// a burst of 6 connections, then a steady 2 for twice as long
+		statistics.demandChanged(6);
+		Thread.sleep(50);
+		statistics.demandChanged(2);
+		Thread.sleep(100);
+		for (int i=0; i < 98; i++)
+			statistics.borrowed(1, 0);
+		statistics.borrowed(1, TimeUnit.MILLISECONDS.toNanos(3));
+		statistics.borrowed(1, TimeUnit.MILLISECONDS.toNanos(700));
+		statistics.connected(TimeUnit.MILLISECONDS.toNanos(10));
+		statistics.connected(TimeUnit.MILLISECONDS.toNanos(30));
+		
+		ConnectionPoolDemandStatistics.Report report = statistics.getReport(1, 10);
+		assertEquals(6, report.getPeakDemand());
+		assertTrue("mean demand " + report.getMeanDemand(), report.getMeanDemand() > 3 && report.getMeanDemand() < 4);
+		assertEquals(100, report.getBorrows());
+		assertEquals(0, report.getWaitMillisP50());
+		assertEquals(4, report.getWaitMillisP99()); // the upper bound of the bucket of the 3ms wait
+		assertEquals(700, report.getMaxWaitMillis());
+		assertEquals(2, report.getConnects());
+		assertEquals(20, report.getMeanConnectMillis());
+		assertEquals(30, report.getMaxConnectMillis());
+		
+		// warm up to the mean demand, leave some headroom over the peak, within the given bounds
+		assertEquals(4, report.getRecommendedMinConnections(1, 10));
+		assertEquals(8, report.getRecommendedMaxConnections(1, 10));
+		assertEquals(5, report.getRecommendedMinConnections(5, 10));
+		assertEquals(7, report.getRecommendedMaxConnections(1, 7));
+	}
+
+	@Test
+	public void testReportIsWrittenAndReadBack() throws Exception {
+		ConnectionPoolDemandStatistics statistics = new ConnectionPoolDemandStatistics();
+		statistics.demandChanged(3);
+		statistics.borrowed(3, TimeUnit.MILLISECONDS.toNanos(12));
+		ConnectionPoolDemandStatistics.Report report = statistics.getReport(2, 5);
+		
+		File reportFile = File.createTempFile("demand", ".properties");
+		reportFile.deleteOnExit();
+		report.writeTo(reportFile);
+		ConnectionPoolDemandStatistics.Report readReport = ConnectionPoolDemandStatistics.Report.readFrom(reportFile);
+		assertEquals(report.toString(), readReport.toString());
+		assertEquals(report.getRecordedAtMillis(), readReport.getRecordedAtMillis());
+		assertEquals(2, readReport.getPoolMinConnections());
+		assertEquals(5, readReport.getPoolMaxConnections());
+		
+		// a report that was cut short is refused
+		OutputStream out = new FileOutputStream(reportFile);
+		out.write("peakDemand=3\n".getBytes("ISO-8859-1"));
+		out.close();
+		try {
+			ConnectionPoolDemandStatistics.Report.readFrom(reportFile);
+			fail("the report is incomplete");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testPoolRecordsTheDemandOfSingleConnectionBorrows() throws Exception {
+		ExpandingSizeConnectionPool connPool = new ExpandingSizeConnectionPool(3, 3, new SimulatedDriver(1),
+				"jdbc:simulated", null);
+		List<Connection> conns = new ArrayList<Connection>();
+		for (int i=0; i < 3; i++)
+			conns.add(connPool.getConnection());
+		
+		// a borrow turned down for want of connections still counts in the peak demand
+		try {
+			connPool.getConnection();
+			fail("the pool is out of connections");
+		} catch (ConnectionPoolOutOfConnectionsException e) {
+			// expected
+		}
+		Thread.sleep(100);
+		connPool.releaseConnections(conns);
+		
+		// the pool writes the report when closed
+		File reportFile = File.createTempFile("demand", ".properties");
+		reportFile.delete();
+		reportFile.deleteOnExit();
+		connPool.setDemandReportFile(reportFile);
+		connPool.close();
+		ConnectionPoolDemandStatistics.Report report = ConnectionPoolDemandStatistics.Report.readFrom(reportFile);
+		assertEquals(3, report.getBorrows());
+		assertEquals(4, report.getPeakDemand());
+		assertTrue("mean demand " + report.getMeanDemand(), report.getMeanDemand() > 1 && report.getMeanDemand() <= 3);
+		assertEquals(0, report.getMaxWaitMillis());
+		assertEquals(5, report.getRecommendedMaxConnections(1, 10));
+	}
+}
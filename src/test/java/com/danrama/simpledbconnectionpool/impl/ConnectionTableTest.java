@@ -0,0 +1,111 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.impl;
+
+import static org.easymock.EasyMock.createMock;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for verifying the slot bookkeeping of the ConnectionTable class.  The table is given mock connections, which it never
+ * calls.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ */
+public class ConnectionTableTest {
+	@Test
+	public void testSlotsOfClosedConnectionsAreReused() {
+		ConnectionTable table = new ConnectionTable();
+		Connection[] conns = new Connection[40];
+		for (int i=0; i < conns.length; i++) {
+			conns[i] = createMock(Connection.class);
+			assertEquals(i, table.add(conns[i], i + 1));
+		}
+		assertEquals(40, table.size());
+		assertEquals(7, table.slotOf(conns[7]));
+		assertEquals(-1, table.slotOf(null));
+		
+		// the slot of a closed connection goes to the next one, with a clean slate
+		table.borrowed(7, Thread.currentThread());
+		table.setBrokenReason(7, "broken");
+		table.remove(conns[7]);
+		assertEquals(-1, table.slotOf(conns[7]));
+		Connection conn = createMock(Connection.class);
+		assertEquals(7, table.add(conn, 41));
+		assertEquals(null, table.getBrokenReason(7));
+		assertEquals(40, table.size());
+		
+		for (ConnectionPoolSnapshot.PhysicalConnection physical : table.snapshot()) {
+			if (physical.getId() == 41) {
+				assertSame(ConnectionPoolSnapshot.ConnectionState.IDLE, physical.getState());
+				assertEquals(0, physical.getBorrowCount());
+				assertEquals(null, physical.getHolderThreadName());
+			}
+		}
+	}
+	
+	@Test
+	public void testValidationHistoryKeepsTheLatestValidations() {
+		ConnectionTable table = new ConnectionTable();
+		table.add(createMock(Connection.class), 1);
+		int slot = table.add(createMock(Connection.class), 2);
+		for (int i=1; i <= ConnectionTable.VALIDATION_HISTORY_SIZE + 2; i++)
+			table.validated(slot, i % 2 == 0, i);
+		
+		List<ConnectionPoolSnapshot.PhysicalConnection> snapshot = table.snapshot();
+		assertEquals(0, snapshot.get(0).getValidations().size());
+		List<ConnectionPoolSnapshot.Validation> validations = snapshot.get(1).getValidations();
+		assertEquals(ConnectionTable.VALIDATION_HISTORY_SIZE, validations.size());
+		
+		// oldest first, the first two were overwritten
+		for (int i=0; i < validations.size(); i++) {
+			assertEquals(i + 3, validations.get(i).getNanos());
+			assertTrue(validations.get(i).isValid() == ((i + 3) % 2 == 0));
+		}
+	}
+
+	@Test
+	public void testIdleConnectionsComeDueInTheirOwnStep() {
+		ConnectionTable table = new ConnectionTable();
+		Connection[] conns = new Connection[3];
+		for (int i=0; i < conns.length; i++)
+			table.add(conns[i] = createMock(Connection.class), i + 1);
+		table.borrowed(2, Thread.currentThread());
+
+		// an interval of 1s in 10 steps of 100ms, starting well after the connections were opened
+		long interval = 1000;
+		long start = (System.currentTimeMillis() / interval + 10) * interval;
+
+		// each idle connection only comes due in its own step, the borrowed one never
+		assertEquals(Arrays.asList(conns[0]), table.idleConnectionsInactiveFor(start - 1, start, interval, 10));
+		assertEquals(Arrays.asList(conns[1]), table.idleConnectionsInactiveFor(start + 99, start + 150, interval, 10));
+		assertEquals(0, table.idleConnectionsInactiveFor(start + 150, start + 250, interval, 10).size());
+
+		// the turns of the steps skipped since the last look are taken
+		assertEquals(2, table.idleConnectionsInactiveFor(start - 1, start + 150, interval, 10).size());
+
+		// and nothing is due before it was inactive for the interval
+		long recent = System.currentTimeMillis() + 500;
+		assertEquals(0, table.idleConnectionsInactiveFor(recent - interval, recent, interval, 10).size());
+	}
+}
@@ -0,0 +1,282 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolException;
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolReleaseConnectionException;
+import com.danrama.simpledbconnectionpool.simulation.LatencyDistribution;
+import com.danrama.simpledbconnectionpool.simulation.SimulatedDriver;
+
+/**
+ * Concurrency tests for the ExpandingSizeConnectionPool class.  Threads race on the same pool operations, both in small
+ * targeted races repeated many times and in a randomized mix of borrows, bulk borrows, failing connections and aborted
+ * connections, while the pool invariants are checked: the pool never goes over its maximum connections, a connection is
+ * never handed out to two borrowers at once, and no physical connection is leaked.  The pool uses the simulated database
+ * driver.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ */
+public class ExpandingSizeConnectionPoolConcurrencyTest {
+	private static final int ITERATIONS = 200;
+	
+	private SimulatedDriver driver;
+	private ExpandingSizeConnectionPool connPool;
+	
+	private void setupPool(int poolMinSize, int poolMaxSize, long seed) throws Exception {
+		driver = new SimulatedDriver(seed);
+		connPool = new ExpandingSizeConnectionPool(poolMinSize, poolMaxSize, driver, "jdbc:simulated", null);
+	}
+	
+	@After
+	public void tearDown() {
+		if (connPool != null)
+			connPool.shutdown();
+	}
+	
+	@Test
+	public void testRacingReleasesOfTheSameConnection() throws Exception {
+		setupPool(2, 4, 1);
+		for (int i=0; i < ITERATIONS; i++) {
+			final Connection conn = connPool.getConnection();
+			int released = race(2, new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					try {
+						connPool.releaseConnection(conn);
+						return true;
+					} catch (ConnectionPoolReleaseConnectionException e) {
+						return false;
+					}
+				}
+			});
+			assertEquals("exactly one release must win", 1, released);
+		}
+		assertPoolInvariants();
+	}
+	
+	@Test
+	public void testRacingBorrowsOfTheLastConnections() throws Exception {
+		setupPool(1, 2, 2);
+		for (int i=0; i < ITERATIONS; i++) {
+			final List<Connection> borrowed = Collections.synchronizedList(new ArrayList<Connection>());
+			int granted = race(3, new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					try {
+						borrowed.add(connPool.getConnection());
+						return true;
+					} catch (ConnectionPoolException e) {
+						return false;
+					}
+				}
+			});
+			assertEquals("only the pool maximum can be borrowed", 2, granted);
+			assertDistinctConnections(borrowed);
+			connPool.releaseConnections(borrowed);
+		}
+		assertPoolInvariants();
+	}
+	
+	@Test
+	public void testRacingBulkBorrowsNeverOvercommit() throws Exception {
+		setupPool(2, 4, 3);
+		for (int i=0; i < ITERATIONS; i++) {
+			final List<Connection> borrowed = Collections.synchronizedList(new ArrayList<Connection>());
+			int granted = race(2, new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					try {
+						borrowed.addAll(connPool.getConnections(3, 0));
+						return true;
+					} catch (ConnectionPoolException e) {
+						return false;
+					}
+				}
+			});
+			assertEquals("only one of the bulk borrows fits in the pool", 1, granted);
+			assertDistinctConnections(borrowed);
+			connPool.releaseConnections(borrowed);
+		}
+		assertPoolInvariants();
+	}
+	
+	@Test
+	public void testRandomizedLoadKeepsPoolInvariants() throws Exception {
+		setupPool(3, 6, 4);
+		driver.setExecutionLatency(LatencyDistribution.uniform(0, 0.2));
+		driver.setConnectFailureProbability(0.02);
+		driver.setConnectionDeathProbability(0.02);
+		connPool.setMaxConnectionHoldMillis(100);
+		
+		// the raw connections currently handed out, a connection showing up twice was given to two borrowers
+		final Set<Connection> handedOut = Collections.synchronizedSet(
+				Collections.newSetFromMap(new IdentityHashMap<Connection, Boolean>()));
+		final List<String> violations = Collections.synchronizedList(new ArrayList<String>());
+		
+		// keep sampling the pool size while the load runs
+		final boolean[] running = { true };
+		Thread monitor = new Thread() {
+			@Override
+			public void run() {
+				while (true) {
+					synchronized (running) {
+						if (!running[0])
+							return;
+					}
+					if (connPool.getTotalConnections() > connPool.getPoolMaxConnections())
+						violations.add("pool total went over the maximum: " + connPool.getTotalConnections());
+					if (driver.getOpenConnections() > connPool.getPoolMaxConnections())
+						violations.add("open database connections went over the maximum: " + driver.getOpenConnections());
+					Thread.yield();
+				}
+			}
+		};
+		monitor.start();
+		
+		race(8, new Callable<Boolean>() {
+			private final AtomicInteger seeds = new AtomicInteger();
+			
+			public Boolean call() throws Exception {
+				Random random = new Random(seeds.incrementAndGet());
+				for (int i=0; i < ITERATIONS; i++) {
+					List<Connection> connections;
+					try {
+						if (random.nextBoolean())
+							connections = Collections.singletonList(connPool.getConnection());
+						else
+							connections = connPool.getConnections(1 + random.nextInt(3), 50);
+					} catch (ConnectionPoolException e) {
+						continue; // out of connections or a failed connect, both are fair under this load
+					}
+					
+					for (Connection conn : connections) {
+						Connection raw = ((PooledConnection) conn).getWrappedConnection();
+						if (raw != null && !handedOut.add(raw))
+							violations.add("connection handed out to two borrowers: " + raw);
+					}
+					
+					for (Connection conn : connections)
+						use(conn, random);
+					
+					// forget the connections before the pool can hand them out again
+					for (Connection conn : connections) {
+						Connection raw = ((PooledConnection) conn).getWrappedConnection();
+						if (raw != null)
+							handedOut.remove(raw);
+					}
+					try {
+						connPool.releaseConnections(connections);
+					} catch (ConnectionPoolReleaseConnectionException e) {
+						; // a dead connection could not be validated
+					}
+				}
+				return true;
+			}
+		});
+		synchronized (running) {
+			running[0] = false;
+		}
+		monitor.join();
+		
+		assertEquals(Collections.emptyList(), violations);
+		assertTrue(driver.getDeadConnections() > 0);
+		connPool.setMaxConnectionHoldMillis(0);
+		assertPoolInvariants();
+	}
+	
+	/*
+	 * Use a connection: run a statement, and every so often hang on to the connection long enough to get it aborted.
+	 */
+	private static void use(Connection conn, Random random) throws InterruptedException {
+		try {
+			Statement statement = conn.createStatement();
+			statement.executeQuery("SELECT 1");
+			statement.close();
+			if (random.nextInt(100) == 0)
+				Thread.sleep(200);
+		} catch (SQLException e) {
+			; // a dead or aborted connection
+		}
+	}
+	
+	/*
+	 * Run the action on several threads released at the same instant, and count how many of them succeeded.
+	 */
+	private static int race(int threads, final Callable<Boolean> action) throws Exception {
+		final CyclicBarrier start = new CyclicBarrier(threads);
+		final AtomicInteger succeeded = new AtomicInteger();
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> racers = new ArrayList<Thread>();
+		for (int t=0; t < threads; t++) {
+			Thread racer = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						if (action.call())
+							succeeded.incrementAndGet();
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			};
+			racer.start();
+			racers.add(racer);
+		}
+		for (Thread racer : racers)
+			racer.join();
+		assertEquals(Collections.emptyList(), errors);
+		return succeeded.get();
+	}
+	
+	private static void assertDistinctConnections(List<Connection> connections) {
+		Set<Connection> raws = Collections.newSetFromMap(new IdentityHashMap<Connection, Boolean>());
+		for (Connection conn : connections)
+			assertTrue("connection handed out twice", raws.add(((PooledConnection) conn).getWrappedConnection()));
+	}
+	
+	/*
+	 * Once every connection is back, the pool must account for exactly the physical connections that are open.
+	 */
+	private void assertPoolInvariants() throws InterruptedException {
+		// aborted connections are accounted for by the housekeeping thread, give it a chance to finish
+		for (int i=0; i < 100 && driver.getOpenConnections() != connPool.getTotalConnections(); i++)
+			Thread.sleep(10);
+		
+		assertEquals(0, connPool.getNumBorrowedConnections());
+		assertEquals(connPool.getTotalConnections(), connPool.getNumConnectionsInPool());
+		assertEquals(connPool.getTotalConnections(), driver.getOpenConnections());
+		assertEquals(connPool.getTotalConnections(), connPool.getSnapshot().getConnections().size());
+		assertTrue(connPool.getTotalConnections() <= connPool.getPoolMaxConnections());
+		assertTrue(driver.getMaxOpenConnections() <= connPool.getPoolMaxConnections());
+	}
+}
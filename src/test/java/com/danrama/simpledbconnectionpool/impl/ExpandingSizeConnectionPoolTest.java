@@ -15,6 +15,8 @@ limitations under the License.
 */
 package com.danrama.simpledbconnectionpool.impl;
 
+import static org.easymock.EasyMock.anyInt;
+import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
@@ -22,23 +24,44 @@ import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.reset;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.Driver;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.danrama.simpledbconnectionpool.ConnectionPoolListener;
+import com.danrama.simpledbconnectionpool.ConnectionPoolListenerAdapter;
 import com.danrama.simpledbconnectionpool.exception.ConnectionPoolAlreadyReleasedConnectionException;
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolConnectThrottledException;
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolException;
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolInitializationException;
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolLoadShedException;
 import com.danrama.simpledbconnectionpool.exception.ConnectionPoolNewConnectionException;
 import com.danrama.simpledbconnectionpool.exception.ConnectionPoolOutOfConnectionsException;
 import com.danrama.simpledbconnectionpool.exception.ConnectionPoolReleaseConnectionException;
+import com.danrama.simpledbconnectionpool.simulation.LatencyDistribution;
+import com.danrama.simpledbconnectionpool.simulation.SimulatedDriver;
 /**
  * Tests for verifying and validating the behavior of the ExpandingSizeConnectionPool class.
  * <p>
@@ -67,6 +90,8 @@ public class ExpandingSizeConnectionPoolTest {
 		expect(mockConnection.isValid(timeout)).andStubReturn(true);
 		mockConnection.close();
 		expectLastCall().asStub();
+		mockConnection.abort((Executor) anyObject());
+		expectLastCall().asStub();
 		replay(mockConnection);
 		
 		// create a mock Driver object that returns mock Connections
@@ -285,6 +310,11 @@ public class ExpandingSizeConnectionPoolTest {
 		// release one of the connections, which the mock Connection object will
 		// say is not a valid connection
 		connPool.releaseConnection(clients.get(0));
+		
+		// the replacement holds its slot right away, and is opened in the background
+		assertEquals(poolMaxSize, connPool.getTotalConnections());
+		for (int i=0; i < 200 && connPool.getNumConnectionsInPool() == 0; i++)
+			Thread.sleep(10);
 
 		// verify the internal pool state
 		assertEquals(1, connPool.getNumConnectionsInPool());
@@ -350,4 +380,721 @@ public class ExpandingSizeConnectionPoolTest {
 		assertEquals(0, connPool.getNumConnectionsInPool());
 		assertEquals(poolMaxSize - 1, connPool.getTotalConnections());
 	}
+
+	@Test
+	public void testPoolCreationThrottledByConnectionRateLimiter() throws Exception {
+		// a limiter that only allows two connects back-to-back and will not wait for more
+		ConnectionRateLimiter limiter = new ConnectionRateLimiter(2, 0.001, 1, 0);
+		
+		// the pool cannot reach its minimum level, so its creation fails
+		try {
+			new ExpandingSizeConnectionPool(3, 4, mockDriver, dbConnUrl, dbConnProps, limiter);
+			fail("should not be able to create the pool when connects are throttled");
+		} catch (ConnectionPoolInitializationException e) {
+			assertTrue(e.getCause() instanceof ConnectionPoolConnectThrottledException);
+		}
+		assertEquals(1, limiter.getRejectedCount());
+		assertEquals(0, limiter.getPendingConnects());
+	}
+	
+	@Test
+	public void testPoolUsageThrottledRefillDoesNotFailTheBorrower() throws Exception {
+		// the limiter allows the initial fill of two connections and nothing more
+		ConnectionRateLimiter limiter = new ConnectionRateLimiter(2, 0.001, 1, 0);
+		connPool = new ExpandingSizeConnectionPool(2, 4, mockDriver, dbConnUrl, dbConnProps, limiter);
+		
+		// the borrower gets its connection even though the pool could not be refilled
+		Connection conn = connPool.getConnection();
+		assertNotNull(conn);
+		assertEquals(1, connPool.getNumConnectionsInPool());
+		assertEquals(2, connPool.getTotalConnections());
+		assertEquals(1, limiter.getRejectedCount());
+	}
+	
+	@Test
+	public void testPoolUsageThrottledRefillDoesNotHoldThePoolLock() throws Exception {
+		// the limiter allows the initial fill of two connections and one refill, then makes the next connect wait before
+		// turning it down
+		ConnectionRateLimiter limiter = new ConnectionRateLimiter(3, 0.001, 1, 400);
+		connPool = new ExpandingSizeConnectionPool(2, 4, mockDriver, dbConnUrl, dbConnProps, limiter);
+		Connection conn = connPool.getConnection();
+		
+		// the next borrower waits for a connect permit to refill the pool
+		final Connection[] borrowed = new Connection[1];
+		Thread borrower = new Thread() {
+			@Override
+			public void run() {
+				try {
+					borrowed[0] = connPool.getConnection();
+				} catch (Exception e) {
+					// the assertions below fail
+				}
+			}
+		};
+		borrower.start();
+		Thread.sleep(100);
+		
+		// meanwhile the pool stays available to the other clients
+		long start = System.nanoTime();
+		connPool.releaseConnection(conn);
+		assertEquals(2, connPool.getNumConnectionsInPool());
+		long elapsedMillis = (System.nanoTime() - start) / 1000000;
+		assertTrue("the pool was locked for " + elapsedMillis + "ms", elapsedMillis < 150);
+		
+		borrower.join();
+		assertNotNull(borrowed[0]);
+		assertEquals(1, limiter.getRejectedCount());
+	}
+
+	@Test
+	public void testPoolUsageRecycledConnectionIsUsableAgain() throws Exception {
+		setupExpandingConnectionPool(2, 4); // setup a new pool with (min, max) connections
+		
+		// empty the pool so that the next released connection is recycled rather than closed
+		List<Connection> clients = new ArrayList<Connection>();
+		for (int i=0; i < poolMaxSize; i++)
+			clients.add(connPool.getConnection());
+		connPool.releaseConnection(clients.get(0));
+		assertEquals(1, connPool.getNumConnectionsInPool());
+		
+		// the recycled connection is handed out again and can be used by its new client
+		Connection conn = connPool.getConnection();
+		assertTrue(conn.isValid(0));
+		connPool.releaseConnection(conn);
+	}
+	
+	@Test
+	public void testPoolListenerIsNotifiedOfLifecycleEvents() throws Exception {
+		final List<String> events = new ArrayList<String>();
+		ConnectionPoolListener listener = new ConnectionPoolListenerAdapter() {
+			@Override
+			public void connectionCreated(Connection connection, long connectNanos) {
+				events.add("created");
+			}
+			@Override
+			public void connectionBorrowed(Connection connection, long waitNanos) {
+				events.add("borrowed");
+			}
+			@Override
+			public void connectionReturned(Connection connection, long heldNanos) {
+				events.add("returned");
+			}
+			@Override
+			public void connectionValidated(Connection connection, boolean valid, long validationNanos) {
+				events.add("validated:" + valid);
+			}
+			@Override
+			public void connectionDestroyed(Connection connection) {
+				events.add("destroyed");
+			}
+			@Override
+			public void waitTimedOut(long waitNanos) {
+				events.add("timedOut");
+			}
+		};
+		setupExpandingConnectionPool(1, 2); // setup a new pool with (min, max) connections
+		connPool.addConnectionPoolListener(listener);
+		
+		// borrow both connections (the first borrow refills the pool), then fail to borrow a third one
+		Connection conn1 = connPool.getConnection();
+		Connection conn2 = connPool.getConnection();
+		try {
+			connPool.getConnection();
+			fail("should not have been able to retrieve another connection");
+		} catch (ConnectionPoolOutOfConnectionsException e) {
+			; // do nothing, this is expected
+		}
+		
+		// the first release is recycled into the empty pool, the second one is closed
+		connPool.releaseConnection(conn1);
+		connPool.releaseConnection(conn2);
+		
+		assertEquals(Arrays.asList("created", "borrowed", "borrowed", "timedOut", "returned", "validated:true", 
+				"returned", "destroyed"), events);
+	}
+	
+	@Test
+	public void testAsyncPoolListenerDispatchesOnItsOwnThread() throws Exception {
+		final List<Thread> dispatchThreads = new ArrayList<Thread>();
+		ConnectionPoolListener listener = new ConnectionPoolListenerAdapter() {
+			@Override
+			public void connectionBorrowed(Connection connection, long waitNanos) {
+				synchronized (dispatchThreads) {
+					dispatchThreads.add(Thread.currentThread());
+					dispatchThreads.notifyAll();
+				}
+			}
+		};
+		AsyncConnectionPoolListener asyncListener = new AsyncConnectionPoolListener(listener, 16);
+		setupExpandingConnectionPool(2, 4); // setup a new pool with (min, max) connections
+		connPool.addConnectionPoolListener(asyncListener);
+		
+		connPool.getConnection();
+		synchronized (dispatchThreads) {
+			if (dispatchThreads.isEmpty())
+				dispatchThreads.wait(5000);
+		}
+		asyncListener.close();
+		
+		assertEquals(1, dispatchThreads.size());
+		assertTrue(dispatchThreads.get(0) != Thread.currentThread());
+		assertEquals(0, asyncListener.getDroppedCount());
+	}
+
+	@Test
+	public void testPoolUsageConnectionHeldTooLongIsAborted() throws Exception {
+		setupExpandingConnectionPool(1, 2); // setup a new pool with (min, max) connections
+		connPool.setMaxConnectionHoldMillis(50);
+		
+		// borrow every connection and then hang on to them
+		PooledConnection conn1 = (PooledConnection) connPool.getConnection();
+		PooledConnection conn2 = (PooledConnection) connPool.getConnection();
+		assertEquals(2, connPool.getNumBorrowedConnections());
+		for (int i=0; i < 200 && (connPool.getNumBorrowedConnections() > 0 || 
+				connPool.getNumConnectionsInPool() < poolMinSize); i++)
+			Thread.sleep(10);
+		
+		// both connections were taken back and the pool was refilled
+		assertTrue(conn1.isReleasedBackToPool());
+		assertTrue(conn2.isReleasedBackToPool());
+		assertEquals(0, connPool.getNumBorrowedConnections());
+		assertEquals(poolMinSize, connPool.getNumConnectionsInPool());
+		assertEquals(poolMinSize, connPool.getTotalConnections());
+		
+		// the stuck client can no longer use its connection, but releasing it in its finally block is harmless
+		try {
+			conn1.createStatement();
+			fail("should not have gotten here");
+		} catch (ConnectionPoolAlreadyReleasedConnectionException e) {
+			; // do nothing, this is expected
+		}
+		connPool.releaseConnection(conn1);
+		connPool.releaseConnection(conn2);
+		assertEquals(poolMinSize, connPool.getNumConnectionsInPool());
+		assertEquals(poolMinSize, connPool.getTotalConnections());
+		connPool.shutdown();
+	}
+
+	@Test
+	public void testPoolUsageGetSeveralConnectionsAtOnce() throws Exception {
+		setupExpandingConnectionPool(2, 4); // setup a new pool with (min, max) connections
+		
+		// take three connections at once, two from the cache and a new one
+		List<Connection> clients = connPool.getConnections(3, 0);
+		assertEquals(3, clients.size());
+		assertEquals(1, connPool.getNumConnectionsInPool());
+		assertEquals(poolMaxSize, connPool.getTotalConnections());
+		
+		// only one connection is left, so asking for two fails without handing out any
+		try {
+			connPool.getConnections(2, 0);
+			fail("should not have been able to retrieve more connections");
+		} catch (ConnectionPoolOutOfConnectionsException e) {
+			; // do nothing, this is expected
+		}
+		assertEquals(1, connPool.getNumConnectionsInPool());
+		
+		// return them all at once
+		connPool.releaseConnections(clients);
+		assertEquals(poolMinSize, connPool.getNumConnectionsInPool());
+		assertEquals(poolMinSize, connPool.getTotalConnections());
+	}
+	
+	@Test
+	public void testPoolUsageGetSeveralConnectionsWaitsForReleases() throws Exception {
+		setupExpandingConnectionPool(2, 4); // setup a new pool with (min, max) connections
+		final List<Connection> clients = connPool.getConnections(3, 0);
+		
+		// release the connections a little later from another thread
+		Thread releaser = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+					connPool.releaseConnections(clients);
+				} catch (Exception e) {
+					; // the test will fail waiting for the connections
+				}
+			}
+		};
+		releaser.start();
+		
+		List<Connection> moreClients = connPool.getConnections(4, 5000);
+		assertEquals(4, moreClients.size());
+		assertEquals(0, connPool.getNumConnectionsInPool());
+		assertEquals(poolMaxSize, connPool.getTotalConnections());
+		releaser.join();
+	}
+	
+	@Test
+	public void testPoolHealthIsRefreshedByTheHousekeeper() throws Exception {
+		setupExpandingConnectionPool(2, 4); // setup a new pool with (min, max) connections
+		
+		// the health checks validate idle connections with a timeout
+		reset(mockConnection);
+		expect(mockConnection.isValid(anyInt())).andStubReturn(true);
+		mockConnection.close();
+		expectLastCall().asStub();
+		replay(mockConnection);
+		
+		// nothing was validated yet
+		ConnectionPoolHealth health = connPool.getHealth();
+		assertEquals(ConnectionPoolHealth.Status.HEALTHY, health.getStatus());
+		assertEquals(-1, health.getLastSuccessfulValidationAgeMillis());
+		assertEquals(0, health.getSaturation(), 0);
+		
+		// the housekeeper validates an idle connection as the pool is not being used
+		connPool.setHealthCheckIntervalMillis(20);
+		for (int i=0; i < 200 && connPool.getHealth().getLastSuccessfulValidationAgeMillis() < 0; i++)
+			Thread.sleep(10);
+		health = connPool.getHealth();
+		assertTrue(health.getLastSuccessfulValidationAgeMillis() >= 0);
+		assertEquals(poolMinSize, health.getIdleConnections());
+		assertEquals(poolMinSize, connPool.getNumConnectionsInPool());
+		
+		// probes only see the cached assessment, which is not refreshed until the next check
+		connPool.setHealthCheckIntervalMillis(60000);
+		List<Connection> clients = connPool.getConnections(poolMaxSize, 0);
+		assertEquals(0, connPool.getHealth().getBorrowedConnections());
+		assertEquals(ConnectionPoolHealth.Status.HEALTHY, connPool.getHealth().getStatus());
+		
+		// without scheduled checks the health reflects the current pool state, a fully borrowed pool is degraded
+		connPool.setHealthCheckIntervalMillis(0);
+		assertEquals(poolMaxSize, connPool.getHealth().getBorrowedConnections());
+		assertEquals(ConnectionPoolHealth.Status.DEGRADED, connPool.getHealth().getStatus());
+		connPool.releaseConnections(clients);
+		connPool.shutdown();
+	}
+	
+	@Test
+	public void testPoolHealthIsDownWhenTheDatabaseIsUnreachable() throws Exception {
+		setupExpandingConnectionPool(1, 2); // setup a new pool with (min, max) connections
+		
+		// the database goes away
+		SQLException connectError = new SQLException("database unreachable");
+		reset(mockDriver);
+		expect(mockDriver.connect(dbConnUrl, dbConnProps)).andStubThrow(connectError);
+		replay(mockDriver);
+		
+		// the pool cannot be refilled after the last idle connection is borrowed
+		Connection conn = connPool.getConnection();
+		ConnectionPoolHealth health = connPool.getHealth();
+		assertEquals(ConnectionPoolHealth.Status.DOWN, health.getStatus());
+		assertTrue(!health.isReady());
+		assertTrue(health.getLastConnectError() == connectError);
+		assertTrue(health.getLastConnectErrorAtMillis() > 0);
+		
+		// with a good connection back in the pool the instance can still take traffic
+		connPool.releaseConnection(conn);
+		assertEquals(ConnectionPoolHealth.Status.DEGRADED, connPool.getHealth().getStatus());
+		assertTrue(connPool.getHealth().isReady());
+		
+		// the database comes back
+		reset(mockDriver);
+		expect(mockDriver.connect(dbConnUrl, dbConnProps)).andStubReturn(mockConnection);
+		replay(mockDriver);
+		conn = connPool.getConnection();
+		assertEquals(ConnectionPoolHealth.Status.HEALTHY, connPool.getHealth().getStatus());
+		connPool.releaseConnection(conn);
+	}
+	
+	@Test
+	public void testPoolSnapshotShowsWhoHoldsTheConnections() throws Exception {
+		// the mock driver hands out the same connection every time, the snapshot needs distinct physical connections
+		final ExpandingSizeConnectionPool simulatedPool = new ExpandingSizeConnectionPool(2, 3, new SimulatedDriver(1), 
+				"jdbc:simulated", null);
+		
+		// a client borrows a connection and never gives it back
+		Thread stuckClient = new Thread("stuck-client") {
+			@Override
+			public void run() {
+				try {
+					simulatedPool.getConnection();
+				} catch (SQLException e) {
+					; // the test will fail on the snapshot
+				}
+			}
+		};
+		stuckClient.start();
+		stuckClient.join();
+		
+		// another connection is borrowed and returned, and validated on its way back as the pool is low
+		Connection conn = simulatedPool.getConnection();
+		simulatedPool.releaseConnection(conn);
+		
+		ConnectionPoolSnapshot snapshot = simulatedPool.getSnapshot();
+		assertEquals(3, snapshot.getTotalConnections());
+		assertEquals(2, snapshot.getIdleConnections());
+		assertEquals(1, snapshot.getBorrowedConnections());
+		assertEquals(3, snapshot.getConnections().size());
+		
+		int borrowed = 0;
+		int validated = 0;
+		for (ConnectionPoolSnapshot.PhysicalConnection physical : snapshot.getConnections()) {
+			if (physical.getState() == ConnectionPoolSnapshot.ConnectionState.BORROWED) {
+				borrowed++;
+				assertEquals("stuck-client", physical.getHolderThreadName());
+				assertEquals(1, physical.getBorrowCount());
+				assertTrue(physical.getLastBorrowedAtMillis() >= physical.getCreatedAtMillis());
+			} else {
+				assertEquals(null, physical.getHolderThreadName());
+			}
+			if (!physical.getValidations().isEmpty()) {
+				validated++;
+				assertTrue(physical.getValidations().get(0).isValid());
+				assertEquals(1, physical.getBorrowCount());
+			}
+		}
+		assertEquals(1, borrowed);
+		assertEquals(1, validated);
+		assertTrue(snapshot.dump().contains("held by \"stuck-client\""));
+	}
+	
+	@Test
+	public void testPoolDiagnosticsOverJmx() throws Exception {
+		setupExpandingConnectionPool(2, 4); // setup a new pool with (min, max) connections
+		Connection conn = connPool.getConnection();
+		
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = ConnectionPoolDiagnostics.register(connPool, "test pool");
+		try {
+			assertEquals(1, server.getAttribute(name, "BorrowedConnections"));
+			assertEquals(poolMaxSize, server.getAttribute(name, "MaxConnections"));
+			assertEquals("HEALTHY", server.getAttribute(name, "HealthStatus"));
+			String dump = (String) server.invoke(name, "dumpConnections", null, null);
+			assertTrue(dump.contains("BORROWED"));
+		} finally {
+			server.unregisterMBean(name);
+		}
+		connPool.releaseConnection(conn);
+	}
+	
+	@Test
+	public void testPoolUsageDisconnectEvictsTheBrokenConnectionsInBulk() throws Exception {
+		SimulatedDriver driver = new SimulatedDriver(1);
+		ExpandingSizeConnectionPool simulatedPool = new ExpandingSizeConnectionPool(3, 3, driver, "jdbc:simulated", null);
+		simulatedPool.setFatalErrorClassifier(new FatalErrorClassifier());
+		final List<String> evictions = new CopyOnWriteArrayList<String>();
+		simulatedPool.addConnectionPoolListener(new ConnectionPoolListenerAdapter() {
+			@Override
+			public void connectionEvicted(Connection connection, String reason) {
+				evictions.add(reason);
+			}
+		});
+		Connection conn = simulatedPool.getConnection();
+		
+		// the network goes down: the next operation on any connection finds it dead
+		driver.setConnectionDeathProbability(1.0);
+		try {
+			conn.createStatement().execute("select 1");
+			fail("the connection should be dead");
+		} catch (SQLException e) {
+			assertEquals(SimulatedDriver.LINK_FAILURE_SQL_STATE, e.getSQLState());
+		}
+		
+		// the idle connections are checked and replaced in the background
+		for (int i=0; i < 200 && evictions.size() < 2; i++)
+			Thread.sleep(10);
+		assertEquals(2, evictions.size());
+		synchronized (simulatedPool) {
+			assertEquals(2, simulatedPool.getNumConnectionsInPool());
+		}
+		
+		// the broken connection goes away on release without being validated, which would have counted one more death
+		driver.setConnectionDeathProbability(0);
+		long deaths = driver.getDeadConnections();
+		simulatedPool.releaseConnection(conn);
+		assertEquals(deaths, driver.getDeadConnections());
+		assertEquals(3, evictions.size());
+		assertTrue(evictions.get(2).contains("fatal connection error"));
+		assertEquals(3, simulatedPool.getTotalConnections());
+		assertEquals(3, driver.getOpenConnections());
+	}
+	
+	@Test
+	public void testPoolUsageIdleConnectionsAreRevalidatedSideBySide() throws Exception {
+		SimulatedDriver driver = new SimulatedDriver(1);
+		driver.setValidationLatency(LatencyDistribution.fixed(300));
+		ExpandingSizeConnectionPool simulatedPool = new ExpandingSizeConnectionPool(4, 4, driver, "jdbc:simulated", null);
+		simulatedPool.setFatalErrorClassifier(new FatalErrorClassifier());
+		final List<Boolean> validations = new CopyOnWriteArrayList<Boolean>();
+		simulatedPool.addConnectionPoolListener(new ConnectionPoolListenerAdapter() {
+			@Override
+			public void connectionValidated(Connection connection, boolean valid, long validationNanos) {
+				validations.add(valid);
+			}
+		});
+		Connection conn = simulatedPool.getConnection();
+		
+		// a single connection dies, which looks like the database went away
+		driver.setConnectionDeathProbability(1.0);
+		try {
+			conn.createStatement().execute("select 1");
+			fail("the connection should be dead");
+		} catch (SQLException e) {
+			assertEquals(SimulatedDriver.LINK_FAILURE_SQL_STATE, e.getSQLState());
+		}
+		driver.setConnectionDeathProbability(0);
+		for (int i=0; i < 200 && simulatedPool.getNumConnectionsInPool() > 0; i++)
+			Thread.sleep(10);
+		long start = System.nanoTime();
+		
+		// a borrower finding the pool empty while its connections are checked waits for one instead of failing
+		Connection other = simulatedPool.getConnection();
+		
+		// the three checks take about as long as one
+		for (int i=0; i < 200 && validations.size() < 3; i++)
+			Thread.sleep(10);
+		assertEquals(Arrays.asList(true, true, true), validations);
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(800));
+		assertEquals(2, simulatedPool.getNumConnectionsInPool());
+		
+		simulatedPool.releaseConnection(other);
+		simulatedPool.releaseConnection(conn);
+		assertEquals(4, simulatedPool.getTotalConnections());
+	}
+	
+	@Test
+	public void testPoolUsageDeadlineAwareBorrowingShedsLoad() throws Exception {
+		final ExpandingSizeConnectionPool simulatedPool = new ExpandingSizeConnectionPool(1, 1, new SimulatedDriver(1), 
+				"jdbc:simulated", null);
+		
+		// the borrowers hold on to their connections for about 50ms
+		for (int i=0; i < 3; i++) {
+			Connection conn = simulatedPool.getConnection(0);
+			Thread.sleep(50);
+			simulatedPool.releaseConnection(conn);
+		}
+		assertTrue(simulatedPool.getMeanHoldNanos() >= 50000000L);
+		
+		// with the only connection borrowed, a client that can only wait 10ms is turned down without waiting
+		final Connection held = simulatedPool.getConnection(1000);
+		try {
+			simulatedPool.getConnection(10);
+			fail("the connection is not expected back before the deadline");
+		} catch (ConnectionPoolLoadShedException e) {
+			; // expected
+		}
+		assertEquals(1, simulatedPool.getNumShedBorrows());
+		
+		// a client with enough budget waits for the connection
+		Thread releaser = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+					simulatedPool.releaseConnection(held);
+				} catch (Exception e) {
+					; // the test will time out waiting
+				}
+			}
+		};
+		releaser.start();
+		Connection conn = simulatedPool.getConnection(2000);
+		releaser.join();
+		assertTrue(conn != held);
+		assertEquals(1, simulatedPool.getNumShedBorrows());
+		simulatedPool.releaseConnection(conn);
+	}
+	
+	@Test
+	public void testPoolUsageWaitingBorrowersAreServedInArrivalOrder() throws Exception {
+		final ExpandingSizeConnectionPool simulatedPool = new ExpandingSizeConnectionPool(2, 2, new SimulatedDriver(1), 
+				"jdbc:simulated", null);
+		List<Connection> held = simulatedPool.getConnections(2, 0);
+		
+		// The borrowers line up one after the other, the first one for both connections, and pass a connection on when
+		// served.  The first one keeps the other connection, so that the others are served one at a time.
+		final List<Integer> servedOrder = Collections.synchronizedList(new ArrayList<Integer>());
+		final List<Connection> kept = Collections.synchronizedList(new ArrayList<Connection>());
+		Thread[] borrowers = new Thread[5];
+		for (int i=0; i < borrowers.length; i++) {
+			final int borrower = i;
+			borrowers[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						List<Connection> conns = simulatedPool.getConnections(borrower == 0 ? 2 : 1, 5000);
+						servedOrder.add(borrower);
+						if (borrower == 0)
+							kept.add(conns.remove(1));
+						simulatedPool.releaseConnections(conns);
+					} catch (Exception e) {
+						; // the borrower is missing from the served order
+					}
+				}
+			};
+			borrowers[i].start();
+			for (int j=0; j < 200 && simulatedPool.getNumWaitingConnections() < i + 2; j++)
+				Thread.sleep(10);
+			assertEquals(i + 2, simulatedPool.getNumWaitingConnections());
+		}
+		
+		// with one connection back, the first borrower still waits for the other, and nobody may take it from the line
+		simulatedPool.releaseConnection(held.get(0));
+		Thread.sleep(50);
+		try {
+			simulatedPool.getConnection();
+			fail("should not have gotten here");
+		} catch (ConnectionPoolOutOfConnectionsException e) {
+			; // do nothing, this is expected
+		}
+		try {
+			simulatedPool.getConnections(1, 0);
+			fail("should not have gotten here");
+		} catch (ConnectionPoolOutOfConnectionsException e) {
+			; // do nothing, this is expected
+		}
+		assertTrue(servedOrder.isEmpty());
+		
+		simulatedPool.releaseConnection(held.get(1));
+		for (Thread borrower : borrowers)
+			borrower.join();
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4), servedOrder);
+		assertEquals(0, simulatedPool.getNumWaitingConnections());
+		simulatedPool.releaseConnections(kept);
+	}
+	
+	@Test
+	public void testPoolUsageStatementsLeftOpenAreClosedOnRelease() throws Exception {
+		ExpandingSizeConnectionPool simulatedPool = new ExpandingSizeConnectionPool(1, 1, new SimulatedDriver(1), 
+				"jdbc:simulated", null);
+		simulatedPool.setCloseOpenStatementsOnRelease(true);
+		
+		// one statement and its result set left open, the others closed properly
+		Connection conn = simulatedPool.getConnection();
+		Statement leftOpen = conn.createStatement();
+		ResultSet resultSet = leftOpen.executeQuery("select 1");
+		PreparedStatement prepared = conn.prepareStatement("select 2");
+		prepared.executeQuery().close();
+		Statement closed = conn.createStatement();
+		closed.executeQuery("select 3");
+		closed.close();
+		prepared.close();
+		simulatedPool.releaseConnection(conn);
+		assertTrue(leftOpen.isClosed());
+		assertTrue(resultSet.isClosed());
+		assertEquals(1, simulatedPool.getNumAutoClosedStatements());
+		assertEquals(1, simulatedPool.getNumAutoClosedResultSets());
+		
+		// a well-behaved client leaves nothing to close
+		conn = simulatedPool.getConnection();
+		Statement statement = conn.createStatement();
+		statement.executeQuery("select 4").close();
+		statement.close();
+		simulatedPool.releaseConnection(conn);
+		assertEquals(1, simulatedPool.getNumAutoClosedStatements());
+		assertEquals(1, simulatedPool.getNumAutoClosedResultSets());
+	}
+	
+	@Test
+	public void testPoolUsageInvalidConnectionIsReplacedInTheBackground() throws Exception {
+		SimulatedDriver driver = new SimulatedDriver(1);
+		ExpandingSizeConnectionPool simulatedPool = new ExpandingSizeConnectionPool(1, 1, driver, "jdbc:simulated", null);
+		Connection conn = simulatedPool.getConnection();
+		
+		// the connection dies while borrowed, and connecting has become slow
+		driver.setConnectionDeathProbability(1.0);
+		driver.setConnectLatency(LatencyDistribution.fixed(300));
+		long start = System.nanoTime();
+		simulatedPool.releaseConnection(conn);
+		long releaseMillis = (System.nanoTime() - start) / 1000000;
+		assertTrue("release took " + releaseMillis + "ms", releaseMillis < 150);
+		driver.setConnectionDeathProbability(0);
+		assertEquals(1, simulatedPool.getTotalConnections());
+		
+		// the next client waits for the replacement
+		Connection replacement = simulatedPool.getConnections(1, 2000).get(0);
+		assertTrue(replacement.isValid(0));
+		assertEquals(2, driver.getTotalConnects());
+		assertEquals(1, driver.getOpenConnections());
+		simulatedPool.releaseConnection(replacement);
+	}
+
+	@Test
+	public void testPoolUsageReleaseValidationDoesNotHoldThePoolLock() throws Exception {
+		SimulatedDriver driver = new SimulatedDriver(1);
+		final ExpandingSizeConnectionPool simulatedPool = new ExpandingSizeConnectionPool(2, 2, driver, "jdbc:simulated", null);
+		final Connection released = simulatedPool.getConnection();
+		Connection kept = simulatedPool.getConnection();
+
+		// validating the released connection is slow
+		driver.setValidationLatency(LatencyDistribution.fixed(400));
+		Thread releaser = new Thread() {
+			@Override
+			public void run() {
+				try {
+					simulatedPool.releaseConnection(released);
+				} catch (ConnectionPoolException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		releaser.start();
+		Thread.sleep(50);
+
+		// the pool answers while the connection is validated, and counts it all along
+		long start = System.nanoTime();
+		assertEquals(2, simulatedPool.getTotalConnections());
+		assertEquals(1, simulatedPool.getNumBorrowedConnections());
+		long callMillis = (System.nanoTime() - start) / 1000000;
+		assertTrue("pool call took " + callMillis + "ms", callMillis < 150);
+
+		// the connection is back in the pool when the release returns
+		releaser.join();
+		assertEquals(1, simulatedPool.getNumConnectionsInPool());
+		driver.setValidationLatency(LatencyDistribution.NONE);
+		simulatedPool.releaseConnection(kept);
+	}
+
+	@Test
+	public void testPoolUsageIdleConnectionsAreKeptAlive() throws Exception {
+		SimulatedDriver driver = new SimulatedDriver(1);
+		ExpandingSizeConnectionPool simulatedPool = new ExpandingSizeConnectionPool(2, 2, driver, "jdbc:simulated", null);
+		simulatedPool.setKeepaliveQuery("SELECT 1");
+		simulatedPool.setKeepaliveIntervalMillis(400);
+		
+		// nothing is pinged before it was idle for most of the interval
+		Thread.sleep(150);
+		assertEquals(0, driver.getExecutions());
+		
+		// then both idle connections are pinged
+		for (int i=0; i < 200 && driver.getExecutions() < 2; i++)
+			Thread.sleep(10);
+		assertTrue(driver.getExecutions() >= 2);
+		assertEquals(2, simulatedPool.getTotalConnections());
+		
+		// a connection that fails its ping is replaced
+		driver.setConnectionDeathProbability(1.0);
+		for (int i=0; i < 200 && driver.getTotalConnects() < 3; i++)
+			Thread.sleep(10);
+		driver.setConnectionDeathProbability(0);
+		assertTrue(driver.getTotalConnects() >= 3);
+		
+		List<Connection> conns = simulatedPool.getConnections(2, 2000);
+		for (Connection conn : conns)
+			assertTrue(conn.isValid(0));
+		assertEquals(2, driver.getOpenConnections());
+		simulatedPool.releaseConnections(conns);
+		simulatedPool.close();
+	}
+
+	@Test
+	public void testPoolUsageBorrowerWaitsForAConnectionBeingPinged() throws Exception {
+		SimulatedDriver driver = new SimulatedDriver(1);
+		driver.setExecutionLatency(LatencyDistribution.fixed(300));
+		ExpandingSizeConnectionPool simulatedPool = new ExpandingSizeConnectionPool(1, 1, driver, "jdbc:simulated", null);
+		simulatedPool.setKeepaliveQuery("SELECT 1");
+		simulatedPool.setKeepaliveIntervalMillis(200);
+		for (int i=0; i < 200 && simulatedPool.getNumConnectionsInPool() > 0; i++)
+			Thread.sleep(10);
+		assertEquals(0, simulatedPool.getNumConnectionsInPool());
+		
+		// the only connection is out being pinged, the borrower gets it once the ping is done
+		Connection conn = simulatedPool.getConnection();
+		assertEquals(1, driver.getExecutions());
+		simulatedPool.releaseConnection(conn);
+		simulatedPool.close();
+		assertEquals(0, driver.getOpenConnections());
+	}
 }
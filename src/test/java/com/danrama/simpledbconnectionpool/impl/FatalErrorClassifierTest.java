@@ -0,0 +1,60 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+
+import org.junit.Test;
+
+/**
+ * Tests for verifying the classification of errors by the FatalErrorClassifier class.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ */
+public class FatalErrorClassifierTest {
+	@Test
+	public void testErrorsAreClassifiedBySqlStateTypeAndVendorCode() {
+		FatalErrorClassifier classifier = new FatalErrorClassifier();
+		assertEquals(FatalErrorClassifier.Severity.DISCONNECTED, classifier.classify(new SQLException("link", "08S01")));
+		assertEquals(FatalErrorClassifier.Severity.DISCONNECTED, classifier.classify(new SQLException("shutdown", "57P01")));
+		assertEquals(FatalErrorClassifier.Severity.CONNECTION_BROKEN, classifier.classify(new SQLException("closed", "08003")));
+		assertEquals(FatalErrorClassifier.Severity.RECOVERABLE, classifier.classify(new SQLException("duplicate", "23505")));
+		assertEquals(FatalErrorClassifier.Severity.DISCONNECTED, 
+				classifier.classify(new SQLTransientConnectionException("timed out")));
+		assertEquals(FatalErrorClassifier.Severity.CONNECTION_BROKEN, classifier.classify(new SQLRecoverableException("gone")));
+		
+		// vendor codes only count once registered for the driver in use
+		SQLException killed = new SQLException("ORA-00028: your session has been killed", "72000", 28);
+		assertEquals(FatalErrorClassifier.Severity.RECOVERABLE, classifier.classify(killed));
+		classifier.addVendorCode(28, FatalErrorClassifier.Severity.CONNECTION_BROKEN);
+		assertEquals(FatalErrorClassifier.Severity.CONNECTION_BROKEN, classifier.classify(killed));
+	}
+	
+	@Test
+	public void testTheMostSevereErrorOfTheChainWins() {
+		FatalErrorClassifier classifier = new FatalErrorClassifier();
+		SQLException batchError = new SQLException("batch failed", "23505");
+		batchError.setNextException(new SQLException("closed", "08003"));
+		assertEquals(FatalErrorClassifier.Severity.CONNECTION_BROKEN, classifier.classify(batchError));
+		
+		SQLException wrapped = new SQLException("query failed", "HY000", new SQLException("link", "08S01"));
+		assertEquals(FatalErrorClassifier.Severity.DISCONNECTED, classifier.classify(wrapped));
+	}
+}
@@ -0,0 +1,133 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.impl;
+
+import static org.easymock.EasyMock.createMock;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+
+import org.junit.Test;
+
+import com.danrama.simpledbconnectionpool.simulation.SimulatedDriver;
+
+/**
+ * Tests for verifying the order in which the idle connection strategies hand out connections, and their use by the
+ * ExpandingSizeConnectionPool class.  The strategies are given mock connections, which they never call.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ */
+public class IdleConnectionStrategyTest {
+	private static Connection[] createConnections(int count) {
+		Connection[] connections = new Connection[count];
+		for (int i=0; i < count; i++)
+			connections[i] = createMock(Connection.class);
+		return connections;
+	}
+	
+	@Test
+	public void testFifoHandsOutTheLongestIdleConnection() {
+		IdleConnectionStrategy strategy = new FifoIdleConnectionStrategy();
+		Connection[] conns = createConnections(3);
+		for (Connection conn : conns)
+			strategy.add(conn);
+		
+		assertSame(conns[0], strategy.take());
+		strategy.add(conns[0]);
+		assertSame(conns[1], strategy.take());
+		assertSame(conns[2], strategy.take());
+		assertSame(conns[0], strategy.take());
+		assertEquals(null, strategy.take());
+		assertEquals(0, strategy.size());
+	}
+	
+	@Test
+	public void testLifoHandsOutTheMostRecentlyReturnedConnection() {
+		IdleConnectionStrategy strategy = new LifoIdleConnectionStrategy();
+		Connection[] conns = createConnections(3);
+		for (Connection conn : conns)
+			strategy.add(conn);
+		
+		// the same connection keeps being reused while the others stay idle
+		for (int i=0; i < 5; i++) {
+			Connection conn = strategy.take();
+			assertSame(conns[2], conn);
+			strategy.add(conn);
+		}
+		assertEquals(3, strategy.size());
+		
+		// an idle connection can be taken out of the middle, e.g. when it is found broken
+		assertTrue(strategy.remove(conns[1]));
+		assertTrue(!strategy.remove(conns[1]));
+		assertSame(conns[2], strategy.take());
+		assertSame(conns[0], strategy.take());
+	}
+	
+	@Test
+	public void testRoundRobinRotatesRegardlessOfReturnOrder() {
+		IdleConnectionStrategy strategy = new RoundRobinIdleConnectionStrategy();
+		Connection[] conns = createConnections(100); // more than a single word of the idle bitmap
+		for (Connection conn : conns)
+			strategy.add(conn);
+		
+		// a connection returned right away does not jump the queue, the rotation carries on after it
+		assertSame(conns[0], strategy.take());
+		strategy.add(conns[0]);
+		assertSame(conns[1], strategy.take());
+		for (int i=2; i < 100; i++)
+			assertSame(conns[i], strategy.take());
+		assertSame(conns[0], strategy.take()); // wraps around the ring
+		assertEquals(null, strategy.take());
+		
+		// a closed connection gives its slot to the next new one
+		strategy.discarded(conns[50]);
+		Connection newConn = createMock(Connection.class);
+		strategy.add(newConn);
+		strategy.add(conns[10]);
+		assertSame(conns[10], strategy.take());
+		assertSame(newConn, strategy.take());
+		assertEquals(0, strategy.size());
+		
+		// only an idle connection can be taken out of the rotation
+		assertTrue(!strategy.remove(conns[10]));
+		strategy.add(conns[10]);
+		assertTrue(strategy.remove(conns[10]));
+		assertEquals(0, strategy.size());
+		assertEquals(null, strategy.take());
+	}
+	
+	@Test
+	public void testLifoPoolKeepsAHotSetOfConnections() throws Exception {
+		// the mock driver hands out the same connection every time, the pool needs distinct physical connections
+		ExpandingSizeConnectionPool connPool = new ExpandingSizeConnectionPool(3, 3, new SimulatedDriver(1), 
+				"jdbc:simulated", null);
+		connPool.setIdleConnectionStrategy(new LifoIdleConnectionStrategy());
+		for (int i=0; i < 10; i++)
+			connPool.releaseConnection(connPool.getConnection());
+		
+		// every borrow went to the same connection
+		long maxBorrowCount = 0;
+		long totalBorrowCount = 0;
+		for (ConnectionPoolSnapshot.PhysicalConnection conn : connPool.getSnapshot().getConnections()) {
+			maxBorrowCount = Math.max(maxBorrowCount, conn.getBorrowCount());
+			totalBorrowCount += conn.getBorrowCount();
+		}
+		assertEquals(10, maxBorrowCount);
+		assertEquals(10, totalBorrowCount);
+	}
+}
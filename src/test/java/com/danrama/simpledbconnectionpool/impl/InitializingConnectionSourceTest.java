@@ -0,0 +1,127 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.impl;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createStrictMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.Test;
+
+import com.danrama.simpledbconnectionpool.ConnectionInitializer;
+import com.danrama.simpledbconnectionpool.ConnectionSource;
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolInitializationException;
+
+/**
+ * Tests for verifying the session setup of new connections by the InitializingConnectionSource class, using mock
+ * connections and statements.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ */
+public class InitializingConnectionSourceTest {
+	private static final String[] INIT_SQL = { "SET TIME ZONE 'UTC'", "SET SCHEMA app" };
+	
+	/*
+	 * A source always handing out the same connection.
+	 */
+	private static ConnectionSource sourceOf(final Connection connection) {
+		return new ConnectionSource() {
+			public Connection getConnection() {
+				return connection;
+			}
+		};
+	}
+	
+	@Test
+	public void testInitSqlIsBatchedAndFollowedByTheInitializer() throws Exception {
+		final Connection mockConnection = createStrictMock(Connection.class);
+		DatabaseMetaData mockMetaData = createMock(DatabaseMetaData.class);
+		Statement mockStatement = createStrictMock(Statement.class);
+		final int[] initialized = new int[1];
+		
+		// one batch for all of the statements, then the callback
+		expect(mockConnection.createStatement()).andReturn(mockStatement);
+		expect(mockConnection.getMetaData()).andReturn(mockMetaData);
+		expect(mockMetaData.supportsBatchUpdates()).andReturn(true);
+		mockStatement.addBatch(INIT_SQL[0]);
+		mockStatement.addBatch(INIT_SQL[1]);
+		expect(mockStatement.executeBatch()).andReturn(new int[] { 0, 0 });
+		mockStatement.close();
+		replay(mockConnection, mockMetaData, mockStatement);
+		
+		ConnectionSource source = new InitializingConnectionSource(sourceOf(mockConnection), INIT_SQL, 
+				new ConnectionInitializer() {
+					public void initialize(Connection connection) {
+						assertSame(mockConnection, connection);
+						initialized[0]++;
+					}
+				});
+		assertSame(mockConnection, source.getConnection());
+		assertEquals(1, initialized[0]);
+		verify(mockConnection, mockMetaData, mockStatement);
+	}
+	
+	@Test
+	public void testInitSqlIsRunOneByOneWithoutBatchSupport() throws Exception {
+		Connection mockConnection = createStrictMock(Connection.class);
+		DatabaseMetaData mockMetaData = createMock(DatabaseMetaData.class);
+		Statement mockStatement = createStrictMock(Statement.class);
+		
+		expect(mockConnection.createStatement()).andReturn(mockStatement);
+		expect(mockConnection.getMetaData()).andReturn(mockMetaData);
+		expect(mockMetaData.supportsBatchUpdates()).andReturn(false);
+		expect(mockStatement.execute(INIT_SQL[0])).andReturn(false);
+		expect(mockStatement.execute(INIT_SQL[1])).andReturn(false);
+		mockStatement.close();
+		replay(mockConnection, mockMetaData, mockStatement);
+		
+		new InitializingConnectionSource(sourceOf(mockConnection), INIT_SQL, null).getConnection();
+		verify(mockConnection, mockMetaData, mockStatement);
+	}
+	
+	@Test
+	public void testFailedInitIsAConnectFailure() throws Exception {
+		Connection mockConnection = createStrictMock(Connection.class);
+		Statement mockStatement = createStrictMock(Statement.class);
+		SQLException initError = new SQLException("unknown time zone");
+		
+		// a single statement is not worth a batch, it fails and the connection is thrown away
+		expect(mockConnection.createStatement()).andReturn(mockStatement);
+		expect(mockStatement.execute(INIT_SQL[0])).andThrow(initError);
+		mockStatement.close();
+		mockConnection.close();
+		replay(mockConnection, mockStatement);
+		
+		try {
+			new ExpandingSizeConnectionPool(1, 2, new InitializingConnectionSource(sourceOf(mockConnection), 
+					new String[] { INIT_SQL[0] }, null), null);
+			fail("the pool should not have been able to fill itself");
+		} catch (ConnectionPoolInitializationException e) {
+			assertSame(initError, e.getCause());
+		}
+		verify(mockConnection, mockStatement);
+	}
+}
@@ -0,0 +1,248 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.danrama.simpledbconnectionpool.ConnectionPool;
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolAlreadyReleasedConnectionException;
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolOutOfConnectionsException;
+import com.danrama.simpledbconnectionpool.simulation.SimulatedDriver;
+
+/**
+ * Tests for verifying the lease-per-statement multiplexing of the MultiplexingConnectionPool class.  The underlying pool
+ * uses the simulated database driver.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ */
+public class MultiplexingConnectionPoolTest {
+	private SimulatedDriver driver;
+	private ExpandingSizeConnectionPool underlyingPool;
+	private MultiplexingConnectionPool connPool;
+
+	@Before
+	public void setUp() throws Exception {
+		driver = new SimulatedDriver(1);
+		underlyingPool = new ExpandingSizeConnectionPool(1, 1, driver, "jdbc:simulated", null);
+		connPool = new MultiplexingConnectionPool(underlyingPool);
+	}
+
+	@Test
+	public void testManyConnectionsShareOnePhysicalConnection() throws Exception {
+		// far more clients than physical connections hold on to their connections
+		List<Connection> clients = new ArrayList<Connection>();
+		for (int i=0; i < 10; i++)
+			clients.add(connPool.getConnection());
+		assertEquals(0, underlyingPool.getNumBorrowedConnections());
+		
+		for (int i=0; i < clients.size(); i++) {
+			Connection conn = clients.get(i);
+			assertTrue(conn.isReadOnly());
+			assertTrue(conn.getAutoCommit());
+			PreparedStatement statement = conn.prepareStatement("SELECT name FROM users WHERE id = ?");
+			statement.setInt(1, i);
+			statement.setQueryTimeout(5);
+			
+			// the physical connection is held while the result set is read
+			ResultSet resultSet = statement.executeQuery();
+			assertEquals(1, underlyingPool.getNumBorrowedConnections());
+			assertTrue(resultSet.getStatement() == statement);
+			resultSet.close();
+			assertEquals(0, underlyingPool.getNumBorrowedConnections());
+			
+			// an execution that yields an update count gives it back right away, and so does reading to the end
+			Statement plainStatement = conn.createStatement();
+			assertFalse(plainStatement.execute("SELECT 1"));
+			assertEquals(0, connPool.getNumActiveLeases());
+			ResultSet unclosedResultSet = plainStatement.executeQuery("SELECT 1");
+			assertEquals(1, connPool.getNumActiveLeases());
+			assertFalse(unclosedResultSet.next());
+			assertEquals(0, connPool.getNumActiveLeases());
+			statement.close();
+		}
+		
+		assertEquals(30, connPool.getNumLeases());
+		assertEquals(30, driver.getExecutions());
+		assertEquals(1, driver.getTotalConnects());
+		connPool.releaseConnections(clients);
+		assertTrue(clients.get(0).isClosed());
+	}
+
+	@Test
+	public void testScrollableResultSetKeepsItsLeaseUntilClosed() throws Exception {
+		Connection conn = connPool.getConnection();
+		Statement statement = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+		ResultSet resultSet = statement.executeQuery("SELECT name FROM users");
+		
+		// reading past the last row of a scrollable result set does not end it, as it can be read again
+		assertFalse(resultSet.next());
+		assertEquals(1, connPool.getNumActiveLeases());
+		resultSet.beforeFirst();
+		assertFalse(resultSet.next());
+		assertEquals(1, connPool.getNumActiveLeases());
+		resultSet.close();
+		assertEquals(0, connPool.getNumActiveLeases());
+		
+		// and neither does a prepared one
+		PreparedStatement prepared = conn.prepareStatement("SELECT name FROM users", ResultSet.TYPE_SCROLL_SENSITIVE,
+				ResultSet.CONCUR_READ_ONLY);
+		resultSet = prepared.executeQuery();
+		assertFalse(resultSet.next());
+		assertFalse(resultSet.previous());
+		assertEquals(1, connPool.getNumActiveLeases());
+		prepared.close();
+		assertEquals(0, connPool.getNumActiveLeases());
+		connPool.releaseConnection(conn);
+	}
+
+	@Test
+	public void testWritesAndTransactionsAreRefused() throws Exception {
+		Connection conn = connPool.getConnection();
+		conn.setAutoCommit(true);
+		conn.setReadOnly(true);
+		try {
+			conn.setAutoCommit(false);
+			fail("a transaction cannot span several physical connections");
+		} catch (SQLFeatureNotSupportedException e) {
+			// expected
+		}
+		try {
+			conn.setReadOnly(false);
+			fail("the connection must stay read-only");
+		} catch (SQLFeatureNotSupportedException e) {
+			// expected
+		}
+		try {
+			conn.createStatement().executeUpdate("DELETE FROM users");
+			fail("updates are not multiplexed");
+		} catch (SQLFeatureNotSupportedException e) {
+			// expected
+		}
+		try {
+			conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+			fail("the session state of a physical connection cannot be changed");
+		} catch (SQLFeatureNotSupportedException e) {
+			// expected
+		}
+		assertEquals(0, connPool.getNumLeases());
+		
+		// releasing the connection gives back the physical connection of a result set still being read
+		Statement statement = conn.createStatement();
+		statement.executeQuery("SELECT name FROM users");
+		assertEquals(1, underlyingPool.getNumBorrowedConnections());
+		connPool.releaseConnection(conn);
+		assertEquals(0, underlyingPool.getNumBorrowedConnections());
+		assertTrue(statement.isClosed());
+		try {
+			conn.createStatement();
+			fail("the connection was released");
+		} catch (ConnectionPoolAlreadyReleasedConnectionException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testLeasesWaitForAPhysicalConnectionAndAreReadOnly() throws Exception {
+		// the physical connection is left in a writable state with autocommit off by another user of the pool
+		Connection physicalConnection = underlyingPool.getConnection();
+		physicalConnection.setAutoCommit(false);
+		underlyingPool.releaseConnection(physicalConnection);
+
+		// keep track of the connections leased
+		final List<Connection> leased = new CopyOnWriteArrayList<Connection>();
+		connPool = new MultiplexingConnectionPool(new ConnectionPool() {
+			public Connection getConnection() throws SQLException {
+				throw new AssertionError("leases must wait for their connection");
+			}
+			public void releaseConnection(Connection connection) throws SQLException {
+				underlyingPool.releaseConnection(connection);
+			}
+			public List<Connection> getConnections(int count, long timeoutMillis) throws SQLException {
+				List<Connection> connections = underlyingPool.getConnections(count, timeoutMillis);
+				leased.addAll(connections);
+				return connections;
+			}
+			public void releaseConnections(Collection<? extends Connection> connections) throws SQLException {
+				underlyingPool.releaseConnections(connections);
+			}
+		});
+
+		// the statement of a client is leased the connection, which is made read-only and autocommit for it
+		Connection holder = connPool.getConnection();
+		ResultSet heldResultSet = holder.createStatement().executeQuery("SELECT 1");
+		assertTrue(leased.get(0).isReadOnly());
+		assertTrue(leased.get(0).getAutoCommit());
+
+		// another client waits for the lease instead of failing
+		final Connection waiter = connPool.getConnection();
+		final List<Exception> errors = new CopyOnWriteArrayList<Exception>();
+		Thread waiterThread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					waiter.createStatement().executeQuery("SELECT 2").close();
+				} catch (Exception e) {
+					errors.add(e);
+				}
+			}
+		};
+		waiterThread.start();
+		Thread.sleep(200);
+		assertEquals(1, connPool.getNumLeases());
+		heldResultSet.close();
+		waiterThread.join(2000);
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertEquals(2, connPool.getNumLeases());
+
+		// the connection is switched back before it is given back
+		assertEquals(0, underlyingPool.getNumBorrowedConnections());
+		connPool.releaseConnections(Arrays.asList(holder, waiter));
+		physicalConnection = underlyingPool.getConnection();
+		assertFalse(physicalConnection.isReadOnly());
+		assertFalse(physicalConnection.getAutoCommit());
+		physicalConnection.setAutoCommit(true);
+		underlyingPool.releaseConnection(physicalConnection);
+
+		// a pool that does not wait fails right away
+		MultiplexingConnectionPool impatientPool = new MultiplexingConnectionPool(underlyingPool, 0);
+		Connection busy = underlyingPool.getConnection();
+		try {
+			impatientPool.getConnection().createStatement().executeQuery("SELECT 3");
+			fail("no physical connection is free");
+		} catch (ConnectionPoolOutOfConnectionsException e) {
+			// expected
+		}
+		underlyingPool.releaseConnection(busy);
+	}
+}
@@ -0,0 +1,120 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+import com.danrama.simpledbconnectionpool.ConnectionPoolListenerAdapter;
+import com.danrama.simpledbconnectionpool.simulation.SimulatedConnectionPoolDataSource;
+import com.danrama.simpledbconnectionpool.simulation.SimulatedDriver;
+
+/**
+ * Tests for verifying the PoolingDataSource class and its DataSourceConnectionSource.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ */
+public class PoolingDataSourceTest {
+	@Test
+	public void testClosingAConnectionReleasesIt() throws Exception {
+		ExpandingSizeConnectionPool pool = new ExpandingSizeConnectionPool(1, 2, new SimulatedDriver(1), "jdbc:simulated", 
+				null);
+		PoolingDataSource dataSource = new PoolingDataSource(pool);
+		assertTrue(dataSource.unwrap(ExpandingSizeConnectionPool.class) == pool);
+		
+		Connection conn = dataSource.getConnection();
+		assertEquals(1, pool.getNumBorrowedConnections());
+		conn.close();
+		assertEquals(0, pool.getNumBorrowedConnections());
+		assertEquals(1, pool.getNumConnectionsInPool());
+		assertTrue(conn.isClosed());
+		
+		// closing again does nothing, as for any JDBC connection
+		conn.close();
+		assertEquals(1, pool.getNumConnectionsInPool());
+	}
+	
+	@Test
+	public void testLoginTimeoutWaitsForAConnection() throws Exception {
+		final ExpandingSizeConnectionPool pool = new ExpandingSizeConnectionPool(1, 1, new SimulatedDriver(1), 
+				"jdbc:simulated", null);
+		PoolingDataSource dataSource = new PoolingDataSource(pool);
+		dataSource.setLoginTimeout(5);
+		
+		final Connection held = dataSource.getConnection();
+		Thread releaser = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+					held.close();
+				} catch (Exception e) {
+					; // the test will time out waiting
+				}
+			}
+		};
+		releaser.start();
+		
+		Connection conn = dataSource.getConnection();
+		releaser.join();
+		assertTrue(conn != held);
+		conn.close();
+	}
+	
+	@Test
+	public void testConnectionsReportedBrokenByTheDriverAreEvicted() throws Exception {
+		SimulatedConnectionPoolDataSource physicalSource = new SimulatedConnectionPoolDataSource(new SimulatedDriver(1));
+		PoolingDataSource dataSource = new PoolingDataSource(1, 2, new DataSourceConnectionSource(physicalSource));
+		ExpandingSizeConnectionPool pool = dataSource.getPool();
+		final List<String> evictions = new CopyOnWriteArrayList<String>();
+		pool.addConnectionPoolListener(new ConnectionPoolListenerAdapter() {
+			@Override
+			public void connectionEvicted(Connection connection, String reason) {
+				evictions.add(reason);
+			}
+		});
+		
+		// an idle connection is replaced as soon as the driver reports it broken
+		SimulatedConnectionPoolDataSource.SimulatedPooledConnection idle = physicalSource.getPooledConnections().get(0);
+		idle.fireConnectionErrorOccurred(new SQLException("connection reset", SimulatedDriver.LINK_FAILURE_SQL_STATE));
+		assertTrue(idle.isClosed());
+		assertEquals(1, evictions.size());
+		assertEquals(2, physicalSource.getPooledConnections().size());
+		assertEquals(1, pool.getTotalConnections());
+		assertEquals(1, pool.getNumConnectionsInPool());
+		
+		// a borrowed connection stays with its client, and is discarded without being validated once released
+		Connection conn = dataSource.getConnection();
+		SimulatedConnectionPoolDataSource.SimulatedPooledConnection borrowed = physicalSource.getPooledConnections().get(1);
+		borrowed.fireConnectionErrorOccurred(new SQLException("connection reset", SimulatedDriver.LINK_FAILURE_SQL_STATE));
+		assertTrue(!borrowed.isClosed());
+		conn.close();
+		for (int i=0; i < 200 && !borrowed.isClosed(); i++)
+			Thread.sleep(10); // closed in the background
+		assertTrue(borrowed.isClosed());
+		assertEquals(2, evictions.size());
+		assertTrue(evictions.get(1).contains("connection reset"));
+		assertEquals(1, pool.getTotalConnections());
+		assertEquals(0, pool.getNumBorrowedConnections());
+	}
+}
@@ -0,0 +1,233 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.impl;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolOutOfConnectionsException;
+
+/**
+ * Tests for verifying the quotas and the waiter ordering of the PrioritizedConnectionPool class.  The underlying pool uses a
+ * mock database driver and connection.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ */
+public class PrioritizedConnectionPoolTest {
+	private static final int CAPACITY = 10;
+	
+	private ExpandingSizeConnectionPool underlyingPool;
+	private PrioritizedConnectionPool connPool;
+
+	@Before
+	public void setUp() throws Exception {
+		// create a mock Connection object that will always respond that it is valid
+		Connection mockConnection = createMock(Connection.class);
+		expect(mockConnection.isValid(0)).andStubReturn(true);
+		mockConnection.close();
+		expectLastCall().asStub();
+		replay(mockConnection);
+		
+		// create a mock Driver object that returns mock Connections
+		Driver mockDriver = createMock(Driver.class);
+		expect(mockDriver.connect(null, (Properties) null)).andStubReturn(mockConnection);
+		replay(mockDriver);
+		
+		// interactive traffic keeps 20% of the pool reserved, batch work may only use half of it
+		underlyingPool = new ExpandingSizeConnectionPool(2, CAPACITY, mockDriver, null, null);
+		connPool = new PrioritizedConnectionPool(underlyingPool, CAPACITY, 0, 
+				new BorrowerClass("interactive", 10, 0.2, 1.0), 
+				new BorrowerClass("batch", 1, 0.0, 0.5),
+				new BorrowerClass("reports", 5, 0.0, 1.0));
+	}
+
+	/*
+	 * Helper method to borrow connections for a class without waiting.
+	 */
+	private List<Connection> borrow(String className, int count) throws Exception {
+		List<Connection> clients = new ArrayList<Connection>();
+		for (int i=0; i < count; i++)
+			clients.add(connPool.getConnection(className, 0));
+		return clients;
+	}
+	
+	@Test
+	public void testBatchIsCappedAtItsMaximumShare() throws Exception {
+		borrow("batch", CAPACITY / 2);
+		try {
+			connPool.getConnection("batch", 0);
+			fail("batch should not be able to go over half the pool");
+		} catch (ConnectionPoolOutOfConnectionsException e) {
+			; // this is expected
+		}
+		
+		// other classes are not affected by the batch cap
+		assertNotNull(connPool.getConnection("reports", 0));
+		assertEquals(CAPACITY / 2 + 1, connPool.getTotalInUse());
+	}
+
+	@Test
+	public void testInteractiveReservationIsKeptFromOtherClasses() throws Exception {
+		borrow("batch", 5);
+		borrow("reports", 3);
+		
+		// the remaining two connections are reserved for interactive traffic
+		try {
+			connPool.getConnection("reports", 0);
+			fail("reports should not be able to use the interactive reservation");
+		} catch (ConnectionPoolOutOfConnectionsException e) {
+			; // this is expected
+		}
+		borrow("interactive", 2);
+		assertEquals(CAPACITY, connPool.getTotalInUse());
+		assertEquals(CAPACITY, underlyingPool.getTotalConnections());
+	}
+
+	@Test
+	public void testReleasedConnectionGoesToTheHighestPriorityWaiter() throws Exception {
+		List<Connection> clients = borrow("reports", 8);
+		clients.addAll(borrow("interactive", 2));
+		
+		// queue a batch waiter first and an interactive waiter second
+		final List<String> servedOrder = new ArrayList<String>();
+		Thread batchWaiter = startWaiter("batch", servedOrder);
+		waitForWaiters(1);
+		Thread interactiveWaiter = startWaiter("interactive", servedOrder);
+		waitForWaiters(2);
+		
+		// the first release goes to the interactive waiter even though it arrived last
+		connPool.releaseConnection(clients.remove(0));
+		interactiveWaiter.join(5000);
+		connPool.releaseConnection(clients.remove(0));
+		batchWaiter.join(5000);
+		
+		assertEquals(2, servedOrder.size());
+		assertEquals("interactive", servedOrder.get(0));
+		assertEquals("batch", servedOrder.get(1));
+	}
+
+	@Test
+	public void testWaiterTimesOut() throws Exception {
+		borrow("batch", 5);
+		long start = System.currentTimeMillis();
+		try {
+			connPool.getConnection("batch", 100);
+			fail("should not have gotten a connection");
+		} catch (ConnectionPoolOutOfConnectionsException e) {
+			; // this is expected
+		}
+		assertEquals(true, System.currentTimeMillis() - start >= 100);
+		assertEquals(0, connPool.getNumWaiters());
+	}
+	
+	/*
+	 * Helper method to start a thread that waits for a connection of a class and records when it is served.
+	 */
+	private Thread startWaiter(final String className, final List<String> servedOrder) {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					connPool.getConnection(className, 10000);
+					synchronized (servedOrder) {
+						servedOrder.add(className);
+					}
+				} catch (Exception e) {
+					; // the test will fail on the served order
+				}
+			}
+		};
+		thread.start();
+		return thread;
+	}
+	
+	private void waitForWaiters(int count) throws InterruptedException {
+		for (int i=0; i < 500 && connPool.getNumWaiters() < count; i++)
+			Thread.sleep(10);
+		assertEquals(count, connPool.getNumWaiters());
+	}
+
+	@Test
+	public void testSeveralConnectionsAreGrantedAllOrNothing() throws Exception {
+		borrow("batch", 2);
+		
+		// batch may hold five connections at most, so four more are never handed out partially
+		try {
+			connPool.getConnections("batch", 4, 0);
+			fail("batch should not be able to go over half the pool");
+		} catch (ConnectionPoolOutOfConnectionsException e) {
+			; // this is expected
+		}
+		assertEquals(2, connPool.getInUse("batch"));
+		
+		List<Connection> clients = connPool.getConnections("batch", 3, 0);
+		assertEquals(5, connPool.getInUse("batch"));
+		connPool.releaseConnections(clients);
+		assertEquals(2, connPool.getInUse("batch"));
+		assertEquals(2, connPool.getTotalInUse());
+	}
+
+	@Test
+	public void testBulkWaiterIsNotStarvedBySingleConnectionBorrowers() throws Exception {
+		connPool = new PrioritizedConnectionPool(underlyingPool, 3, 0, 
+				new BorrowerClass("high", 10, 0.0, 1.0), 
+				new BorrowerClass("low", 1, 0.0, 1.0));
+		List<Connection> clients = borrow("low", 2);
+		
+		// a high priority borrower needs all three connections at once
+		final List<Connection> bulk = new ArrayList<Connection>();
+		Thread bulkWaiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					bulk.addAll(connPool.getConnections("high", 3, 10000));
+				} catch (Exception e) {
+					; // the test will fail on the connections obtained
+				}
+			}
+		};
+		bulkWaiter.start();
+		waitForWaiters(1);
+		
+		// the connection released is kept for it rather than going to the next low priority borrower
+		connPool.releaseConnection(clients.remove(0));
+		try {
+			connPool.getConnection("low", 0);
+			fail("the free connection is kept for the high priority waiter");
+		} catch (ConnectionPoolOutOfConnectionsException e) {
+			; // this is expected
+		}
+		connPool.releaseConnection(clients.remove(0));
+		bulkWaiter.join(5000);
+		assertEquals(3, bulk.size());
+		assertEquals(3, connPool.getInUse("high"));
+		assertEquals(0, connPool.getNumWaiters());
+	}
+}
@@ -0,0 +1,178 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.impl;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolAlreadyReleasedConnectionException;
+
+/**
+ * Tests for verifying the connection binding of the ScopedConnectionPool class.  The underlying pool uses a mock database
+ * driver and connection.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ */
+public class ScopedConnectionPoolTest {
+	private ExpandingSizeConnectionPool underlyingPool;
+	private ScopedConnectionPool connPool;
+
+	@Before
+	public void setUp() throws Exception {
+		// create a mock Connection object that will always respond that it is valid and accepts any transaction control
+		Connection mockConnection = createMock(Connection.class);
+		expect(mockConnection.isValid(0)).andStubReturn(true);
+		expect(mockConnection.isClosed()).andStubReturn(false);
+		expect(mockConnection.getAutoCommit()).andStubReturn(true);
+		mockConnection.setAutoCommit(false);
+		expectLastCall().asStub();
+		mockConnection.setAutoCommit(true);
+		expectLastCall().asStub();
+		mockConnection.commit();
+		expectLastCall().asStub();
+		mockConnection.rollback();
+		expectLastCall().asStub();
+		mockConnection.close();
+		expectLastCall().asStub();
+		replay(mockConnection);
+		
+		createPools(mockConnection);
+	}
+	
+	private void createPools(Connection mockConnection) throws Exception {
+		// create a mock Driver object that returns mock Connections
+		Driver mockDriver = createMock(Driver.class);
+		expect(mockDriver.connect(null, (Properties) null)).andStubReturn(mockConnection);
+		replay(mockDriver);
+		
+		underlyingPool = new ExpandingSizeConnectionPool(2, 4, mockDriver, null, null);
+		connPool = new ScopedConnectionPool(underlyingPool);
+	}
+
+	@Test
+	public void testNestedBorrowsShareTheBoundConnection() throws Exception {
+		connPool.beginScope();
+		Connection outer = connPool.getConnection();
+		
+		// layered code borrows and releases the connection a few more times, in nested scopes too
+		connPool.beginScope();
+		for (int i=0; i < 3; i++) {
+			Connection inner = connPool.getConnection();
+			assertFalse(inner.isClosed());
+			connPool.releaseConnection(inner);
+		}
+		connPool.endScope();
+		
+		// a single connection was ever taken from the underlying pool, and it is held until the outermost scope ends
+		assertEquals(1, underlyingPool.getNumBorrowedConnections());
+		assertFalse(outer.isClosed());
+		connPool.endScope();
+		assertEquals(0, underlyingPool.getNumBorrowedConnections());
+		assertFalse(connPool.isScopeActive());
+		
+		// the handles cannot be used once the scope has ended
+		try {
+			outer.getAutoCommit();
+			fail("should not have gotten here");
+		} catch (ConnectionPoolAlreadyReleasedConnectionException e) {
+			; // do nothing, this is expected
+		}
+	}
+
+	@Test
+	public void testBorrowsOutsideOfAScopeGoToTheUnderlyingPool() throws Exception {
+		Connection conn1 = connPool.getConnection();
+		Connection conn2 = connPool.getConnection();
+		assertEquals(2, underlyingPool.getNumBorrowedConnections());
+		connPool.releaseConnection(conn1);
+		connPool.releaseConnection(conn2);
+		assertEquals(0, underlyingPool.getNumBorrowedConnections());
+	}
+	
+	@Test
+	public void testClosingAHandleKeepsTheBoundConnection() throws Exception {
+		connPool.beginScope();
+		try {
+			Connection handle = connPool.getConnection();
+			handle.close();
+			assertTrue(handle.isClosed());
+			
+			// the next borrow in the scope still gets a usable connection
+			assertFalse(connPool.getConnection().isClosed());
+			assertEquals(1, underlyingPool.getNumBorrowedConnections());
+		} finally {
+			connPool.endScope();
+		}
+	}
+	
+	@Test
+	public void testInnerRollbackRollsBackTheScopeTransaction() throws Exception {
+		// a connection that expects the scope to take over its transaction and roll it back, committing fails the test
+		Connection mockConnection = createMock(Connection.class);
+		expect(mockConnection.isValid(0)).andStubReturn(true);
+		expect(mockConnection.getAutoCommit()).andReturn(true);
+		mockConnection.setAutoCommit(false);
+		mockConnection.rollback();
+		mockConnection.setAutoCommit(true);
+		mockConnection.close();
+		expectLastCall().asStub();
+		replay(mockConnection);
+		createPools(mockConnection);
+		
+		connPool.beginScope();
+		Connection outer = connPool.getConnection();
+		
+		// layered code rolls back its part of the work, and then tries to commit and to take the transaction over
+		connPool.beginScope();
+		Connection inner = connPool.getConnection();
+		inner.rollback();
+		inner.commit();
+		try {
+			inner.setAutoCommit(true);
+			fail("should not have gotten here");
+		} catch (SQLException e) {
+			; // do nothing, this is expected
+		}
+		connPool.releaseConnection(inner);
+		connPool.endScope();
+		
+		// the code further up commits its own work, which is left to the scope as well
+		outer.commit();
+		connPool.endScope();
+		assertEquals(0, underlyingPool.getNumBorrowedConnections());
+		verify(mockConnection);
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void testEndScopeWithoutAnActiveScope() throws Exception {
+		connPool.endScope();
+	}
+}
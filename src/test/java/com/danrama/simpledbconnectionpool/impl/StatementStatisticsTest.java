@@ -0,0 +1,154 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.impl;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import com.danrama.simpledbconnectionpool.SlowQueryListener;
+
+/**
+ * Tests for verifying the SQL normalization and aggregation of the StatementStatistics class, and the statement wrapping done
+ * by pooled connections.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ */
+public class StatementStatisticsTest {
+
+	@Test
+	public void testNormalizeSql() throws Exception {
+		assertEquals("SELECT * FROM t1 WHERE id = ? AND name = ?", 
+				StatementStatistics.normalizeSql("SELECT *  FROM t1\n WHERE id = 42 AND name = 'O''Brien'"));
+		assertEquals("DELETE FROM orders WHERE id IN (?)", 
+				StatementStatistics.normalizeSql("DELETE FROM orders WHERE id IN (1, 2, 3)"));
+	}
+	
+	@Test
+	public void testStatementsAreAggregatedByNormalizedSql() throws Exception {
+		StatementStatistics statistics = new StatementStatistics(10);
+		statistics.record("UPDATE t SET x = 1 WHERE id = 1", 100, 1, false);
+		statistics.record("UPDATE t SET x = 2 WHERE id = 2", 300, 1, false);
+		statistics.record("UPDATE t SET x = 3 WHERE id = 3", 200, 0, true);
+		
+		List<StatementStatistics.Snapshot> top = statistics.getTopStatements(5);
+		assertEquals(1, top.size());
+		assertEquals("UPDATE t SET x = ? WHERE id = ?", top.get(0).getSql());
+		assertEquals(3, top.get(0).getExecutions());
+		assertEquals(1, top.get(0).getErrors());
+		assertEquals(2, top.get(0).getRows());
+		assertEquals(600, top.get(0).getTotalNanos());
+		assertEquals(300, top.get(0).getMaxNanos());
+	}
+	
+	@Test
+	public void testTableKeepsTheMostExpensiveStatements() throws Exception {
+		StatementStatistics statistics = new StatementStatistics(2);
+		statistics.record("SELECT a FROM t", 500, 0, false);
+		statistics.record("SELECT b FROM t", 100, 0, false);
+		statistics.record("SELECT c FROM t", 300, 0, false);
+		
+		List<StatementStatistics.Snapshot> top = statistics.getTopStatements(5);
+		assertEquals(2, top.size());
+		assertEquals("SELECT a FROM t", top.get(0).getSql());
+		assertEquals("SELECT c FROM t", top.get(1).getSql());
+		assertEquals(1, statistics.getEvictedCount());
+	}
+	
+	@Test
+	public void testTableDropsTheStatementThatIsCheapestByNow() throws Exception {
+		StatementStatistics statistics = new StatementStatistics(2);
+		statistics.record("SELECT a FROM t", 100, 0, false);
+		statistics.record("SELECT b FROM t", 500, 0, false);
+		// the first statement is run again and overtakes the second one
+		statistics.record("SELECT a FROM t", 1000, 0, false);
+		statistics.record("SELECT c FROM t", 300, 0, false);
+		
+		List<StatementStatistics.Snapshot> top = statistics.getTopStatements(5);
+		assertEquals(2, top.size());
+		assertEquals("SELECT a FROM t", top.get(0).getSql());
+		assertEquals(1100, top.get(0).getTotalNanos());
+		assertEquals("SELECT c FROM t", top.get(1).getSql());
+		assertEquals(1, statistics.getEvictedCount());
+	}
+	
+	@Test
+	public void testPooledConnectionRecordsStatementExecutions() throws Exception {
+		String sql = "UPDATE t SET x = ? WHERE id = ?";
+		
+		// a mock prepared statement that updates one row and then fails
+		PreparedStatement mockStatement = createMock(PreparedStatement.class);
+		expect(mockStatement.executeUpdate()).andReturn(1);
+		expect(mockStatement.executeUpdate()).andThrow(new SQLException("oh no there was a database error"));
+		replay(mockStatement);
+		
+		Connection mockConnection = createMock(Connection.class);
+		expect(mockConnection.prepareStatement(sql)).andStubReturn(mockStatement);
+		mockConnection.close();
+		expectLastCall().asStub();
+		replay(mockConnection);
+		
+		Driver mockDriver = createMock(Driver.class);
+		expect(mockDriver.connect(null, (Properties) null)).andStubReturn(mockConnection);
+		replay(mockDriver);
+		
+		// report every execution as a slow query
+		final List<String> slowQueries = new ArrayList<String>();
+		StatementStatistics statistics = new StatementStatistics(10, 0, new SlowQueryListener() {
+			public void slowQuery(String sql, long elapsedNanos, boolean failed) {
+				slowQueries.add(sql + (failed ? " failed" : ""));
+			}
+		});
+		ExpandingSizeConnectionPool connPool = new ExpandingSizeConnectionPool(1, 2, mockDriver, null, null);
+		connPool.setStatementStatistics(statistics);
+		
+		Connection conn = connPool.getConnection();
+		PreparedStatement statement = conn.prepareStatement(sql);
+		assertSame(conn, statement.getConnection());
+		assertEquals(1, statement.executeUpdate());
+		try {
+			statement.executeUpdate();
+			fail("should not have gotten here");
+		} catch (SQLException e) {
+			; // do nothing, this is expected
+		}
+		connPool.releaseConnection(conn);
+		
+		StatementStatistics.Snapshot snapshot = statistics.getTopStatements(1).get(0);
+		assertEquals(sql, snapshot.getSql());
+		assertEquals(2, snapshot.getExecutions());
+		assertEquals(1, snapshot.getErrors());
+		assertEquals(1, snapshot.getRows());
+		assertTrue(snapshot.getTotalNanos() > 0);
+		assertEquals(2, slowQueries.size());
+		assertEquals(sql + " failed", slowQueries.get(1));
+	}
+}
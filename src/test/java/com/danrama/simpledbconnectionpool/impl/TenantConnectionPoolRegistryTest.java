@@ -0,0 +1,176 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+
+import org.junit.Test;
+
+import com.danrama.simpledbconnectionpool.ConnectionSource;
+import com.danrama.simpledbconnectionpool.TenantConnectionSourceProvider;
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolClosedException;
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolException;
+import com.danrama.simpledbconnectionpool.simulation.SimulatedDriver;
+
+/**
+ * Tests for verifying the TenantConnectionPoolRegistry class.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ */
+public class TenantConnectionPoolRegistryTest {
+	private static TenantConnectionSourceProvider provider(final SimulatedDriver driver) {
+		return new TenantConnectionSourceProvider() {
+			public ConnectionSource getConnectionSource(String tenantId) {
+				return new DriverConnectionSource(driver, "jdbc:simulated:" + tenantId, null);
+			}
+		};
+	}
+	
+	@Test
+	public void testTenantPoolsAreCreatedOnFirstUse() throws Exception {
+		SimulatedDriver driver = new SimulatedDriver(1);
+		TenantConnectionPoolRegistry registry = new TenantConnectionPoolRegistry(1, 2, 4, provider(driver));
+		assertEquals(0, registry.getPoolCount());
+		assertEquals(0, driver.getOpenConnections());
+		
+		ExpandingSizeConnectionPool pool = registry.getPool("a");
+		assertTrue(registry.getPool("a") == pool);
+		assertEquals(1, registry.getPoolCount());
+		assertEquals(1, registry.getTotalConnections());
+		
+		Connection conn = registry.getConnection("b");
+		assertEquals(2, registry.getPoolCount());
+		assertTrue(((PooledConnection) conn).getPool() == registry.getPool("b"));
+		registry.releaseConnection(conn);
+		assertEquals(1, registry.getPool("b").getNumConnectionsInPool());
+		
+		registry.close();
+		assertEquals(0, registry.getPoolCount());
+		assertEquals(0, registry.getTotalConnections());
+		assertEquals(0, driver.getOpenConnections());
+		try {
+			pool.getConnection();
+			fail("a closed pool must not hand out connections");
+		} catch (ConnectionPoolClosedException e) {
+			; // expected
+		}
+	}
+	
+	@Test
+	public void testLeastRecentlyUsedIdlePoolIsClosedToMakeRoom() throws Exception {
+		SimulatedDriver driver = new SimulatedDriver(1);
+		TenantConnectionPoolRegistry registry = new TenantConnectionPoolRegistry(1, 1, 3, provider(driver));
+		for (String tenantId : new String[] { "a", "b", "c" })
+			registry.releaseConnection(registry.getConnection(tenantId));
+		ExpandingSizeConnectionPool poolA = registry.getPool("a");
+		registry.releaseConnection(registry.getConnection("c"));
+		registry.releaseConnection(registry.getConnection("b"));
+		assertEquals(3, registry.getTotalConnections());
+		
+		// "a" is the least recently used, so it makes room for "d"
+		Connection conn = registry.getConnection("d");
+		assertTrue(poolA.isClosed());
+		assertEquals(3, registry.getPoolCount());
+		assertEquals(3, registry.getTotalConnections());
+		assertEquals(3, driver.getOpenConnections());
+		
+		// "a" gets a new pool, in place of "c"
+		registry.releaseConnection(registry.getConnection("a"));
+		assertTrue(registry.getPool("a") != poolA);
+		assertEquals(3, driver.getOpenConnections());
+		registry.releaseConnection(conn);
+		registry.close();
+	}
+	
+	@Test
+	public void testActiveTenantGrowsByClosingAnIdlePool() throws Exception {
+		SimulatedDriver driver = new SimulatedDriver(1);
+		TenantConnectionPoolRegistry registry = new TenantConnectionPoolRegistry(1, 2, 3, provider(driver));
+		registry.releaseConnection(registry.getConnection("b"));
+		registry.releaseConnection(registry.getConnection("c"));
+		ExpandingSizeConnectionPool poolB = registry.getPool("b");
+		registry.getPool("c");
+		
+		// the refill after the first borrow of "a" is throttled in the background of the borrow, as the budget is used up
+		Connection conn1 = registry.getConnection("a");
+		assertEquals(3, registry.getTotalConnections());
+		assertEquals(0, registry.getPool("a").getNumConnectionsInPool());
+		
+		// the next borrow of "a" still finds out that the budget is the problem, and "b" makes room for it
+		Connection conn2 = registry.getConnection("a");
+		assertTrue(poolB.isClosed());
+		assertEquals(2, registry.getPool("a").getNumBorrowedConnections());
+		assertEquals(3, registry.getTotalConnections());
+		assertEquals(3, driver.getOpenConnections());
+		registry.releaseConnection(conn1);
+		registry.releaseConnection(conn2);
+		registry.close();
+	}
+	
+	@Test
+	public void testPoolThatCannotReachItsMinimumGivesItsConnectionsBack() throws Exception {
+		SimulatedDriver driver = new SimulatedDriver(1);
+		TenantConnectionPoolRegistry registry = new TenantConnectionPoolRegistry(2, 2, 3, provider(driver));
+		Connection conn = registry.getConnection("a");
+		
+		// only one connection is left in the budget, "b" needs two to start
+		try {
+			registry.getConnection("b");
+			fail("the budget is smaller than the minimum connections of the pool");
+		} catch (ConnectionPoolException e) {
+			; // expected
+		}
+		assertEquals(1, registry.getPoolCount());
+		assertEquals(2, registry.getTotalConnections());
+		assertEquals(2, driver.getOpenConnections());
+		
+		// once "a" is idle it makes room, and "b" gets the whole budget it needs
+		registry.releaseConnection(conn);
+		registry.releaseConnection(registry.getConnection("b"));
+		assertEquals(1, registry.getPoolCount());
+		assertEquals(2, registry.getTotalConnections());
+		assertEquals(2, driver.getOpenConnections());
+		registry.close();
+	}
+	
+	@Test
+	public void testBorrowedPoolsAreNeverClosed() throws Exception {
+		SimulatedDriver driver = new SimulatedDriver(1);
+		TenantConnectionPoolRegistry registry = new TenantConnectionPoolRegistry(0, 2, 2, provider(driver));
+		Connection conn1 = registry.getConnection("a");
+		Connection conn2 = registry.getConnection("b");
+		try {
+			registry.getConnection("c");
+			fail("the connections of all the tenant pools are borrowed");
+		} catch (ConnectionPoolException e) {
+			; // expected
+		}
+		assertFalse(registry.getPool("a").isClosed());
+		assertEquals(2, driver.getOpenConnections());
+		
+		// with a connection back, there is room again
+		registry.releaseConnection(conn1);
+		registry.releaseConnection(registry.getConnection("c"));
+		registry.releaseConnection(conn2);
+		assertEquals(0, driver.getOpenConnections());
+		registry.close();
+	}
+}
@@ -0,0 +1,101 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.simulation;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A distribution of simulated latencies, e.g. for connecting to the simulated database or running a query on it.  Samples
+ * are drawn from a caller-supplied random number generator so that runs with the same seed are reproducible.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ * @see SimulatedDriver
+ */
+public abstract class LatencyDistribution {
+	
+	/**
+	 * No latency at all.
+	 */
+	public static final LatencyDistribution NONE = fixed(0);
+
+	/**
+	 * Draw a latency from the distribution.
+	 * 
+	 * @param random the random number generator to use
+	 * @return the latency, in nanoseconds
+	 */
+	public abstract long nextNanos(Random random);
+	
+	/**
+	 * A latency that is always the same.
+	 */
+	public static LatencyDistribution fixed(final double millis) {
+		final long nanos = toNanos(millis);
+		return new LatencyDistribution() {
+			@Override
+			public long nextNanos(Random random) {
+				return nanos;
+			}
+		};
+	}
+	
+	/**
+	 * A latency uniformly distributed between two values.
+	 */
+	public static LatencyDistribution uniform(final double minMillis, final double maxMillis) {
+		final long minNanos = toNanos(minMillis);
+		final long rangeNanos = toNanos(maxMillis) - minNanos;
+		return new LatencyDistribution() {
+			@Override
+			public long nextNanos(Random random) {
+				return minNanos + (long) (random.nextDouble() * rangeNanos);
+			}
+		};
+	}
+	
+	/**
+	 * An exponentially distributed latency with a long tail, added to a fixed minimum, e.g. network round trip plus jitter.
+	 */
+	public static LatencyDistribution exponential(final double minMillis, final double meanJitterMillis) {
+		final long minNanos = toNanos(minMillis);
+		final double meanJitterNanos = toNanos(meanJitterMillis);
+		return new LatencyDistribution() {
+			@Override
+			public long nextNanos(Random random) {
+				return minNanos + (long) (-Math.log(1.0 - random.nextDouble()) * meanJitterNanos);
+			}
+		};
+	}
+	
+	/**
+	 * A latency that is usually drawn from one distribution but, with some probability, from a much slower one, e.g. to
+	 * simulate occasional stalls.
+	 */
+	public static LatencyDistribution withStalls(final LatencyDistribution usual, final double stallProbability, 
+			final LatencyDistribution stall) {
+		return new LatencyDistribution() {
+			@Override
+			public long nextNanos(Random random) {
+				return random.nextDouble() < stallProbability ? stall.nextNanos(random) : usual.nextNanos(random);
+			}
+		};
+	}
+	
+	private static long toNanos(double millis) {
+		return (long) (millis * TimeUnit.MILLISECONDS.toNanos(1));
+	}
+}
@@ -0,0 +1,206 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.simulation;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.danrama.simpledbconnectionpool.ConnectionPool;
+
+/**
+ * Drives a multi-threaded borrow/use/release load against any <code>ConnectionPool</code> implementation and reports the
+ * throughput, the borrow latency percentiles and the errors seen.  An operation only counts as a success once its
+ * connection was released without an error, and the latencies of the borrows that failed are kept apart from those of the
+ * borrows that succeeded, so that fast failures do not make the pool look faster.  Combined with the <code>SimulatedDriver</code> this
+ * allows pools to be measured under realistic database latencies and faults without a real database.
+ * <p>
+ * Each worker thread runs a fixed number of operations.  An operation borrows a connection, executes a number of
+ * statements on it, "thinks" for a while to simulate non-database work done while holding the connection, and releases it.
+ * The think times come from per-thread generators seeded from the harness seed.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ * @see SimulatedDriver
+ * @see LoadReport
+ */
+public class LoadHarness {
+	private final ConnectionPool pool;
+	private final int threads;
+	private final long seed;
+	
+	// the shape of the load
+	private int operationsPerThread = 1000;
+	private int statementsPerOperation = 1;
+	private long borrowTimeoutMillis;
+	private LatencyDistribution thinkTime = LatencyDistribution.NONE;
+	
+	/**
+	 * Create a load harness.
+	 * 
+	 * @param pool the pool under test
+	 * @param threads the number of concurrent worker threads
+	 * @param seed the seed for the think time generators
+	 */
+	public LoadHarness(ConnectionPool pool, int threads, long seed) {
+		this.pool = pool;
+		this.threads = threads;
+		this.seed = seed;
+	}
+	
+	// ----- configuration of the load -----
+	public void setOperationsPerThread(int operationsPerThread) {
+		this.operationsPerThread = operationsPerThread;
+	}
+	public void setStatementsPerOperation(int statementsPerOperation) {
+		this.statementsPerOperation = statementsPerOperation;
+	}
+	// how long to wait for a connection, 0 to use the plain non-waiting getConnection()
+	public void setBorrowTimeoutMillis(long borrowTimeoutMillis) {
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+	}
+	// time spent holding the connection without using it
+	public void setThinkTime(LatencyDistribution thinkTime) {
+		this.thinkTime = thinkTime;
+	}
+	
+	/**
+	 * Run the load and wait for all of the worker threads to finish.
+	 * 
+	 * @return the results of the run
+	 */
+	public LoadReport run() throws InterruptedException {
+		final long[][] latencies = new long[threads][operationsPerThread];
+		final int[] borrowed = new int[threads];
+		final long[][] failedBorrowLatencies = new long[threads][operationsPerThread];
+		final int[] failedBorrows = new int[threads];
+		final int[] succeeded = new int[threads];
+		final Map<String, Integer> errors = new TreeMap<String, Integer>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		
+		for (int t=0; t < threads; t++) {
+			final int threadIndex = t;
+			final Random random = new Random(seed + t);
+			Thread worker = new Thread("load-harness-" + t) {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i=0; i < operationsPerThread; i++) {
+							long borrowStart = System.nanoTime();
+							Connection conn;
+							try {
+								conn = borrow();
+							} catch (SQLException e) {
+								failedBorrowLatencies[threadIndex][failedBorrows[threadIndex]++] = 
+										System.nanoTime() - borrowStart;
+								recordError(errors, e);
+								continue;
+							} catch (RuntimeException e) {
+								failedBorrowLatencies[threadIndex][failedBorrows[threadIndex]++] = 
+										System.nanoTime() - borrowStart;
+								recordError(errors, e);
+								continue;
+							}
+							latencies[threadIndex][borrowed[threadIndex]++] = System.nanoTime() - borrowStart;
+							
+							// the operation only succeeded if its connection went back without an error too
+							try {
+								try {
+									use(conn, random);
+								} finally {
+									pool.releaseConnection(conn);
+								}
+								succeeded[threadIndex]++;
+							} catch (SQLException e) {
+								recordError(errors, e);
+							} catch (RuntimeException e) {
+								recordError(errors, e);
+							}
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			worker.start();
+		}
+		
+		long startNanos = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsedNanos = System.nanoTime() - startNanos;
+		
+		int totalSucceeded = 0;
+		for (int t=0; t < threads; t++)
+			totalSucceeded += succeeded[t];
+		return new LoadReport(threads * operationsPerThread, totalSucceeded, sortedLatencies(latencies, borrowed),
+				sortedLatencies(failedBorrowLatencies, failedBorrows), elapsedNanos, errors);
+	}
+	
+	/*
+	 * Gathers the latencies recorded by every worker thread, sorted.
+	 */
+	private static long[] sortedLatencies(long[][] latencies, int[] counts) {
+		int total = 0;
+		for (int count : counts)
+			total += count;
+		long[] all = new long[total];
+		int offset = 0;
+		for (int t=0; t < latencies.length; t++) {
+			System.arraycopy(latencies[t], 0, all, offset, counts[t]);
+			offset += counts[t];
+		}
+		Arrays.sort(all);
+		return all;
+	}
+	
+	private Connection borrow() throws SQLException {
+		if (borrowTimeoutMillis == 0)
+			return pool.getConnection();
+		return pool.getConnections(1, borrowTimeoutMillis).get(0);
+	}
+	
+	private void use(Connection conn, Random random) throws SQLException, InterruptedException {
+		for (int s=0; s < statementsPerOperation; s++) {
+			Statement statement = conn.createStatement();
+			try {
+				statement.executeQuery("SELECT 1");
+			} finally {
+				statement.close();
+			}
+		}
+		long thinkNanos = thinkTime.nextNanos(random);
+		if (thinkNanos > 0)
+			TimeUnit.NANOSECONDS.sleep(thinkNanos);
+	}
+	
+	private static void recordError(Map<String, Integer> errors, Exception e) {
+		synchronized (errors) {
+			String key = e.getClass().getSimpleName();
+			Integer count = errors.get(key);
+			errors.put(key, count == null ? 1 : count + 1);
+		}
+	}
+}
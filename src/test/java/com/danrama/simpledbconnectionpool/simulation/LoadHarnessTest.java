@@ -0,0 +1,122 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.simulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+import com.danrama.simpledbconnectionpool.exception.ConnectionPoolOutOfConnectionsException;
+import com.danrama.simpledbconnectionpool.impl.ExpandingSizeConnectionPool;
+
+/**
+ * Tests for the simulated database driver and the load harness, run against the ExpandingSizeConnectionPool class.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ */
+public class LoadHarnessTest {
+	@Test
+	public void testHarnessReportsSteadyLoad() throws Exception {
+		SimulatedDriver driver = new SimulatedDriver(42);
+		driver.setConnectLatency(LatencyDistribution.fixed(2));
+		driver.setExecutionLatency(LatencyDistribution.uniform(0, 1));
+		ExpandingSizeConnectionPool connPool = new ExpandingSizeConnectionPool(2, 4, driver, "jdbc:simulated", null);
+		
+		LoadHarness harness = new LoadHarness(connPool, 6, 42);
+		harness.setOperationsPerThread(50);
+		harness.setBorrowTimeoutMillis(5000);
+		harness.setThinkTime(LatencyDistribution.exponential(0, 0.5));
+		LoadReport report = harness.run();
+		
+		// more threads than connections means waiting, but never failing
+		assertEquals(300, report.getOperations());
+		assertEquals(300, report.getSucceeded());
+		assertEquals(0, report.getErrorRate(), 0);
+		assertTrue(report.getErrors().isEmpty());
+		assertTrue(report.getThroughput() > 0);
+		assertTrue(report.getBorrowLatencyNanos(50) <= report.getBorrowLatencyNanos(99));
+		assertTrue(report.getBorrowLatencyNanos(99) <= report.getBorrowLatencyNanos(99.9));
+		assertEquals(300, driver.getExecutions());
+		
+		// the pool never went over its maximum and got all of its connections back
+		assertTrue(driver.getMaxOpenConnections() <= 4);
+		assertEquals(0, connPool.getNumBorrowedConnections());
+		assertEquals(connPool.getTotalConnections(), driver.getOpenConnections());
+	}
+	
+	@Test
+	public void testHarnessCountsErrorsFromDyingConnections() throws Exception {
+		SimulatedDriver driver = new SimulatedDriver(7);
+		driver.setConnectionDeathProbability(0.1);
+		ExpandingSizeConnectionPool connPool = new ExpandingSizeConnectionPool(2, 4, driver, "jdbc:simulated", null);
+		
+		LoadHarness harness = new LoadHarness(connPool, 2, 7);
+		harness.setOperationsPerThread(100);
+		harness.setBorrowTimeoutMillis(5000);
+		LoadReport report = harness.run();
+		
+		// dead connections fail the operation using them, and are replaced rather than handed out again
+		assertTrue(report.getFailed() > 0);
+		assertEquals(report.getFailed(), report.getErrors().get(SQLException.class.getSimpleName()).intValue());
+		assertTrue(report.getSucceeded() > report.getFailed());
+		assertEquals(0, connPool.getNumBorrowedConnections());
+	}
+	
+	@Test
+	public void testHarnessKeepsFailedBorrowsApart() throws Exception {
+		SimulatedDriver driver = new SimulatedDriver(3);
+		ExpandingSizeConnectionPool connPool = new ExpandingSizeConnectionPool(1, 1, driver, "jdbc:simulated", null);
+
+		// two threads share one connection without waiting for it, so some borrows fail right away
+		LoadHarness harness = new LoadHarness(connPool, 2, 3);
+		harness.setOperationsPerThread(50);
+		harness.setThinkTime(LatencyDistribution.fixed(1));
+		LoadReport report = harness.run();
+
+		assertTrue(report.getFailedBorrows() > 0);
+		assertEquals(report.getFailed(), report.getFailedBorrows());
+		assertEquals(report.getFailedBorrows(),
+				report.getErrors().get(ConnectionPoolOutOfConnectionsException.class.getSimpleName()).intValue());
+		assertEquals(100, report.getSucceeded() + report.getFailed());
+		assertTrue(report.getFailedBorrowLatencyNanos(50) > 0);
+		assertTrue(report.getBorrowLatencyNanos(50) > 0);
+	}
+
+	@Test
+	public void testSimulatedDriverIsDeterministic() throws Exception {
+		assertEquals(connectOutcomes(123), connectOutcomes(123));
+		assertFalse(connectOutcomes(123).equals(connectOutcomes(456)));
+	}
+	
+	private static String connectOutcomes(long seed) {
+		SimulatedDriver driver = new SimulatedDriver(seed);
+		driver.setConnectFailureProbability(0.5);
+		StringBuilder outcomes = new StringBuilder();
+		for (int i=0; i < 64; i++) {
+			try {
+				driver.connect("jdbc:simulated", null).close();
+				outcomes.append('+');
+			} catch (SQLException e) {
+				outcomes.append('-');
+			}
+		}
+		return outcomes.toString();
+	}
+}
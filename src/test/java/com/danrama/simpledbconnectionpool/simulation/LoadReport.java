@@ -0,0 +1,112 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.simulation;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The results of a <code>LoadHarness</code> run: throughput, borrow latency percentiles and errors.  The latencies of the
+ * borrows that succeeded and of those that failed are reported apart.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ * @see LoadHarness
+ */
+public class LoadReport {
+	private final int operations;
+	private final int succeeded;
+	
+	// the latency of every borrow that succeeded and of every borrow that failed, sorted
+	private final long[] sortedLatencies;
+	private final long[] sortedFailedBorrowLatencies;
+	
+	private final long elapsedNanos;
+	private final Map<String, Integer> errors;
+	
+	LoadReport(int operations, int succeeded, long[] sortedLatencies, long[] sortedFailedBorrowLatencies, long elapsedNanos, 
+			Map<String, Integer> errors) {
+		this.operations = operations;
+		this.succeeded = succeeded;
+		this.sortedLatencies = sortedLatencies;
+		this.sortedFailedBorrowLatencies = sortedFailedBorrowLatencies;
+		this.elapsedNanos = elapsedNanos;
+		this.errors = Collections.unmodifiableMap(errors);
+	}
+	
+	public int getOperations() {
+		return operations;
+	}
+	public int getSucceeded() {
+		return succeeded;
+	}
+	public int getFailed() {
+		return operations - succeeded;
+	}
+	public int getFailedBorrows() {
+		return sortedFailedBorrowLatencies.length;
+	}
+	public double getErrorRate() {
+		return operations == 0 ? 0 : (double) getFailed() / operations;
+	}
+	// number of errors by exception class name
+	public Map<String, Integer> getErrors() {
+		return errors;
+	}
+	public long getElapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+	}
+	// successful operations per second
+	public double getThroughput() {
+		return elapsedNanos == 0 ? 0 : succeeded * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+	}
+	
+	/**
+	 * Gets a percentile of the latency of the borrows that succeeded.
+	 * 
+	 * @param percentile the percentile, e.g. 99.9
+	 * @return the borrow latency in nanoseconds, 0 if no borrow succeeded
+	 */
+	public long getBorrowLatencyNanos(double percentile) {
+		return percentile(sortedLatencies, percentile);
+	}
+	
+	/**
+	 * Gets a percentile of how long the borrows that failed took to fail.
+	 * 
+	 * @param percentile the percentile, e.g. 99.9
+	 * @return the time to fail in nanoseconds, 0 if no borrow failed
+	 */
+	public long getFailedBorrowLatencyNanos(double percentile) {
+		return percentile(sortedFailedBorrowLatencies, percentile);
+	}
+	
+	private static long percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0)
+			return 0;
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("ops=%d, failed=%d (%.2f%%), elapsed=%dms, throughput=%.1f ops/s, " +
+				"borrow p50=%.3fms p99=%.3fms p999=%.3fms, failed borrows=%d p50=%.3fms p99=%.3fms, errors=%s", 
+				getOperations(), getFailed(), getErrorRate() * 100, getElapsedMillis(), getThroughput(), 
+				getBorrowLatencyNanos(50) / 1e6, getBorrowLatencyNanos(99) / 1e6, getBorrowLatencyNanos(99.9) / 1e6, 
+				getFailedBorrows(), getFailedBorrowLatencyNanos(50) / 1e6, getFailedBorrowLatencyNanos(99) / 1e6, errors);
+	}
+}
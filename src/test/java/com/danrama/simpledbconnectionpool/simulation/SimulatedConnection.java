@@ -0,0 +1,227 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.simulation;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * The invocation handler of the connections handed out by the <code>SimulatedDriver</code>.  Statements created by a
+ * simulated connection are simulated as well: executing them takes the driver's execution latency, queries return an empty
+ * result set and updates report a single affected row.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ * @see SimulatedDriver
+ */
+public class SimulatedConnection implements InvocationHandler {
+	private final SimulatedDriver driver;
+	private final int id;
+	
+	// the connection state, updated by whichever thread uses the connection
+	private volatile boolean closed;
+	private volatile boolean dead;
+	private volatile boolean autoCommit = true;
+	private volatile boolean readOnly;
+	
+	SimulatedConnection(SimulatedDriver driver, int id) {
+		this.driver = driver;
+		this.id = id;
+	}
+	
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		if (name.equals("close") || name.equals("abort")) {
+			close();
+			return null;
+		}
+		if (name.equals("isClosed"))
+			return closed;
+		if (name.equals("isValid")) {
+			SimulatedDriver.simulateLatency(driver.nextLatencyNanos(driver.getValidationLatency()));
+			if (!closed && !dead && driver.nextConnectionDeath())
+				dead = true;
+			return !closed && !dead;
+		}
+		if (name.equals("toString"))
+			return "SimulatedConnection#" + id;
+		if (name.equals("hashCode"))
+			return System.identityHashCode(proxy);
+		if (name.equals("equals"))
+			return proxy == args[0];
+		
+		// everything else needs a live connection
+		checkUsable();
+		if (name.equals("createStatement") || name.equals("prepareStatement") || name.equals("prepareCall")) {
+			// the result set type comes first for createStatement(), after the SQL for the others
+			int typeIndex = name.equals("createStatement") ? 0 : 1;
+			int resultSetType = args != null && args.length >= typeIndex + 2 ? (Integer) args[typeIndex] : 
+					ResultSet.TYPE_FORWARD_ONLY;
+			return Proxy.newProxyInstance(method.getReturnType().getClassLoader(), new Class[] { method.getReturnType() }, 
+					new SimulatedStatement(proxy, resultSetType));
+		}
+		if (name.equals("getAutoCommit"))
+			return autoCommit;
+		if (name.equals("setAutoCommit")) {
+			autoCommit = (Boolean) args[0];
+			return null;
+		}
+		if (name.equals("isReadOnly"))
+			return readOnly;
+		if (name.equals("setReadOnly")) {
+			readOnly = (Boolean) args[0];
+			return null;
+		}
+		return defaultValue(method.getReturnType());
+	}
+	
+	private void close() {
+		if (!closed) {
+			closed = true;
+			driver.connectionClosed();
+		}
+	}
+	
+	private void checkUsable() throws SQLException {
+		if (closed)
+			throw new SQLException("connection is closed", "08003");
+		if (dead)
+			throw new SQLException("communication link failure", SimulatedDriver.LINK_FAILURE_SQL_STATE);
+	}
+	
+	/*
+	 * The value returned by the methods the simulation does not care about.
+	 */
+	static Object defaultValue(Class<?> type) {
+		if (type == boolean.class)
+			return false;
+		if (type == int.class)
+			return 0;
+		if (type == long.class)
+			return 0L;
+		if (type == short.class)
+			return (short) 0;
+		if (type == byte.class)
+			return (byte) 0;
+		if (type == float.class)
+			return 0f;
+		if (type == double.class)
+			return 0d;
+		return null;
+	}
+	
+	/*
+	 * The invocation handler of the statements created by a simulated connection.
+	 */
+	private class SimulatedStatement implements InvocationHandler {
+		private final Object connectionProxy;
+		private final int resultSetType;
+		
+		// closing the statement closes its current result set, as does executing it again
+		private volatile boolean closed;
+		private volatile SimulatedResultSet currentResultSet;
+		
+		SimulatedStatement(Object connectionProxy, int resultSetType) {
+			this.connectionProxy = connectionProxy;
+			this.resultSetType = resultSetType;
+		}
+		
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("getConnection"))
+				return connectionProxy;
+			if (name.equals("toString"))
+				return "SimulatedStatement(" + connectionProxy + ")";
+			if (name.equals("hashCode"))
+				return System.identityHashCode(proxy);
+			if (name.equals("equals"))
+				return proxy == args[0];
+			if (name.equals("isClosed"))
+				return closed;
+			if (name.equals("close")) {
+				closed = true;
+				closeCurrentResultSet();
+				return null;
+			}
+			if (!name.startsWith("execute"))
+				return defaultValue(method.getReturnType());
+			
+			checkUsable();
+			SimulatedDriver.simulateLatency(driver.nextLatencyNanos(driver.getExecutionLatency()));
+			if (driver.nextConnectionDeath()) {
+				dead = true;
+				checkUsable();
+			}
+			driver.statementExecuted();
+			
+			closeCurrentResultSet();
+			if (method.getReturnType() == ResultSet.class) {
+				currentResultSet = new SimulatedResultSet(proxy, resultSetType);
+				return Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class[] { ResultSet.class }, 
+						currentResultSet);
+			}
+			if (method.getReturnType() == int.class)
+				return 1;
+			if (method.getReturnType() == long.class)
+				return 1L;
+			if (method.getReturnType() == int[].class)
+				return new int[0];
+			return defaultValue(method.getReturnType());
+		}
+		
+		private void closeCurrentResultSet() {
+			SimulatedResultSet resultSet = currentResultSet;
+			if (resultSet != null)
+				resultSet.closed = true;
+		}
+	}
+	
+	/*
+	 * The invocation handler of the empty result sets of the simulated statements.
+	 */
+	private static class SimulatedResultSet implements InvocationHandler {
+		private final Object statementProxy;
+		private final int type;
+		private volatile boolean closed;
+		
+		SimulatedResultSet(Object statementProxy, int type) {
+			this.statementProxy = statementProxy;
+			this.type = type;
+		}
+		
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("getStatement"))
+				return statementProxy;
+			if (name.equals("hashCode"))
+				return System.identityHashCode(proxy);
+			if (name.equals("equals"))
+				return proxy == args[0];
+			if (name.equals("isClosed"))
+				return closed;
+			if (name.equals("close")) {
+				closed = true;
+				return null;
+			}
+			if (name.equals("getType"))
+				return type;
+			return defaultValue(method.getReturnType());
+		}
+	}
+}
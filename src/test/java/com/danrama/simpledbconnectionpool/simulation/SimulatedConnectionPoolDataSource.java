@@ -0,0 +1,134 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.simulation;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.ConnectionPoolDataSource;
+import javax.sql.StatementEventListener;
+
+/**
+ * A <code>ConnectionPoolDataSource</code> over the simulated driver.  Its physical connections can be made to report a fatal
+ * error to their listeners, the way a driver does when it finds out that a connection is broken.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ * @see SimulatedDriver
+ */
+public class SimulatedConnectionPoolDataSource implements ConnectionPoolDataSource {
+	private final SimulatedDriver driver;
+	
+	// every physical connection handed out, in order
+	private final List<SimulatedPooledConnection> pooledConnections = new CopyOnWriteArrayList<SimulatedPooledConnection>();
+	
+	/**
+	 * A physical connection of the simulated driver.  Its logical connection is the simulated connection itself.
+	 */
+	public static class SimulatedPooledConnection implements javax.sql.PooledConnection {
+		private final Connection connection;
+		private final List<ConnectionEventListener> listeners = new CopyOnWriteArrayList<ConnectionEventListener>();
+		private volatile boolean closed;
+		
+		SimulatedPooledConnection(Connection connection) {
+			this.connection = connection;
+		}
+		
+		public Connection getConnection() throws SQLException {
+			if (closed)
+				throw new SQLException("physical connection is closed");
+			return connection;
+		}
+		public void close() throws SQLException {
+			closed = true;
+			connection.close();
+		}
+		public boolean isClosed() {
+			return closed;
+		}
+		
+		/**
+		 * Report a fatal error on the connection to its listeners.
+		 * 
+		 * @param e the error
+		 */
+		public void fireConnectionErrorOccurred(SQLException e) {
+			for (ConnectionEventListener listener : new ArrayList<ConnectionEventListener>(listeners))
+				listener.connectionErrorOccurred(new ConnectionEvent(this, e));
+		}
+		
+		public void addConnectionEventListener(ConnectionEventListener listener) {
+			listeners.add(listener);
+		}
+		public void removeConnectionEventListener(ConnectionEventListener listener) {
+			listeners.remove(listener);
+		}
+		public void addStatementEventListener(StatementEventListener listener) {
+			; // statement events are not simulated
+		}
+		public void removeStatementEventListener(StatementEventListener listener) {
+			; // statement events are not simulated
+		}
+	}
+	
+	/**
+	 * Create a data source over a simulated driver.
+	 * 
+	 * @param driver the driver
+	 */
+	public SimulatedConnectionPoolDataSource(SimulatedDriver driver) {
+		this.driver = driver;
+	}
+	
+	/**
+	 * Gets the physical connections handed out so far, in order.
+	 */
+	public List<SimulatedPooledConnection> getPooledConnections() {
+		return pooledConnections;
+	}
+	
+	public javax.sql.PooledConnection getPooledConnection() throws SQLException {
+		SimulatedPooledConnection pooledConnection = new SimulatedPooledConnection(driver.connect("jdbc:simulated", null));
+		pooledConnections.add(pooledConnection);
+		return pooledConnection;
+	}
+	public javax.sql.PooledConnection getPooledConnection(String user, String password) throws SQLException {
+		return getPooledConnection();
+	}
+	
+	public PrintWriter getLogWriter() {
+		return null;
+	}
+	public void setLogWriter(PrintWriter out) {
+		; // nothing is logged
+	}
+	public void setLoginTimeout(int seconds) {
+		; // connects are simulated
+	}
+	public int getLoginTimeout() {
+		return 0;
+	}
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+}
@@ -0,0 +1,205 @@
+/*
+Copyright 2011 Daniel Bloomfield Ramagem
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.danrama.simpledbconnectionpool.simulation;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A JDBC driver that simulates a database instead of talking to a real one.  Its connections support just enough of the
+ * JDBC API to be pooled and to run statements, with configurable latencies for connecting, validating and executing, and
+ * with fault injection: connect attempts may fail and connections may randomly die, after which every operation on them
+ * fails with a communication error and <code>isValid</code> returns <code>false</code>.
+ * <p>
+ * All of the randomness comes from a single seeded generator, so the sequence of latencies and faults is reproducible for a
+ * given seed (although its interleaving across threads is up to the scheduler).  The driver also keeps count of the
+ * connections it has opened and that are still open, which lets tests check that a pool does not leak connections.
+ * 
+ * @author Daniel Bloomfield Ramagem
+ * @see LatencyDistribution
+ * @see LoadHarness
+ */
+public class SimulatedDriver implements Driver {
+	/**
+	 * The SQL state used for failed connect attempts.
+	 */
+	public static final String CONNECT_FAILURE_SQL_STATE = "08001";
+	
+	/**
+	 * The SQL state used for operations on a dead connection.
+	 */
+	public static final String LINK_FAILURE_SQL_STATE = "08S01";
+	
+	private final Random random;
+	
+	// latencies and fault probabilities of the simulated database
+	private volatile LatencyDistribution connectLatency = LatencyDistribution.NONE;
+	private volatile LatencyDistribution validationLatency = LatencyDistribution.NONE;
+	private volatile LatencyDistribution executionLatency = LatencyDistribution.NONE;
+	private volatile double connectFailureProbability;
+	private volatile double connectionDeathProbability;
+	
+	// statistics of the simulated connections
+	private final AtomicInteger nextConnectionId = new AtomicInteger();
+	private final AtomicInteger openConnections = new AtomicInteger();
+	private final AtomicInteger maxOpenConnections = new AtomicInteger();
+	private final AtomicLong failedConnects = new AtomicLong();
+	private final AtomicLong deadConnections = new AtomicLong();
+	private final AtomicLong executions = new AtomicLong();
+	
+	/**
+	 * Create a simulated driver with no latencies and no faults.
+	 * 
+	 * @param seed the seed of the random number generator used for latencies and faults
+	 */
+	public SimulatedDriver(long seed) {
+		random = new Random(seed);
+	}
+	
+	// ----- configuration of the simulated database -----
+	public void setConnectLatency(LatencyDistribution connectLatency) {
+		this.connectLatency = connectLatency;
+	}
+	public void setValidationLatency(LatencyDistribution validationLatency) {
+		this.validationLatency = validationLatency;
+	}
+	public void setExecutionLatency(LatencyDistribution executionLatency) {
+		this.executionLatency = executionLatency;
+	}
+	// probability that a connect attempt fails
+	public void setConnectFailureProbability(double connectFailureProbability) {
+		this.connectFailureProbability = connectFailureProbability;
+	}
+	// probability that a connection dies on any validation or statement execution
+	public void setConnectionDeathProbability(double connectionDeathProbability) {
+		this.connectionDeathProbability = connectionDeathProbability;
+	}
+	
+	// ----- statistics of the simulated connections -----
+	public int getTotalConnects() {
+		return nextConnectionId.get();
+	}
+	public int getOpenConnections() {
+		return openConnections.get();
+	}
+	public int getMaxOpenConnections() {
+		return maxOpenConnections.get();
+	}
+	public long getFailedConnects() {
+		return failedConnects.get();
+	}
+	public long getDeadConnections() {
+		return deadConnections.get();
+	}
+	public long getExecutions() {
+		return executions.get();
+	}
+	
+	/*
+	 * Random draws are serialized so that the sequence only depends on the seed.
+	 */
+	synchronized long nextLatencyNanos(LatencyDistribution latency) {
+		return latency.nextNanos(random);
+	}
+	synchronized boolean nextFault(double probability) {
+		return probability > 0 && random.nextDouble() < probability;
+	}
+	
+	/*
+	 * Simulate a latency by sleeping the calling thread.
+	 */
+	static void simulateLatency(long nanos) throws SQLException {
+		if (nanos <= 0)
+			return;
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("interrupted", LINK_FAILURE_SQL_STATE);
+		}
+	}
+	
+	// ----- callbacks from the simulated connections -----
+	LatencyDistribution getValidationLatency() {
+		return validationLatency;
+	}
+	LatencyDistribution getExecutionLatency() {
+		return executionLatency;
+	}
+	boolean nextConnectionDeath() {
+		if (!nextFault(connectionDeathProbability))
+			return false;
+		deadConnections.incrementAndGet();
+		return true;
+	}
+	void connectionClosed() {
+		openConnections.decrementAndGet();
+	}
+	void statementExecuted() {
+		executions.incrementAndGet();
+	}
+	
+	public Connection connect(String url, Properties info) throws SQLException {
+		simulateLatency(nextLatencyNanos(connectLatency));
+		if (nextFault(connectFailureProbability)) {
+			failedConnects.incrementAndGet();
+			throw new SQLException("simulated connect failure", CONNECT_FAILURE_SQL_STATE);
+		}
+		
+		int open = openConnections.incrementAndGet();
+		int max;
+		while ((max = maxOpenConnections.get()) < open && !maxOpenConnections.compareAndSet(max, open))
+			; // retry until the maximum is updated
+		
+		SimulatedConnection handler = new SimulatedConnection(this, nextConnectionId.incrementAndGet());
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[] { Connection.class }, 
+				handler);
+	}
+
+	public boolean acceptsURL(String url) throws SQLException {
+		return url != null && url.startsWith("jdbc:simulated:");
+	}
+
+	public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) throws SQLException {
+		return new DriverPropertyInfo[0];
+	}
+
+	public int getMajorVersion() {
+		return 1;
+	}
+
+	public int getMinorVersion() {
+		return 0;
+	}
+
+	public boolean jdbcCompliant() {
+		return false;
+	}
+
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+}